@@ -0,0 +1,288 @@
+/* ***********************************************************************
+ * VMware ThinApp Factory
+ * Copyright (c) 2009-2013 VMware, Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ***********************************************************************/
+
+package com.vmware.thinapp.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.codehaus.jackson.JsonNode;
+import org.codehaus.jackson.map.ObjectMapper;
+
+/**
+ * Compare a JMH result file against a stored baseline and report the
+ * benchmarks whose score or allocation rate got worse by more than a given
+ * percentage.
+ *
+ * Produce the result files with:
+ *    java -jar benchmarks/target/benchmarks.jar -prof gc -rf json -rff current.json
+ * and compare them with:
+ *    java -cp benchmarks/target/benchmarks.jar \
+ *       com.vmware.thinapp.benchmarks.BenchmarkComparator baseline.json current.json
+ *
+ * Exits with status 1 if there are regressions, so it can gate a build.
+ */
+public class BenchmarkComparator {
+   /** Default allowed change, in percent */
+   public static final double DEFAULT_THRESHOLD = 10.0;
+
+   /** Secondary metric added by "-prof gc": bytes allocated per operation */
+   static final String ALLOC_METRIC = "gc.alloc.rate.norm";
+
+   /**
+    * Allocation rates below this many bytes per operation are ignored, so
+    * that a benchmark going from 0 to 16 bytes/op is not a regression.
+    */
+   static final double ALLOC_NOISE_BYTES = 64;
+
+   private final double threshold;
+   private final double allocThreshold;
+
+   public BenchmarkComparator(double threshold, double allocThreshold) {
+      this.threshold = threshold;
+      this.allocThreshold = allocThreshold;
+   }
+
+   /**
+    * One measured benchmark, keyed by its name, mode, thread count and
+    * parameters.
+    */
+   static class Result {
+      final String key;
+      final String unit;
+      final double score;
+      final boolean higherIsBetter;
+      final Double allocPerOp;
+
+      Result(String key, String unit, double score, boolean higherIsBetter, Double allocPerOp) {
+         this.key = key;
+         this.unit = unit;
+         this.score = score;
+         this.higherIsBetter = higherIsBetter;
+         this.allocPerOp = allocPerOp;
+      }
+   }
+
+   /**
+    * A benchmark that got worse than the threshold allows.
+    */
+   public static class Regression {
+      private final String key;
+      private final String metric;
+      private final double baseline;
+      private final double current;
+      private final double percent;
+
+      Regression(String key, String metric, double baseline, double current, double percent) {
+         this.key = key;
+         this.metric = metric;
+         this.baseline = baseline;
+         this.current = current;
+         this.percent = percent;
+      }
+
+      public String getKey() {
+         return key;
+      }
+
+      public String getMetric() {
+         return metric;
+      }
+
+      public double getBaseline() {
+         return baseline;
+      }
+
+      public double getCurrent() {
+         return current;
+      }
+
+      /** How much worse, in percent; always positive */
+      public double getPercent() {
+         return percent;
+      }
+
+      @Override
+      public String toString() {
+         return String.format("%s [%s]: %.3f -> %.3f (%.1f%% worse)",
+               key, metric, baseline, current, percent);
+      }
+   }
+
+   /**
+    * Parse a JMH JSON result file (-rf json).
+    *
+    * @return results by key, in file order.
+    */
+   static Map<String, Result> parse(JsonNode root) throws IOException {
+      if (root == null || !root.isArray()) {
+         throw new IOException("Not a JMH JSON result: expected an array");
+      }
+
+      Map<String, Result> results = new LinkedHashMap<String, Result>();
+      for (JsonNode run : root) {
+         String mode = run.path("mode").getTextValue();
+         JsonNode primary = run.path("primaryMetric");
+         if (run.path("benchmark").getTextValue() == null || mode == null ||
+             !primary.path("score").isNumber()) {
+            throw new IOException("Not a JMH JSON result: missing benchmark, mode or score");
+         }
+
+         String key = key(run);
+         results.put(key, new Result(
+               key,
+               primary.path("scoreUnit").getTextValue(),
+               primary.path("score").getDoubleValue(),
+               "thrpt".equals(mode),
+               allocPerOp(run.path("secondaryMetrics"))));
+      }
+      return results;
+   }
+
+   private static String key(JsonNode run) {
+      StringBuilder sb = new StringBuilder(run.path("benchmark").getTextValue());
+      sb.append(" ").append(run.path("mode").getTextValue());
+      sb.append(" threads=").append(run.path("threads").getIntValue());
+
+      // Sort the parameters so that the key doesn't depend on their order
+      Map<String, String> params = new TreeMap<String, String>();
+      JsonNode runParams = run.path("params");
+      for (Iterator<String> names = runParams.getFieldNames(); names.hasNext();) {
+         String name = names.next();
+         params.put(name, runParams.get(name).getValueAsText());
+      }
+      for (Map.Entry<String, String> param : params.entrySet()) {
+         sb.append(" ").append(param.getKey()).append("=").append(param.getValue());
+      }
+      return sb.toString();
+   }
+
+   private static Double allocPerOp(JsonNode secondary) {
+      // JMH prefixes profiler metrics with a separator character.
+      for (Iterator<String> names = secondary.getFieldNames(); names.hasNext();) {
+         String name = names.next();
+         JsonNode score = secondary.get(name).path("score");
+         if (name.endsWith(ALLOC_METRIC) && score.isNumber()) {
+            return score.getDoubleValue();
+         }
+      }
+      return null;
+   }
+
+   /**
+    * Compare two sets of results.  Benchmarks that only appear in one of
+    * them are ignored.
+    *
+    * @return the regressions, in the order of the current results.
+    */
+   List<Regression> compare(Map<String, Result> baseline, Map<String, Result> current) {
+      List<Regression> regressions = new ArrayList<Regression>();
+      for (Result now : current.values()) {
+         Result then = baseline.get(now.key);
+         if (then == null) {
+            continue;
+         }
+
+         if (then.unit != null && !then.unit.equals(now.unit)) {
+            // Not comparable; should only happen if @OutputTimeUnit changed.
+            continue;
+         }
+
+         double worse = now.higherIsBetter ?
+               percentDecrease(then.score, now.score) :
+               percentIncrease(then.score, now.score);
+         if (worse > threshold) {
+            regressions.add(new Regression(now.key, now.unit, then.score, now.score, worse));
+         }
+
+         if (then.allocPerOp != null && now.allocPerOp != null &&
+             now.allocPerOp > ALLOC_NOISE_BYTES) {
+            double allocWorse = percentIncrease(
+                  Math.max(then.allocPerOp, ALLOC_NOISE_BYTES), now.allocPerOp);
+            if (allocWorse > allocThreshold) {
+               regressions.add(new Regression(
+                     now.key, "B/op", then.allocPerOp, now.allocPerOp, allocWorse));
+            }
+         }
+      }
+      return regressions;
+   }
+
+   /**
+    * Compare two JMH JSON result files.
+    */
+   public List<Regression> compare(File baseline, File current) throws IOException {
+      ObjectMapper mapper = new ObjectMapper();
+      return compare(parse(mapper.readValue(baseline, JsonNode.class)),
+                     parse(mapper.readValue(current, JsonNode.class)));
+   }
+
+   private static double percentDecrease(double then, double now) {
+      return (then <= 0) ? 0 : (then - now) * 100.0 / then;
+   }
+
+   private static double percentIncrease(double then, double now) {
+      return (then <= 0) ? 0 : (now - then) * 100.0 / then;
+   }
+
+   private static void usage() {
+      System.err.println(
+            "usage: BenchmarkComparator [-threshold <percent>] [-alloc-threshold <percent>]\n" +
+            "                           <baseline.json> <current.json>");
+      System.exit(2);
+   }
+
+   public static void main(String[] args) throws IOException {
+      double threshold = DEFAULT_THRESHOLD;
+      double allocThreshold = DEFAULT_THRESHOLD;
+      List<String> files = new ArrayList<String>();
+
+      for (int i = 0; i < args.length; i++) {
+         try {
+            if ("-threshold".equals(args[i]) && i + 1 < args.length) {
+               threshold = Double.parseDouble(args[++i]);
+            } else if ("-alloc-threshold".equals(args[i]) && i + 1 < args.length) {
+               allocThreshold = Double.parseDouble(args[++i]);
+            } else if (args[i].startsWith("-")) {
+               usage();
+            } else {
+               files.add(args[i]);
+            }
+         } catch (NumberFormatException e) {
+            usage();
+         }
+      }
+      if (files.size() != 2) {
+         usage();
+      }
+
+      List<Regression> regressions = new BenchmarkComparator(threshold, allocThreshold)
+            .compare(new File(files.get(0)), new File(files.get(1)));
+      for (Regression regression : regressions) {
+         System.out.println("REGRESSION " + regression);
+      }
+      System.out.println(regressions.size() + " regression(s) beyond " +
+            threshold + "% (score) / " + allocThreshold + "% (allocation)");
+      System.exit(regressions.isEmpty() ? 0 : 1);
+   }
+}
@@ -0,0 +1,141 @@
+/* ***********************************************************************
+ * VMware ThinApp Factory
+ * Copyright (c) 2009-2013 VMware, Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ***********************************************************************/
+
+package com.vmware.thinapp.benchmarks.common.util;
+
+import java.text.DateFormat;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.Random;
+import java.util.TimeZone;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.vmware.thinapp.common.util.AfCalendar;
+
+/**
+ * Compare AfCalendar parsing and formatting against the previous
+ * implementation: one SimpleDateFormat shared by all callers, which has to be
+ * serialized to give correct results.
+ *
+ * The *Contended benchmarks run on four threads, which is roughly what
+ * PerformanceDataBuffer sees with several conversions running at once.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class AfCalendarBenchmark {
+   private static final int SAMPLES = 1024;
+
+   /** The previous AfCalendar.UTC_DATE_FORMAT */
+   private DateFormat legacyFormat;
+
+   private String[] dates;
+   private long[] times;
+
+   @Setup
+   public void setup() {
+      legacyFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss z", Locale.US);
+      legacyFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+
+      // Performance samples arrive every 20 seconds or so
+      Random random = new Random(42);
+      long now = AfCalendar.Now();
+      dates = new String[SAMPLES];
+      times = new long[SAMPLES];
+      for (int i = 0; i < SAMPLES; i++) {
+         times[i] = now - (random.nextInt(24 * 60 * 60) * 1000L);
+         dates[i] = AfCalendar.formatUtc(new Date(times[i]));
+      }
+   }
+
+   /** Per-thread cursor into the sample data */
+   @State(Scope.Thread)
+   public static class Cursor {
+      private int next;
+
+      int next() {
+         next = (next + 1) & (SAMPLES - 1);
+         return next;
+      }
+   }
+
+   private long legacyParse(String text) throws ParseException {
+      synchronized (legacyFormat) {
+         return legacyFormat.parse(text).getTime();
+      }
+   }
+
+   private String legacyFormat(long time) {
+      synchronized (legacyFormat) {
+         return legacyFormat.format(new Date(time));
+      }
+   }
+
+   @Benchmark
+   public long parseLegacy(Cursor cursor) throws ParseException {
+      return legacyParse(dates[cursor.next()]);
+   }
+
+   @Benchmark
+   public long parseUtc(Cursor cursor) {
+      return AfCalendar.parseUtc(dates[cursor.next()]).getTime();
+   }
+
+   @Benchmark
+   public long parseUtcMillis(Cursor cursor) {
+      return AfCalendar.parseUtcMillis(dates[cursor.next()]);
+   }
+
+   @Benchmark
+   public String formatLegacy(Cursor cursor) {
+      return legacyFormat(times[cursor.next()]);
+   }
+
+   @Benchmark
+   public String formatUtc(Cursor cursor) {
+      return AfCalendar.formatUtc(new Date(times[cursor.next()]));
+   }
+
+   @Benchmark
+   @Threads(4)
+   public long parseLegacyContended(Cursor cursor) throws ParseException {
+      return legacyParse(dates[cursor.next()]);
+   }
+
+   @Benchmark
+   @Threads(4)
+   public long parseUtcMillisContended(Cursor cursor) {
+      return AfCalendar.parseUtcMillis(dates[cursor.next()]);
+   }
+}
@@ -0,0 +1,159 @@
+/* ***********************************************************************
+ * VMware ThinApp Factory
+ * Copyright (c) 2009-2013 VMware, Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ***********************************************************************/
+
+package com.vmware.thinapp.benchmarks.common.util;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.codehaus.jackson.map.ObjectMapper;
+import org.codehaus.jackson.map.ObjectReader;
+import org.codehaus.jackson.map.ObjectWriter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.vmware.thinapp.common.converter.dto.ConversionJobStatus;
+import com.vmware.thinapp.common.converter.dto.PerformanceData;
+import com.vmware.thinapp.common.util.AfCalendar;
+import com.vmware.thinapp.common.util.AfJson;
+import com.vmware.thinapp.common.util.AfJsonCodecs;
+import com.vmware.thinapp.common.workpool.dto.InstanceInfo;
+import com.vmware.thinapp.common.workpool.dto.LinkedWorkpool;
+import com.vmware.thinapp.common.workpool.dto.Workpool;
+
+/**
+ * Compare creating a new ObjectMapper for each message, which is what
+ * PushController and AfJson.CalendarDeserializer used to do, against the
+ * shared mappers and cached readers/writers of AfJsonCodecs.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class AfJsonBenchmark {
+   /** Instances in the benchmark workpool */
+   private static final int INSTANCES = 20;
+
+   private ConversionJobStatus status;
+   private Workpool workpool;
+   private String statusJson;
+   private String workpoolJson;
+
+   private ObjectWriter compactWriter;
+   private ObjectReader statusReader;
+   private ObjectReader workpoolReader;
+
+   @Setup
+   public void setup() throws IOException {
+      Map<String, Long> values = new HashMap<String, Long>();
+      for (String counter : PerformanceData.QUERY_COUNTERS_ALL) {
+         values.put(counter, 1234L);
+      }
+
+      status = new ConversionJobStatus();
+      status.setJobId(42L);
+      status.setProjectId(4242L);
+      status.setState(ConversionJobStatus.JobState.install);
+      status.setPercent(55);
+      status.setPerformanceData(PerformanceData.create(20, AfCalendar.NowDate(), values));
+
+      LinkedWorkpool linked = new LinkedWorkpool();
+      linked.setId(7L);
+      linked.setName("Windows 7 workpool");
+      linked.setMaximum(INSTANCES);
+      linked.setState(Workpool.State.available);
+      Set<InstanceInfo> instances = new HashSet<InstanceInfo>();
+      for (int i = 0; i < INSTANCES; i++) {
+         InstanceInfo instance = new InstanceInfo();
+         instance.setId((long) i);
+         instance.setMoid("vm-" + (1000 + i));
+         instance.setGuestUsername("Administrator");
+         instance.setGuestPassword("password");
+         instance.setAutologon(true);
+         instance.setState(InstanceInfo.State.available);
+         instances.add(instance);
+      }
+      linked.setInstances(instances);
+      workpool = linked;
+
+      compactWriter = AfJsonCodecs.writer(AfJsonCodecs.COMPACT);
+      statusReader = AfJsonCodecs.reader(AfJsonCodecs.COMPACT, ConversionJobStatus.class);
+      workpoolReader = AfJsonCodecs.reader(AfJsonCodecs.COMPACT, Workpool.class);
+
+      statusJson = compactWriter.writeValueAsString(status);
+      workpoolJson = compactWriter.writeValueAsString(workpool);
+   }
+
+   @Benchmark
+   public String writeStatusNewMapper() throws IOException {
+      return new ObjectMapper().writeValueAsString(status);
+   }
+
+   @Benchmark
+   public String writeStatusShared() throws IOException {
+      return compactWriter.writeValueAsString(status);
+   }
+
+   @Benchmark
+   public Object readStatusNewMapper() throws IOException {
+      return new ObjectMapper().readValue(statusJson, ConversionJobStatus.class);
+   }
+
+   @Benchmark
+   public Object readStatusShared() throws IOException {
+      return statusReader.readValue(statusJson);
+   }
+
+   @Benchmark
+   public String writeWorkpoolNewMapper() throws IOException {
+      return new ObjectMapper().writeValueAsString(workpool);
+   }
+
+   @Benchmark
+   public String writeWorkpoolShared() throws IOException {
+      return compactWriter.writeValueAsString(workpool);
+   }
+
+   @Benchmark
+   public Object readWorkpoolNewMapper() throws IOException {
+      return new ObjectMapper().readValue(workpoolJson, Workpool.class);
+   }
+
+   @Benchmark
+   public Object readWorkpoolShared() throws IOException {
+      return workpoolReader.readValue(workpoolJson);
+   }
+
+   @Benchmark
+   public String writeStatusDefault() throws IOException {
+      return AfJson.ObjectMapper().writeValueAsString(status);
+   }
+}
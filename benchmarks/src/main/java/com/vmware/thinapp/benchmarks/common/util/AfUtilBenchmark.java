@@ -0,0 +1,98 @@
+/* ***********************************************************************
+ * VMware ThinApp Factory
+ * Copyright (c) 2009-2013 VMware, Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ***********************************************************************/
+
+package com.vmware.thinapp.benchmarks.common.util;
+
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.vmware.thinapp.common.util.AfUtil;
+
+/**
+ * The AfUtil URL helpers used for every application and installer while a
+ * feed is scanned.  Version sorting is covered by AlnumCompareBenchmark.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class AfUtilBenchmark {
+   private static final String[] INSTALLERS = {
+      "installers/7-Zip/9.20/7z920.exe",
+      "/mirror/apps/Mozilla Firefox/12.0/Firefox Setup 12.0.exe",
+      "http://downloads.example.com/adobe/reader/10.1.3/AdbeRdr1013_en_US.exe",
+      "datastore://internal/feeds/notepad++/6.1.2/npp.6.1.2.Installer.exe",
+   };
+
+   private URI feedUri;
+   private URI[] installerUris;
+   private int next;
+
+   @Setup
+   public void setup() throws URISyntaxException {
+      feedUri = new URI("http://feeds.example.com/appfactory/feed.json");
+      installerUris = new URI[INSTALLERS.length];
+      for (int i = 0; i < INSTALLERS.length; i++) {
+         installerUris[i] = AfUtil.relToAbs(INSTALLERS[i], feedUri);
+      }
+   }
+
+   private int next() {
+      next = (next + 1) % INSTALLERS.length;
+      return next;
+   }
+
+   @Benchmark
+   public boolean isAbsoluteUri() {
+      return AfUtil.isAbsoluteUri(INSTALLERS[next()]);
+   }
+
+   @Benchmark
+   public URI relToAbs() throws URISyntaxException {
+      return AfUtil.relToAbs(INSTALLERS[next()], feedUri);
+   }
+
+   @Benchmark
+   public URI parentUri() throws URISyntaxException {
+      return AfUtil.parentUri(installerUris[next()]);
+   }
+
+   @Benchmark
+   public String extractLastURIToken() {
+      return AfUtil.extractLastURIToken(installerUris[next()]);
+   }
+
+   @Benchmark
+   public boolean anyEmpty() {
+      int i = next();
+      return AfUtil.anyEmpty(INSTALLERS[i], INSTALLERS[(i + 1) % INSTALLERS.length]);
+   }
+}
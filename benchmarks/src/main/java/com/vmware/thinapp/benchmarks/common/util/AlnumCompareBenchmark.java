@@ -0,0 +1,172 @@
+/* ***********************************************************************
+ * VMware ThinApp Factory
+ * Copyright (c) 2009-2013 VMware, Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ***********************************************************************/
+
+package com.vmware.thinapp.benchmarks.common.util;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.vmware.thinapp.common.util.AfSortKey;
+import com.vmware.thinapp.common.util.AfUtil;
+
+/**
+ * Sort application version strings the way AbstractApp.compareTo() does:
+ * with the previous substring-copying alnumCompare(), with the in-place
+ * AfUtil.alnumCompare(), and with precomputed AfSortKeys.
+ *
+ * Run with -prof gc to see the allocation difference.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class AlnumCompareBenchmark {
+   /** Number of applications to sort */
+   @Param({"1000", "20000"})
+   public int size;
+
+   private List<String> versions;
+   private List<AfSortKey> keys;
+
+   private static final Comparator<String> LEGACY_ORDER = new Comparator<String>() {
+      @Override
+      public int compare(String str1, String str2) {
+         return legacyAlnumCompare(str1, str2);
+      }
+   };
+
+   @Setup
+   public void setup() {
+      // Versions of the same few products, so most comparisons have to look
+      // past the first chunk.
+      Random random = new Random(42);
+      versions = new ArrayList<String>(size);
+      for (int i = 0; i < size; i++) {
+         StringBuilder sb = new StringBuilder();
+         sb.append(random.nextInt(12)).append('.').append(random.nextInt(10));
+         if (random.nextBoolean()) {
+            sb.append('.').append(random.nextInt(5000));
+         }
+         if (random.nextInt(4) == 0) {
+            sb.append(random.nextBoolean() ? " SP" : " sp").append(random.nextInt(3));
+         }
+         if (random.nextInt(8) == 0) {
+            sb.append(" Build ").append(10000 + random.nextInt(90000));
+         }
+         versions.add(sb.toString());
+      }
+
+      keys = new ArrayList<AfSortKey>(size);
+      for (String version : versions) {
+         keys.add(AfSortKey.alnum(version));
+      }
+   }
+
+   @Benchmark
+   public List<String> sortLegacy() {
+      List<String> copy = new ArrayList<String>(versions);
+      Collections.sort(copy, LEGACY_ORDER);
+      return copy;
+   }
+
+   @Benchmark
+   public List<String> sortInPlace() {
+      List<String> copy = new ArrayList<String>(versions);
+      Collections.sort(copy, AfUtil.ALNUM_ORDER);
+      return copy;
+   }
+
+   @Benchmark
+   public List<AfSortKey> sortCachedKeys() {
+      List<AfSortKey> copy = new ArrayList<AfSortKey>(keys);
+      Collections.sort(copy);
+      return copy;
+   }
+
+   @Benchmark
+   public List<AfSortKey> sortFreshKeys() {
+      List<AfSortKey> copy = new ArrayList<AfSortKey>(size);
+      for (String version : versions) {
+         copy.add(AfSortKey.alnum(version));
+      }
+      Collections.sort(copy);
+      return copy;
+   }
+
+   /**
+    * The implementation AfUtil.alnumCompare() had before it walked the
+    * strings in place.
+    */
+   private static int legacyAlnumCompare(String str1, String str2) {
+      if (str1 == str2) {
+         return 0;
+      } else if (str1 == null) {
+         return -1;
+      } else if (str2 == null) {
+         return 1;
+      }
+      int s1Length = str1.length();
+      int s2Length = str2.length();
+
+      for (int s1Index = 0, s2Index = 0; s1Index < s1Length && s2Index < s2Length;) {
+         String thisStr = AfUtil.getDigitOrNonDigitChunk(str1, s1Length, s1Index);
+         s1Index += thisStr.length();
+
+         String thatStr = AfUtil.getDigitOrNonDigitChunk(str2, s2Length, s2Index);
+         s2Index += thatStr.length();
+
+         int result = 0;
+         if (Character.isDigit(thisStr.charAt(0)) && Character.isDigit(thatStr.charAt(0))) {
+            int thisStrLength = thisStr.length();
+            result = thisStrLength - thatStr.length();
+            if (result == 0) {
+               for (int i = 0; i < thisStrLength; i++) {
+                  result = thisStr.charAt(i) - thatStr.charAt(i);
+                  if (result != 0) {
+                     return result;
+                  }
+               }
+            }
+         } else {
+            result = thisStr.compareToIgnoreCase(thatStr);
+         }
+
+         if (result != 0) {
+            return result;
+         }
+      }
+      return s1Length - s2Length;
+   }
+}
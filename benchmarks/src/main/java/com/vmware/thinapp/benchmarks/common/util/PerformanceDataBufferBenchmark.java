@@ -0,0 +1,120 @@
+/* ***********************************************************************
+ * VMware ThinApp Factory
+ * Copyright (c) 2009-2013 VMware, Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ***********************************************************************/
+
+package com.vmware.thinapp.benchmarks.common.util;
+
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.vmware.thinapp.common.converter.dto.PerformanceData;
+import com.vmware.thinapp.common.util.AfCalendar;
+import com.vmware.thinapp.common.util.PerformanceDataBuffer;
+
+/**
+ * Feed a PerformanceDataBuffer with the stream of samples a monitored
+ * conversion produces: one sample per 20 second refresh interval, mostly
+ * below the stall thresholds, occasionally above them or repeated.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class PerformanceDataBufferBenchmark {
+   private static final int REFRESH_RATE_SECS = 20;
+   private static final long POLL_FREQ_SECS = 10;
+   private static final long IDLE_TIME_SECS = 600;
+   private static final long THRESHOLD = 2000;
+
+   /** A day of samples */
+   private static final int SAMPLES = 4096;
+
+   private PerformanceData[] samples;
+   private PerformanceDataBuffer buffer;
+   private int next;
+
+   @Setup
+   public void setup() {
+      Map<String, Long> thresholds = new HashMap<String, Long>();
+      for (String counter : PerformanceData.QUERY_COUNTERS_ALL) {
+         thresholds.put(counter, THRESHOLD);
+      }
+      buffer = new PerformanceDataBuffer(
+            REFRESH_RATE_SECS, POLL_FREQ_SECS, IDLE_TIME_SECS, thresholds);
+
+      Map<String, Long> idle = new HashMap<String, Long>();
+      Map<String, Long> busy = new HashMap<String, Long>();
+      for (String counter : PerformanceData.QUERY_COUNTERS_ALL) {
+         idle.put(counter, THRESHOLD / 2);
+         busy.put(counter, THRESHOLD * 2);
+      }
+
+      long start = AfCalendar.Now() - SAMPLES * REFRESH_RATE_SECS * 1000L;
+      samples = new PerformanceData[SAMPLES];
+      for (int i = 0; i < SAMPLES; i++) {
+         // Every fourth poll sees the same sample again; every 50th is busy.
+         long when = start + (i - i / 4) * REFRESH_RATE_SECS * 1000L;
+         samples[i] = PerformanceData.create(
+               REFRESH_RATE_SECS, new Date(when), (i % 50 == 0) ? busy : idle);
+      }
+   }
+
+   @Benchmark
+   public long add() {
+      if (next == SAMPLES) {
+         next = 0;
+         buffer.clear();
+      }
+      buffer.add(samples[next++]);
+      return buffer.size();
+   }
+
+   /** Several conversions polled by the same status threads */
+   @State(Scope.Benchmark)
+   public static class Shared {
+      private PerformanceDataBufferBenchmark delegate;
+
+      @Setup
+      public void setup() {
+         delegate = new PerformanceDataBufferBenchmark();
+         delegate.setup();
+      }
+   }
+
+   @Benchmark
+   @Threads(4)
+   public long addContended(Shared shared) {
+      synchronized (shared) {
+         return shared.delegate.add();
+      }
+   }
+}
@@ -0,0 +1,136 @@
+/* ***********************************************************************
+ * VMware ThinApp Factory
+ * Copyright (c) 2009-2013 VMware, Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ***********************************************************************/
+
+package com.vmware.thinapp.benchmarks.load;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.codehaus.jackson.map.ObjectMapper;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Serves generated application feeds, so the harness can create feeds with
+ * any number of applications without depending on an external site.
+ *
+ * GET /feeds/{n}.json returns feed n.  Each scan of a feed bumps the version
+ * of a few of its applications, so rescans find updates like a real feed.
+ */
+class FeedServer implements HttpHandler {
+   private final HttpServer server;
+   private final String host;
+   private final int appsPerFeed;
+   private final ObjectMapper mapper = new ObjectMapper();
+   private final Map<String, Integer> scans =
+         Collections.synchronizedMap(new LinkedHashMap<String, Integer>());
+
+   /**
+    * @param host name the webui uses to reach this machine
+    * @param port port to listen on, or 0 for any free port
+    * @param appsPerFeed number of applications in each feed
+    */
+   FeedServer(String host, int port, int appsPerFeed) throws IOException {
+      this.host = host;
+      this.appsPerFeed = appsPerFeed;
+      server = HttpServer.create(new InetSocketAddress(port), 0);
+      server.createContext("/feeds/", this);
+   }
+
+   void start() {
+      server.start();
+   }
+
+   void stop() {
+      server.stop(0);
+   }
+
+   /**
+    * @return the URL of feed number n, as seen from the webui
+    */
+   String feedUrl(int n) {
+      return baseUrl() + "/feeds/" + n + ".json";
+   }
+
+   private String baseUrl() {
+      return "http://" + host + ":" + server.getAddress().getPort();
+   }
+
+   @Override
+   public void handle(HttpExchange exchange) throws IOException {
+      String path = exchange.getRequestURI().getPath();
+      String name = path.substring("/feeds/".length()).replace(".json", "");
+
+      int scan;
+      synchronized (scans) {
+         Integer previous = scans.get(name);
+         scan = (previous == null) ? 0 : previous.intValue() + 1;
+         scans.put(name, Integer.valueOf(scan));
+      }
+
+      byte[] body = mapper.writeValueAsBytes(feed(name, scan));
+      exchange.getResponseHeaders().set("Content-Type", "application/json");
+      exchange.sendResponseHeaders(200, body.length);
+      OutputStream out = exchange.getResponseBody();
+      try {
+         out.write(body);
+      } finally {
+         out.close();
+      }
+   }
+
+   private Map<String, Object> feed(String name, int scan) {
+      List<Object> apps = new ArrayList<Object>(appsPerFeed);
+      for (int i = 0; i < appsPerFeed; i++) {
+         // Every scan updates one application in ten.
+         int version = (i % 10 == scan % 10) ? scan : 0;
+
+         Map<String, Object> app = new LinkedHashMap<String, Object>();
+         app.put("vendor", "Load Test " + name);
+         app.put("name", "App " + i);
+         app.put("version", "1." + i + "." + version);
+         app.put("file", Collections.singletonMap("url",
+               baseUrl() + "/installers/" + name + "/app" + i + ".exe"));
+         app.put("install", Collections.singletonMap("command", "%D /S"));
+         app.put("categories", Collections.singletonList("Load Test"));
+         app.put("description", description("Generated application " + i));
+         apps.add(app);
+      }
+
+      Map<String, Object> feed = new LinkedHashMap<String, Object>();
+      feed.put("version", Integer.valueOf(4));
+      feed.put("name", name);
+      feed.put("description", description("Generated load test feed"));
+      feed.put("applications", apps);
+      return feed;
+   }
+
+   private static Map<String, Object> description(String content) {
+      Map<String, Object> description = new LinkedHashMap<String, Object>();
+      description.put("content", content);
+      description.put("contentType", "text/plain");
+      return description;
+   }
+}
@@ -0,0 +1,71 @@
+/* ***********************************************************************
+ * VMware ThinApp Factory
+ * Copyright (c) 2009-2013 VMware, Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ***********************************************************************/
+
+package com.vmware.thinapp.benchmarks.load;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Collects latency samples, in milliseconds, and summarizes them.
+ * Thread-safe.
+ */
+class LatencyStats {
+   private long[] samples = new long[1024];
+   private int count;
+
+   synchronized void add(long millis) {
+      if (count == samples.length) {
+         samples = Arrays.copyOf(samples, count * 2);
+      }
+      samples[count++] = millis;
+   }
+
+   synchronized int count() {
+      return count;
+   }
+
+   /**
+    * @return count, mean, p50, p90, p99 and max of the samples so far.
+    */
+   synchronized Map<String, Object> summary() {
+      Map<String, Object> summary = new LinkedHashMap<String, Object>();
+      summary.put("count", Integer.valueOf(count));
+      if (count == 0) {
+         return summary;
+      }
+
+      long[] sorted = Arrays.copyOf(samples, count);
+      Arrays.sort(sorted);
+      long total = 0;
+      for (long sample : sorted) {
+         total += sample;
+      }
+      summary.put("meanMs", Long.valueOf(total / count));
+      summary.put("p50Ms", Long.valueOf(percentile(sorted, 50)));
+      summary.put("p90Ms", Long.valueOf(percentile(sorted, 90)));
+      summary.put("p99Ms", Long.valueOf(percentile(sorted, 99)));
+      summary.put("maxMs", Long.valueOf(sorted[count - 1]));
+      return summary;
+   }
+
+   static long percentile(long[] sorted, int percent) {
+      int index = (int) Math.ceil(percent / 100.0 * sorted.length) - 1;
+      return sorted[Math.max(0, Math.min(index, sorted.length - 1))];
+   }
+}
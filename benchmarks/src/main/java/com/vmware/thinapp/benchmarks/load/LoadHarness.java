@@ -0,0 +1,538 @@
+/* ***********************************************************************
+ * VMware ThinApp Factory
+ * Copyright (c) 2009-2013 VMware, Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ***********************************************************************/
+
+package com.vmware.thinapp.benchmarks.load;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.codehaus.jackson.JsonNode;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.codehaus.jackson.node.ArrayNode;
+import org.codehaus.jackson.node.ObjectNode;
+
+/**
+ * Drive a running webui through its public JSON API with a large number of
+ * feed scans, conversions, project imports and rebuilds, and report queue
+ * wait times, task throughput, database activity, push latency and heap use.
+ *
+ * The webui must run in dev mode against its own simulators (see the "Load
+ * testing" section of the README), so that no vCenter or converter is
+ * needed.  The harness sets the simulator latency and failure rates through
+ * the debug.webui_sims_* settings before it starts.
+ *
+ * Example:
+ *    java -cp benchmarks/target/benchmarks.jar \
+ *       com.vmware.thinapp.benchmarks.load.LoadHarness \
+ *       -url http://localhost:8080/webui -conversions 2000 -out load.json
+ */
+public class LoadHarness {
+   private static final ObjectMapper MAPPER = new ObjectMapper();
+
+   /** How often the queues are polled while waiting for them to drain */
+   private static final long POLL_MS = 2000;
+
+   /** Command line settings, with their defaults */
+   static class Options {
+      String url = "http://localhost:8080/webui";
+      String user = "admin";
+      String password = "admin";
+      String feedHost = "localhost";
+      int feedPort = 0;
+      int feeds = 5;
+      int appsPerFeed = 200;
+      int conversions = 1000;
+      int imports = 50;
+      int scans = 100;
+      int rebuilds = 200;
+      int threads = 8;
+      int batch = 50;
+      long simDelay = 50;
+      long simJitter = 100;
+      long simFailure = 1;
+      long jobFailure = 5;
+      long timeoutSec = 3600;
+      String out = null;
+   }
+
+   private final Options options;
+   private final WebuiClient client;
+   private ExecutorService executor;
+
+   /** Latency of each kind of API call */
+   private final Map<String, LatencyStats> calls =
+         new ConcurrentHashMap<String, LatencyStats>();
+
+   /** Failed API calls of each kind */
+   private final Map<String, AtomicLong> errors =
+         new ConcurrentHashMap<String, AtomicLong>();
+
+   /** Feed scans the webui refused because one was already queued */
+   private final AtomicLong skippedScans = new AtomicLong();
+
+   private long maxHeapUsed;
+
+   LoadHarness(Options options) {
+      this.options = options;
+      this.client = new WebuiClient(options.url);
+      this.executor = Executors.newFixedThreadPool(options.threads);
+   }
+
+   /**
+    * Run the whole load test and return the report.
+    */
+   Map<String, Object> run() throws Exception {
+      client.login(options.user, options.password);
+      configureSimulators();
+
+      // Start with empty database counters, and listen for pushed events.
+      client.get("/api/admin/loadstats?reset=true");
+      PushMonitor push = new PushMonitor(client);
+      Thread pushThread = new Thread(push, "load-push-monitor");
+      pushThread.setDaemon(true);
+      pushThread.start();
+
+      FeedServer feedServer = new FeedServer(
+            options.feedHost, options.feedPort, options.appsPerFeed);
+      feedServer.start();
+
+      long start = System.currentTimeMillis();
+      long deadline = start + TimeUnit.SECONDS.toMillis(options.timeoutSec);
+      try {
+         // Feeds first: their initial scans create the applications to convert.
+         List<Long> feedIds = createFeeds(feedServer);
+         boolean drained = waitForQueues(deadline);
+
+         List<Long> appIds = ids(call("listApps", "GET", "/api/apps", null));
+         submitConversions(appIds);
+         submitImports();
+         submitScans(feedIds);
+         finish();
+         drained &= waitForQueues(deadline);
+
+         List<Long> buildIds = ids(call("listBuilds", "GET", "/api/builds", null));
+         submitRebuilds(buildIds);
+         finish();
+         drained &= waitForQueues(deadline);
+
+         long elapsed = System.currentTimeMillis() - start;
+         return report(client.get("/api/admin/loadstats"), push, elapsed, drained);
+      }
+      finally {
+         executor.shutdownNow();
+         push.stop();
+         feedServer.stop();
+      }
+   }
+
+   private void configureSimulators() throws IOException {
+      Map<String, Object> config = new LinkedHashMap<String, Object>();
+      config.put("debug.webui_sims_delay", Long.valueOf(options.simDelay));
+      config.put("debug.webui_sims_delay_jitter", Long.valueOf(options.simJitter));
+      config.put("debug.webui_sims_failure_rate", Long.valueOf(options.simFailure));
+      config.put("debug.webui_sims_job_failure_rate", Long.valueOf(options.jobFailure));
+      client.post("/api/config", config);
+   }
+
+   private List<Long> createFeeds(FeedServer feedServer) throws IOException {
+      String prefix = "load-" + System.currentTimeMillis() + "-";
+      for (int i = 0; i < options.feeds; i++) {
+         Map<String, Object> feed = new LinkedHashMap<String, Object>();
+         feed.put("name", prefix + i);
+         feed.put("url", feedServer.feedUrl(i));
+         feed.put("okToScan", Boolean.TRUE);
+         feed.put("okToConvert", Boolean.FALSE);
+         call("createFeed", "POST", "/api/feeds", feed);
+      }
+
+      List<Long> feedIds = new ArrayList<Long>();
+      JsonNode feeds = call("listFeeds", "GET", "/api/feeds", null);
+      if (feeds != null) {
+         for (JsonNode feed : feeds) {
+            if (feed.path("name").getTextValue().startsWith(prefix)) {
+               feedIds.add(Long.valueOf(feed.path("id").getLongValue()));
+            }
+         }
+      }
+      return feedIds;
+   }
+
+   /**
+    * Ask for builds of the given applications, going round the list until
+    * the requested number of conversions has been submitted.
+    */
+   private void submitConversions(List<Long> appIds) {
+      if (appIds.isEmpty()) {
+         return;
+      }
+      int submitted = 0;
+      Iterator<Long> it = appIds.iterator();
+      while (submitted < options.conversions) {
+         final List<Long> batch = new ArrayList<Long>();
+         while (batch.size() < options.batch && submitted + batch.size() < options.conversions) {
+            if (!it.hasNext()) {
+               it = appIds.iterator();
+            }
+            batch.add(it.next());
+         }
+         submitted += batch.size();
+
+         executor.execute(new Runnable() {
+            @Override
+            public void run() {
+               try {
+                  StringBuilder query = new StringBuilder("/api/builds/define?");
+                  for (Long appId : batch) {
+                     query.append("appId=").append(appId).append('&');
+                  }
+                  JsonNode define = call("defineBuilds", "GET", query.toString(), null);
+                  if (define != null) {
+                     call("submitBuilds", "POST", "/api/builds", captureRequests(define));
+                  }
+               }
+               catch (IOException e) {
+                  // Already counted.
+               }
+            }
+         });
+      }
+   }
+
+   /**
+    * Turn the default build definitions into capture requests, using the
+    * default workpool, datastore and runtime.
+    */
+   private static ArrayNode captureRequests(JsonNode define) {
+      JsonNode components = define.path("buildComponents");
+      String workpoolId = components.path("workpoolOptions").path("initialValue").getTextValue();
+      String datastoreId = components.path("datastoreOptions").path("initialValue").getTextValue();
+      String runtimeId = components.path("runtimeOptions").path("initialValue").getTextValue();
+
+      ArrayNode requests = MAPPER.createArrayNode();
+      for (JsonNode request : define.path("requests")) {
+         JsonNode capture = request.path("captureRequest");
+         ObjectNode cr = requests.addObject();
+         cr.put("applicationId", capture.path("applicationId").getLongValue());
+         cr.put("displayName", capture.path("displayName").getTextValue());
+         cr.put("buildName", capture.path("buildName").getTextValue());
+         cr.put("workpoolId", Long.parseLong(workpoolId));
+         cr.put("datastoreId", Long.parseLong(datastoreId));
+         cr.put("runtimeId", Long.parseLong(runtimeId));
+      }
+      return requests;
+   }
+
+   private void submitImports() {
+      final String prefix = "load-import-" + System.currentTimeMillis() + "-";
+      for (int i = 0; i < options.imports; i++) {
+         final int n = i;
+         executor.execute(new Runnable() {
+            @Override
+            public void run() {
+               Map<String, Object> datastore = new LinkedHashMap<String, Object>();
+               datastore.put("name", prefix + n);
+               datastore.put("type", "cifs");
+               datastore.put("server", "load-server");
+               datastore.put("share", "projects" + n);
+               datastore.put("username", "load");
+               datastore.put("password", "load");
+
+               Map<String, Object> request = new LinkedHashMap<String, Object>();
+               request.put("datastore", datastore);
+               request.put("runtimeId", Long.valueOf(1));
+               try {
+                  call("importProjects", "POST", "/api/builds/import", request);
+               }
+               catch (IOException e) {
+                  // Already counted.
+               }
+            }
+         });
+      }
+   }
+
+   private void submitScans(List<Long> feedIds) {
+      for (int i = 0; i < options.scans && !feedIds.isEmpty(); i++) {
+         final Long feedId = feedIds.get(i % feedIds.size());
+         executor.execute(new Runnable() {
+            @Override
+            public void run() {
+               try {
+                  call("scanFeed", "PUT", "/api/feeds/" + feedId + "/scan", null);
+               }
+               catch (WebuiClient.HttpException e) {
+                  if (e.getStatus() == 409) {
+                     skippedScans.incrementAndGet();
+                  }
+               }
+               catch (IOException e) {
+                  // Already counted.
+               }
+            }
+         });
+      }
+   }
+
+   private void submitRebuilds(List<Long> buildIds) {
+      for (int i = 0; i < options.rebuilds && i < buildIds.size(); i++) {
+         final Long buildId = buildIds.get(i);
+         executor.execute(new Runnable() {
+            @Override
+            public void run() {
+               try {
+                  call("rebuild", "POST", "/api/builds/" + buildId + "/rebuild", null);
+               }
+               catch (IOException e) {
+                  // Already counted.
+               }
+            }
+         });
+      }
+   }
+
+   /**
+    * Wait until every API call submitted so far has returned.
+    */
+   private void finish() throws InterruptedException {
+      executor.shutdown();
+      executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+      executor = Executors.newFixedThreadPool(options.threads);
+   }
+
+   /**
+    * Poll the task queues until nothing is waiting or running, recording the
+    * peak heap use on the way.
+    *
+    * @return false if the deadline passed first.
+    */
+   private boolean waitForQueues(long deadline) throws IOException, InterruptedException {
+      while (System.currentTimeMillis() < deadline) {
+         JsonNode stats = client.get("/api/admin/loadstats");
+         maxHeapUsed = Math.max(maxHeapUsed, stats.path("heapUsed").getLongValue());
+         if (idle(stats.path("conversionsQueue")) && idle(stats.path("scanningQueue"))) {
+            return true;
+         }
+         Thread.sleep(POLL_MS);
+      }
+      return false;
+   }
+
+   private static boolean idle(JsonNode queue) {
+      return queue.path("waiting").getLongValue() == 0 &&
+            queue.path("running").getLongValue() == 0;
+   }
+
+   /**
+    * Make one API call, recording its latency, or counting it as an error.
+    */
+   private JsonNode call(String name, String method, String path, Object body)
+         throws IOException {
+      long start = System.nanoTime();
+      try {
+         JsonNode result;
+         if ("GET".equals(method)) {
+            result = client.get(path);
+         } else if ("PUT".equals(method)) {
+            result = client.put(path, body);
+         } else {
+            result = client.post(path, body);
+         }
+         stats(calls, name, LatencyStats.class).add(
+               TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+         return result;
+      }
+      catch (IOException e) {
+         stats(errors, name, AtomicLong.class).incrementAndGet();
+         throw e;
+      }
+   }
+
+   private static <T> T stats(Map<String, T> map, String name, Class<T> type) {
+      synchronized (map) {
+         T value = map.get(name);
+         if (value == null) {
+            try {
+               value = type.newInstance();
+            }
+            catch (Exception e) {
+               throw new IllegalStateException(e);
+            }
+            map.put(name, value);
+         }
+         return value;
+      }
+   }
+
+   private static List<Long> ids(JsonNode list) {
+      if (list == null) {
+         return Collections.emptyList();
+      }
+      List<Long> ids = new ArrayList<Long>();
+      for (JsonNode item : list) {
+         JsonNode id = item.get("id");
+         if (id != null && id.isNumber()) {
+            ids.add(Long.valueOf(id.getLongValue()));
+         }
+      }
+      return ids;
+   }
+
+   private Map<String, Object> report(
+         JsonNode stats, PushMonitor push, long elapsedMs, boolean drained) {
+      Map<String, Object> report = new LinkedHashMap<String, Object>();
+      report.put("elapsedMs", Long.valueOf(elapsedMs));
+      report.put("drained", Boolean.valueOf(drained));
+
+      long finished = 0;
+      for (String queue : new String[] { "conversionsQueue", "scanningQueue" }) {
+         JsonNode q = stats.path(queue);
+         finished += q.path("finished").getLongValue();
+         report.put(queue, MAPPER.convertValue(q, Map.class));
+      }
+      report.put("tasksFinished", Long.valueOf(finished));
+      report.put("tasksPerSecond",
+            Double.valueOf(elapsedMs == 0 ? 0 : finished * 1000.0 / elapsedMs));
+
+      Map<String, Object> db = new LinkedHashMap<String, Object>();
+      for (Iterator<String> it = stats.getFieldNames(); it.hasNext();) {
+         String field = it.next();
+         if (field.startsWith("db")) {
+            db.put(field, MAPPER.convertValue(stats.get(field), Object.class));
+         }
+      }
+      report.put("database", db);
+
+      Map<String, Object> heap = new LinkedHashMap<String, Object>();
+      heap.put("peakUsed", Long.valueOf(Math.max(maxHeapUsed, stats.path("heapUsed").getLongValue())));
+      heap.put("used", Long.valueOf(stats.path("heapUsed").getLongValue()));
+      heap.put("max", Long.valueOf(stats.path("heapMax").getLongValue()));
+      report.put("heap", heap);
+
+      Map<String, Object> pushReport = push.getLatency().summary();
+      pushReport.put("unparsed", Long.valueOf(push.getUnparsedCount()));
+      report.put("pushLatency", pushReport);
+
+      Map<String, Object> api = new LinkedHashMap<String, Object>();
+      for (Map.Entry<String, LatencyStats> entry : calls.entrySet()) {
+         api.put(entry.getKey(), entry.getValue().summary());
+      }
+      report.put("apiLatency", api);
+
+      Map<String, Object> apiErrors = new LinkedHashMap<String, Object>();
+      for (Map.Entry<String, AtomicLong> entry : errors.entrySet()) {
+         apiErrors.put(entry.getKey(), Long.valueOf(entry.getValue().get()));
+      }
+      report.put("apiErrors", apiErrors);
+      report.put("skippedScans", Long.valueOf(skippedScans.get()));
+      return report;
+   }
+
+   private static void usage() {
+      System.err.println(
+            "usage: LoadHarness [-url <webui url>] [-user <name>] [-password <password>]\n" +
+            "          [-feed-host <host>] [-feed-port <port>] [-feeds <n>] [-apps-per-feed <n>]\n" +
+            "          [-conversions <n>] [-imports <n>] [-scans <n>] [-rebuilds <n>]\n" +
+            "          [-threads <n>] [-batch <n>] [-sim-delay <ms>] [-sim-jitter <ms>]\n" +
+            "          [-sim-failure <percent>] [-job-failure <percent>]\n" +
+            "          [-timeout <seconds>] [-out <report.json>]");
+      System.exit(2);
+   }
+
+   static Options parse(String[] args) {
+      Options options = new Options();
+      try {
+         for (int i = 0; i < args.length; i++) {
+            if (i + 1 >= args.length) {
+               usage();
+            }
+            String arg = args[i];
+            String value = args[++i];
+            if ("-url".equals(arg)) {
+               options.url = value;
+            } else if ("-user".equals(arg)) {
+               options.user = value;
+            } else if ("-password".equals(arg)) {
+               options.password = value;
+            } else if ("-feed-host".equals(arg)) {
+               options.feedHost = value;
+            } else if ("-feed-port".equals(arg)) {
+               options.feedPort = Integer.parseInt(value);
+            } else if ("-feeds".equals(arg)) {
+               options.feeds = Integer.parseInt(value);
+            } else if ("-apps-per-feed".equals(arg)) {
+               options.appsPerFeed = Integer.parseInt(value);
+            } else if ("-conversions".equals(arg)) {
+               options.conversions = Integer.parseInt(value);
+            } else if ("-imports".equals(arg)) {
+               options.imports = Integer.parseInt(value);
+            } else if ("-scans".equals(arg)) {
+               options.scans = Integer.parseInt(value);
+            } else if ("-rebuilds".equals(arg)) {
+               options.rebuilds = Integer.parseInt(value);
+            } else if ("-threads".equals(arg)) {
+               options.threads = Integer.parseInt(value);
+            } else if ("-batch".equals(arg)) {
+               options.batch = Integer.parseInt(value);
+            } else if ("-sim-delay".equals(arg)) {
+               options.simDelay = Long.parseLong(value);
+            } else if ("-sim-jitter".equals(arg)) {
+               options.simJitter = Long.parseLong(value);
+            } else if ("-sim-failure".equals(arg)) {
+               options.simFailure = Long.parseLong(value);
+            } else if ("-job-failure".equals(arg)) {
+               options.jobFailure = Long.parseLong(value);
+            } else if ("-timeout".equals(arg)) {
+               options.timeoutSec = Long.parseLong(value);
+            } else if ("-out".equals(arg)) {
+               options.out = value;
+            } else {
+               usage();
+            }
+         }
+      }
+      catch (NumberFormatException e) {
+         usage();
+      }
+      if (options.threads < 1 || options.batch < 1) {
+         usage();
+      }
+      return options;
+   }
+
+   public static void main(String[] args) throws Exception {
+      Options options = parse(args);
+      Map<String, Object> report = new LoadHarness(options).run();
+
+      String json = MAPPER.writer().withDefaultPrettyPrinter().writeValueAsString(report);
+      System.out.println(json);
+      if (options.out != null) {
+         MAPPER.writer().withDefaultPrettyPrinter().writeValue(new File(options.out), report);
+      }
+      System.exit(Boolean.TRUE.equals(report.get("drained")) ? 0 : 1);
+   }
+}
@@ -0,0 +1,122 @@
+/* ***********************************************************************
+ * VMware ThinApp Factory
+ * Copyright (c) 2009-2013 VMware, Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ***********************************************************************/
+
+package com.vmware.thinapp.benchmarks.load;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.HttpURLConnection;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.codehaus.jackson.JsonNode;
+import org.codehaus.jackson.map.ObjectMapper;
+
+/**
+ * Listens to the task event stream the task list page subscribes to, and
+ * measures how long each event took to arrive: from the time the server
+ * created the event (its "timestamp") to the time it was read here.
+ *
+ * This assumes the harness and the webui share a clock, so run them on the
+ * same machine or on NTP-synchronized machines.
+ */
+class PushMonitor implements Runnable {
+   private static final String COMET_PATH = "/comet/api/conversion-tasks-comet";
+
+   private final WebuiClient client;
+   private final ObjectMapper mapper = new ObjectMapper();
+   private final LatencyStats latency = new LatencyStats();
+   private final AtomicLong unparsed = new AtomicLong();
+
+   private volatile HttpURLConnection conn;
+   private volatile boolean stopped;
+
+   PushMonitor(WebuiClient client) {
+      this.client = client;
+   }
+
+   LatencyStats getLatency() {
+      return latency;
+   }
+
+   long getUnparsedCount() {
+      return unparsed.get();
+   }
+
+   void stop() {
+      stopped = true;
+      HttpURLConnection c = conn;
+      if (c != null) {
+         c.disconnect();
+      }
+   }
+
+   @Override
+   public void run() {
+      while (!stopped) {
+         try {
+            listen();
+         } catch (IOException e) {
+            if (!stopped) {
+               System.err.println("push: connection lost, reconnecting: " + e.getMessage());
+            }
+         }
+      }
+   }
+
+   private void listen() throws IOException {
+      conn = client.open(COMET_PATH, "GET");
+      conn.setReadTimeout(0);
+      conn.setRequestProperty("X-Atmosphere-Transport", "streaming");
+
+      BufferedReader reader = new BufferedReader(
+            new InputStreamReader(conn.getInputStream(), "UTF-8"));
+      try {
+         // Messages are separated by blank lines.
+         StringBuilder message = new StringBuilder();
+         for (String line; !stopped && (line = reader.readLine()) != null;) {
+            if (line.length() > 0) {
+               message.append(line);
+               continue;
+            }
+            if (message.length() > 0) {
+               onMessage(message.toString(), System.currentTimeMillis());
+               message.setLength(0);
+            }
+         }
+      } finally {
+         reader.close();
+      }
+   }
+
+   private void onMessage(String message, long received) {
+      // Skip the atmosphere padding in front of the first message.
+      int start = message.indexOf('{');
+      if (start < 0) {
+         return;
+      }
+      try {
+         JsonNode event = mapper.readValue(message.substring(start), JsonNode.class);
+         JsonNode timestamp = event.get("timestamp");
+         if (timestamp != null && timestamp.isNumber()) {
+            latency.add(Math.max(0, received - timestamp.getLongValue()));
+         }
+      } catch (IOException e) {
+         unparsed.incrementAndGet();
+      }
+   }
+}
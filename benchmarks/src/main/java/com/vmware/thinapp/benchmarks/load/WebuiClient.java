@@ -0,0 +1,182 @@
+/* ***********************************************************************
+ * VMware ThinApp Factory
+ * Copyright (c) 2009-2013 VMware, Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ***********************************************************************/
+
+package com.vmware.thinapp.benchmarks.load;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.CookieHandler;
+import java.net.CookieManager;
+import java.net.CookiePolicy;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+
+import org.codehaus.jackson.JsonNode;
+import org.codehaus.jackson.map.ObjectMapper;
+
+/**
+ * A minimal client for the webui JSON API, which logs in once and keeps the
+ * session cookie for all later requests.
+ */
+class WebuiClient {
+   private static final int TIMEOUT_MS = 60000;
+
+   private final String baseUrl;
+   private final ObjectMapper mapper = new ObjectMapper();
+
+   /**
+    * @param baseUrl URL of the webui, e.g. http://localhost:8080/webui
+    */
+   WebuiClient(String baseUrl) {
+      this.baseUrl = baseUrl.endsWith("/") ?
+            baseUrl.substring(0, baseUrl.length() - 1) : baseUrl;
+
+      // HttpURLConnection picks up the session cookie from the default handler.
+      if (CookieHandler.getDefault() == null) {
+         CookieHandler.setDefault(new CookieManager(null, CookiePolicy.ACCEPT_ALL));
+      }
+   }
+
+   String getBaseUrl() {
+      return baseUrl;
+   }
+
+   /**
+    * Accept the EULA if necessary and log in with the Spring Security form.
+    */
+   void login(String username, String password) throws IOException {
+      post("/api/config/eula", null);
+
+      HttpURLConnection conn = open("/j_spring_security_check", "POST");
+      conn.setInstanceFollowRedirects(false);
+      conn.setRequestProperty("Content-Type", "application/x-www-form-urlencoded");
+      conn.setDoOutput(true);
+      String form = "j_username=" + URLEncoder.encode(username, "UTF-8") +
+            "&j_password=" + URLEncoder.encode(password, "UTF-8");
+      write(conn, form.getBytes("UTF-8"));
+
+      String location = conn.getHeaderField("Location");
+      drain(conn);
+      if (location == null || location.contains("/auth/login")) {
+         throw new IOException("Login failed for user " + username);
+      }
+   }
+
+   JsonNode get(String path) throws IOException {
+      HttpURLConnection conn = open(path, "GET");
+      return read(conn);
+   }
+
+   JsonNode post(String path, Object body) throws IOException {
+      return send(path, "POST", body);
+   }
+
+   JsonNode put(String path, Object body) throws IOException {
+      return send(path, "PUT", body);
+   }
+
+   /**
+    * Open a connection to a path of the webui, without sending it.
+    */
+   HttpURLConnection open(String path, String method) throws IOException {
+      HttpURLConnection conn = (HttpURLConnection) new URL(baseUrl + path).openConnection();
+      conn.setRequestMethod(method);
+      conn.setConnectTimeout(TIMEOUT_MS);
+      conn.setReadTimeout(TIMEOUT_MS);
+      conn.setRequestProperty("Accept", "application/json");
+      return conn;
+   }
+
+   private JsonNode send(String path, String method, Object body) throws IOException {
+      HttpURLConnection conn = open(path, method);
+      conn.setRequestProperty("Content-Type", "application/json");
+      conn.setDoOutput(true);
+      write(conn, body == null ? new byte[0] : mapper.writeValueAsBytes(body));
+      return read(conn);
+   }
+
+   private static void write(HttpURLConnection conn, byte[] bytes) throws IOException {
+      OutputStream out = conn.getOutputStream();
+      try {
+         out.write(bytes);
+      } finally {
+         out.close();
+      }
+   }
+
+   /**
+    * Read a JSON response, or null if the response is empty.
+    *
+    * @throws HttpException if the server returned an error status.
+    */
+   private JsonNode read(HttpURLConnection conn) throws IOException {
+      int status = conn.getResponseCode();
+      if (status >= 400) {
+         drain(conn);
+         throw new HttpException(conn.getRequestMethod() + " " + conn.getURL(), status);
+      }
+
+      InputStream in = conn.getInputStream();
+      try {
+         byte[] bytes = readFully(in);
+         return (bytes.length == 0) ? null : mapper.readValue(bytes, 0, bytes.length, JsonNode.class);
+      } finally {
+         in.close();
+      }
+   }
+
+   private static void drain(HttpURLConnection conn) throws IOException {
+      InputStream in = (conn.getResponseCode() >= 400) ? conn.getErrorStream() : conn.getInputStream();
+      if (in != null) {
+         try {
+            readFully(in);
+         } finally {
+            in.close();
+         }
+      }
+   }
+
+   private static byte[] readFully(InputStream in) throws IOException {
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      byte[] buffer = new byte[8192];
+      for (int n; (n = in.read(buffer)) != -1;) {
+         out.write(buffer, 0, n);
+      }
+      return out.toByteArray();
+   }
+
+   /**
+    * The server answered with an HTTP error status.
+    */
+   static class HttpException extends IOException {
+      private static final long serialVersionUID = 1L;
+
+      private final int status;
+
+      HttpException(String request, int status) {
+         super(request + " returned HTTP " + status);
+         this.status = status;
+      }
+
+      int getStatus() {
+         return status;
+      }
+   }
+}
@@ -0,0 +1,159 @@
+/* ***********************************************************************
+ * VMware ThinApp Factory
+ * Copyright (c) 2009-2013 VMware, Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ***********************************************************************/
+
+package com.vmware.thinapp.benchmarks.manualmode;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+import com.vmware.thinapp.manualmode.util.AsyncLogWriter;
+
+/**
+ * Log throughput of 50 concurrent jobs, each logging to its own file.
+ *
+ * The legacy case does what ThreadLocalFileAppender did through log4j:
+ * every message takes the appender's lock, which all jobs share, and is
+ * flushed to the file.  The async cases queue messages for AsyncLogWriter,
+ * either dropping debug messages when a job's queue is full or making
+ * warnings wait for room.
+ *
+ * Messages are formatted up front, so only the cost of getting them to
+ * disk is measured.  The score counts append calls, which for the dropping
+ * case includes the messages it threw away; the written and dropped
+ * counters report those separately.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(50)
+public class JobLogBenchmark {
+   private static final String MESSAGE =
+         "12:34:56,789 DEBUG pool-3-thread-7 workpool.GuestCommands:312 - " +
+         "Running program C:\\Windows\\system32\\cmd.exe in guest with args /c dir%n";
+
+   @State(Scope.Benchmark)
+   public static class Logs {
+      /** The lock log4j's AppenderSkeleton.doAppend() took for every message */
+      final Object appenderLock = new Object();
+      final AtomicInteger jobs = new AtomicInteger();
+      final AsyncLogWriter writer = new AsyncLogWriter();
+      File dir;
+
+      @Setup
+      public void setup() {
+         dir = Files.createTempDir();
+      }
+
+      @TearDown
+      public void tearDown() {
+         for (File file : dir.listFiles()) {
+            file.delete();
+         }
+         dir.delete();
+      }
+   }
+
+   @State(Scope.Thread)
+   public static class Job {
+      final String message = String.format(MESSAGE);
+      Writer legacy;
+      AsyncLogWriter.JobLog jobLog;
+
+      @Setup
+      public void setup(Logs logs) throws IOException {
+         int id = logs.jobs.incrementAndGet();
+         legacy = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(
+               new File(logs.dir, "legacy-" + id + ".log")), Charsets.UTF_8));
+         jobLog = logs.writer.open(new File(logs.dir, "async-" + id + ".log").getPath());
+      }
+
+      @TearDown
+      public void tearDown() throws IOException {
+         legacy.close();
+         jobLog.release();
+      }
+   }
+
+   /**
+    * Messages each thread got into its job's log, all of which are written
+    * before the log is closed, and messages it dropped.
+    */
+   @AuxCounters(AuxCounters.Type.OPERATIONS)
+   @State(Scope.Thread)
+   public static class Counts {
+      public long written;
+      public long dropped;
+
+      @Setup(Level.Iteration)
+      public void reset() {
+         written = 0;
+         dropped = 0;
+      }
+
+      void count(boolean queued) {
+         if (queued) {
+            written++;
+         } else {
+            dropped++;
+         }
+      }
+   }
+
+   @Benchmark
+   public void legacy(Logs logs, Job job, Counts counts) throws IOException {
+      synchronized (logs.appenderLock) {
+         job.legacy.write(job.message);
+         job.legacy.flush();
+      }
+      counts.written++;
+   }
+
+   @Benchmark
+   public void asyncDropping(Job job, Counts counts) {
+      counts.count(job.jobLog.append(job.message, false));
+   }
+
+   @Benchmark
+   public void asyncWaiting(Job job, Counts counts) {
+      counts.count(job.jobLog.append(job.message, true));
+   }
+}
@@ -0,0 +1,113 @@
+/* ***********************************************************************
+ * VMware ThinApp Factory
+ * Copyright (c) 2009-2013 VMware, Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ***********************************************************************/
+
+package com.vmware.thinapp.benchmarks.workpool;
+
+import java.util.concurrent.TimeUnit;
+
+import org.hibernate.util.SerializationHelper;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.vmware.thinapp.workpool.WorkpoolSnapshot;
+import com.vmware.thinapp.workpool.model.InstanceModel;
+import com.vmware.thinapp.workpool.model.LeaseModel;
+import com.vmware.thinapp.workpool.model.LinkedWorkpoolModel;
+import com.vmware.thinapp.workpool.model.VmImageModel;
+import com.vmware.thinapp.workpool.model.WorkpoolModel;
+
+/**
+ * Compare what a reader of a workpool pays: a serialization deep clone of
+ * the model, which getWorkpoolModel() does on every call, against building
+ * a WorkpoolSnapshot, which happens once per change, and against handing
+ * out the shared snapshot.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class WorkpoolSnapshotBenchmark {
+   /** Instances in the workpool, half of them leased */
+   @Param({"10", "100"})
+   public int instances;
+
+   private WorkpoolModel workpool;
+   private WorkpoolSnapshot snapshot;
+
+   @Setup
+   public void setup() {
+      VmImageModel vmImage = new VmImageModel();
+      vmImage.setId(1L);
+      vmImage.setName("Windows 7");
+      vmImage.setMoid("vm-1");
+
+      LinkedWorkpoolModel linked = new LinkedWorkpoolModel();
+      linked.setId(7L);
+      linked.setName("Windows 7 workpool");
+      linked.setMaximumInstances(instances);
+      linked.setState(WorkpoolModel.State.available);
+      linked.setInstancer(vmImage);
+
+      for (int i = 0; i < instances; i++) {
+         InstanceModel instance = new InstanceModel();
+         instance.setId(i);
+         instance.setMoid("vm-" + (1000 + i));
+         instance.setGuestUsername("Administrator");
+         instance.setGuestPassword("password");
+         instance.setAutologon(true);
+         instance.setState(InstanceModel.State.available);
+         instance.setWorkpool(linked);
+         linked.getInstances().add(instance);
+
+         if (i % 2 == 0) {
+            LeaseModel lease = new LeaseModel();
+            lease.setId(i);
+            lease.setInstance(instance);
+            linked.getLeases().add(lease);
+         }
+      }
+
+      workpool = linked;
+      snapshot = WorkpoolSnapshot.of(workpool, 1);
+   }
+
+   @Benchmark
+   public Object serializationClone() {
+      return SerializationHelper.clone(workpool);
+   }
+
+   @Benchmark
+   public WorkpoolSnapshot buildSnapshot() {
+      return WorkpoolSnapshot.of(workpool, 1);
+   }
+
+   @Benchmark
+   public WorkpoolSnapshot sharedSnapshot() {
+      return snapshot;
+   }
+}
@@ -0,0 +1,136 @@
+/* ***********************************************************************
+ * VMware ThinApp Factory
+ * Copyright (c) 2009-2013 VMware, Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ***********************************************************************/
+
+package com.vmware.thinapp.common.util.concurrent;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.vmware.appfactory.taskqueue.tasks.state.tasks.StoresFuture;
+
+/**
+ * Round trip of a batch of trivial tasks through the executor used by the
+ * task queues: submit to the orderable work queue, run, and collect from
+ * the completion queue.  This measures the overhead the task queue adds to
+ * each task, compared against a plain fixed thread pool.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class FutureStoringThreadPoolExecutorBenchmark {
+   private static final int BATCH = 100;
+
+   @Param({"1", "4"})
+   public int threads;
+
+   private FutureStoringThreadPoolExecutor<Void, Task> executor;
+   private BlockingQueue<Future<Void>> completed;
+   private ExecutorService plain;
+
+   /** A task which does nothing but remember its future */
+   public static class Task implements StoresFuture {
+      private volatile Future<Void> future;
+
+      @Override
+      public Void call() {
+         return null;
+      }
+
+      @Override
+      public void setFuture(Future<Void> future) {
+         this.future = future;
+      }
+
+      @Override
+      public Future<Void> getFuture() {
+         return future;
+      }
+   }
+
+   @Setup
+   public void setup() {
+      completed = new LinkedBlockingQueue<Future<Void>>();
+      executor = new FutureStoringThreadPoolExecutor<Void, Task>(
+            threads,
+            threads,
+            1,
+            TimeUnit.MINUTES,
+            new OrderableLinkedBlockingQueue<Runnable>(),
+            Executors.defaultThreadFactory(),
+            Task.class,
+            completed);
+      plain = Executors.newFixedThreadPool(threads);
+   }
+
+   @TearDown
+   public void tearDown() {
+      executor.shutdownNow();
+      plain.shutdownNow();
+   }
+
+   @Benchmark
+   @OperationsPerInvocation(BATCH)
+   public int submitAndComplete() throws InterruptedException {
+      for (int i = 0; i < BATCH; i++) {
+         executor.submit(new Task());
+      }
+      int done = 0;
+      while (done < BATCH) {
+         Future<Void> future = completed.take();
+         if (FutureStoringThreadPoolExecutor.getOriginal(future) != null) {
+            done++;
+         }
+      }
+      return done;
+   }
+
+   @Benchmark
+   @OperationsPerInvocation(BATCH)
+   public int submitAndCompletePlain() throws Exception {
+      @SuppressWarnings("unchecked")
+      Future<Void>[] futures = new Future[BATCH];
+      for (int i = 0; i < BATCH; i++) {
+         futures[i] = plain.submit((Callable<Void>) new Task());
+      }
+      for (Future<Void> future : futures) {
+         future.get();
+      }
+      return BATCH;
+   }
+}
@@ -0,0 +1,140 @@
+/* ***********************************************************************
+ * VMware ThinApp Factory
+ * Copyright (c) 2009-2013 VMware, Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ***********************************************************************/
+
+package com.vmware.thinapp.common.util.concurrent;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Producer/consumer throughput of the task queue implementations, against
+ * the JDK queue CustomLinkedBlockingQueue was copied from, and the cost of
+ * reordering a long pending task queue.
+ *
+ * This lives in the same package as the queues because
+ * CustomLinkedBlockingQueue is package-private.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TaskQueueBenchmark {
+
+   /**
+    * A queue shared by producer and consumer threads.  Every variant gets
+    * the same capacity, which keeps producers from running arbitrarily far
+    * ahead of consumers and keeps the numbers comparable.
+    */
+   @State(Scope.Group)
+   public static class Handoff {
+      static final int CAPACITY = 1024;
+
+      @Param({"jdk", "custom", "orderable"})
+      public String queue;
+
+      BlockingQueue<Integer> q;
+
+      @Setup(Level.Iteration)
+      public void setup() {
+         if ("jdk".equals(queue)) {
+            q = new LinkedBlockingQueue<Integer>(CAPACITY);
+         } else if ("custom".equals(queue)) {
+            q = new CustomLinkedBlockingQueue<Integer>(CAPACITY);
+         } else {
+            q = new OrderableLinkedBlockingQueue<Integer>(CAPACITY);
+         }
+      }
+   }
+
+   private static final Integer ELEMENT = 42;
+
+   @Benchmark
+   @Group("handoff")
+   @GroupThreads(2)
+   public boolean offer(Handoff handoff) {
+      return handoff.q.offer(ELEMENT);
+   }
+
+   @Benchmark
+   @Group("handoff")
+   @GroupThreads(2)
+   public Integer poll(Handoff handoff) {
+      return handoff.q.poll();
+   }
+
+   /**
+    * A pending task queue of the given length, reordered the way the task
+    * queue UI does it.
+    */
+   @State(Scope.Thread)
+   public static class Pending {
+      @Param({"100", "1000"})
+      public int size;
+
+      OrderableLinkedBlockingQueue<Integer> q;
+      Integer[] elements;
+      int next;
+
+      @Setup(Level.Iteration)
+      public void setup() {
+         q = new OrderableLinkedBlockingQueue<Integer>();
+         elements = new Integer[size];
+         for (int i = 0; i < size; i++) {
+            // Distinct instances, so lookups have to call equals()
+            elements[i] = new Integer(i * 7);
+            q.add(elements[i]);
+         }
+      }
+
+      Integer next() {
+         next = (next + 31) % size;
+         return elements[next];
+      }
+   }
+
+   @Benchmark
+   public boolean moveToHead(Pending pending) {
+      return pending.q.moveToHead(pending.next());
+   }
+
+   @Benchmark
+   public boolean moveToTail(Pending pending) {
+      return pending.q.moveToTail(pending.next());
+   }
+
+   @Benchmark
+   public boolean moveAfter(Pending pending) {
+      return pending.q.moveAfter(pending.next(), pending.next());
+   }
+}
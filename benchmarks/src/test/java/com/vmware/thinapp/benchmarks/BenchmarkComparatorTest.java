@@ -0,0 +1,110 @@
+/* ***********************************************************************
+ * VMware ThinApp Factory
+ * Copyright (c) 2009-2013 VMware, Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ***********************************************************************/
+
+package com.vmware.thinapp.benchmarks;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+
+import org.codehaus.jackson.map.ObjectMapper;
+import org.junit.Test;
+
+/**
+ * Test BenchmarkComparator on hand-written JMH result fragments.
+ */
+public class BenchmarkComparatorTest {
+   private static Map<String, BenchmarkComparator.Result> parse(String json)
+         throws IOException {
+      return BenchmarkComparator.parse(new ObjectMapper().readTree(json.replace('\'', '"')));
+   }
+
+   private static String run(String benchmark, String mode, String params,
+                             double score, Double alloc) {
+      return "{ 'benchmark' : '" + benchmark + "', 'mode' : '" + mode + "', " +
+            "'threads' : 1, 'forks' : 1, 'params' : { " + params + " }, " +
+            "'primaryMetric' : { 'score' : " + score + ", 'scoreError' : 0.5, " +
+            "'scoreUnit' : 'ops/ms' }, " +
+            "'secondaryMetrics' : { " +
+            (alloc == null ? "" :
+               "'\u00b7gc.alloc.rate.norm' : { 'score' : " + alloc + ", 'scoreUnit' : 'B/op' }") +
+            " } }";
+   }
+
+   private static List<BenchmarkComparator.Regression> compare(String baseline, String current)
+         throws IOException {
+      return new BenchmarkComparator(10, 10).compare(
+            parse("[" + baseline + "]"), parse("[" + current + "]"));
+   }
+
+   @Test
+   public void throughputDrop() throws IOException {
+      List<BenchmarkComparator.Regression> regressions =
+            compare(run("a.B.c", "thrpt", "", 100, null), run("a.B.c", "thrpt", "", 85, null));
+      assertEquals(1, regressions.size());
+      assertEquals(15.0, regressions.get(0).getPercent(), 0.001);
+
+      assertTrue(compare(run("a.B.c", "thrpt", "", 100, null),
+                         run("a.B.c", "thrpt", "", 95, null)).isEmpty());
+      assertTrue(compare(run("a.B.c", "thrpt", "", 100, null),
+                         run("a.B.c", "thrpt", "", 150, null)).isEmpty());
+   }
+
+   @Test
+   public void averageTimeIncrease() throws IOException {
+      assertEquals(1, compare(run("a.B.c", "avgt", "", 100, null),
+                              run("a.B.c", "avgt", "", 120, null)).size());
+      assertTrue(compare(run("a.B.c", "avgt", "", 100, null),
+                         run("a.B.c", "avgt", "", 50, null)).isEmpty());
+   }
+
+   @Test
+   public void allocationIncrease() throws IOException {
+      List<BenchmarkComparator.Regression> regressions =
+            compare(run("a.B.c", "thrpt", "", 100, 1000.0), run("a.B.c", "thrpt", "", 100, 2000.0));
+      assertEquals(1, regressions.size());
+      assertEquals("B/op", regressions.get(0).getMetric());
+
+      // Small absolute allocations are noise
+      assertTrue(compare(run("a.B.c", "thrpt", "", 100, 0.0),
+                         run("a.B.c", "thrpt", "", 100, 24.0)).isEmpty());
+   }
+
+   @Test
+   public void matchesParamsInAnyOrder() throws IOException {
+      assertEquals(1, compare(
+            run("a.B.c", "thrpt", "'x' : '1', 'y' : '2'", 100, null),
+            run("a.B.c", "thrpt", "'y' : '2', 'x' : '1'", 50, null)).size());
+      assertTrue(compare(
+            run("a.B.c", "thrpt", "'x' : '1'", 100, null),
+            run("a.B.c", "thrpt", "'x' : '2'", 50, null)).isEmpty());
+   }
+
+   @Test
+   public void ignoresNewBenchmarks() throws IOException {
+      assertTrue(compare(run("a.B.c", "thrpt", "", 100, null),
+                         run("a.B.d", "thrpt", "", 1, null)).isEmpty());
+   }
+
+   @Test(expected = IOException.class)
+   public void rejectsOtherJson() throws IOException {
+      parse("{ 'benchmark' : 'a.B.c' }");
+   }
+}
@@ -17,16 +17,15 @@
 
 package com.vmware.thinapp.common.util;
 
-import java.text.DateFormat;
 import java.text.ParseException;
-import java.text.SimpleDateFormat;
 import java.util.Date;
-import java.util.Locale;
 import java.util.TimeZone;
 
 /**
  * Utility functions for handling dates and times, and instances of the
  * Calendar class.
+ *
+ * All methods are thread-safe; see AfDateFormat.
  */
 public class AfCalendar {
    /** Single instance representing "never" */
@@ -39,25 +38,20 @@ public class AfCalendar {
    public static final TimeZone LOCAL_TZONE;
 
    /** Date formatter for UTC timezone */
-   private static final DateFormat UTC_DATE_FORMAT;
+   private static final AfDateFormat UTC_DATE_FORMAT;
 
    /** Date formatter for local timezone */
-   private static final DateFormat LOCAL_DATE_FORMAT;
+   private static final AfDateFormat LOCAL_DATE_FORMAT;
 
-   private static final DateFormat PARSER_FORMAT;
+   private static final AfDateFormat PARSER_FORMAT;
 
    static {
       UTC_TZONE = TimeZone.getTimeZone("UTC");
       LOCAL_TZONE = TimeZone.getDefault();
 
-      PARSER_FORMAT = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss", Locale.US);
-      PARSER_FORMAT.setTimeZone(UTC_TZONE);
-
-      UTC_DATE_FORMAT = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss z", Locale.US);
-      UTC_DATE_FORMAT.setTimeZone(UTC_TZONE);
-
-      LOCAL_DATE_FORMAT = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss z", Locale.US);
-      LOCAL_DATE_FORMAT.setTimeZone(LOCAL_TZONE);
+      PARSER_FORMAT = new AfDateFormat(AfDateFormat.FIXED_PATTERN, UTC_TZONE);
+      UTC_DATE_FORMAT = new AfDateFormat(AfDateFormat.FIXED_ZONE_PATTERN, UTC_TZONE);
+      LOCAL_DATE_FORMAT = new AfDateFormat(AfDateFormat.FIXED_ZONE_PATTERN, LOCAL_TZONE);
    }
 
    /**
@@ -116,7 +110,7 @@ public class AfCalendar {
     */
    public static long Parse(String text) {
       try {
-         return PARSER_FORMAT.parse(text).getTime();
+         return PARSER_FORMAT.parseMillis(text);
       } catch(ParseException ex) {
          throw new IllegalArgumentException(ex);
       }
@@ -136,6 +130,20 @@ public class AfCalendar {
       }
    }
 
+   /**
+    * Parse the given date string without creating a Date.
+    *
+    * @param text string of the date to parse
+    * @return milliseconds since the epoch of the given string
+    */
+   public static long parseUtcMillis(String text) {
+      try {
+         return UTC_DATE_FORMAT.parseMillis(text);
+      } catch (ParseException ex) {
+         throw new IllegalArgumentException(ex);
+      }
+   }
+
    /**
     * Format the given date as a UTC date string.
     *
@@ -0,0 +1,308 @@
+/* ***********************************************************************
+ * VMware ThinApp Factory
+ * Copyright (c) 2009-2013 VMware, Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ***********************************************************************/
+
+package com.vmware.thinapp.common.util;
+
+import java.text.DateFormat;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.TimeZone;
+
+/**
+ * A thread-safe replacement for a shared SimpleDateFormat.
+ *
+ * SimpleDateFormat keeps intermediate results in its Calendar, so a single
+ * instance cannot be used by several threads at once.  Every thread using an
+ * AfDateFormat gets its own SimpleDateFormat, which means instances of this
+ * class can be kept in static fields and shared freely.
+ *
+ * The AppFactory "yyyy-MM-dd HH:mm:ss" layout (optionally followed by a " z"
+ * time zone) in UTC is handled by a fast path that works directly on the
+ * characters and allocates no Calendar.  Input the fast path does not
+ * recognize is handed to SimpleDateFormat, so the results are always the same
+ * as those of SimpleDateFormat itself.
+ */
+public final class AfDateFormat {
+   /** The standard AppFactory date/time layout */
+   public static final String FIXED_PATTERN = "yyyy-MM-dd HH:mm:ss";
+
+   /** The standard AppFactory date/time layout, including a time zone */
+   public static final String FIXED_ZONE_PATTERN = FIXED_PATTERN + " z";
+
+   /** Length of a date formatted with FIXED_PATTERN */
+   private static final int FIXED_LENGTH = FIXED_PATTERN.length();
+
+   /** Zone name SimpleDateFormat writes for UTC in the US locale */
+   private static final String UTC_ZONE_NAME = "UTC";
+
+   private static final long MILLIS_PER_SECOND = 1000L;
+   private static final long MILLIS_PER_DAY = 24L * 60L * 60L * MILLIS_PER_SECOND;
+
+   /** First instant the fast path handles: 1970-01-01 00:00:00 UTC */
+   private static final long FAST_PATH_MIN_MILLIS = 0L;
+
+   /** First instant the fast path no longer handles: 10000-01-01 00:00:00 UTC */
+   private static final long FAST_PATH_MAX_MILLIS = 253402300800000L;
+
+   private static final int[] DAYS_IN_MONTH =
+         { 31, 28, 31, 30, 31, 30, 31, 31, 30, 31, 30, 31 };
+
+   private final String pattern;
+   private final TimeZone timeZone;
+   private final Locale locale;
+
+   /** True if the fast path applies to this pattern and time zone */
+   private final boolean fast;
+
+   /** True if the fast path pattern ends with a time zone */
+   private final boolean withZone;
+
+   private final ThreadLocal<DateFormat> formats = new ThreadLocal<DateFormat>() {
+      @Override
+      protected DateFormat initialValue() {
+         SimpleDateFormat format = new SimpleDateFormat(pattern, locale);
+         format.setTimeZone(timeZone);
+         return format;
+      }
+   };
+
+   /**
+    * Create a new thread-safe date format using the US locale.
+    *
+    * @param pattern a SimpleDateFormat pattern
+    * @param timeZone the time zone used for formatting and parsing
+    */
+   public AfDateFormat(String pattern, TimeZone timeZone) {
+      this(pattern, timeZone, Locale.US);
+   }
+
+   /**
+    * Create a new thread-safe date format.
+    *
+    * @param pattern a SimpleDateFormat pattern
+    * @param timeZone the time zone used for formatting and parsing
+    * @param locale the locale used for formatting and parsing
+    */
+   public AfDateFormat(String pattern, TimeZone timeZone, Locale locale) {
+      // Fail early on a broken pattern, not on first use
+      new SimpleDateFormat(pattern, locale);
+
+      this.pattern = pattern;
+      this.timeZone = (TimeZone) timeZone.clone();
+      this.locale = locale;
+
+      boolean utc = UTC_ZONE_NAME.equals(timeZone.getID());
+      boolean us = Locale.US.equals(locale);
+      this.withZone = FIXED_ZONE_PATTERN.equals(pattern);
+      this.fast = utc && us && (withZone || FIXED_PATTERN.equals(pattern));
+   }
+
+   /**
+    * @return the SimpleDateFormat pattern of this format
+    */
+   public String getPattern() {
+      return pattern;
+   }
+
+   /**
+    * @return a copy of the time zone of this format
+    */
+   public TimeZone getTimeZone() {
+      return (TimeZone) timeZone.clone();
+   }
+
+   /**
+    * Format the given date.
+    *
+    * @param date date to format
+    * @return the formatted date string
+    */
+   public String format(Date date) {
+      return format(date.getTime());
+   }
+
+   /**
+    * Format the given time.
+    *
+    * @param epochMs milliseconds since the epoch
+    * @return the formatted date string
+    */
+   public String format(long epochMs) {
+      if (fast && epochMs >= FAST_PATH_MIN_MILLIS && epochMs < FAST_PATH_MAX_MILLIS) {
+         return formatFixed(epochMs);
+      }
+      return formats.get().format(new Date(epochMs));
+   }
+
+   /**
+    * Parse the given date string.
+    *
+    * @param text date string to parse
+    * @return the parsed date
+    * @throws ParseException if the string cannot be parsed
+    */
+   public Date parse(String text) throws ParseException {
+      return new Date(parseMillis(text));
+   }
+
+   /**
+    * Parse the given date string without creating a Date.
+    *
+    * @param text date string to parse
+    * @return the parsed time as milliseconds since the epoch
+    * @throws ParseException if the string cannot be parsed
+    */
+   public long parseMillis(String text) throws ParseException {
+      if (fast && text != null) {
+         long millis = parseFixed(text);
+         if (millis >= 0) {
+            return millis;
+         }
+      }
+      return formats.get().parse(text).getTime();
+   }
+
+   @Override
+   public String toString() {
+      return "AfDateFormat[" + pattern + ", " + timeZone.getID() + "]";
+   }
+
+   /**
+    * Format a UTC time in the fixed layout.  The time must be within the
+    * fast path range.
+    */
+   private String formatFixed(long epochMs) {
+      long days = epochMs / MILLIS_PER_DAY;
+      int secs = (int) ((epochMs % MILLIS_PER_DAY) / MILLIS_PER_SECOND);
+
+      // Convert days since the epoch to a civil date
+      long z = days + 719468;
+      long era = z / 146097;
+      long doe = z - era * 146097;
+      long yoe = (doe - doe / 1460 + doe / 36524 - doe / 146096) / 365;
+      long doy = doe - (365 * yoe + yoe / 4 - yoe / 100);
+      long mp = (5 * doy + 2) / 153;
+      int day = (int) (doy - (153 * mp + 2) / 5 + 1);
+      int month = (int) (mp < 10 ? mp + 3 : mp - 9);
+      int year = (int) (yoe + era * 400 + (month <= 2 ? 1 : 0));
+
+      char[] buf = new char[withZone ? FIXED_LENGTH + 1 + UTC_ZONE_NAME.length() : FIXED_LENGTH];
+      putDigits(buf, 0, year, 4);
+      buf[4] = '-';
+      putDigits(buf, 5, month, 2);
+      buf[7] = '-';
+      putDigits(buf, 8, day, 2);
+      buf[10] = ' ';
+      putDigits(buf, 11, secs / 3600, 2);
+      buf[13] = ':';
+      putDigits(buf, 14, (secs / 60) % 60, 2);
+      buf[16] = ':';
+      putDigits(buf, 17, secs % 60, 2);
+      if (withZone) {
+         buf[FIXED_LENGTH] = ' ';
+         UTC_ZONE_NAME.getChars(0, UTC_ZONE_NAME.length(), buf, FIXED_LENGTH + 1);
+      }
+      return new String(buf);
+   }
+
+   /**
+    * Parse a UTC time in the fixed layout.
+    *
+    * @return milliseconds since the epoch, or -1 if the text is not something
+    *         the fast path can handle exactly like SimpleDateFormat would.
+    */
+   private long parseFixed(String text) {
+      int length = text.length();
+      if (withZone) {
+         // SimpleDateFormat accepts many zone names; only handle the two
+         // that mean UTC and leave the rest to it.
+         if (length != FIXED_LENGTH + 4 ||
+             text.charAt(FIXED_LENGTH) != ' ' ||
+             !(text.endsWith(UTC_ZONE_NAME) || text.endsWith("GMT"))) {
+            return -1;
+         }
+      } else if (length != FIXED_LENGTH) {
+         return -1;
+      }
+
+      if (text.charAt(4) != '-' || text.charAt(7) != '-' ||
+          text.charAt(10) != ' ' ||
+          text.charAt(13) != ':' || text.charAt(16) != ':') {
+         return -1;
+      }
+
+      int year = digits(text, 0, 4);
+      int month = digits(text, 5, 2);
+      int day = digits(text, 8, 2);
+      int hour = digits(text, 11, 2);
+      int minute = digits(text, 14, 2);
+      int second = digits(text, 17, 2);
+
+      // SimpleDateFormat is lenient and rolls out-of-range fields over; let
+      // it deal with those.
+      if (year < 1970 || month < 1 || month > 12 ||
+          day < 1 || day > daysInMonth(year, month) ||
+          hour < 0 || hour > 23 ||
+          minute < 0 || minute > 59 ||
+          second < 0 || second > 59) {
+         return -1;
+      }
+
+      // Convert the civil date to days since the epoch
+      long y = (month <= 2) ? year - 1 : year;
+      long era = y / 400;
+      long yoe = y - era * 400;
+      long doy = (153 * (month > 2 ? month - 3 : month + 9) + 2) / 5 + day - 1;
+      long doe = yoe * 365 + yoe / 4 - yoe / 100 + doy;
+      long days = era * 146097 + doe - 719468;
+
+      return days * MILLIS_PER_DAY +
+             (hour * 3600L + minute * 60L + second) * MILLIS_PER_SECOND;
+   }
+
+   /**
+    * @return the value of count decimal digits at offset, or -1 if any of
+    *         them is not an ASCII digit.
+    */
+   private static int digits(String text, int offset, int count) {
+      int value = 0;
+      for (int i = offset; i < offset + count; i++) {
+         char c = text.charAt(i);
+         if (c < '0' || c > '9') {
+            return -1;
+         }
+         value = value * 10 + (c - '0');
+      }
+      return value;
+   }
+
+   private static void putDigits(char[] buf, int offset, int value, int count) {
+      for (int i = offset + count - 1; i >= offset; i--) {
+         buf[i] = (char) ('0' + (value % 10));
+         value /= 10;
+      }
+   }
+
+   private static int daysInMonth(int year, int month) {
+      if (month == 2 && (year % 4 == 0) && (year % 100 != 0 || year % 400 == 0)) {
+         return 29;
+      }
+      return DAYS_IN_MONTH[month - 1];
+   }
+}
@@ -25,29 +25,20 @@ import org.codehaus.jackson.map.DeserializationContext;
 import org.codehaus.jackson.map.JsonDeserializer;
 import org.codehaus.jackson.map.JsonSerializer;
 import org.codehaus.jackson.map.ObjectMapper;
-import org.codehaus.jackson.map.SerializationConfig;
 import org.codehaus.jackson.map.SerializerProvider;
 
 /**
  * Contains various JSON utility functions and helper classes.
  */
 public class AfJson {
-   private static final ObjectMapper _JSON_MAPPER;
-
-   static {
-      /* Create and configure a JSON object mapper */
-      _JSON_MAPPER = new ObjectMapper();
-      _JSON_MAPPER.configure(SerializationConfig.Feature.INDENT_OUTPUT, true);
-      _JSON_MAPPER.configure(JsonParser.Feature.ALLOW_COMMENTS, true);
-   }
-
    /**
     * Get a singleton instance of a JSON object mapper.
     *
     * @return An instance of a JSON object mapper.
+    * @see AfJsonCodecs#DEFAULT
     */
    public static ObjectMapper ObjectMapper() {
-      return _JSON_MAPPER;
+      return AfJsonCodecs.mapper(AfJsonCodecs.DEFAULT);
    }
 
    /**
@@ -83,8 +74,7 @@ public class AfJson {
       public Long deserialize(JsonParser parser, DeserializationContext context)
          throws IOException
       {
-         ObjectMapper m = new ObjectMapper();
-         String s = m.readValue(parser, String.class);
+         String s = AfJsonCodecs.reader(AfJsonCodecs.DEFAULT, String.class).readValue(parser);
 
          try {
             return AfCalendar.Parse(s);
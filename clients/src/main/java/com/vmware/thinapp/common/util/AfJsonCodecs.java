@@ -0,0 +1,238 @@
+/* ***********************************************************************
+ * VMware ThinApp Factory
+ * Copyright (c) 2009-2013 VMware, Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ***********************************************************************/
+
+package com.vmware.thinapp.common.util;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.codehaus.jackson.JsonParser;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.codehaus.jackson.map.ObjectReader;
+import org.codehaus.jackson.map.ObjectWriter;
+import org.codehaus.jackson.map.SerializationConfig;
+import org.codehaus.jackson.map.type.SimpleType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.vmware.thinapp.common.converter.dto.ConversionJobStatus;
+import com.vmware.thinapp.common.workpool.dto.CustomWorkpool;
+import com.vmware.thinapp.common.workpool.dto.FullWorkpool;
+import com.vmware.thinapp.common.workpool.dto.LinkedWorkpool;
+import com.vmware.thinapp.common.workpool.dto.Workpool;
+
+/**
+ * Registry of shared, pre-configured JSON object mappers.
+ *
+ * Creating an ObjectMapper is cheap, but every new mapper starts with empty
+ * serializer and deserializer caches, so the first use of each type pays for
+ * introspecting it again.  Mappers are thread-safe once configured, so each
+ * distinct configuration is built once, registered here under a name, and
+ * shared by everyone who needs it.
+ *
+ * Mappers must not be reconfigured after they are registered: configure them
+ * in the Configurer passed to register().
+ */
+public final class AfJsonCodecs {
+   private static final Logger log = LoggerFactory.getLogger(AfJsonCodecs.class);
+
+   /** Indented output, comments allowed; the mapper behind AfJson.ObjectMapper() */
+   public static final String DEFAULT = "default";
+
+   /** Compact output for machine consumers such as push notifications */
+   public static final String COMPACT = "compact";
+
+   /**
+    * Sets up a new mapper before it is registered.
+    */
+   public interface Configurer {
+      /**
+       * @param mapper a newly created mapper to configure
+       */
+      void configure(ObjectMapper mapper);
+   }
+
+   private static final ConcurrentMap<String, ObjectMapper> mappers =
+         new ConcurrentHashMap<String, ObjectMapper>();
+
+   private static final ConcurrentMap<CodecKey, ObjectReader> readers =
+         new ConcurrentHashMap<CodecKey, ObjectReader>();
+
+   private static final ConcurrentMap<CodecKey, ObjectWriter> writers =
+         new ConcurrentHashMap<CodecKey, ObjectWriter>();
+
+   static {
+      register(DEFAULT, new Configurer() {
+         @Override
+         public void configure(ObjectMapper mapper) {
+            mapper.configure(SerializationConfig.Feature.INDENT_OUTPUT, true);
+            mapper.configure(JsonParser.Feature.ALLOW_COMMENTS, true);
+         }
+      });
+
+      register(COMPACT, null);
+
+      // DTOs that are exchanged with the converter and workpool services on
+      // every status poll.
+      for (String name : new String[] { DEFAULT, COMPACT }) {
+         prefetch(name,
+               ConversionJobStatus.class,
+               Workpool.class,
+               LinkedWorkpool.class,
+               FullWorkpool.class,
+               CustomWorkpool.class);
+      }
+   }
+
+   private AfJsonCodecs() {
+      /* Static methods only */
+   }
+
+   /**
+    * Register a new named mapper.  If a mapper with the same name has already
+    * been registered, that one is kept and returned, so it is safe to call
+    * this from static initializers that may run more than once.
+    *
+    * @param name unique name for the mapper
+    * @param configurer sets up the mapper, may be null for defaults
+    * @return the mapper registered under the given name
+    */
+   public static ObjectMapper register(String name, Configurer configurer) {
+      ObjectMapper existing = mappers.get(name);
+      if (existing != null) {
+         return existing;
+      }
+
+      ObjectMapper mapper = new ObjectMapper();
+      if (configurer != null) {
+         configurer.configure(mapper);
+      }
+
+      existing = mappers.putIfAbsent(name, mapper);
+      return (existing != null) ? existing : mapper;
+   }
+
+   /**
+    * Get a registered mapper.
+    *
+    * @param name name the mapper was registered with
+    * @return the shared mapper
+    * @throws IllegalArgumentException if no such mapper is registered
+    */
+   public static ObjectMapper mapper(String name) {
+      ObjectMapper mapper = mappers.get(name);
+      if (mapper == null) {
+         throw new IllegalArgumentException("No JSON mapper registered as " + name);
+      }
+      return mapper;
+   }
+
+   /**
+    * Get a cached reader for the given type.
+    *
+    * @param name name of a registered mapper
+    * @param type type to read
+    * @return a shared reader for the type
+    */
+   public static ObjectReader reader(String name, Class<?> type) {
+      CodecKey key = new CodecKey(name, type);
+      ObjectReader reader = readers.get(key);
+      if (reader == null) {
+         reader = mapper(name).reader(type);
+         ObjectReader existing = readers.putIfAbsent(key, reader);
+         if (existing != null) {
+            reader = existing;
+         }
+      }
+      return reader;
+   }
+
+   /**
+    * Get a cached writer for the given mapper.  Values are serialized using
+    * their runtime type, so this is safe to use for polymorphic values.
+    *
+    * @param name name of a registered mapper
+    * @return a shared writer
+    */
+   public static ObjectWriter writer(String name) {
+      CodecKey key = new CodecKey(name, null);
+      ObjectWriter writer = writers.get(key);
+      if (writer == null) {
+         writer = mapper(name).writer();
+         ObjectWriter existing = writers.putIfAbsent(key, writer);
+         if (existing != null) {
+            writer = existing;
+         }
+      }
+      return writer;
+   }
+
+   /**
+    * Resolve and cache the serializers and deserializers of the given types,
+    * so the first real request does not pay for introspecting them.
+    * Only plain bean types are meant to be passed here; containers such as
+    * lists and maps are resolved when they are first used.
+    *
+    * Types that cannot be handled are logged and otherwise ignored; they
+    * fail again, with a proper error, when they are actually used.
+    *
+    * @param name name of a registered mapper
+    * @param types types to prepare
+    */
+   public static void prefetch(String name, Class<?>... types) {
+      ObjectMapper mapper = mapper(name);
+      for (Class<?> type : types) {
+         try {
+            if (!mapper.canSerialize(type)) {
+               log.warn("JSON mapper {} cannot serialize {}", name, type.getName());
+            }
+            if (!mapper.canDeserialize(SimpleType.construct(type))) {
+               log.debug("JSON mapper {} cannot deserialize {}", name, type.getName());
+            }
+         } catch (RuntimeException ex) {
+            log.warn("Could not prefetch JSON codecs for " + type.getName(), ex);
+         }
+      }
+   }
+
+   /**
+    * Key for the reader and writer caches.
+    */
+   private static final class CodecKey {
+      private final String name;
+      private final Class<?> type;
+
+      CodecKey(String name, Class<?> type) {
+         this.name = name;
+         this.type = type;
+      }
+
+      @Override
+      public boolean equals(Object obj) {
+         if (!(obj instanceof CodecKey)) {
+            return false;
+         }
+         CodecKey other = (CodecKey) obj;
+         return name.equals(other.name) && type == other.type;
+      }
+
+      @Override
+      public int hashCode() {
+         return name.hashCode() * 31 + (type == null ? 0 : type.hashCode());
+      }
+   }
+}
@@ -0,0 +1,192 @@
+/* ***********************************************************************
+ * VMware ThinApp Factory
+ * Copyright (c) 2009-2013 VMware, Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ***********************************************************************/
+
+package com.vmware.thinapp.common.util;
+
+/**
+ * A precomputed key for sorting a string the same way as either
+ * String.compareToIgnoreCase() or AfUtil.alnumCompare().
+ *
+ * Building a key folds the case of the string and splits it into digit and
+ * non-digit chunks once, so sorting a large list compares keys without
+ * redoing that work for every comparison.  Keys only compare against keys
+ * of the same kind.
+ */
+public final class AfSortKey implements Comparable<AfSortKey> {
+   private static final int[] NO_CHUNKS = new int[0];
+
+   /** The string this key was built from */
+   private final String source;
+
+   /** The source with each character folded the way compareToIgnoreCase folds it */
+   private final String folded;
+
+   /** End offsets of the digit/non-digit chunks, or null if not an alnum key */
+   private final int[] chunkEnds;
+
+   private AfSortKey(String source, String folded, int[] chunkEnds) {
+      this.source = source;
+      this.folded = folded;
+      this.chunkEnds = chunkEnds;
+   }
+
+   /**
+    * Create a key that orders like String.compareToIgnoreCase().
+    *
+    * @param source string to build a key for; must not be null.
+    * @return a new key
+    */
+   public static AfSortKey caseInsensitive(String source) {
+      return new AfSortKey(source, fold(source), null);
+   }
+
+   /**
+    * Create a key that orders like AfUtil.alnumCompare().
+    *
+    * @param source string to build a key for, may be null.
+    * @return a new key
+    */
+   public static AfSortKey alnum(String source) {
+      if (source == null) {
+         return new AfSortKey(null, null, NO_CHUNKS);
+      }
+
+      int length = source.length();
+      int count = 0;
+      int[] ends = new int[Math.max(length, 1)];
+      for (int index = 0; index < length;) {
+         index = AfUtil.chunkEnd(source, length, index, Character.isDigit(source.charAt(index)));
+         ends[count++] = index;
+      }
+
+      int[] chunkEnds = new int[count];
+      System.arraycopy(ends, 0, chunkEnds, 0, count);
+      return new AfSortKey(source, fold(source), chunkEnds);
+   }
+
+   /**
+    * @return the string this key was built from
+    */
+   public String getSource() {
+      return source;
+   }
+
+   @Override
+   public int compareTo(AfSortKey other) {
+      if (chunkEnds == null) {
+         return folded.compareTo(other.folded);
+      }
+      return compareAlnum(other);
+   }
+
+   /**
+    * Same algorithm as AfUtil.alnumCompare(), working on the precomputed
+    * chunks.  Folding leaves digits alone, so digit chunks can be compared
+    * using the folded string as well.
+    */
+   private int compareAlnum(AfSortKey other) {
+      if (source == other.source) {
+         return 0;
+      } else if (source == null) {
+         return -1;
+      } else if (other.source == null) {
+         return 1;
+      }
+
+      String str1 = folded;
+      String str2 = other.folded;
+      int[] ends1 = chunkEnds;
+      int[] ends2 = other.chunkEnds;
+      int count = Math.min(ends1.length, ends2.length);
+
+      for (int chunk = 0, begin1 = 0, begin2 = 0; chunk < count; chunk++) {
+         int end1 = ends1[chunk];
+         int end2 = ends2[chunk];
+         int n1 = end1 - begin1;
+         int n2 = end2 - begin2;
+
+         int result;
+         if (Character.isDigit(str1.charAt(begin1)) &&
+             Character.isDigit(str2.charAt(begin2))) {
+            result = n1 - n2;
+            if (result == 0) {
+               for (int i = 0; i < n1; i++) {
+                  result = str1.charAt(begin1 + i) - str2.charAt(begin2 + i);
+                  if (result != 0) {
+                     return result;
+                  }
+               }
+            }
+         } else {
+            result = 0;
+            int min = Math.min(n1, n2);
+            for (int i = 0; i < min && result == 0; i++) {
+               result = str1.charAt(begin1 + i) - str2.charAt(begin2 + i);
+            }
+            if (result == 0) {
+               result = n1 - n2;
+            }
+         }
+
+         if (result != 0) {
+            return result;
+         }
+         begin1 = end1;
+         begin2 = end2;
+      }
+      return source.length() - other.source.length();
+   }
+
+   @Override
+   public boolean equals(Object obj) {
+      if (!(obj instanceof AfSortKey)) {
+         return false;
+      }
+      AfSortKey other = (AfSortKey) obj;
+      return ((chunkEnds == null) == (other.chunkEnds == null)) && compareTo(other) == 0;
+   }
+
+   @Override
+   public int hashCode() {
+      return (folded == null) ? 0 : folded.hashCode();
+   }
+
+   @Override
+   public String toString() {
+      return source;
+   }
+
+   /**
+    * Fold each character the way String.compareToIgnoreCase() does, so that
+    * comparing folded strings with compareTo() gives the same result.
+    */
+   static String fold(String s) {
+      int length = s.length();
+      char[] chars = null;
+      for (int i = 0; i < length; i++) {
+         char c = s.charAt(i);
+         char f = Character.toLowerCase(Character.toUpperCase(c));
+         if (f != c) {
+            if (chars == null) {
+               chars = s.toCharArray();
+            }
+            chars[i] = f;
+         }
+      }
+      return (chars == null) ? s : new String(chars);
+   }
+}
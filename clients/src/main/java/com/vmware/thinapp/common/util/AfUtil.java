@@ -28,6 +28,7 @@ import java.net.URL;
 import java.net.URLConnection;
 import java.text.ParseException;
 import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.Date;
 import java.util.List;
 import java.util.Random;
@@ -75,6 +76,14 @@ public class AfUtil {
 
    private static final Logger log = LoggerFactory.getLogger(AfUtil.class);
 
+   /** Orders strings using alnumCompare() */
+   public static final Comparator<String> ALNUM_ORDER = new Comparator<String>() {
+      @Override
+      public int compare(String str1, String str2) {
+         return alnumCompare(str1, str2);
+      }
+   };
+
    private AfUtil() {
       // Do nothing, just hide it.
    }
@@ -708,6 +717,8 @@ public class AfUtil {
     * Compare two string by chuning digits and non-digits separately and compare between the two.
     * This way, the version strings (Ex: 10.2c.4.24546 sp1) can be properly compared.
     *
+    * The strings are walked in place; no chunks are copied out of them.
+    *
     * @param str1
     * @param str2
     * @return
@@ -724,36 +735,83 @@ public class AfUtil {
       int s1Length = str1.length();
       int s2Length = str2.length();
 
-      for (int s1Index =0, s2Index = 0; s1Index < s1Length && s2Index < s2Length;) {
-         String thisStr = getDigitOrNonDigitChunk(str1, s1Length, s1Index);
-         s1Index += thisStr.length();
+      for (int s1Index = 0, s2Index = 0; s1Index < s1Length && s2Index < s2Length;) {
+         boolean thisDigit = Character.isDigit(str1.charAt(s1Index));
+         int thisEnd = chunkEnd(str1, s1Length, s1Index, thisDigit);
 
-         String thatStr = getDigitOrNonDigitChunk(str2, s2Length, s2Index);
-         s2Index += thatStr.length();
+         boolean thatDigit = Character.isDigit(str2.charAt(s2Index));
+         int thatEnd = chunkEnd(str2, s2Length, s2Index, thatDigit);
 
-         // If both strs contain numeric characters, sort them numerically
-         int result = 0;
-         if (Character.isDigit(thisStr.charAt(0)) && Character.isDigit(thatStr.charAt(0))) {
-            // Simple str comparison by length.
-            int thisStrLength = thisStr.length();
-            result = thisStrLength - thatStr.length();
+         // If both chunks contain numeric characters, sort them numerically
+         int result;
+         if (thisDigit && thatDigit) {
+            // Simple chunk comparison by length.
+            int thisChunkLength = thisEnd - s1Index;
+            result = thisChunkLength - (thatEnd - s2Index);
             // If equal, the first different number counts
             if (result == 0) {
-               for (int i = 0; i < thisStrLength; i++){
-                  result = thisStr.charAt(i) - thatStr.charAt(i);
+               for (int i = 0; i < thisChunkLength; i++) {
+                  result = str1.charAt(s1Index + i) - str2.charAt(s2Index + i);
                   if (result != 0) {
                      return result;
                   }
                }
             }
          } else {
-            result = thisStr.compareToIgnoreCase(thatStr);
+            result = compareIgnoreCase(str1, s1Index, thisEnd, str2, s2Index, thatEnd);
          }
 
          if (result != 0) {
             return result;
          }
+         s1Index = thisEnd;
+         s2Index = thatEnd;
       }
       return s1Length - s2Length;
    }
+
+   /**
+    * Find the end of the digit or non-digit chunk starting at index.
+    *
+    * @param s
+    * @param length
+    * @param index
+    * @param digit whether the chunk is made of digits
+    * @return the index just past the chunk
+    */
+   static int chunkEnd(String s, int length, int index, boolean digit) {
+      index++;
+      while (index < length && Character.isDigit(s.charAt(index)) == digit) {
+         index++;
+      }
+      return index;
+   }
+
+   /**
+    * Compare two regions of two strings the way
+    * String.compareToIgnoreCase() compares two whole strings.
+    */
+   static int compareIgnoreCase(
+         String str1, int begin1, int end1,
+         String str2, int begin2, int end2) {
+      int n1 = end1 - begin1;
+      int n2 = end2 - begin2;
+      int min = Math.min(n1, n2);
+      for (int i = 0; i < min; i++) {
+         char c1 = str1.charAt(begin1 + i);
+         char c2 = str2.charAt(begin2 + i);
+         if (c1 != c2) {
+            c1 = Character.toUpperCase(c1);
+            c2 = Character.toUpperCase(c2);
+            if (c1 != c2) {
+               c1 = Character.toLowerCase(c1);
+               c2 = Character.toLowerCase(c2);
+               if (c1 != c2) {
+                  return c1 - c2;
+               }
+            }
+         }
+      }
+      return n1 - n2;
+   }
 }
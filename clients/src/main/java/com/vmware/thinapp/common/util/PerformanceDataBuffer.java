@@ -166,10 +166,8 @@ public class PerformanceDataBuffer {
          // Get the most recent performance data entry
          PerformanceData head = head();
 
-         long headDateMillis =
-               AfCalendar.parseUtc(head.getDate()).getTime();
-         long perfDateMillis =
-               AfCalendar.parseUtc(perfData.getDate()).getTime();
+         long headDateMillis = AfCalendar.parseUtcMillis(head.getDate());
+         long perfDateMillis = AfCalendar.parseUtcMillis(perfData.getDate());
          long nowDateMillis = AfCalendar.Now();
 
          // Sanity check: make sure we didn't get old data somehow...
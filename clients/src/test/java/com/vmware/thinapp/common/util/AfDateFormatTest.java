@@ -0,0 +1,207 @@
+/* ***********************************************************************
+ * VMware ThinApp Factory
+ * Copyright (c) 2009-2013 VMware, Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ***********************************************************************/
+
+package com.vmware.thinapp.common.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.TimeZone;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.Test;
+
+/**
+ * Test that AfDateFormat behaves exactly like SimpleDateFormat, including
+ * when shared between threads.
+ */
+public class AfDateFormatTest {
+   private static final TimeZone UTC = TimeZone.getTimeZone("UTC");
+
+   /** 2100-01-01 00:00:00 UTC */
+   private static final long MAX_TEST_MILLIS = 4102444800000L;
+
+   private static final int THREADS = 8;
+   private static final int ITERATIONS = 20000;
+
+   private static SimpleDateFormat reference(String pattern, TimeZone tz) {
+      SimpleDateFormat format = new SimpleDateFormat(pattern, Locale.US);
+      format.setTimeZone(tz);
+      return format;
+   }
+
+   @Test
+   public void formatMatchesSimpleDateFormat() {
+      Random random = new Random(42);
+      for (String pattern : new String[] {
+            AfDateFormat.FIXED_PATTERN, AfDateFormat.FIXED_ZONE_PATTERN }) {
+         AfDateFormat format = new AfDateFormat(pattern, UTC);
+         SimpleDateFormat expected = reference(pattern, UTC);
+
+         for (long millis : new long[] {
+               0L, 951782400000L, 951868799999L, 1330473600000L, -1L,
+               -86400001L, 253402300799999L, 253402300800000L }) {
+            assertEquals(expected.format(new Date(millis)), format.format(millis));
+         }
+         for (int i = 0; i < ITERATIONS; i++) {
+            long millis = (long) (random.nextDouble() * MAX_TEST_MILLIS);
+            assertEquals(expected.format(new Date(millis)), format.format(millis));
+         }
+      }
+   }
+
+   @Test
+   public void parseMatchesSimpleDateFormat() throws ParseException {
+      Random random = new Random(42);
+      for (String pattern : new String[] {
+            AfDateFormat.FIXED_PATTERN, AfDateFormat.FIXED_ZONE_PATTERN }) {
+         AfDateFormat format = new AfDateFormat(pattern, UTC);
+         SimpleDateFormat expected = reference(pattern, UTC);
+
+         for (int i = 0; i < ITERATIONS; i++) {
+            long millis = (long) (random.nextDouble() * MAX_TEST_MILLIS);
+            String text = expected.format(new Date(millis));
+            assertEquals(expected.parse(text).getTime(), format.parseMillis(text));
+         }
+      }
+   }
+
+   /**
+    * Input outside the fast path must still be handled like SimpleDateFormat
+    * handles it: lenient roll-over, other zones, trailing text, old dates.
+    */
+   @Test
+   public void parseFallsBackToSimpleDateFormat() throws ParseException {
+      String[] zoned = {
+            "2012-02-29 12:00:00 UTC",
+            "2012-02-30 00:00:00 UTC",
+            "2011-02-29 00:00:00 GMT",
+            "2012-13-01 00:00:00 UTC",
+            "2012-01-01 24:00:00 UTC",
+            "2012-01-01 00:60:61 UTC",
+            "2012-01-01 00:00:00 PST",
+            "2012-01-01 00:00:00 GMT+05:00",
+            "2012-01-01 00:00:00 UTC and more",
+            "1969-12-31 23:59:59 UTC",
+            "1600-03-01 00:00:00 UTC",
+            "2012-1-1 0:0:0 UTC",
+      };
+      checkParse(AfDateFormat.FIXED_ZONE_PATTERN, zoned);
+
+      String[] plain = {
+            "2012-02-29 12:00:00",
+            "2012-02-30 00:00:00",
+            "2012-01-01 00:00:00 UTC",
+            "2012-01-01 00:00:00x",
+            "1969-12-31 23:59:59",
+            "2012-1-1 0:0:0",
+      };
+      checkParse(AfDateFormat.FIXED_PATTERN, plain);
+   }
+
+   @Test
+   public void parseFailsLikeSimpleDateFormat() {
+      AfDateFormat format = new AfDateFormat(AfDateFormat.FIXED_ZONE_PATTERN, UTC);
+      for (String text : new String[] {
+            "", "garbage", "2012-01-01", "2012-01-01 00:00:00" }) {
+         try {
+            format.parse(text);
+            fail("Expected ParseException for \"" + text + "\"");
+         } catch (ParseException ex) {
+            // Expected
+         }
+      }
+   }
+
+   @Test
+   public void localTimeZone() throws ParseException {
+      TimeZone tz = TimeZone.getTimeZone("America/Los_Angeles");
+      AfDateFormat format = new AfDateFormat(AfDateFormat.FIXED_ZONE_PATTERN, tz);
+      SimpleDateFormat expected = reference(AfDateFormat.FIXED_ZONE_PATTERN, tz);
+
+      long millis = 1341100800000L;
+      String text = expected.format(new Date(millis));
+      assertEquals(text, format.format(millis));
+      assertEquals(millis, format.parseMillis(text));
+   }
+
+   /**
+    * Hammer a single shared instance from several threads.  A shared
+    * SimpleDateFormat fails this almost immediately.
+    */
+   @Test
+   public void concurrentUse() throws Exception {
+      final AfDateFormat fast = new AfDateFormat(AfDateFormat.FIXED_ZONE_PATTERN, UTC);
+      final AfDateFormat slow = new AfDateFormat(
+            AfDateFormat.FIXED_ZONE_PATTERN, TimeZone.getTimeZone("America/New_York"));
+
+      ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+      try {
+         List<Future<Void>> results = new ArrayList<Future<Void>>();
+         for (int t = 0; t < THREADS; t++) {
+            final long seed = t;
+            results.add(executor.submit(new Callable<Void>() {
+               @Override
+               public Void call() throws Exception {
+                  Random random = new Random(seed);
+                  for (int i = 0; i < ITERATIONS; i++) {
+                     long millis = (long) (random.nextDouble() * MAX_TEST_MILLIS);
+                     millis -= millis % 1000;
+                     assertEquals(millis, fast.parseMillis(fast.format(millis)));
+                     assertEquals(millis, slow.parseMillis(slow.format(millis)));
+                  }
+                  return null;
+               }
+            }));
+         }
+         for (Future<Void> result : results) {
+            result.get();
+         }
+      } finally {
+         executor.shutdownNow();
+      }
+   }
+
+   @Test
+   public void calendarRoundTrip() {
+      long millis = 1325376000000L;
+      String text = AfCalendar.formatUtc(new Date(millis));
+      assertEquals("2012-01-01 00:00:00 UTC", text);
+      assertEquals(millis, AfCalendar.parseUtcMillis(text));
+      assertEquals(millis, AfCalendar.parseUtc(text).getTime());
+      assertEquals(millis, AfCalendar.Parse("2012-01-01 00:00:00"));
+   }
+
+   private static void checkParse(String pattern, String[] inputs)
+         throws ParseException {
+      AfDateFormat format = new AfDateFormat(pattern, UTC);
+      SimpleDateFormat expected = reference(pattern, UTC);
+      for (String text : inputs) {
+         assertEquals(text, expected.parse(text).getTime(), format.parseMillis(text));
+      }
+   }
+}
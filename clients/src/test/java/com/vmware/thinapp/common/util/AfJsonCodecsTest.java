@@ -0,0 +1,101 @@
+/* ***********************************************************************
+ * VMware ThinApp Factory
+ * Copyright (c) 2009-2013 VMware, Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ***********************************************************************/
+
+package com.vmware.thinapp.common.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.codehaus.jackson.map.ObjectMapper;
+import org.codehaus.jackson.map.SerializationConfig;
+import org.junit.Test;
+
+import com.vmware.thinapp.common.converter.dto.ConversionJobStatus;
+
+/**
+ * Test the shared JSON mapper registry.
+ */
+public class AfJsonCodecsTest {
+   @Test
+   public void defaultMapperIsShared() {
+      assertSame(AfJson.ObjectMapper(), AfJson.ObjectMapper());
+      assertSame(AfJsonCodecs.mapper(AfJsonCodecs.DEFAULT), AfJson.ObjectMapper());
+   }
+
+   @Test
+   public void registerKeepsFirstMapper() {
+      final int[] configured = { 0 };
+      AfJsonCodecs.Configurer configurer = new AfJsonCodecs.Configurer() {
+         @Override
+         public void configure(ObjectMapper mapper) {
+            configured[0]++;
+            mapper.configure(SerializationConfig.Feature.INDENT_OUTPUT, true);
+         }
+      };
+
+      ObjectMapper first = AfJsonCodecs.register("test-register", configurer);
+      ObjectMapper second = AfJsonCodecs.register("test-register", configurer);
+
+      assertSame(first, second);
+      assertEquals(1, configured[0]);
+      assertTrue(first.getSerializationConfig().isEnabled(
+            SerializationConfig.Feature.INDENT_OUTPUT));
+   }
+
+   @Test(expected = IllegalArgumentException.class)
+   public void unknownMapper() {
+      AfJsonCodecs.mapper("no-such-mapper");
+   }
+
+   @Test
+   public void readersAndWritersAreCached() {
+      assertSame(
+            AfJsonCodecs.reader(AfJsonCodecs.COMPACT, ConversionJobStatus.class),
+            AfJsonCodecs.reader(AfJsonCodecs.COMPACT, ConversionJobStatus.class));
+      assertSame(
+            AfJsonCodecs.writer(AfJsonCodecs.COMPACT),
+            AfJsonCodecs.writer(AfJsonCodecs.COMPACT));
+   }
+
+   @Test
+   public void compactRoundTrip() throws Exception {
+      ConversionJobStatus status = new ConversionJobStatus();
+      status.setJobId(12L);
+      status.setProjectId(34L);
+      status.setState(ConversionJobStatus.JobState.install);
+      status.setPercent(56);
+
+      String json = AfJsonCodecs.writer(AfJsonCodecs.COMPACT).writeValueAsString(status);
+      assertFalse(json.contains("\n"));
+
+      ConversionJobStatus read =
+            AfJsonCodecs.reader(AfJsonCodecs.COMPACT, ConversionJobStatus.class).readValue(json);
+      assertEquals(status.getJobId(), read.getJobId());
+      assertEquals(status.getProjectId(), read.getProjectId());
+      assertEquals(status.getState(), read.getState());
+      assertEquals(status.getPercent(), read.getPercent());
+   }
+
+   @Test
+   public void calendarDeserializer() throws Exception {
+      SimpleDateBean bean = AfJson.ObjectMapper().readValue(
+            "{ \"time\" : \"2012-01-01 00:00:00 UTC\" }", SimpleDateBean.class);
+      assertEquals(Long.valueOf(1325376000000L), bean.getTime());
+   }
+}
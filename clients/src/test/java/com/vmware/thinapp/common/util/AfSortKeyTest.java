@@ -0,0 +1,216 @@
+/* ***********************************************************************
+ * VMware ThinApp Factory
+ * Copyright (c) 2009-2013 VMware, Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ***********************************************************************/
+
+package com.vmware.thinapp.common.util;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Property tests checking that AfUtil.alnumCompare() and AfSortKey order
+ * strings exactly like the original chunk-copying alnumCompare() and
+ * String.compareToIgnoreCase().
+ */
+public class AfSortKeyTest {
+   private static final int ITERATIONS = 200000;
+
+   /**
+    * Characters random strings are built from: digits, both cases, separators
+    * and a few characters with unusual case mappings or digit properties.
+    */
+   private static final String ALPHABET =
+         "0123456789" +
+         "abcxyzABCXYZ" +
+         " .-_#" +
+         "\u00df\u00ff\u0130\u0131\u017f\u03a3\u03c2\u03c3" +
+         "\u0663\u0669\u0967";
+
+   /**
+    * The chunk-copying implementation alnumCompare() had before it walked the
+    * strings in place.
+    */
+   private static int legacyAlnumCompare(String str1, String str2) {
+      if (str1 == str2) {
+         return 0;
+      } else if (str1 == null) {
+         return -1;
+      } else if (str2 == null) {
+         return 1;
+      }
+      int s1Length = str1.length();
+      int s2Length = str2.length();
+
+      for (int s1Index =0, s2Index = 0; s1Index < s1Length && s2Index < s2Length;) {
+         String thisStr = AfUtil.getDigitOrNonDigitChunk(str1, s1Length, s1Index);
+         s1Index += thisStr.length();
+
+         String thatStr = AfUtil.getDigitOrNonDigitChunk(str2, s2Length, s2Index);
+         s2Index += thatStr.length();
+
+         int result = 0;
+         if (Character.isDigit(thisStr.charAt(0)) && Character.isDigit(thatStr.charAt(0))) {
+            int thisStrLength = thisStr.length();
+            result = thisStrLength - thatStr.length();
+            if (result == 0) {
+               for (int i = 0; i < thisStrLength; i++){
+                  result = thisStr.charAt(i) - thatStr.charAt(i);
+                  if (result != 0) {
+                     return result;
+                  }
+               }
+            }
+         } else {
+            result = thisStr.compareToIgnoreCase(thatStr);
+         }
+
+         if (result != 0) {
+            return result;
+         }
+      }
+      return s1Length - s2Length;
+   }
+
+   private static String randomString(Random random) {
+      int length = random.nextInt(12);
+      StringBuilder sb = new StringBuilder(length);
+      for (int i = 0; i < length; i++) {
+         sb.append(ALPHABET.charAt(random.nextInt(ALPHABET.length())));
+      }
+      return sb.toString();
+   }
+
+   /**
+    * Produce a string that is likely to share a prefix with the given one.
+    */
+   private static String mutate(Random random, String s) {
+      if (s.length() == 0 || random.nextInt(4) == 0) {
+         return randomString(random);
+      }
+      int cut = random.nextInt(s.length());
+      String tail = randomString(random);
+      if (random.nextBoolean()) {
+         return s.substring(0, cut) + tail;
+      }
+      // Change the case of one character
+      char[] chars = s.toCharArray();
+      chars[cut] = Character.isUpperCase(chars[cut]) ?
+            Character.toLowerCase(chars[cut]) : Character.toUpperCase(chars[cut]);
+      return new String(chars);
+   }
+
+   @Test
+   public void alnumCompareMatchesLegacy() {
+      Random random = new Random(42);
+      for (int i = 0; i < ITERATIONS; i++) {
+         String a = randomString(random);
+         String b = mutate(random, a);
+         assertEquals(a + " vs " + b, legacyAlnumCompare(a, b), AfUtil.alnumCompare(a, b));
+      }
+   }
+
+   @Test
+   public void alnumCompareNulls() {
+      assertEquals(0, AfUtil.alnumCompare(null, null));
+      assertEquals(-1, AfUtil.alnumCompare(null, "1"));
+      assertEquals(1, AfUtil.alnumCompare("1", null));
+   }
+
+   @Test
+   public void alnumKeyMatchesLegacy() {
+      Random random = new Random(4242);
+      for (int i = 0; i < ITERATIONS; i++) {
+         String a = randomString(random);
+         String b = mutate(random, a);
+         assertEquals(a + " vs " + b,
+               Integer.signum(legacyAlnumCompare(a, b)),
+               Integer.signum(AfSortKey.alnum(a).compareTo(AfSortKey.alnum(b))));
+      }
+      assertEquals(0, AfSortKey.alnum(null).compareTo(AfSortKey.alnum(null)));
+      assertEquals(-1, AfSortKey.alnum(null).compareTo(AfSortKey.alnum("")));
+      assertEquals(1, AfSortKey.alnum("").compareTo(AfSortKey.alnum(null)));
+   }
+
+   @Test
+   public void caseInsensitiveKeyMatchesCompareToIgnoreCase() {
+      Random random = new Random(424242);
+      for (int i = 0; i < ITERATIONS; i++) {
+         String a = randomString(random);
+         String b = mutate(random, a);
+         assertEquals(a + " vs " + b,
+               Integer.signum(a.compareToIgnoreCase(b)),
+               Integer.signum(AfSortKey.caseInsensitive(a).compareTo(
+                     AfSortKey.caseInsensitive(b))));
+      }
+   }
+
+   /**
+    * Every non-surrogate character must fold consistently with
+    * compareToIgnoreCase(), and folding must never turn a digit into a
+    * non-digit or the reverse.
+    */
+   @Test
+   public void foldMatchesCompareToIgnoreCaseForAllChars() {
+      for (int c = 0; c <= Character.MAX_VALUE; c++) {
+         if (c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE) {
+            continue;
+         }
+         String s = String.valueOf((char) c);
+         String folded = AfSortKey.fold(s);
+         assertEquals(0, s.compareToIgnoreCase(folded));
+         assertEquals(Character.isDigit((char) c), Character.isDigit(folded.charAt(0)));
+      }
+   }
+
+   @Test
+   public void sortedOrderMatchesLegacy() {
+      Random random = new Random(7);
+      List<String> versions = new ArrayList<String>();
+      for (int i = 0; i < 2000; i++) {
+         versions.add(random.nextInt(20) + "." + random.nextInt(20) +
+               (random.nextBoolean() ? "" : " SP" + random.nextInt(3)) +
+               (random.nextBoolean() ? "" : "." + random.nextInt(20000)));
+      }
+
+      List<String> expected = new ArrayList<String>(versions);
+      Collections.sort(expected, new Comparator<String>() {
+         @Override
+         public int compare(String a, String b) {
+            return legacyAlnumCompare(a, b);
+         }
+      });
+
+      List<String> actual = new ArrayList<String>(versions);
+      Collections.sort(actual, AfUtil.ALNUM_ORDER);
+      assertEquals(expected, actual);
+
+      List<AfSortKey> keys = new ArrayList<AfSortKey>();
+      for (String version : versions) {
+         keys.add(AfSortKey.alnum(version));
+      }
+      Collections.sort(keys);
+      for (int i = 0; i < keys.size(); i++) {
+         assertEquals(0, legacyAlnumCompare(expected.get(i), keys.get(i).getSource()));
+      }
+   }
+}
@@ -35,6 +35,8 @@ import org.springframework.orm.hibernate3.HibernateTransactionManager;
 import org.springframework.orm.hibernate3.annotation.AnnotationSessionFactoryBean;
 
 import com.vmware.thinapp.manualmode.server.RuntimeManager;
+import com.vmware.thinapp.manualmode.util.DownloadCache;
+import com.vmware.thinapp.manualmode.util.HostLimiter;
 
 @Configuration
 public class SpringConfig implements ApplicationContextAware {
@@ -44,6 +46,28 @@ public class SpringConfig implements ApplicationContextAware {
    @Value("#{manualModeProperties.runtimesPath}")
    String runtimesPath;
 
+   @Value("#{manualModeProperties['downloadCache.path'] ?: ''}")
+   private String downloadCachePath;
+
+   /** Size the download cache is evicted down to, 20 GB by default */
+   @Value("#{manualModeProperties['downloadCache.maxBytes'] ?: 21474836480L}")
+   private long downloadCacheMaxBytes;
+
+   /** Size of the first segment of a download, 8 MB by default */
+   @Value("#{manualModeProperties['download.segmentSize'] ?: 8388608}")
+   private long downloadSegmentSize;
+
+   @Value("#{manualModeProperties['download.maxSegments'] ?: 4}")
+   private int downloadMaxSegments;
+
+   /** Connections to one download host, 0 for no limit */
+   @Value("#{manualModeProperties['download.maxConnectionsPerHost'] ?: 4}")
+   private int downloadMaxConnectionsPerHost;
+
+   /** Bandwidth used with one download host, 0 for no limit */
+   @Value("#{manualModeProperties['download.maxBytesPerSecondPerHost'] ?: 0}")
+   private long downloadMaxBytesPerSecondPerHost;
+
    @Value("#{databaseProperties['my.datasource.username']}")
    private String dbUsername;
 
@@ -92,4 +116,16 @@ public class SpringConfig implements ApplicationContextAware {
       appCtxt.getAutowireCapableBeanFactory().autowireBean(runtimeManager);
       return runtimeManager;
    }
+
+   @Bean
+   public DownloadCache downloadCache() {
+      File cacheDir = downloadCachePath.isEmpty() ?
+            new File(System.getProperty("java.io.tmpdir"), "thinapp-download-cache") :
+            new File(downloadCachePath);
+      DownloadCache cache = new DownloadCache(cacheDir, downloadCacheMaxBytes);
+      cache.setSegments(downloadSegmentSize, downloadMaxSegments);
+      cache.setHostLimiter(new HostLimiter(
+            downloadMaxConnectionsPerHost, downloadMaxBytesPerSecondPerHost));
+      return cache;
+   }
 }
@@ -17,50 +17,38 @@
 
 package com.vmware.thinapp.manualmode;
 
-import java.io.IOException;
 import java.util.Enumeration;
-import java.util.HashMap;
-import java.util.Map;
 
 import org.apache.log4j.Appender;
 import org.apache.log4j.AppenderSkeleton;
-import org.apache.log4j.FileAppender;
 import org.apache.log4j.Layout;
+import org.apache.log4j.Level;
 import org.apache.log4j.Logger;
+import org.apache.log4j.PatternLayout;
+import org.apache.log4j.spi.Filter;
 import org.apache.log4j.spi.LoggingEvent;
 
+import com.vmware.thinapp.manualmode.util.AsyncLogWriter;
+
 /*
  * A log4j Logger Appender that redirect log messages to per-thread
- * file appenders.
+ * files.
+ *
+ * Messages are formatted on the logging thread and written by
+ * AsyncLogWriter in the background, so threads of different jobs don't
+ * wait on each other or on the disk.  When a job logs faster than its
+ * file can be written, debug and info messages are dropped (and counted
+ * in the file) while warnings and errors wait for room.
  */
 public class ThreadLocalFileAppender extends AppenderSkeleton {
     private static final Logger log = Logger.getLogger(ThreadLocalFileAppender.class);
-    private static ThreadLocal<SharedFileAppender> threadLocal
-                   = new ThreadLocal<SharedFileAppender>();
-
-    private static class SharedFileAppender extends FileAppender {
-       private int refcount;
-       private final String key;
-       SharedFileAppender(Layout layout, String filename)
-                   throws IOException {
-          super(layout, filename);
-          this.refcount = 1;
-          this.key = filename;
-       }
-       public synchronized void addRef() {
-          this.refcount++;
-       }
-       public synchronized int deRef() {
-          return --this.refcount;
-       }
-       public String getKey() {
-          // we don't trust the getFile() of FileAppender
-          return key;
-       }
-    }
+    private static final AsyncLogWriter writer = new AsyncLogWriter();
+    private static ThreadLocal<AsyncLogWriter.JobLog> threadLocal
+                   = new ThreadLocal<AsyncLogWriter.JobLog>();
 
-    private static Map<String, SharedFileAppender> appenderMap
-          = new HashMap<String, SharedFileAppender>();
+    /* PatternLayout isn't thread safe, so each thread formats with its own copy */
+    private final ThreadLocal<PatternLayout> threadLayout
+                   = new ThreadLocal<PatternLayout>();
 
     public ThreadLocalFileAppender() {
        super();
@@ -80,73 +68,116 @@ public class ThreadLocalFileAppender extends AppenderSkeleton {
           return;
        }
 
-       SharedFileAppender appender = null;
-       synchronized (appenderMap) {
-          appender = appenderMap.get(filename);
-          if (appender != null) {
-             appender.addRef();
-             log.debug(String.format("Appender to %s increased refcount.",
-                                     appender.getKey()));
-          }
-          else {
-             Enumeration iter = Logger.getRootLogger().getAllAppenders();
-             Layout layout = null;
-
-             while (iter.hasMoreElements()) {
-                Appender rootAppender = (Appender) iter.nextElement();
-                if (rootAppender instanceof ThreadLocalFileAppender) {
-                   layout = rootAppender.getLayout();
-                   break;
-                }
-             }
+       if (!isConfigured()) {
+          log.error("ThreadLocalFileAppender is not configured");
+          return;
+       }
 
-             if (layout == null) {
-                log.error("ThreadLocalFileAppender is not configured");
-                return;
-             }
+       AsyncLogWriter.JobLog jobLog = writer.open(filename);
+       log.debug(String.format("Appender to %s is opened.", jobLog.getFilename()));
+       threadLocal.set(jobLog);
+    }
 
-             appender = new SharedFileAppender(layout, filename);
-             appenderMap.put(filename, appender);
-             log.debug(String.format("Appender to %s is opened.",
-                                     appender.getKey()));
+    private static boolean isConfigured() {
+       Enumeration iter = Logger.getRootLogger().getAllAppenders();
+       while (iter.hasMoreElements()) {
+          Appender rootAppender = (Appender) iter.nextElement();
+          if (rootAppender instanceof ThreadLocalFileAppender) {
+             return rootAppender.getLayout() != null;
           }
        }
-       threadLocal.set(appender);
+       return false;
+    }
+
+    /*
+     * Get the log file of the current thread, so that threads working
+     * for it can log to the same file.
+     *
+     * @return the full path of the log file, or null if none is set.
+     */
+    public static String get() {
+       AsyncLogWriter.JobLog jobLog = threadLocal.get();
+       return (jobLog == null) ? null : jobLog.getFilename();
     }
 
     /*
-     * Remove and close/dispose the file appender specific to
-     * the current thread.
+     * Remove the file specific to the current thread, and write out and
+     * close it if no other thread uses it.
      */
     public static void remove() {
-       SharedFileAppender appender = threadLocal.get();
-       if (appender == null) {
+       AsyncLogWriter.JobLog jobLog = threadLocal.get();
+       if (jobLog == null) {
           return;
        }
 
        threadLocal.remove();
+       if (jobLog.getDropped() > 0) {
+          log.warn(String.format("Dropped %d messages logging to %s.",
+                                 jobLog.getDropped(), jobLog.getFilename()));
+       }
+       jobLog.release();
+       log.debug(String.format("Appender to %s is released.", jobLog.getFilename()));
+    }
 
-       synchronized (appenderMap) {
-          if (appender.deRef() == 0) {
-             appenderMap.remove(appender.getKey());
-             appender.close();
-             log.debug(String.format("Appender to %s is closed.",
-                                     appender.getKey()));
-          }
-          else {
-             log.debug(String.format("Appender to %s decreased refcount.",
-                                     appender.getKey()));
+    /*
+     * Same as AppenderSkeleton.doAppend(), except that it doesn't lock:
+     * append() only touches the current thread's state.
+     */
+    @Override
+    public void doAppend(LoggingEvent event) {
+       if (closed || !isAsSevereAsThreshold(event.getLevel())) {
+          return;
+       }
+
+       Filter filter = getFirstFilter();
+       FILTERS:
+       while (filter != null) {
+          switch (filter.decide(event)) {
+             case Filter.DENY:
+                return;
+             case Filter.ACCEPT:
+                break FILTERS;
+             default:
+                filter = filter.getNext();
           }
        }
+
+       append(event);
     }
 
     @Override
     public void append(LoggingEvent event) {
-       FileAppender appender = threadLocal.get();
-       if (appender == null) {
+       AsyncLogWriter.JobLog jobLog = threadLocal.get();
+       if (jobLog == null) {
           return;
        }
-       appender.append(event);
+
+       StringBuilder sb = new StringBuilder(format(event));
+       if (layout.ignoresThrowable()) {
+          String[] lines = event.getThrowableStrRep();
+          if (lines != null) {
+             for (String line : lines) {
+                sb.append(line).append(Layout.LINE_SEP);
+             }
+          }
+       }
+       jobLog.append(sb.toString(), event.getLevel().isGreaterOrEqual(Level.WARN));
+    }
+
+    private String format(LoggingEvent event) {
+       Layout current = layout;
+       if (current instanceof PatternLayout) {
+          String pattern = ((PatternLayout) current).getConversionPattern();
+          PatternLayout mine = threadLayout.get();
+          if (mine == null || !pattern.equals(mine.getConversionPattern())) {
+             mine = new PatternLayout(pattern);
+             threadLayout.set(mine);
+          }
+          return mine.format(event);
+       }
+       synchronized (current) {
+          return current.format(event);
+       }
     }
 
     @Override
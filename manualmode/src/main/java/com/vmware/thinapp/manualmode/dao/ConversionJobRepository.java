@@ -17,10 +17,16 @@
 
 package com.vmware.thinapp.manualmode.dao;
 
+import java.util.List;
+import java.util.Map;
+
+import org.hibernate.criterion.Projections;
+import org.hibernate.criterion.Restrictions;
 import org.springframework.stereotype.Repository;
 import org.springframework.transaction.annotation.Transactional;
 
 import com.vmware.thinapp.manualmode.model.ConversionJobModel;
+import com.vmware.thinapp.manualmode.util.PhaseStatistics;
 
 @Repository
 public class ConversionJobRepository extends AbstractDAO<ConversionJobModel> {
@@ -50,4 +56,53 @@ public class ConversionJobRepository extends AbstractDAO<ConversionJobModel> {
    public ConversionJobModel getJobById(Long id) {
       return this.get(id);
    }
+
+   /**
+    * Record how long a job's capture took.
+    *
+    * @param id      the job's ID
+    * @param timings map of phase name to milliseconds
+    * @param trace   timeline of the capture in trace event JSON, may be null
+    * @return false if there is no job with the given ID
+    */
+   @Transactional
+   public boolean recordTimings(Long id, Map<String, Long> timings, String trace) {
+      ConversionJobModel job = this.get(id);
+      if (job == null) {
+         return false;
+      }
+
+      StringBuilder sb = new StringBuilder();
+      for (Map.Entry<String, Long> entry : timings.entrySet()) {
+         if (sb.length() > 0) {
+            sb.append(',');
+         }
+         sb.append(entry.getKey()).append('=').append(entry.getValue());
+      }
+      job.setPhaseTimings(sb.toString());
+      job.setTrace(trace);
+      this.update(job);
+      return true;
+   }
+
+   /**
+    * Gather the phase timings of all jobs that recorded them.
+    *
+    * @return statistics of each phase
+    */
+   @Transactional
+   public Map<String, PhaseStatistics.Summary> getPhaseStatistics() {
+      // Only fetch the timings, traces can be large
+      @SuppressWarnings("unchecked")
+      List<String> timings = getCurrentSession().createCriteria(ConversionJobModel.class)
+            .add(Restrictions.isNotNull("phaseTimings"))
+            .setProjection(Projections.property("phaseTimings"))
+            .list();
+
+      PhaseStatistics stats = new PhaseStatistics();
+      for (String jobTimings : timings) {
+         stats.add(PhaseStatistics.parseTimings(jobTimings));
+      }
+      return stats.summarize();
+   }
 }
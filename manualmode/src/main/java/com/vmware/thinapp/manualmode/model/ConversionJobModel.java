@@ -17,6 +17,7 @@
 
 package com.vmware.thinapp.manualmode.model;
 
+import javax.persistence.Column;
 import javax.persistence.Entity;
 import javax.persistence.GeneratedValue;
 import javax.persistence.Id;
@@ -26,6 +27,8 @@ import com.vmware.thinapp.common.converter.dto.Ticket;
 @Entity
 public class ConversionJobModel {
    private long id;
+   private String phaseTimings;
+   private String trace;
 
    @Id
    @GeneratedValue
@@ -37,6 +40,35 @@ public class ConversionJobModel {
       this.id = id;
    }
 
+   /**
+    * How long each phase of the capture took, as comma separated
+    * name=milliseconds pairs in the order the phases completed.
+    *
+    * @return the phase timings, or null if the capture has not finished
+    */
+   @Column(length = 1024)
+   public String getPhaseTimings() {
+      return phaseTimings;
+   }
+
+   public void setPhaseTimings(String phaseTimings) {
+      this.phaseTimings = phaseTimings;
+   }
+
+   /**
+    * Timeline of the capture in trace event JSON, see CaptureTrace.
+    *
+    * @return the trace, or null if the capture has not finished
+    */
+   @Column(columnDefinition = "text")
+   public String getTrace() {
+      return trace;
+   }
+
+   public void setTrace(String trace) {
+      this.trace = trace;
+   }
+
    public Ticket createTicket() {
       return new Ticket(Long.toString(id));
    }
@@ -25,6 +25,7 @@ import java.util.Map;
 import java.util.concurrent.Future;
 
 import com.google.common.collect.Multimap;
+import com.google.common.util.concurrent.ListenableFuture;
 import com.vmware.thinapp.common.converter.dto.Command;
 import com.vmware.thinapp.common.converter.dto.CommandList;
 import com.vmware.thinapp.common.converter.dto.ConversionPhase;
@@ -113,21 +114,24 @@ public class AutomaticCapturer extends Capturer {
       this.commands = commands;
    }
 
+   @Override
+   protected String getSetOptionExe() {
+      return SET_OPTION_EXE;
+   }
+
    @Override
    protected void preCapture() throws IOException {
       // Provisioning is done, now we're in the pre-capture phase
       status.setCurrentState(State.preCaptureWait);
 
-      // Create the job directory
+      // Create the job directory, unless staging setoption.exe with the
+      // ThinApp runtime already did
       checkCancel();
       log.info("Creating job directory");
       VmRunProgramOutput output = gc.runProgramInGuestWithOutput(
-              String.format("mkdir %s", JOBDIR));
+              String.format("if not exist %s mkdir %s", JOBDIR, JOBDIR));
       output.log(log);
 
-      // Upload setoption.exe
-      uploadSetOption(SET_OPTION_EXE);
-
       // Create copy commands for all input files
       // Copy the downloaded files first, then the datastore files
       List<String> copyCommands = new ArrayList<String>();
@@ -155,11 +159,11 @@ public class AutomaticCapturer extends Capturer {
    }
 
    @Override
-   protected void preCaptureSnapshot() throws IOException {
+   protected ListenableFuture<?> whenPreCaptureDone() {
       // Set the state that we've already done precapture customization so
       // Capturer isn't waiting forever
       status.setCurrentState(State.preCaptureDone);
-      super.preCaptureSnapshot();
+      return super.whenPreCaptureDone();
    }
 
    @Override
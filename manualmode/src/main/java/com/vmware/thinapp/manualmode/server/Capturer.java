@@ -21,11 +21,16 @@ import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Random;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 
 import org.slf4j.Logger;
@@ -36,6 +41,8 @@ import org.springframework.util.StringUtils;
 
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Multimap;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
 import com.vmware.thinapp.common.converter.dto.Command;
 import com.vmware.thinapp.common.converter.dto.CommandList;
 import com.vmware.thinapp.common.converter.dto.PerformanceData;
@@ -45,13 +52,20 @@ import com.vmware.thinapp.common.converter.dto.ThinAppRuntime;
 import com.vmware.thinapp.common.converter.exception.ConverterException;
 import com.vmware.thinapp.common.workpool.dto.Lease;
 import com.vmware.thinapp.manualmode.Config;
+import com.vmware.thinapp.manualmode.ThreadLocalFileAppender;
 import com.vmware.thinapp.manualmode.Util;
+import com.vmware.thinapp.manualmode.util.CaptureTrace;
+import com.vmware.thinapp.manualmode.util.DownloadProgress;
 import com.vmware.thinapp.manualmode.util.DownloadResult;
 import com.vmware.thinapp.manualmode.util.DriveLetterManager.DriveLetter;
+import com.vmware.thinapp.manualmode.util.GuestReadiness;
 import com.vmware.thinapp.manualmode.util.JobMonitorService;
 import com.vmware.thinapp.manualmode.util.JobMonitorService.JobMonitorTicket;
+import com.vmware.thinapp.manualmode.util.PhaseGraph;
+import com.vmware.thinapp.workpool.Backoff;
 import com.vmware.thinapp.workpool.CallWithTemporarySnapshot;
 import com.vmware.thinapp.workpool.GuestCommands;
+import com.vmware.thinapp.workpool.GuestOperations;
 import com.vmware.thinapp.workpool.VirtualMachine;
 import com.vmware.thinapp.workpool.VirtualMachineException;
 import com.vmware.thinapp.workpool.VmRunCommandBuilder;
@@ -88,6 +102,12 @@ public abstract class Capturer implements CallWithTemporarySnapshot {
    // Guest backupeventlogs.vbs script destination.
    private static final String GUEST_BACKUPEVENTLOGS_SCRIPT = "c:\\backupeventlogs.vbs";
 
+   // How long to keep running 'echo test' until the guest accepts commands.
+   private static final long ECHO_TEST_TIMEOUT_MS = 140 * 1000;
+
+   // Retry 'echo test' after half a second, backing off to ten seconds.
+   private static final Backoff ECHO_TEST_BACKOFF = new Backoff(500, 10000, 2, 0.2);
+
    public interface CommandRunner {
       void runCommand(Command command, Status status) throws IOException;
    }
@@ -126,6 +146,17 @@ public abstract class Capturer implements CallWithTemporarySnapshot {
    /** Default environment variable map.  Will be filled once output drive is mounted. */
    private final Map<String, String> defaultEnvVarMap;
 
+   /** Waits for the guest to become ready and records how long it took. */
+   protected final GuestReadiness readiness;
+
+   /** Runtime package from the packager, until it has been staged */
+   private File runtimePackage;
+
+   /** How long each capture phase took, filled in at the end of the capture */
+   private volatile Map<String, Long> phaseTimings = Collections.emptyMap();
+   /** Whether backupeventlogs.vbs was uploaded with the runtime package */
+   private volatile boolean eventlogsScriptStaged;
+
    /**
     * Common constructor for subclasses of Capturer.
     *
@@ -161,6 +192,7 @@ public abstract class Capturer implements CallWithTemporarySnapshot {
       // until after the output share has been mounted.  This will be filled
       // as a first step in the preCapture phase.
       this.defaultEnvVarMap = new HashMap<String, String>();
+      this.readiness = new GuestReadiness(ECHO_TEST_BACKOFF);
    }
 
    /**
@@ -197,11 +229,19 @@ public abstract class Capturer implements CallWithTemporarySnapshot {
    protected abstract void verifyLoggedIn(boolean autologon) throws IOException;
 
    @Override
-   public void call(VirtualMachine vm, Lease lease) throws Exception {
+   public void call(final VirtualMachine vm, Lease lease) throws Exception {
       gc = util.autowire(new GuestCommands(
             vm.getVcConfig(),
             vm.getVmInfo(),
             status.getProjectId()));
+      gc.setListener(new GuestCommands.Listener() {
+         @Override
+         public void executed(List<GuestOperations.Operation> operations, long startMillis,
+                              long durationMillis) {
+            status.getTrace().record(StringUtils.collectionToDelimitedString(operations, "+"),
+                  CaptureTrace.GUEST, startMillis, durationMillis);
+         }
+      });
 
       // We wait to set the lease here since the VM may have needed to go
       // through stages to snapshot to cache state which messes with
@@ -209,28 +249,18 @@ public abstract class Capturer implements CallWithTemporarySnapshot {
       status.setLease(lease);
       status.setCurrentState(State.vmAcquired);
 
+      PhaseGraph phases = createPhases(new VmSteps(vm));
+      phases.setListener(new PhaseGraph.Listener() {
+         @Override
+         public void phaseFinished(String name, long startMillis,
+                                   long durationMillis, Throwable failure) {
+            status.getTrace().record(name, CaptureTrace.PHASE, startMillis, durationMillis);
+         }
+      });
+      ExecutorService phaseExecutor = Executors.newCachedThreadPool();
+
       try {
-         prepareVm(vm);
-         // Monitor VM performance once we have verified tools is running and
-         // the VM has a valid IP
-         monitorVm(vm.getVmInfo().getMoid());
-         verifyLoggedIn(vm.getVmInfo().getAutologon());
-         stageThinApp();
-         // Download files before mounting the input/output file shares
-         // This allows the installer directory to be created before it is
-         // mounted, if necessary.
-         downloadFiles();
-         mountInOut();
-         // Create default environment variable map
-         createDefaultEnvVarMap();
-         preCapture();
-         preCaptureSnapshot();
-         preInstall();
-         installApplication();
-         postInstall();
-         postCaptureSnapshot();
-         preBuild();
-         buildProject();
+         phases.run(withLogFile(ThreadLocalFileAppender.get(), phaseExecutor));
       } catch (Exception e) {
          if (status.isRequestCancelling()) {
             log.debug("Task was interrupted", e);
@@ -239,6 +269,11 @@ public abstract class Capturer implements CallWithTemporarySnapshot {
          status.setLastError(e.getMessage());
          throw e;
       } finally {
+         phaseExecutor.shutdown();
+         releaseRuntimePackage();
+         phaseTimings = phases.getTimings();
+         log.info("Capture phase timings in ms: {}", phaseTimings);
+
          if (log.isDebugEnabled() || log.isTraceEnabled() ||
              status.getStates().contains(State.failure)) {
             downloadGuestEventlogs();
@@ -246,22 +281,30 @@ public abstract class Capturer implements CallWithTemporarySnapshot {
 
          // Carefully unmount inputs
          for (Mounter inputMounter : inputMounters) {
+            CaptureTrace.Span span = status.getTrace().start("unmountInput", CaptureTrace.MOUNT);
             try {
                inputMounter.unmount(gc);
             } catch (Exception e) {
                log.error("Unable to unmount input.  Continuing.", e);
+            } finally {
+               span.end();
             }
          }
 
          // Carefully unmount output
+         CaptureTrace.Span span = status.getTrace().start("unmountOutput", CaptureTrace.MOUNT);
          try {
             outputMounter.unmount(gc);
          } catch (Exception e) {
             log.error("Unable to unmount output.  Continuing.", e);
+         } finally {
+            span.end();
          }
 
          // Stop monitoring the job
          jobMonitor.stopMonitoring(ticket);
+
+         log.info("Guest readiness latencies: {}", readiness.getLatencies());
       }
 
       checkCancel();
@@ -269,7 +312,305 @@ public abstract class Capturer implements CallWithTemporarySnapshot {
       log.info("Tasks inside virtual machine completed.");
    }
 
-   private void prepareVm(VirtualMachine vm) throws IOException {
+   /**
+    * What each capture phase does, so the graph can be built around other
+    * phase bodies in tests.
+    */
+   interface CaptureSteps {
+      void packageRuntime() throws Exception;
+      void prepareVm() throws Exception;
+      void monitorVm() throws Exception;
+      ListenableFuture<?> whenLoggedIn() throws Exception;
+      void verifyLoggedIn() throws Exception;
+      void stageThinApp() throws Exception;
+      void downloadFiles() throws Exception;
+      void mountInOut() throws Exception;
+      void preCapture() throws Exception;
+      ListenableFuture<?> whenPreCaptureDone() throws Exception;
+      void preCaptureSnapshot() throws Exception;
+      void preInstall() throws Exception;
+      void installApplication() throws Exception;
+      ListenableFuture<?> whenInstalled() throws Exception;
+      void postInstall() throws Exception;
+      void postCaptureSnapshot() throws Exception;
+      void preBuild() throws Exception;
+      void buildProject() throws Exception;
+   }
+
+   /**
+    * The capture steps of this capturer for the leased VM.
+    */
+   class VmSteps implements CaptureSteps {
+      private final VirtualMachine vm;
+
+      VmSteps(VirtualMachine vm) {
+         this.vm = vm;
+      }
+
+      @Override
+      public void packageRuntime() throws Exception {
+         acquireRuntimePackage();
+      }
+
+      @Override
+      public void prepareVm() throws Exception {
+         Capturer.this.prepareVm(vm);
+      }
+
+      @Override
+      public void monitorVm() throws Exception {
+         Capturer.this.monitorVm(vm.getVmInfo().getMoid());
+      }
+
+      @Override
+      public ListenableFuture<?> whenLoggedIn() throws Exception {
+         return Capturer.this.whenLoggedIn(vm.getVmInfo().getAutologon());
+      }
+
+      @Override
+      public void verifyLoggedIn() throws Exception {
+         checkCancel();
+         Capturer.this.verifyLoggedIn(vm.getVmInfo().getAutologon());
+      }
+
+      @Override
+      public void stageThinApp() throws Exception {
+         Capturer.this.stageThinApp();
+      }
+
+      @Override
+      public void downloadFiles() throws Exception {
+         Capturer.this.downloadFiles();
+      }
+
+      @Override
+      public void mountInOut() throws Exception {
+         Capturer.this.mountInOut();
+         // Create default environment variable map
+         createDefaultEnvVarMap();
+      }
+
+      @Override
+      public void preCapture() throws Exception {
+         Capturer.this.preCapture();
+      }
+
+      @Override
+      public ListenableFuture<?> whenPreCaptureDone() throws Exception {
+         return Capturer.this.whenPreCaptureDone();
+      }
+
+      @Override
+      public void preCaptureSnapshot() throws Exception {
+         Capturer.this.preCaptureSnapshot();
+      }
+
+      @Override
+      public void preInstall() throws Exception {
+         Capturer.this.preInstall();
+      }
+
+      @Override
+      public void installApplication() throws Exception {
+         Capturer.this.installApplication();
+      }
+
+      @Override
+      public ListenableFuture<?> whenInstalled() throws Exception {
+         return Capturer.this.whenInstalled();
+      }
+
+      @Override
+      public void postInstall() throws Exception {
+         checkCancel();
+         Capturer.this.postInstall();
+      }
+
+      @Override
+      public void postCaptureSnapshot() throws Exception {
+         Capturer.this.postCaptureSnapshot();
+      }
+
+      @Override
+      public void preBuild() throws Exception {
+         Capturer.this.preBuild();
+      }
+
+      @Override
+      public void buildProject() throws Exception {
+         Capturer.this.buildProject();
+      }
+   }
+
+   /**
+    * Build the graph of capture phases.
+    *
+    * Packaging the ThinApp runtime only needs the host, so it runs while the
+    * VM boots and the user logs in, as does monitoring the VM.  Installer
+    * downloads have been running since the request was created.  Everything
+    * that runs programs inside the guest stays in order, since a job's
+    * guest programs are cancelled one at a time.
+    *
+    * Waiting on the user holds no thread; each step after a gate must check
+    * for a cancel, which also opens the gate.
+    *
+    * @param steps what each phase does
+    * @return the phases of a capture
+    */
+   static PhaseGraph createPhases(final CaptureSteps steps) {
+      PhaseGraph phases = new PhaseGraph();
+      phases.add("packageRuntime", new PhaseGraph.Phase() {
+         @Override
+         public void run() throws Exception {
+            steps.packageRuntime();
+         }
+      });
+      phases.add("prepareVm", new PhaseGraph.Phase() {
+         @Override
+         public void run() throws Exception {
+            steps.prepareVm();
+         }
+      });
+      // Monitor VM performance once we have verified tools is running and
+      // the VM has a valid IP
+      phases.add("monitorVm", new PhaseGraph.Phase() {
+         @Override
+         public void run() throws Exception {
+            steps.monitorVm();
+         }
+      }, "prepareVm");
+      phases.addGate("loggedIn", new PhaseGraph.Gate() {
+         @Override
+         public ListenableFuture<?> open() throws Exception {
+            return steps.whenLoggedIn();
+         }
+      }, "prepareVm");
+      phases.add("verifyLoggedIn", new PhaseGraph.Phase() {
+         @Override
+         public void run() throws Exception {
+            steps.verifyLoggedIn();
+         }
+      }, "loggedIn");
+      phases.add("stageThinApp", new PhaseGraph.Phase() {
+         @Override
+         public void run() throws Exception {
+            steps.stageThinApp();
+         }
+      }, "packageRuntime", "verifyLoggedIn");
+      // Download files before mounting the input/output file shares
+      // This allows the installer directory to be created before it is
+      // mounted, if necessary.
+      phases.add("downloadFiles", new PhaseGraph.Phase() {
+         @Override
+         public void run() throws Exception {
+            steps.downloadFiles();
+         }
+      }, "stageThinApp");
+      phases.add("mountInOut", new PhaseGraph.Phase() {
+         @Override
+         public void run() throws Exception {
+            steps.mountInOut();
+         }
+      }, "downloadFiles");
+      phases.add("preCapture", new PhaseGraph.Phase() {
+         @Override
+         public void run() throws Exception {
+            steps.preCapture();
+         }
+      }, "mountInOut", "monitorVm");
+      phases.addGate("preCaptureDone", new PhaseGraph.Gate() {
+         @Override
+         public ListenableFuture<?> open() throws Exception {
+            return steps.whenPreCaptureDone();
+         }
+      }, "preCapture");
+      phases.add("preCaptureSnapshot", new PhaseGraph.Phase() {
+         @Override
+         public void run() throws Exception {
+            steps.preCaptureSnapshot();
+         }
+      }, "preCaptureDone");
+      phases.add("preInstall", new PhaseGraph.Phase() {
+         @Override
+         public void run() throws Exception {
+            steps.preInstall();
+         }
+      }, "preCaptureSnapshot");
+      phases.add("installApplication", new PhaseGraph.Phase() {
+         @Override
+         public void run() throws Exception {
+            steps.installApplication();
+         }
+      }, "preInstall");
+      phases.addGate("installed", new PhaseGraph.Gate() {
+         @Override
+         public ListenableFuture<?> open() throws Exception {
+            return steps.whenInstalled();
+         }
+      }, "installApplication");
+      phases.add("postInstall", new PhaseGraph.Phase() {
+         @Override
+         public void run() throws Exception {
+            steps.postInstall();
+         }
+      }, "installed");
+      phases.add("postCaptureSnapshot", new PhaseGraph.Phase() {
+         @Override
+         public void run() throws Exception {
+            steps.postCaptureSnapshot();
+         }
+      }, "postInstall");
+      phases.add("preBuild", new PhaseGraph.Phase() {
+         @Override
+         public void run() throws Exception {
+            steps.preBuild();
+         }
+      }, "postCaptureSnapshot");
+      phases.add("buildProject", new PhaseGraph.Phase() {
+         @Override
+         public void run() throws Exception {
+            steps.buildProject();
+         }
+      }, "preBuild");
+      return phases;
+   }
+
+   /**
+    * Run the phases with the job's log file, which is kept per thread.
+    */
+   private Executor withLogFile(final String logFile, final Executor executor) {
+      return new Executor() {
+         @Override
+         public void execute(final Runnable command) {
+            executor.execute(new Runnable() {
+               @Override
+               public void run() {
+                  try {
+                     ThreadLocalFileAppender.set(logFile);
+                  } catch (Exception e) {
+                     log.debug("Unable to log capture phase to {}.", logFile, e);
+                  }
+                  try {
+                     command.run();
+                  } finally {
+                     ThreadLocalFileAppender.remove();
+                  }
+               }
+            });
+         }
+      };
+   }
+
+   /**
+    * Return how long each capture phase took, once the capture is over.
+    *
+    * @return a map of phase name to milliseconds, empty before the end
+    */
+   public Map<String, Long> getPhaseTimings() {
+      return phaseTimings;
+   }
+
+   private void prepareVm(final VirtualMachine vm) throws IOException {
       checkCancel();
       status.setCurrentState(State.poweringOnVm);
       log.info("Powering on the virtual machine.");
@@ -278,43 +619,73 @@ public abstract class Capturer implements CallWithTemporarySnapshot {
       checkCancel();
       status.setCurrentState(State.waitingForTools);
       log.info("Waiting for VMware Tools to respond.");
-      vm.waitForTools();
+      readiness.await("tools", new Runnable() {
+         @Override
+         public void run() {
+            vm.waitForTools();
+         }
+      });
       checkCancel();
       log.info("Setting screen to 800x600");
       vm.setScreenResolution(800, 600);
       checkCancel();
       log.info("Waiting for Guest Ip");
-      vm.waitForGuestIp();
+      readiness.await("guestIp", new Runnable() {
+         @Override
+         public void run() {
+            vm.waitForGuestIp();
+         }
+      });
       checkCancel();
       setGuestProxy();
    }
 
+   private void acquireRuntimePackage() throws IOException {
+      File acquired = thinAppRuntimePackager.acquirePackage(thinAppRuntime);
+      synchronized (this) {
+         runtimePackage = acquired;
+      }
+   }
+
+   private synchronized void releaseRuntimePackage() {
+      if (runtimePackage != null) {
+         thinAppRuntimePackager.releasePackage(runtimePackage);
+         runtimePackage = null;
+      }
+   }
+
    /**
     * Stages the requested ThinApp runtime package inside the VM.
     *
     * @throws IOException
     */
    private void stageThinApp() throws IOException {
-      File runtimePackage = thinAppRuntimePackager.createPackage(thinAppRuntime);
-
       try {
          checkCancel();
          status.setCurrentState(State.installingThinApp);
          String guestdir = String.format("c:\\thinapp-%05x", new Integer(new Random().nextInt(0xfffff)));
          String guestfile = String.format("%s\\package.exe", guestdir);
-         log.debug(String.format("Creating guest directory for ThinApp runtime package: %s.", guestdir));
-         gc.createDirectory(guestdir);
-         log.debug(String.format("Uploading ThinApp runtime package %s to %s.", runtimePackage, guestfile));
-         gc.uploadFileToGuest(runtimePackage.getAbsolutePath(), guestfile);
+
+         // Send the guest tools packed together, and the runtime package,
+         // which is compressed already, as is, all in one batch.
+         Map<String, String> tools = new LinkedHashMap<String, String>();
+         if (getSetOptionExe() != null) {
+            tools.put(config.getSetOptionExePath(), getSetOptionExe());
+         }
+         tools.put(config.getBackupEventlogsScriptPath(), GUEST_BACKUPEVENTLOGS_SCRIPT);
+         log.debug(String.format("Uploading ThinApp runtime package %s to %s along with guest tools %s.",
+               runtimePackage, guestfile, tools.values()));
+         gc.uploadPackedToGuest(tools, guestdir,
+               Collections.singletonMap(runtimePackage.getAbsolutePath(), guestfile));
+         eventlogsScriptStaged = true;
+
          log.debug("Extracting ThinApp runtime package.");
          gc.runBatchScriptInGuestWithOutput(
                guestdir,
                Arrays.asList("package.exe"));
          thinappRuntimeDirectory = guestdir;
       } finally {
-         if (!runtimePackage.delete()) {
-            log.error(String.format("Unable to delete ThinApp runtime package: %s.", runtimePackage));
-         }
+         releaseRuntimePackage();
       }
    }
 
@@ -401,37 +772,31 @@ public abstract class Capturer implements CallWithTemporarySnapshot {
        * It may take a while since Tools begins servicing these requests
        * prior to the guest being ready to accept commands.
        */
-      final int TEST_COUNT = 15;
-      final int TEST_INTERVAL_MS = 10000;
-      boolean isLoggedIn = false;
-
       log.debug("Performing echo test to verify that the user is logged in...");
-      for (int i = 1; i < TEST_COUNT && !isLoggedIn; i++) {
-         try {
-            gc.runScriptInGuest("", "echo test");
-            isLoggedIn = true;
-         } catch (VirtualMachineException e) {
-            log.debug("Unable to run command, assuming user is not logged into guest.");
-            // Cool off for a couple seconds.
+      return readiness.poll("login", new GuestReadiness.Probe() {
+         @Override
+         public boolean isReady() throws IOException {
             try {
-               log.debug("Waiting a few seconds to try the command again.");
-               Thread.sleep(TEST_INTERVAL_MS);
-            } catch (InterruptedException ie) {
-               throw new RuntimeException("Got nterruptedException in verifyLoggedIn", ie);
+               gc.runScriptInGuest("", "echo test");
+               return true;
+            } catch (VirtualMachineException e) {
+               log.debug("Unable to run command, assuming user is not logged into guest.");
+               return false;
             }
          }
-      }
-
-      return isLoggedIn;
+      }, ECHO_TEST_TIMEOUT_MS);
    }
 
    private void downloadFiles() {
+      // Did we actually need to download anything?  Report the state while
+      // waiting, so the download progress shows.
+      if (!CollectionUtils.isEmpty(downloadResultFutures)) {
+         status.setCurrentState(State.downloading);
+      }
       downloadResults = waitInstallerDownloadIfRequired();
+      traceDownloads();
 
-      // Did we actually need to download anything?
       if (!CollectionUtils.isEmpty(downloadResults)) {
-         status.setCurrentState(State.downloading);
-
          // Get the results for each download
          for (DownloadResult result : downloadResults) {
             checkCancel();
@@ -451,6 +816,25 @@ public abstract class Capturer implements CallWithTemporarySnapshot {
       }
    }
 
+   /**
+    * Add the completed installer downloads to the capture's timeline.  They
+    * started before the VM was leased, so they are recorded afterwards on a
+    * row of their own.
+    */
+   private void traceDownloads() {
+      DownloadProgress progress = status.getDownloadProgress();
+      if (progress == null) {
+         return;
+      }
+      for (DownloadProgress.Item item : progress.getItems()) {
+         if (item.isDone()) {
+            status.getTrace().record(item.getUrl(), CaptureTrace.DOWNLOAD,
+                  item.getStartMillis(), item.getEndMillis() - item.getStartMillis(),
+                  "downloads");
+         }
+      }
+   }
+
    /**
     * Check if there are any installer downloads that have started and wait
     * until they are done.
@@ -489,36 +873,80 @@ public abstract class Capturer implements CallWithTemporarySnapshot {
       checkCancel();
       status.setCurrentState(State.mountingFileSharesToGuest);
       for (Mounter inputMounter : inputMounters) {
-         inputMounter.mount(gc);
+         CaptureTrace.Span span = status.getTrace().start("mountInput", CaptureTrace.MOUNT);
+         try {
+            inputMounter.mount(gc);
+         } finally {
+            span.end();
+         }
+      }
+      CaptureTrace.Span span = status.getTrace().start("mountOutput", CaptureTrace.MOUNT);
+      try {
+         projectOutput = outputMounter.mount(gc);
+      } finally {
+         span.end();
       }
-      projectOutput = outputMounter.mount(gc);
    }
 
    /**
-    * Uploads the setoption.exe utility to the guest so it is available for use
-    * by recipe commands.
+    * Where the setoption.exe utility should be in the guest so it is
+    * available for use by recipe commands.  It is uploaded together with
+    * the ThinApp runtime package.
     *
-    * @throws IOException
+    * @return the guest path, or null if setoption.exe isn't needed
     */
-   protected void uploadSetOption(String setOptionExe) throws IOException {
-      log.info("Uploading setoption.exe to the guest at path {}...", setOptionExe);
-      gc.uploadFileToGuest(config.getSetOptionExePath(), setOptionExe);
+   protected String getSetOptionExe() {
+      return null;
    }
 
-   protected void preCaptureSnapshot() throws IOException {
+   /**
+    * Wait for the user to log into the guest, if needed.
+    *
+    * @param autologon whether the guest logs in by itself
+    * @return a future that completes once the user is logged in
+    */
+   protected ListenableFuture<?> whenLoggedIn(boolean autologon) {
+      return Futures.immediateFuture(null);
+   }
+
+   /**
+    * Wait for the precapture customization of the guest to be done.
+    *
+    * @return a future that completes once the snapshot can be taken
+    */
+   protected ListenableFuture<?> whenPreCaptureDone() {
       checkCancel();
       status.setCurrentState(State.preCaptureWait);
-      status.waitUntil(State.preCaptureDone);
+      return status.whenReached(State.preCaptureDone);
+   }
+
+   /**
+    * Wait for the application to be installed, once installApplication()
+    * has returned.
+    *
+    * @return a future that completes once the installation is done
+    */
+   protected ListenableFuture<?> whenInstalled() {
+      return Futures.immediateFuture(null);
+   }
 
+   protected void preCaptureSnapshot() throws IOException {
+      checkCancel();
       deleteTempOutputFiles();
 
       checkCancel();
       status.setCurrentState(State.takingPreCaptureSnapshot);
       log.info("Taking precapture snapshot.");
-      VmRunProgramOutput output = gc.runProgramInGuestWithOutput(
-            getSnapshotExe(),
-            PRECAPTURE_SNAPSHOT);
-      output.log(log);
+      CaptureTrace.Span span = status.getTrace().start(
+            "precaptureSnapshot", CaptureTrace.SNAPSHOT);
+      try {
+         VmRunProgramOutput output = gc.runProgramInGuestWithOutput(
+               getSnapshotExe(),
+               PRECAPTURE_SNAPSHOT);
+         output.log(log);
+      } finally {
+         span.end();
+      }
    }
 
    private void postCaptureSnapshot() throws IOException {
@@ -527,10 +955,17 @@ public abstract class Capturer implements CallWithTemporarySnapshot {
       checkCancel();
       log.info("Taking postcapture snapshot");
       status.setCurrentState(State.takingPostCaptureSnapshot);
-      VmRunProgramOutput output = gc.runProgramInGuestWithOutput(
-              getSnapshotExe(),
-              POSTCAPTURE_SNAPSHOT);
-      output.log(log);
+      CaptureTrace.Span span = status.getTrace().start(
+            "postcaptureSnapshot", CaptureTrace.SNAPSHOT);
+      VmRunProgramOutput output;
+      try {
+         output = gc.runProgramInGuestWithOutput(
+                 getSnapshotExe(),
+                 POSTCAPTURE_SNAPSHOT);
+         output.log(log);
+      } finally {
+         span.end();
+      }
 
       checkCancel();
       log.info("Generating default project template.");
@@ -586,9 +1021,10 @@ public abstract class Capturer implements CallWithTemporarySnapshot {
       log.debug("Deleting temporary command output files...");
       try {
          gc.runScriptInGuest("",
-               String.format("del %s %s",
+               String.format("del %s %s %s",
                      VmRunCommandBuilder.STDOUT_FILE,
-                     VmRunCommandBuilder.STDERR_FILE));
+                     VmRunCommandBuilder.STDERR_FILE,
+                     VmRunCommandBuilder.OUTPUT_FILE));
       } catch (IOException ex) {
          // Ignore: Deleting temp files failed, but we don't care
       } catch (VirtualMachineException ex) {
@@ -604,10 +1040,12 @@ public abstract class Capturer implements CallWithTemporarySnapshot {
 
    private void downloadGuestEventlogs() {
       try {
-         log.debug("Uploading backupeventlogs.vbs to the guest...");
-         gc.uploadFileToGuest(config.getBackupEventlogsScriptPath(),
-                              GUEST_BACKUPEVENTLOGS_SCRIPT);
-         log.debug("Uploaded backupeventlogs.vbs to the guest...");
+         if (!eventlogsScriptStaged) {
+            log.debug("Uploading backupeventlogs.vbs to the guest...");
+            gc.uploadFileToGuest(config.getBackupEventlogsScriptPath(),
+                                 GUEST_BACKUPEVENTLOGS_SCRIPT);
+            log.debug("Uploaded backupeventlogs.vbs to the guest...");
+         }
          log.debug("Running backupeventlogs.vbs in the guest...");
          gc.runScriptInGuest("",
              String.format("cscript \"%s\" \"%s\"",
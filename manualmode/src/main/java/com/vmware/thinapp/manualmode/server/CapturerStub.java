@@ -24,6 +24,7 @@ import java.util.concurrent.Future;
 
 import com.google.common.collect.HashMultimap;
 import com.google.common.collect.Multimap;
+import com.google.common.util.concurrent.ListenableFuture;
 import com.vmware.thinapp.common.converter.dto.ProjectFile;
 import com.vmware.thinapp.common.converter.dto.Status.State;
 import com.vmware.thinapp.common.converter.dto.ThinAppRuntime;
@@ -47,12 +48,12 @@ public class CapturerStub extends Capturer {
    protected void installApplication()
          throws IOException {
       log.info("Performing capture.");
-
-      status.setCurrentState(State.preCaptureWait);
-      status.waitUntil(State.preCaptureDone);
-      status.setCurrentState(State.takingPreCaptureSnapshot);
       status.setCurrentState(State.installationWait);
-      status.waitUntil(State.installationDone);
+   }
+
+   @Override
+   protected ListenableFuture<?> whenInstalled() {
+      return status.whenReached(State.installationDone);
    }
 
    @Override
@@ -24,6 +24,7 @@ import java.util.Map;
 import java.util.concurrent.Future;
 
 import com.google.common.collect.Multimap;
+import com.google.common.util.concurrent.ListenableFuture;
 import com.vmware.thinapp.common.converter.dto.Command;
 import com.vmware.thinapp.common.converter.dto.CommandList;
 import com.vmware.thinapp.common.converter.dto.ConversionPhase;
@@ -73,10 +74,14 @@ public class ManualCapturer extends Capturer {
       this.commands = commands;
    }
 
+   @Override
+   protected String getSetOptionExe() {
+      return SET_OPTION_EXE;
+   }
+
    @Override
    protected void preCapture() throws IOException {
-      // Upload setoption.exe
-      uploadSetOption(SET_OPTION_EXE);
+      // Nothing to do, setoption.exe was staged with the ThinApp runtime
    }
 
    @Override
@@ -86,18 +91,19 @@ public class ManualCapturer extends Capturer {
 
    /**
     * Waits for the state to change into needsLoginDone.
-    *
-    * @param vm
-    * @throws IOException
     */
    @Override
-   protected void verifyLoggedIn(boolean autologon) throws IOException {
+   protected ListenableFuture<?> whenLoggedIn(boolean autologon) {
       // Wait for the user to say "I've logged in."
-      if (!autologon) {
-         status.setCurrentState(State.needsLoginWait);
-         status.waitUntil(State.needsLoginDone);
+      if (autologon) {
+         return super.whenLoggedIn(autologon);
       }
+      status.setCurrentState(State.needsLoginWait);
+      return status.whenReached(State.needsLoginDone);
+   }
 
+   @Override
+   protected void verifyLoggedIn(boolean autologon) throws IOException {
       // We must still wait for the login state to accept interactive commands.
       if (!performEchoTest()) {
          throw new RuntimeException("Guest login for manual capture did not become interactive");
@@ -114,15 +120,14 @@ public class ManualCapturer extends Capturer {
               "explorer", INPUT_MOUNT_DRIVE_FIRST.driveString());
       output.log(log);
 
-      // XXX: This will hold onto a thread for each client which is
-      // unfortunate.
       checkCancel();
       log.info("Doing installation");
       status.setCurrentState(State.installationWait);
-      status.waitUntil(State.installationDone);
+   }
 
-      // Must do after waitUntil since request may have been canceled.
-      checkCancel();
+   @Override
+   protected ListenableFuture<?> whenInstalled() {
+      return status.whenReached(State.installationDone);
    }
 
    @Override
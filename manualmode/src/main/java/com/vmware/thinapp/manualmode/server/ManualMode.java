@@ -72,6 +72,7 @@ public class ManualMode {
    public Ticket create(TicketRequest req, ConversionJobModel job) {
       Ticket ticket = job.createTicket();
       Request request = requestFactory.create(req);
+      request.setJobId(job.getId());
       requests.put(ticket, request);
 
       // Start processing the request asynchronously.
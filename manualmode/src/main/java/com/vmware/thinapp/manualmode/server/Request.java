@@ -34,6 +34,7 @@ import com.vmware.thinapp.common.converter.dto.Project;
 import com.vmware.thinapp.common.converter.dto.Status.State;
 import com.vmware.thinapp.common.workpool.dto.Lease;
 import com.vmware.thinapp.manualmode.ThreadLocalFileAppender;
+import com.vmware.thinapp.manualmode.dao.ConversionJobRepository;
 import com.vmware.thinapp.manualmode.util.DownloadResult;
 import com.vmware.thinapp.workpool.ProcessMonitorService;
 import com.vmware.thinapp.workpool.Workpool;
@@ -55,6 +56,9 @@ public class Request {
    @Autowired
    private Workpool workpool;
 
+   @Autowired(required = false)
+   private ConversionJobRepository jobRepository;
+
    /*
     * There are two phases to each request: an acquire phase where we obtain a
     * lease for a VM and a running phase where the leased VM is prepared and the
@@ -67,6 +71,7 @@ public class Request {
    private final Status status;
    private final Project project;
    private final String logFile;
+   private Long jobId;
 
    private class RequestRunner implements Callable<Void> {
       @Override
@@ -122,6 +127,8 @@ public class Request {
                log.info("Request failed.");
             }
 
+            recordTimings();
+
             ThreadLocalFileAppender.remove();
 
             // Carefully remove any and all temporary download directories: fixes PR 848083
@@ -132,6 +139,20 @@ public class Request {
          return null;
       }
 
+      private void recordTimings() {
+         if (jobRepository == null || jobId == null) {
+            return;
+         }
+         try {
+            String trace = status.getTrace().toJson();
+            if (!jobRepository.recordTimings(jobId, capturer.getPhaseTimings(), trace)) {
+               log.debug("Conversion job {} not found, not recording timings.", jobId);
+            }
+         } catch (Exception e) {
+            log.error("Unable to record capture timings.", e);
+         }
+      }
+
       private void cleanupDownloadDir() {
          log.debug("Cleaning up downloaded files...");
          try {
@@ -182,6 +203,16 @@ public class Request {
       this.logFile = logFile;
    }
 
+   /**
+    * Set the conversion job this request runs for, so that its capture
+    * phase timings can be recorded with it.
+    *
+    * @param jobId the job's ID
+    */
+   public void setJobId(Long jobId) {
+      this.jobId = jobId;
+   }
+
    public void start() {
       runningPhase = executor.submit(new RequestRunner());
    }
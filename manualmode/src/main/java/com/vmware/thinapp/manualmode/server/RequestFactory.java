@@ -52,6 +52,7 @@ import com.vmware.thinapp.common.workpool.dto.Workpool;
 import com.vmware.thinapp.manualmode.Config;
 import com.vmware.thinapp.manualmode.ThreadLocalProperties;
 import com.vmware.thinapp.manualmode.Util;
+import com.vmware.thinapp.manualmode.util.DownloadProgress;
 import com.vmware.thinapp.manualmode.util.DownloadResult;
 import com.vmware.thinapp.manualmode.util.DriveLetterManager;
 import com.vmware.thinapp.manualmode.util.DriveLetterManager.DriveLetter;
@@ -117,6 +118,7 @@ public class RequestFactory {
 
       List<Future<DownloadResult>> downloadResultFutures =
          new ArrayList<Future<DownloadResult>>();
+      DownloadProgress downloadProgress = new DownloadProgress();
 
       // Rage against teh nullz
       Option<DriveLetter> downloadDriveLetter = Option.empty();
@@ -142,7 +144,7 @@ public class RequestFactory {
                downloadDriveLetter = Option.apply(processDownloadFile(
                      inputFile, downloadDriveLetter, driveLetterManager,
                      outputDS, projectDir, inputMounters,
-                     downloadResultFutures));
+                     downloadResultFutures, downloadProgress));
                break;
             case datastore:
                processDatastoreFile(inputFile, inputUri, driveLetterManager,
@@ -155,10 +157,14 @@ public class RequestFactory {
          }
       }
 
-      return createRequest(inputMounters, outputMounter, project,
+      Request request = createRequest(inputMounters, outputMounter, project,
             downloadResultFutures, downloadDriveLetter, driveLetterToFiles,
             ticketRequest.getAutomaticCapture(), ticketRequest.getCommands(),
             ticketRequest.getWorkpool(), projectOutputPath, thinAppRuntime);
+      if (!downloadResultFutures.isEmpty()) {
+         request.getStatus().setDownloadProgress(downloadProgress);
+      }
+      return request;
    }
 
    private ThinAppRuntime getThinAppRuntime(final Long runtimeId) {
@@ -184,7 +190,8 @@ public class RequestFactory {
          Option<DriveLetter> downloadDriveLetter,
          DriveLetterManager<String> driveLetterManager, Datastore outputDS,
          String projectDir, List<Mounter> inputMounters,
-         List<Future<DownloadResult>> downloadResultFutures) {
+         List<Future<DownloadResult>> downloadResultFutures,
+         DownloadProgress downloadProgress) {
       DriveLetter reservedDriveLetter;
 
       /** /installers/project-x */
@@ -231,7 +238,8 @@ public class RequestFactory {
       log.info("Start downloading from {} and save into {}", downloadFile,
             downloadPath);
       downloadResultFutures.add(httpDownloaderService.asyncDownload(
-            downloadFile.getUrl(), downloadPath, downloadFile.getFilename()));
+            downloadFile.getUrl(), downloadPath, downloadFile.getFilename(),
+            downloadProgress));
       return reservedDriveLetter;
    }
 
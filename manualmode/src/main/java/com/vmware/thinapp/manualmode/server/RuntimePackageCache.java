@@ -0,0 +1,294 @@
+/* ***********************************************************************
+ * VMware ThinApp Factory
+ * Copyright (c) 2009-2013 VMware, Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ***********************************************************************/
+
+package com.vmware.thinapp.manualmode.server;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Closeables;
+import com.google.common.io.Files;
+import com.google.common.io.InputSupplier;
+
+/**
+ * Self-extracting ThinApp runtime packages, built once per runtime and kept
+ * in a cache directory so that captures share them.
+ *
+ * A package is named after its runtime and a fingerprint of the runtime
+ * directory, taken from the path, size and modification time of every file
+ * in it.  When a runtime changes its fingerprint does too, so the package is
+ * rebuilt; the old package is deleted once no capture is using it.
+ *
+ * Callers get a package with {@link #acquire} and must {@link #release} it
+ * when they are done, and must not modify or delete it.
+ */
+public class RuntimePackageCache {
+   private static final Logger log = LoggerFactory.getLogger(RuntimePackageCache.class);
+
+   private static final String PACKAGE_SUFFIX = ".exe";
+   private static final String TEMP_SUFFIX = ".tmp";
+
+   private final File cacheDir;
+   private final InputSupplier<? extends InputStream> sfxStub;
+
+   /** Serializes building the packages of each runtime */
+   private final ConcurrentMap<String, Object> buildLocks =
+           new ConcurrentHashMap<String, Object>();
+
+   /** Number of captures using each package; guarded by this */
+   private final Map<File, Integer> inUse = new HashMap<File, Integer>();
+   /** Replaced packages still in use; guarded by this */
+   private final Set<File> stale = new HashSet<File>();
+   /** Number of packages built; guarded by this */
+   private int builds;
+
+   /**
+    * @param cacheDir directory to keep packages in
+    * @param sfxStub the zip self-extract bootstrapper
+    */
+   public RuntimePackageCache(File cacheDir, InputSupplier<? extends InputStream> sfxStub) {
+      this.cacheDir = cacheDir;
+      this.sfxStub = sfxStub;
+
+      // Packages that were being built when the process went away.
+      File[] files = cacheDir.listFiles();
+      if (files != null) {
+         for (File file : files) {
+            if (file.getName().endsWith(TEMP_SUFFIX)) {
+               file.delete();
+            }
+         }
+      }
+   }
+
+   /**
+    * Get the package of a runtime, building it if the runtime has no
+    * package yet or has changed since it was built.
+    *
+    * @param name name of the runtime, unique among runtimes
+    * @param runtimeDir directory holding the runtime
+    * @return the package, which stays in place until released
+    * @throws IOException if the package could not be built
+    */
+   public File acquire(String name, File runtimeDir) throws IOException {
+      Object lock = buildLocks.get(name);
+      if (lock == null) {
+         buildLocks.putIfAbsent(name, new Object());
+         lock = buildLocks.get(name);
+      }
+
+      synchronized (lock) {
+         File packageFile = new File(cacheDir,
+                 String.format("%s-%s%s", name, fingerprint(runtimeDir), PACKAGE_SUFFIX));
+         if (!packageFile.isFile()) {
+            build(runtimeDir, packageFile);
+            removeOthers(name, packageFile);
+         }
+         synchronized (this) {
+            Integer count = inUse.get(packageFile);
+            inUse.put(packageFile, (count == null) ? 1 : count + 1);
+         }
+         return packageFile;
+      }
+   }
+
+   /**
+    * Release a package returned by {@link #acquire}.
+    *
+    * @param packageFile the package
+    */
+   public synchronized void release(File packageFile) {
+      Integer count = inUse.get(packageFile);
+      if (count == null) {
+         log.warn("Released runtime package {} that was not acquired.", packageFile);
+         return;
+      }
+      if (count > 1) {
+         inUse.put(packageFile, count - 1);
+         return;
+      }
+      inUse.remove(packageFile);
+      if (stale.remove(packageFile)) {
+         delete(packageFile);
+      }
+   }
+
+   /**
+    * @return the number of packages built so far
+    */
+   public synchronized int getBuilds() {
+      return builds;
+   }
+
+   /**
+    * Fingerprint of the contents of a runtime directory.  Symbolic links
+    * are followed, as they are when packaging.
+    *
+    * @param runtimeDir directory holding the runtime
+    * @return hex digest of the path, size and modification time of each file
+    */
+   static String fingerprint(File runtimeDir) throws IOException {
+      if (!runtimeDir.isDirectory()) {
+         throw new IOException("ThinApp runtime directory does not exist: " + runtimeDir);
+      }
+      MessageDigest digest;
+      try {
+         digest = MessageDigest.getInstance("SHA-1");
+      } catch (NoSuchAlgorithmException e) {
+         throw new IllegalStateException(e);
+      }
+      fingerprint(digest, runtimeDir, "");
+
+      StringBuilder sb = new StringBuilder();
+      for (byte b : digest.digest()) {
+         sb.append(String.format("%02x", b & 0xff));
+      }
+      return sb.toString();
+   }
+
+   private static void fingerprint(MessageDigest digest, File dir, String prefix) {
+      for (File file : sortedFiles(dir)) {
+         String path = prefix + file.getName();
+         if (file.isDirectory()) {
+            digest.update((path + "/\n").getBytes(Charsets.UTF_8));
+            fingerprint(digest, file, path + "/");
+         } else {
+            digest.update(String.format("%s\t%d\t%d\n", path, file.length(), file.lastModified())
+                    .getBytes(Charsets.UTF_8));
+         }
+      }
+   }
+
+   private static File[] sortedFiles(File dir) {
+      File[] files = dir.listFiles();
+      if (files == null) {
+         return new File[0];
+      }
+      Arrays.sort(files);
+      return files;
+   }
+
+   /**
+    * Write the self-extract stub followed by a zip of the runtime directory,
+    * like joining the stub with the output of "zip -r".
+    */
+   private void build(File runtimeDir, File packageFile) throws IOException {
+      log.info("Building ThinApp runtime package {} from {}.", packageFile, runtimeDir);
+      if (!cacheDir.isDirectory() && !cacheDir.mkdirs()) {
+         throw new IOException("Unable to create runtime package cache: " + cacheDir);
+      }
+
+      File tempFile = File.createTempFile(packageFile.getName(), TEMP_SUFFIX, cacheDir);
+      boolean done = false;
+      try {
+         OutputStream out = new FileOutputStream(tempFile);
+         boolean written = false;
+         try {
+            ByteStreams.copy(sfxStub, out);
+            ZipOutputStream zip = new ZipOutputStream(out);
+            addDirectory(zip, runtimeDir, "");
+            zip.finish();
+            written = true;
+         } finally {
+            Closeables.close(out, !written);
+         }
+
+         if (!tempFile.renameTo(packageFile)) {
+            throw new IOException("Unable to rename " + tempFile + " to " + packageFile);
+         }
+         done = true;
+      } finally {
+         if (!done) {
+            tempFile.delete();
+         }
+      }
+
+      synchronized (this) {
+         builds++;
+      }
+   }
+
+   private static void addDirectory(ZipOutputStream zip, File dir, String prefix)
+           throws IOException {
+      for (File file : sortedFiles(dir)) {
+         String path = prefix + file.getName();
+         if (file.isDirectory()) {
+            ZipEntry entry = new ZipEntry(path + "/");
+            entry.setTime(file.lastModified());
+            zip.putNextEntry(entry);
+            zip.closeEntry();
+            addDirectory(zip, file, path + "/");
+         } else {
+            ZipEntry entry = new ZipEntry(path);
+            entry.setTime(file.lastModified());
+            zip.putNextEntry(entry);
+            Files.copy(file, zip);
+            zip.closeEntry();
+         }
+      }
+   }
+
+   /**
+    * Remove the other packages of a runtime, now or when they are released.
+    */
+   private synchronized void removeOthers(String name, File current) {
+      File[] files = cacheDir.listFiles();
+      if (files == null) {
+         return;
+      }
+      String prefix = name + "-";
+      for (File file : files) {
+         String fileName = file.getName();
+         if (file.equals(current) || !fileName.startsWith(prefix) ||
+             !fileName.endsWith(PACKAGE_SUFFIX) ||
+             fileName.substring(prefix.length()).indexOf('-') >= 0) {
+            continue;
+         }
+         if (inUse.containsKey(file)) {
+            stale.add(file);
+         } else {
+            delete(file);
+         }
+      }
+   }
+
+   private static void delete(File file) {
+      log.info("Deleting ThinApp runtime package {}.", file);
+      if (!file.delete()) {
+         log.error("Unable to delete ThinApp runtime package {}.", file);
+      }
+   }
+}
@@ -22,31 +22,59 @@ import java.util.Collections;
 import java.util.Date;
 import java.util.Map;
 import java.util.SortedSet;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicReference;
 
 import org.apache.commons.lang.builder.ToStringBuilder;
 
 import com.google.common.collect.ImmutableSortedSet;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
 import com.vmware.thinapp.common.converter.dto.Command;
 import com.vmware.thinapp.common.converter.dto.PerformanceData;
 import com.vmware.thinapp.common.converter.dto.Status.State;
 import com.vmware.thinapp.common.workpool.dto.Lease;
+import com.vmware.thinapp.manualmode.util.CaptureTrace;
+import com.vmware.thinapp.manualmode.util.DownloadProgress;
 import com.vmware.thinapp.manualmode.util.PerformanceDataListener;
 
 /**
  * Internal representation of a conversion job's status including phase and
  * performance data.
+ *
+ * None of the getters lock, so status polling never contends with the
+ * capture or with performance updates.  Callers that need to act on a state
+ * change register for it with whenReached() instead of polling.
  */
 public class Status implements PerformanceDataListener {
    private final SortedSet<State> states =
       new ConcurrentSkipListSet<State>();
    private final SortedSet<State> endingStates;
-   private Lease lease;
-   private Long projectId;
-   private Integer refreshRate;
-   private PerformanceData perfData;
-   private Command lastCommand;
-   private String lastError = "";
+   /** Furthest state reached, i.e. the last element of states */
+   private final AtomicReference<State> currentState =
+      new AtomicReference<State>();
+   /** Futures handed out by whenReached() that have not completed yet */
+   private final ConcurrentLinkedQueue<StateWaiter> waiters =
+      new ConcurrentLinkedQueue<StateWaiter>();
+   private volatile Lease lease;
+   private volatile Long projectId;
+   private volatile Integer refreshRate;
+   private volatile PerformanceData perfData;
+   private volatile Command lastCommand;
+   private volatile String lastError = "";
+   private volatile DownloadProgress downloadProgress;
+   /** Timeline of the capture, including when each state was reached */
+   private final CaptureTrace trace = new CaptureTrace();
+
+   private static class StateWaiter {
+      private final State target;
+      private final SettableFuture<State> future = SettableFuture.create();
+
+      private StateWaiter(State target) {
+         this.target = target;
+      }
+   }
 
    public Status() {
       // Build an immutable set of ending states
@@ -103,6 +131,25 @@ public class Status implements PerformanceDataListener {
       return lastError;
    }
 
+   public void setDownloadProgress(DownloadProgress downloadProgress) {
+      this.downloadProgress = downloadProgress;
+   }
+
+   /**
+    * @return progress of the installer downloads, or null if the request
+    * doesn't download anything
+    */
+   public DownloadProgress getDownloadProgress() {
+      return downloadProgress;
+   }
+
+   /**
+    * @return timeline of the capture so far
+    */
+   public CaptureTrace getTrace() {
+      return trace;
+   }
+
    public boolean isRequestCancelling() {
       return getStates().contains(State.cancelling);
    }
@@ -116,7 +163,7 @@ public class Status implements PerformanceDataListener {
    }
 
    public State getCurrentState() {
-      return getStates().last();
+      return currentState.get();
    }
 
    @Override
@@ -129,34 +176,67 @@ public class Status implements PerformanceDataListener {
    }
 
    /**
-    * Waits until the request is in the given state <i>or</i> the request is
-    * canceled. The caller should check the cancel state before continuing after
-    * waitUntil returns.
+    * Get a future that completes once the request has reached the given
+    * state <i>or</i> is being canceled.  The future's value is the current
+    * state at that point, so listeners should check for cancellation before
+    * continuing.
     *
-    * @param someState
+    * No thread is held while the future is pending; listeners run on the
+    * thread that moves the request into the state, or immediately if it is
+    * already there.
+    *
+    * @param someState state to wait for
+    * @return a future of the state the request was in when it completed
     */
-   public synchronized void waitUntil(State someState) {
+   public ListenableFuture<State> whenReached(State someState) {
+      StateWaiter waiter = new StateWaiter(someState);
+      waiters.add(waiter);
+      // The state may have changed before the waiter was queued
+      notifyWaiters();
+      return waiter.future;
+   }
+
+   /**
+    * Set the current state of the conversion job.
+    *
+    * @param state the state to set
+    */
+   public void setCurrentState(State state) {
+      if (states.add(state)) {
+         trace.instant(state.name(), CaptureTrace.STATE, System.currentTimeMillis());
+      }
       while (true) {
-         if (getCurrentState().compareTo(someState) >= 0 || isRequestCancelling()) {
-            return;
+         State current = currentState.get();
+         if (current != null && current.compareTo(state) >= 0) {
+            break;
          }
-
-         try {
-            wait(1000);
-         } catch (InterruptedException ignored) {
-            /* Ignore */
+         if (currentState.compareAndSet(current, state)) {
+            break;
          }
       }
+      notifyWaiters();
    }
 
    /**
-    * Set the current state of the conversion job.
-    *
-    * @param state the state to set
+    * Complete the futures of all waiters whose state has been reached.
     */
-   public synchronized void setCurrentState(State state) {
-      states.add(state);
-      notifyAll();
+   private void notifyWaiters() {
+      if (waiters.isEmpty()) {
+         return;
+      }
+      State current = getCurrentState();
+      boolean cancelling = isRequestCancelling();
+      for (StateWaiter waiter : waiters) {
+         if (waiter.future.isCancelled()) {
+            // Nobody is waiting any more
+            waiters.remove(waiter);
+         } else if (cancelling || current.compareTo(waiter.target) >= 0) {
+            // Only the thread that removes the waiter completes it
+            if (waiters.remove(waiter)) {
+               waiter.future.set(current);
+            }
+         }
+      }
    }
 
    public void setProjectId(Long projectId) {
@@ -205,6 +285,11 @@ public class Status implements PerformanceDataListener {
             break;
 
          case downloading:
+            // Move from 35 to 40 as the bytes arrive.
+            percent = (downloadProgress == null) ?
+               40 : 35 + downloadProgress.getPercent() / 20;
+            break;
+
          case mountingFileSharesToGuest:
             percent = 40;
             break;
@@ -0,0 +1,309 @@
+/* ***********************************************************************
+ * VMware ThinApp Factory
+ * Copyright (c) 2009-2013 VMware, Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ***********************************************************************/
+
+package com.vmware.thinapp.manualmode.util;
+
+import java.io.BufferedWriter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Closeables;
+
+/**
+ * Writes per-job log files from a background thread, so that threads
+ * logging for a job never wait on each other or on the disk.
+ *
+ * Each open file has a bounded queue of formatted messages.  A single
+ * writer thread drains whichever files have messages, writing each batch
+ * through a buffer and flushing once per batch rather than once per
+ * message.  When a job logs faster than its file can be written and the
+ * queue fills up, ordinary messages are dropped and counted, and the count
+ * is written to the file once there is room again.  Important messages,
+ * i.e. warnings and errors, instead wait up to importantWaitMillis for
+ * room before they are dropped.
+ *
+ * Files are reference counted: every open() must be matched by a
+ * release(), and the last release() writes out what is queued and closes
+ * the file.
+ */
+public class AsyncLogWriter {
+   private static final Logger log = LoggerFactory.getLogger(AsyncLogWriter.class);
+
+   public static final int DEFAULT_QUEUE_CAPACITY = 8192;
+   public static final int DEFAULT_BATCH_SIZE = 512;
+   public static final long DEFAULT_IMPORTANT_WAIT_MILLIS = 1000;
+
+   /** How long the last release() waits for the file to be written out */
+   private static final long CLOSE_WAIT_MILLIS = 5000;
+
+   private final int queueCapacity;
+   private final int batchSize;
+   private final long importantWaitMillis;
+
+   private final ConcurrentMap<String, JobLog> logs = new ConcurrentHashMap<String, JobLog>();
+   /** Files that have something to write, or need to be closed */
+   private final BlockingQueue<JobLog> ready = new LinkedBlockingQueue<JobLog>();
+   private final AtomicBoolean started = new AtomicBoolean();
+
+   /**
+    * One open log file.
+    */
+   public class JobLog {
+      private final String filename;
+      private final Writer out;
+      private final BlockingQueue<String> queue;
+      /** Number of open() calls not yet released, 0 once closing */
+      private final AtomicInteger refs = new AtomicInteger(1);
+      /** Whether the file is in the ready queue */
+      private final AtomicBoolean scheduled = new AtomicBoolean();
+      private final AtomicLong dropped = new AtomicLong();
+      private final AtomicLong totalDropped = new AtomicLong();
+      private final CountDownLatch closed = new CountDownLatch(1);
+
+      private JobLog(String filename) throws IOException {
+         this.filename = filename;
+         this.out = new BufferedWriter(new OutputStreamWriter(
+               new FileOutputStream(filename, true), Charsets.UTF_8));
+         this.queue = new ArrayBlockingQueue<String>(queueCapacity);
+      }
+
+      public String getFilename() {
+         return filename;
+      }
+
+      /**
+       * @return how many messages have been dropped so far
+       */
+      public long getDropped() {
+         return totalDropped.get();
+      }
+
+      /**
+       * Queue a formatted message for writing.
+       *
+       * @param message   the message, including its line separator
+       * @param important whether to wait for room rather than drop it
+       * @return false if the message was dropped
+       */
+      public boolean append(String message, boolean important) {
+         if (refs.get() == 0) {
+            return false;
+         }
+
+         boolean queued = queue.offer(message);
+         if (!queued && important) {
+            // Let the writer catch up
+            schedule();
+            try {
+               queued = queue.offer(message, importantWaitMillis, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+               Thread.currentThread().interrupt();
+            }
+         }
+
+         if (queued) {
+            schedule();
+         } else {
+            dropped.incrementAndGet();
+            totalDropped.incrementAndGet();
+         }
+         return queued;
+      }
+
+      /**
+       * Give back a reference obtained from open().  The last one writes
+       * out the queued messages and closes the file.
+       */
+      public void release() {
+         if (refs.decrementAndGet() != 0) {
+            return;
+         }
+
+         logs.remove(filename, this);
+         schedule();
+         try {
+            if (!closed.await(CLOSE_WAIT_MILLIS, TimeUnit.MILLISECONDS)) {
+               log.warn("Timed out writing out log file {}.", filename);
+            }
+         } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+         }
+      }
+
+      /**
+       * @return false if the file is already being closed
+       */
+      private boolean acquire() {
+         while (true) {
+            int current = refs.get();
+            if (current == 0) {
+               return false;
+            }
+            if (refs.compareAndSet(current, current + 1)) {
+               return true;
+            }
+         }
+      }
+
+      private void schedule() {
+         if (scheduled.compareAndSet(false, true)) {
+            ready.add(this);
+         }
+      }
+
+      /**
+       * Write up to batchSize queued messages.  Only ever called from the
+       * writer thread.
+       */
+      private void drain(List<String> batch) throws IOException {
+         if (closed.getCount() == 0) {
+            return;
+         }
+         // Unscheduled first, so messages queued from here on schedule again
+         scheduled.set(false);
+
+         long droppedSoFar = dropped.getAndSet(0);
+         queue.drainTo(batch, batchSize);
+         try {
+            for (String message : batch) {
+               out.write(message);
+            }
+            if (droppedSoFar > 0) {
+               out.write(String.format("[%d log messages dropped]%n", droppedSoFar));
+            }
+            out.flush();
+         } finally {
+            batch.clear();
+         }
+
+         if (refs.get() == 0 && queue.isEmpty()) {
+            close();
+            return;
+         }
+         if (!queue.isEmpty() || dropped.get() > 0) {
+            schedule();
+         }
+      }
+
+      private void close() {
+         Closeables.closeQuietly(out);
+         closed.countDown();
+      }
+   }
+
+   public AsyncLogWriter() {
+      this(DEFAULT_QUEUE_CAPACITY, DEFAULT_BATCH_SIZE, DEFAULT_IMPORTANT_WAIT_MILLIS);
+   }
+
+   /**
+    * @param queueCapacity       messages queued per file before dropping
+    * @param batchSize           most messages written per file in one go
+    * @param importantWaitMillis how long important messages wait for room
+    */
+   public AsyncLogWriter(int queueCapacity, int batchSize, long importantWaitMillis) {
+      this.queueCapacity = queueCapacity;
+      this.batchSize = batchSize;
+      this.importantWaitMillis = importantWaitMillis;
+   }
+
+   /**
+    * Open a log file for appending, or take another reference to it if it
+    * is already open.
+    *
+    * @param filename the full path of the log file
+    * @return the open file; release() it when done
+    * @throws IOException if the file can't be opened
+    */
+   public JobLog open(String filename) throws IOException {
+      startWriter();
+      while (true) {
+         JobLog existing = logs.get(filename);
+         if (existing == null) {
+            JobLog created = new JobLog(filename);
+            existing = logs.putIfAbsent(filename, created);
+            if (existing == null) {
+               return created;
+            }
+            // Lost the race, use the other one
+            created.close();
+         }
+         if (existing.acquire()) {
+            return existing;
+         }
+         // It is being closed; it removes itself from the map first
+         logs.remove(filename, existing);
+      }
+   }
+
+   /**
+    * @return the number of files open
+    */
+   public int getOpenCount() {
+      return logs.size();
+   }
+
+   private void startWriter() {
+      if (!started.compareAndSet(false, true)) {
+         return;
+      }
+      Thread writer = new Thread(new Runnable() {
+         @Override
+         public void run() {
+            List<String> batch = new ArrayList<String>(batchSize);
+            while (true) {
+               JobLog jobLog;
+               try {
+                  jobLog = ready.take();
+               } catch (InterruptedException e) {
+                  return;
+               }
+               try {
+                  jobLog.drain(batch);
+               } catch (Exception e) {
+                  // Nothing else will write to this file; don't let it
+                  // stop the other files being written.
+                  log.error("Unable to write log file " + jobLog.getFilename(), e);
+                  jobLog.queue.clear();
+                  if (jobLog.refs.get() == 0) {
+                     jobLog.close();
+                  }
+               }
+            }
+         }
+      }, "job-log-writer");
+      writer.setDaemon(true);
+      writer.start();
+   }
+}
@@ -0,0 +1,240 @@
+/* ***********************************************************************
+ * VMware ThinApp Factory
+ * Copyright (c) 2009-2013 VMware, Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ***********************************************************************/
+
+package com.vmware.thinapp.manualmode.util;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.vmware.thinapp.common.util.AfJsonCodecs;
+
+/**
+ * Timeline of a single capture: when each phase, guest operation, download
+ * and mount started and how long it took, and when each state was reached.
+ *
+ * The timeline is exported in the trace event format, which
+ * chrome://tracing and other trace viewers load directly, with one row per
+ * thread so that phases running in parallel show up side by side.
+ */
+public class CaptureTrace {
+   public static final String PHASE = "phase";
+   public static final String GUEST = "guest";
+   public static final String DOWNLOAD = "download";
+   public static final String MOUNT = "mount";
+   public static final String SNAPSHOT = "snapshot";
+   public static final String STATE = "state";
+
+   /** Events kept per capture; a runaway loop shouldn't grow the trace forever */
+   static final int MAX_EVENTS = 10000;
+
+   private final List<Event> events = new ArrayList<Event>();
+   private int dropped;
+
+   /**
+    * One entry on the timeline.
+    */
+   public static class Event {
+      private final String name;
+      private final String category;
+      private final long startMillis;
+      private final long durationMillis;
+      private final String thread;
+
+      private Event(String name, String category, long startMillis,
+                    long durationMillis, String thread) {
+         this.name = name;
+         this.category = category;
+         this.startMillis = startMillis;
+         this.durationMillis = durationMillis;
+         this.thread = thread;
+      }
+
+      public String getName() {
+         return name;
+      }
+
+      public String getCategory() {
+         return category;
+      }
+
+      public long getStartMillis() {
+         return startMillis;
+      }
+
+      /**
+       * @return how long it took, or -1 for an instant
+       */
+      public long getDurationMillis() {
+         return durationMillis;
+      }
+
+      public String getThread() {
+         return thread;
+      }
+   }
+
+   /**
+    * Something in progress, recorded once it ends.
+    */
+   public class Span {
+      private final String name;
+      private final String category;
+      private final long startMillis = System.currentTimeMillis();
+
+      private Span(String name, String category) {
+         this.name = name;
+         this.category = category;
+      }
+
+      public void end() {
+         record(name, category, startMillis, System.currentTimeMillis() - startMillis);
+      }
+   }
+
+   /**
+    * Start timing something on the current thread.  Call end() on the
+    * result, normally in a finally block.
+    */
+   public Span start(String name, String category) {
+      return new Span(name, category);
+   }
+
+   /**
+    * Record something that happened on the current thread.
+    */
+   public void record(String name, String category, long startMillis, long durationMillis) {
+      record(name, category, startMillis, durationMillis, Thread.currentThread().getName());
+   }
+
+   /**
+    * Record something that happened on another thread.
+    *
+    * @param thread name of the row to show the event on
+    */
+   public void record(String name, String category, long startMillis,
+                      long durationMillis, String thread) {
+      add(new Event(name, category, startMillis, Math.max(durationMillis, 0), thread));
+   }
+
+   /**
+    * Record a point in time, e.g. a state change.
+    */
+   public void instant(String name, String category, long timeMillis) {
+      add(new Event(name, category, timeMillis, -1, Thread.currentThread().getName()));
+   }
+
+   private synchronized void add(Event event) {
+      if (events.size() < MAX_EVENTS) {
+         events.add(event);
+      } else {
+         dropped++;
+      }
+   }
+
+   /**
+    * @return the events recorded so far, in the order they were recorded
+    */
+   public synchronized List<Event> getEvents() {
+      return new ArrayList<Event>(events);
+   }
+
+   /**
+    * @return the total time spent in each category, in milliseconds
+    */
+   public Map<String, Long> getTotals() {
+      Map<String, Long> totals = new LinkedHashMap<String, Long>();
+      for (Event event : getEvents()) {
+         if (event.getDurationMillis() >= 0) {
+            Long total = totals.get(event.getCategory());
+            totals.put(event.getCategory(), Long.valueOf(
+               (total == null ? 0 : total.longValue()) + event.getDurationMillis()));
+         }
+      }
+      return totals;
+   }
+
+   /**
+    * Convert to the trace event format.  Times are in microseconds since the
+    * epoch, so traces of different captures can be lined up.
+    *
+    * @return a map that serializes to a trace event JSON object
+    */
+   public Map<String, Object> toTraceEvents() {
+      List<Event> copy;
+      int droppedCount;
+      synchronized (this) {
+         copy = new ArrayList<Event>(events);
+         droppedCount = dropped;
+      }
+
+      List<Map<String, Object>> traceEvents = new ArrayList<Map<String, Object>>();
+      Map<String, Integer> threadIds = new HashMap<String, Integer>();
+      for (Event event : copy) {
+         Integer tid = threadIds.get(event.getThread());
+         if (tid == null) {
+            tid = Integer.valueOf(threadIds.size() + 1);
+            threadIds.put(event.getThread(), tid);
+
+            Map<String, Object> args = new HashMap<String, Object>();
+            args.put("name", event.getThread());
+            Map<String, Object> meta = new LinkedHashMap<String, Object>();
+            meta.put("name", "thread_name");
+            meta.put("ph", "M");
+            meta.put("pid", Integer.valueOf(1));
+            meta.put("tid", tid);
+            meta.put("args", args);
+            traceEvents.add(meta);
+         }
+
+         Map<String, Object> out = new LinkedHashMap<String, Object>();
+         out.put("name", event.getName());
+         out.put("cat", event.getCategory());
+         out.put("ts", Long.valueOf(event.getStartMillis() * 1000));
+         if (event.getDurationMillis() < 0) {
+            out.put("ph", "i");
+            out.put("s", "p");
+         } else {
+            out.put("ph", "X");
+            out.put("dur", Long.valueOf(event.getDurationMillis() * 1000));
+         }
+         out.put("pid", Integer.valueOf(1));
+         out.put("tid", tid);
+         traceEvents.add(out);
+      }
+
+      Map<String, Object> trace = new LinkedHashMap<String, Object>();
+      trace.put("traceEvents", traceEvents);
+      trace.put("displayTimeUnit", "ms");
+      if (droppedCount > 0) {
+         Map<String, Object> metadata = new HashMap<String, Object>();
+         metadata.put("droppedEvents", Integer.valueOf(droppedCount));
+         trace.put("otherData", metadata);
+      }
+      return trace;
+   }
+
+   /**
+    * @return the trace event JSON of this trace
+    */
+   public String toJson() throws IOException {
+      return AfJsonCodecs.writer(AfJsonCodecs.COMPACT).writeValueAsString(toTraceEvents());
+   }
+}
@@ -0,0 +1,1166 @@
+/* ***********************************************************************
+ * VMware ThinApp Factory
+ * Copyright (c) 2009-2013 VMware, Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ***********************************************************************/
+
+package com.vmware.thinapp.manualmode.util;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.URI;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.xml.bind.DatatypeConverter;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.client.ClientHttpRequest;
+import org.springframework.http.client.ClientHttpResponse;
+import org.springframework.util.StringUtils;
+import org.springframework.web.client.HttpClientErrorException;
+import org.springframework.web.client.HttpServerErrorException;
+import org.springframework.web.client.RequestCallback;
+import org.springframework.web.client.ResourceAccessException;
+import org.springframework.web.client.ResponseExtractor;
+import org.springframework.web.client.RestTemplate;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Closeables;
+import com.google.common.io.Files;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.vmware.thinapp.common.util.AfUtil;
+
+/**
+ * A cache of downloaded installers shared by all projects.
+ *
+ * Downloads are stored once per content, named by their SHA-256, and indexed
+ * by URL together with the validators the server sent (ETag and
+ * Last-Modified).  A cached URL is revalidated with a conditional request
+ * and only downloaded again if it changed; one without validators is always
+ * downloaded again, though identical content is still stored once.
+ *
+ * Concurrent requests for the same URL share one transfer.  An interrupted
+ * transfer is resumed with a range request, both within a request and by
+ * the next request for the URL.  Downloads are checked against the length
+ * and the Digest or Content-MD5 the server sent, and against a checksum in
+ * the URL fragment, e.g. "#sha256=<hex>" or "#md5=<hex>".
+ *
+ * Downloads larger than a segment are split into range requests that run
+ * concurrently, when the server supports ranges.  All requests share the
+ * per-host connection and bandwidth limits of a HostLimiter.
+ *
+ * Files are hard linked into project directories where possible and copied
+ * otherwise.  The least recently used downloads are evicted when the cache
+ * grows beyond its maximum size.
+ */
+public class DownloadCache {
+   private static final Logger log = LoggerFactory.getLogger(DownloadCache.class);
+
+   /** Transfers of a URL before giving up */
+   private static final int MAX_ATTEMPTS = 3;
+   private static final int BUFFER_SIZE = 64 * 1024;
+
+   private static final Pattern CONTENT_RANGE = Pattern.compile("bytes (\\d+)-(\\d+)/(\\d+|\\*)");
+   private static final Pattern FRAGMENT_CHECKSUM = Pattern.compile("(sha256|md5)=([0-9a-fA-F]+)");
+
+   private static final String URL = "url";
+   private static final String FILENAME = "filename";
+   private static final String ETAG = "etag";
+   private static final String LAST_MODIFIED = "lastModified";
+   private static final String SHA256 = "sha256";
+   private static final String SIZE = "size";
+   private static final String MTIME = "mtime";
+   private static final String ACCESSED = "accessed";
+   private static final String TOTAL = "total";
+   private static final String SEGMENTS = "segments";
+
+   /** Size of the first segment of a download, by default */
+   public static final long DEFAULT_SEGMENT_SIZE = 8L << 20;
+   /** Segments a download is split into at most, by default */
+   public static final int DEFAULT_MAX_SEGMENTS = 4;
+
+   private final RestTemplate rest = new RestTemplate();
+
+   private final File blobDir;
+   private final File indexDir;
+   private final File partialDir;
+   private final long maxBytes;
+
+   private volatile HostLimiter hostLimiter = new HostLimiter(0, 0);
+   private volatile long segmentSize = DEFAULT_SEGMENT_SIZE;
+   private volatile int maxSegments = DEFAULT_MAX_SEGMENTS;
+
+   /** Runs the segments after the first of each download */
+   private final ExecutorService segmentExecutor = Executors.newCachedThreadPool(
+           new ThreadFactoryBuilder().setDaemon(true).setNameFormat("download-segment-%d").build());
+
+   /** Transfers in progress, by URL */
+   private final ConcurrentMap<String, FutureTask<Entry>> transfers =
+           new ConcurrentHashMap<String, FutureTask<Entry>>();
+
+   /** Cached downloads by URL key; guarded by this */
+   private final Map<String, Entry> entries = new HashMap<String, Entry>();
+   /** Number of users of each blob, by SHA-256; guarded by this */
+   private final Map<String, Integer> pins = new HashMap<String, Integer>();
+   /** Number of transfers performed; guarded by this */
+   private int transferCount;
+
+   /**
+    * A cached download.
+    */
+   private static class Entry {
+      final String key;
+      final Properties props;
+
+      Entry(String key, Properties props) {
+         this.key = key;
+         this.props = props;
+      }
+
+      String get(String name) {
+         return props.getProperty(name);
+      }
+
+      long getLong(String name) {
+         String value = props.getProperty(name);
+         return (value == null) ? 0 : Long.parseLong(value);
+      }
+   }
+
+   /**
+    * @param cacheDir directory to keep downloads in
+    * @param maxBytes size the downloads are evicted down to
+    */
+   public DownloadCache(File cacheDir, long maxBytes) {
+      this.blobDir = new File(cacheDir, "blobs");
+      this.indexDir = new File(cacheDir, "index");
+      this.partialDir = new File(cacheDir, "partial");
+      this.maxBytes = maxBytes;
+      blobDir.mkdirs();
+      indexDir.mkdirs();
+      partialDir.mkdirs();
+      load();
+   }
+
+   /**
+    * Split downloads larger than a segment into up to maxSegments range
+    * requests that run concurrently, if the server supports ranges.
+    *
+    * @param segmentSize size of the first and smallest segment
+    * @param maxSegments segments per download, 1 to never split
+    */
+   public void setSegments(long segmentSize, int maxSegments) {
+      this.segmentSize = segmentSize;
+      this.maxSegments = maxSegments;
+   }
+
+   /**
+    * Set the limits on connections and bandwidth per host.
+    */
+   public void setHostLimiter(HostLimiter hostLimiter) {
+      this.hostLimiter = hostLimiter;
+   }
+
+   /**
+    * Download a URL into a directory, through the cache.
+    *
+    * @param url a url to download, optionally with a checksum fragment
+    * @param downloadDir an existing directory to save the download in
+    * @param defaultFilename filename to use unless one can be extracted from
+    *                        the response header or the url
+    * @return the filename of the file that was downloaded
+    * @throws IOException if the download failed or didn't verify
+    */
+   public String downloadTo(String url, String downloadDir, String defaultFilename)
+           throws IOException {
+      return downloadTo(url, downloadDir, defaultFilename, new DownloadProgress().add(url));
+   }
+
+   /**
+    * Download a URL into a directory, through the cache, reporting progress.
+    *
+    * @see #downloadTo(String, String, String)
+    */
+   public String downloadTo(String url, String downloadDir, String defaultFilename,
+                            DownloadProgress.Item progress) throws IOException {
+      File dir = new File(downloadDir);
+      if (!dir.isDirectory()) {
+         throw new IllegalArgumentException(
+               String.format("The given download directory %s does not exist", downloadDir));
+      }
+
+      Entry entry = fetch(url, defaultFilename, progress);
+      String sha256 = entry.get(SHA256);
+      try {
+         String filename = entry.get(FILENAME);
+         link(blob(sha256), new File(dir, filename));
+         progress.setDone(entry.getLong(SIZE));
+         return filename;
+      } finally {
+         unpin(sha256);
+      }
+   }
+
+   /**
+    * @return the number of transfers performed, including conditional
+    * requests that found the cached download current
+    */
+   public synchronized int getTransferCount() {
+      return transferCount;
+   }
+
+   /**
+    * @return the total size of the cached downloads
+    */
+   public synchronized long getSize() {
+      long size = 0;
+      for (String sha256 : blobsInUse().keySet()) {
+         size += blob(sha256).length();
+      }
+      return size;
+   }
+
+   /**
+    * Get a current cached download of the URL, sharing the transfer with
+    * concurrent requests.  The blob is pinned for the caller.
+    */
+   private Entry fetch(final String url, final String defaultFilename,
+                       final DownloadProgress.Item progress) throws IOException {
+      final String cacheUrl = withoutFragment(url);
+      FutureTask<Entry> task = new FutureTask<Entry>(new Callable<Entry>() {
+         @Override
+         public Entry call() throws IOException {
+            return transfer(url, cacheUrl, defaultFilename, progress);
+         }
+      });
+
+      FutureTask<Entry> running = transfers.putIfAbsent(cacheUrl, task);
+      if (running == null) {
+         running = task;
+         try {
+            task.run();
+         } finally {
+            transfers.remove(cacheUrl, task);
+         }
+      } else {
+         log.debug("Waiting for the download of {} already in progress.", cacheUrl);
+      }
+
+      Entry entry;
+      try {
+         entry = running.get();
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+         throw new IOException("Interrupted while waiting for " + cacheUrl);
+      } catch (ExecutionException e) {
+         Throwable cause = e.getCause();
+         if (cause instanceof IOException) {
+            throw (IOException) cause;
+         } else if (cause instanceof RuntimeException) {
+            throw (RuntimeException) cause;
+         }
+         throw new IOException(cause);
+      }
+
+      if (!running.equals(task)) {
+         // Another request did the transfer; verify its checksum for ours.
+         verifyFragment(url, entry.get(SHA256), null);
+      }
+      return entry;
+   }
+
+   private Entry transfer(String url, String cacheUrl, String defaultFilename,
+                          DownloadProgress.Item progress) throws IOException {
+      String key = digest("SHA-1", cacheUrl);
+      IOException failure = null;
+      for (int attempt = 1; attempt <= MAX_ATTEMPTS; attempt++) {
+         try {
+            return attempt(url, cacheUrl, key, defaultFilename, progress);
+         } catch (IOException e) {
+            failure = e;
+            log.warn(String.format("Download of %s failed (attempt %d of %d).",
+                    cacheUrl, attempt, MAX_ATTEMPTS), e);
+         }
+      }
+      throw failure;
+   }
+
+   /**
+    * One transfer: revalidate the cached download, resume a partial one or
+    * download from scratch.  A failed transfer leaves what it received for
+    * the next one to resume.
+    *
+    * Without a partial download the request asks for the first segment
+    * only.  If the response shows the download is larger, the rest is
+    * fetched in segments that start while the first one is received.
+    */
+   private Entry attempt(final String url, final String cacheUrl, final String key,
+                         final String defaultFilename, final DownloadProgress.Item progress)
+           throws IOException {
+      final Entry cached = lookup(key);
+      final File part = new File(partialDir, key + ".part");
+      final File partProps = new File(partialDir, key + ".properties");
+      final Properties partial = read(partProps);
+      final URI uri = AfUtil.toURI(cacheUrl);
+      final String host = uri.getHost();
+
+      synchronized (this) {
+         transferCount++;
+      }
+
+      if (validator(partial) != null && partial.getProperty(SEGMENTS) != null) {
+         log.info("Resuming segmented download of {}.", cacheUrl);
+         return completeSegments(url, key, partial, null,
+                 startSegments(uri, key, partial, 0, progress));
+      }
+
+      final long offset = (validator(partial) != null && part.isFile()) ? part.length() : 0;
+      final long probe = (maxSegments > 1) ? segmentSize : 0;
+      final List<Future<Void>> segments = new ArrayList<Future<Void>>();
+      final HttpHeaders[] segmentedHeaders = new HttpHeaders[1];
+
+      RequestCallback request = new RequestCallback() {
+         @Override
+         public void doWithRequest(ClientHttpRequest request) {
+            HttpHeaders headers = request.getHeaders();
+            if (cached != null) {
+               if (cached.get(ETAG) != null) {
+                  headers.set("If-None-Match", cached.get(ETAG));
+               }
+               if (cached.get(LAST_MODIFIED) != null) {
+                  headers.set("If-Modified-Since", cached.get(LAST_MODIFIED));
+               }
+            }
+            if (offset > 0) {
+               headers.set("Range", "bytes=" + offset + "-");
+               headers.set("If-Range", validator(partial));
+            } else if (probe > 0) {
+               headers.set("Range", "bytes=0-" + (probe - 1));
+            }
+         }
+      };
+
+      ResponseExtractor<Entry> response = new ResponseExtractor<Entry>() {
+         @Override
+         public Entry extractData(ClientHttpResponse response) throws IOException {
+            HttpStatus status = response.getStatusCode();
+            if (status == HttpStatus.NOT_MODIFIED && cached != null) {
+               log.info("Cached download of {} is current.", cacheUrl);
+               return cached;
+            }
+
+            HttpHeaders headers = response.getHeaders();
+            long start;
+            long total;
+            Properties props;
+            if (status == HttpStatus.PARTIAL_CONTENT) {
+               long[] range = contentRange(headers);
+               if (range[0] != offset) {
+                  throw new IOException("Unexpected Content-Range: " + headers.getFirst("Content-Range"));
+               }
+               start = offset;
+               total = range[2];
+               if (offset > 0) {
+                  props = partial;
+                  log.info("Resuming download of {} at {} bytes.", cacheUrl, offset);
+               } else {
+                  props = newProps(response, uri, cacheUrl, defaultFilename);
+                  if (total < 0) {
+                     throw new IOException("Unknown length of " + cacheUrl);
+                  } else if (range[1] + 1 < total) {
+                     // Larger than one segment: fetch the rest concurrently.
+                     deleteSegments(key);
+                     props.setProperty(TOTAL, Long.toString(total));
+                     props.setProperty(SEGMENTS, plan(range[1] + 1, total));
+                     write(props, partProps);
+                     log.info("Downloading {} ({} bytes) in segments {}.",
+                             new Object[] { cacheUrl, total, props.getProperty(SEGMENTS) });
+                     progress.setTotal(total);
+                     progress.setReceived(0);
+                     segments.addAll(startSegments(uri, key, props, 1, progress));
+                     receive(response.getBody(), segmentFile(key, 0), false, host, progress);
+                     segmentedHeaders[0] = headers;
+                     return null;
+                  }
+                  write(props, partProps);
+               }
+            } else if (status == HttpStatus.OK) {
+               start = 0;
+               total = headers.getContentLength();
+               props = newProps(response, uri, cacheUrl, defaultFilename);
+               write(props, partProps);
+            } else {
+               throw new IOException(String.format("Unexpected HTTP status %s for %s.", status, cacheUrl));
+            }
+
+            progress.setTotal(total);
+            progress.setReceived(start);
+            MessageDigest sha256 = newDigest("SHA-256");
+            MessageDigest md5 = newDigest("MD5");
+            if (start > 0) {
+               update(part, sha256, md5);
+            }
+            long received = receive(response.getBody(), part, start > 0, host, progress, sha256, md5);
+            if (total >= 0 && start + received != total) {
+               throw new IOException(String.format("Download of %s stopped at %d of %d bytes.",
+                       cacheUrl, start + received, total));
+            }
+            if (total < 0 && start + received == 0) {
+               throw new IOException("Given HTTP response is empty.");
+            }
+
+            String sha256Hex = hex(sha256.digest());
+            try {
+               verifyHeaders(headers, status, sha256Hex, md5);
+               verifyFragment(url, sha256Hex, md5);
+            } catch (IOException e) {
+               // Don't resume corrupt content.
+               resetPartial(key);
+               throw e;
+            }
+            return store(key, props, part, partProps, sha256Hex);
+         }
+      };
+
+      Entry entry;
+      try {
+         entry = exchange(uri, request, response);
+      } catch (IOException e) {
+         await(segments);
+         throw e;
+      } catch (RuntimeException e) {
+         await(segments);
+         throw e;
+      }
+
+      if (entry == null) {
+         return completeSegments(url, key, read(partProps), segmentedHeaders[0], segments);
+      }
+      synchronized (this) {
+         if (entry == cached) {
+            // Revalidated: pin and touch it.
+            if (!blob(cached.get(SHA256)).isFile()) {
+               throw new IOException("Cached download of " + cacheUrl + " disappeared.");
+            }
+            pin(cached.get(SHA256));
+            touch(cached);
+         }
+      }
+      return entry;
+   }
+
+   /**
+    * Perform a request, holding one of the host's connections for it.
+    */
+   private <T> T exchange(URI uri, RequestCallback request, ResponseExtractor<T> response)
+           throws IOException {
+      String host = uri.getHost();
+      hostLimiter.acquire(host);
+      try {
+         return rest.execute(uri, HttpMethod.GET, request, response);
+      } catch (HttpClientErrorException e) {
+         if (e.getStatusCode() == HttpStatus.REQUESTED_RANGE_NOT_SATISFIABLE) {
+            // The partial download doesn't fit what the server has now.
+            resetPartial(digest("SHA-1", uri.toString()));
+            throw new IOException("Unable to resume download of " + uri, e);
+         }
+         throw e;
+      } catch (HttpServerErrorException e) {
+         throw new IOException("Download of " + uri + " failed.", e);
+      } catch (ResourceAccessException e) {
+         if (e.getCause() instanceof IOException) {
+            throw (IOException) e.getCause();
+         }
+         throw e;
+      } finally {
+         hostLimiter.release(host);
+      }
+   }
+
+   /**
+    * Split a download into the first segment, which was requested without
+    * knowing the size, and up to maxSegments - 1 equal segments for the
+    * rest, none smaller than segmentSize.
+    *
+    * @return the segments as "start-end,start-end,..."
+    */
+   private String plan(long first, long total) {
+      long rest = total - first;
+      long count = Math.max(1, Math.min(maxSegments - 1, rest / segmentSize));
+      long size = (rest + count - 1) / count;
+      StringBuilder sb = new StringBuilder("0-").append(first - 1);
+      for (long start = first; start < total; start += size) {
+         sb.append(',').append(start).append('-').append(Math.min(start + size, total) - 1);
+      }
+      return sb.toString();
+   }
+
+   private static long[][] segments(Properties props) {
+      String[] ranges = props.getProperty(SEGMENTS).split(",");
+      long[][] segments = new long[ranges.length][];
+      for (int i = 0; i < ranges.length; i++) {
+         String[] bounds = ranges[i].split("-");
+         segments[i] = new long[] { Long.parseLong(bounds[0]), Long.parseLong(bounds[1]) };
+      }
+      return segments;
+   }
+
+   /**
+    * Start fetching the incomplete segments of a download, from the given
+    * one on.
+    */
+   private List<Future<Void>> startSegments(URI uri, String key, Properties props, int from,
+                                            DownloadProgress.Item progress) {
+      long[][] segments = segments(props);
+      long received = 0;
+      for (int i = 0; i < segments.length; i++) {
+         received += segmentFile(key, i).length();
+      }
+      progress.setTotal(Long.parseLong(props.getProperty(TOTAL)));
+      progress.setReceived(received);
+
+      List<Future<Void>> futures = new ArrayList<Future<Void>>();
+      for (int i = from; i < segments.length; i++) {
+         futures.add(segmentExecutor.submit(
+               new SegmentTask(uri, key, i, segments[i], validator(props), progress)));
+      }
+      return futures;
+   }
+
+   /**
+    * Fetches one segment of a download into its own file, resuming what an
+    * earlier attempt left in it.
+    */
+   private class SegmentTask implements Callable<Void> {
+      private final URI uri;
+      private final File file;
+      private final long start;
+      private final long end;
+      private final String validator;
+      private final DownloadProgress.Item progress;
+
+      SegmentTask(URI uri, String key, int index, long[] segment, String validator,
+                  DownloadProgress.Item progress) {
+         this.uri = uri;
+         this.file = segmentFile(key, index);
+         this.start = segment[0];
+         this.end = segment[1];
+         this.validator = validator;
+         this.progress = progress;
+      }
+
+      @Override
+      public Void call() throws IOException {
+         final long have = file.length();
+         if (start + have > end) {
+            return null;
+         }
+
+         RequestCallback request = new RequestCallback() {
+            @Override
+            public void doWithRequest(ClientHttpRequest request) {
+               HttpHeaders headers = request.getHeaders();
+               headers.set("Range", "bytes=" + (start + have) + "-" + end);
+               if (validator != null) {
+                  headers.set("If-Range", validator);
+               }
+            }
+         };
+
+         ResponseExtractor<Void> response = new ResponseExtractor<Void>() {
+            @Override
+            public Void extractData(ClientHttpResponse response) throws IOException {
+               if (response.getStatusCode() != HttpStatus.PARTIAL_CONTENT) {
+                  // If-Range didn't match: the download changed under us.
+                  throw new ContentChangedException(uri);
+               }
+               long[] range = contentRange(response.getHeaders());
+               if (range[0] != start + have || range[1] != end) {
+                  throw new IOException("Unexpected Content-Range: " +
+                          response.getHeaders().getFirst("Content-Range"));
+               }
+               long received = receive(response.getBody(), file, have > 0, uri.getHost(), progress);
+               if (have + received != end - start + 1) {
+                  throw new IOException(String.format("Segment %d-%d of %s stopped at %d bytes.",
+                          start, end, uri, have + received));
+               }
+               return null;
+            }
+         };
+
+         exchange(uri, request, response);
+         return null;
+      }
+   }
+
+   private static class ContentChangedException extends IOException {
+      private static final long serialVersionUID = 1L;
+
+      ContentChangedException(URI uri) {
+         super(uri + " changed during the download.");
+      }
+   }
+
+   /**
+    * Wait for segment transfers to finish, so none is still writing when
+    * the next attempt starts.
+    *
+    * @return the first failure, or null
+    */
+   private static IOException await(List<Future<Void>> futures) {
+      IOException failure = null;
+      boolean interrupted = false;
+      for (Future<Void> future : futures) {
+         while (true) {
+            try {
+               future.get();
+               break;
+            } catch (InterruptedException e) {
+               interrupted = true;
+            } catch (ExecutionException e) {
+               if (failure == null) {
+                  failure = (e.getCause() instanceof IOException) ?
+                          (IOException) e.getCause() : new IOException(e.getCause());
+               }
+               break;
+            }
+         }
+      }
+      if (interrupted) {
+         Thread.currentThread().interrupt();
+         if (failure == null) {
+            failure = new InterruptedIOException("Interrupted while downloading.");
+         }
+      }
+      return failure;
+   }
+
+   /**
+    * Wait for the segments of a download, join them and store the result.
+    *
+    * @param headers headers of the first response, or null when resuming
+    */
+   private Entry completeSegments(String url, String key, Properties props, HttpHeaders headers,
+                                  List<Future<Void>> futures) throws IOException {
+      IOException failure = await(futures);
+      if (failure instanceof ContentChangedException) {
+         resetPartial(key);
+      }
+      if (failure != null) {
+         throw failure;
+      }
+
+      File part = new File(partialDir, key + ".part");
+      long[][] segments = segments(props);
+      MessageDigest sha256 = newDigest("SHA-256");
+      MessageDigest md5 = newDigest("MD5");
+      OutputStream out = new FileOutputStream(part);
+      boolean done = false;
+      try {
+         for (int i = 0; i < segments.length; i++) {
+            File segment = segmentFile(key, i);
+            if (segment.length() != segments[i][1] - segments[i][0] + 1) {
+               throw new IOException(String.format("Segment %d-%d of %s is incomplete.",
+                       segments[i][0], segments[i][1], url));
+            }
+            copy(segment, out, sha256, md5);
+         }
+         done = true;
+      } finally {
+         Closeables.close(out, !done);
+      }
+
+      String sha256Hex = hex(sha256.digest());
+      try {
+         if (headers != null) {
+            verifyHeaders(headers, HttpStatus.PARTIAL_CONTENT, sha256Hex, md5);
+         }
+         verifyFragment(url, sha256Hex, md5);
+      } catch (IOException e) {
+         resetPartial(key);
+         throw e;
+      }
+
+      deleteSegments(key);
+      props.remove(TOTAL);
+      props.remove(SEGMENTS);
+      return store(key, props, part, new File(partialDir, key + ".properties"), sha256Hex);
+   }
+
+   private File segmentFile(String key, int index) {
+      return new File(partialDir, key + ".part." + index);
+   }
+
+   private void deleteSegments(String key) {
+      File[] files = partialDir.listFiles();
+      if (files != null) {
+         for (File file : files) {
+            if (file.getName().startsWith(key + ".part.")) {
+               file.delete();
+            }
+         }
+      }
+   }
+
+   /**
+    * Forget a partial download, so the next attempt starts from scratch.
+    */
+   private void resetPartial(String key) {
+      deleteSegments(key);
+      new File(partialDir, key + ".part").delete();
+      new File(partialDir, key + ".properties").delete();
+   }
+
+   private static Properties newProps(ClientHttpResponse response, URI uri, String cacheUrl,
+                                      String defaultFilename) {
+      HttpHeaders headers = response.getHeaders();
+      Properties props = new Properties();
+      props.setProperty(URL, cacheUrl);
+      props.setProperty(FILENAME, AfUtil.getFilenameFromHttpResponse(response, uri, defaultFilename));
+      // Keep the entity tag quoted, as If-None-Match and If-Range need it.
+      setIfPresent(props, ETAG, headers.getFirst("ETag"));
+      setIfPresent(props, LAST_MODIFIED, headers.getFirst("Last-Modified"));
+      return props;
+   }
+
+   /**
+    * @return the validator to resume a partial download with, or null if
+    * it can't be resumed
+    */
+   private static String validator(Properties props) {
+      return (props.getProperty(ETAG) != null) ?
+              props.getProperty(ETAG) : props.getProperty(LAST_MODIFIED);
+   }
+
+   private static long[] contentRange(HttpHeaders headers) throws IOException {
+      String value = headers.getFirst("Content-Range");
+      Matcher range = CONTENT_RANGE.matcher((value == null) ? "" : value.trim());
+      if (!range.matches()) {
+         throw new IOException("Unexpected Content-Range: " + value);
+      }
+      return new long[] {
+            Long.parseLong(range.group(1)),
+            Long.parseLong(range.group(2)),
+            "*".equals(range.group(3)) ? -1 : Long.parseLong(range.group(3)) };
+   }
+
+   /**
+    * Move a completed download into the cache and index it, pinned for the
+    * caller, then evict what no longer fits.
+    */
+   private Entry store(String key, Properties props, File part, File partProps, String sha256)
+           throws IOException {
+      Entry entry;
+      synchronized (this) {
+         File blob = blob(sha256);
+         if (blob.isFile()) {
+            // Same content as another URL or an earlier version.
+            part.delete();
+         } else if (!part.renameTo(blob)) {
+            throw new IOException("Unable to move " + part + " to " + blob);
+         }
+         partProps.delete();
+
+         props.setProperty(SHA256, sha256);
+         props.setProperty(SIZE, Long.toString(blob.length()));
+         props.setProperty(MTIME, Long.toString(blob.lastModified()));
+         entry = new Entry(key, props);
+         Entry replaced = entries.put(key, entry);
+         pin(sha256);
+         touch(entry);
+         if (replaced != null && !replaced.get(SHA256).equals(sha256)) {
+            deleteUnusedBlob(replaced.get(SHA256));
+         }
+         evict();
+      }
+      log.info("Cached download of {} ({} bytes, sha256 {}).",
+              new Object[] { props.getProperty(URL), props.getProperty(SIZE), sha256 });
+      return entry;
+   }
+
+   /**
+    * @return the cached download of a URL, or null if there is none or its
+    * file was changed or removed
+    */
+   private synchronized Entry lookup(String key) {
+      Entry entry = entries.get(key);
+      if (entry == null) {
+         return null;
+      }
+      File blob = blob(entry.get(SHA256));
+      if (blob.isFile() && blob.length() == entry.getLong(SIZE) &&
+          blob.lastModified() == entry.getLong(MTIME) &&
+          (entry.get(ETAG) != null || entry.get(LAST_MODIFIED) != null)) {
+         return entry;
+      }
+      if (blob.isFile() && (blob.length() != entry.getLong(SIZE) ||
+                            blob.lastModified() != entry.getLong(MTIME))) {
+         log.warn("Cached download {} was modified, discarding it.", blob);
+         entries.remove(key);
+         new File(indexDir, key + ".properties").delete();
+         blob.delete();
+      }
+      return null;
+   }
+
+   private void touch(Entry entry) throws IOException {
+      entry.props.setProperty(ACCESSED, Long.toString(System.currentTimeMillis()));
+      write(entry.props, new File(indexDir, entry.key + ".properties"));
+   }
+
+   private synchronized void pin(String sha256) {
+      Integer count = pins.get(sha256);
+      pins.put(sha256, (count == null) ? 1 : count + 1);
+   }
+
+   private synchronized void unpin(String sha256) {
+      Integer count = pins.get(sha256);
+      if (count == null || count <= 1) {
+         pins.remove(sha256);
+      } else {
+         pins.put(sha256, count - 1);
+      }
+   }
+
+   /**
+    * @return the number of index entries referring to each blob
+    */
+   private Map<String, Integer> blobsInUse() {
+      Map<String, Integer> blobs = new HashMap<String, Integer>();
+      for (Entry entry : entries.values()) {
+         String sha256 = entry.get(SHA256);
+         Integer count = blobs.get(sha256);
+         blobs.put(sha256, (count == null) ? 1 : count + 1);
+      }
+      return blobs;
+   }
+
+   private void deleteUnusedBlob(String sha256) {
+      if (!pins.containsKey(sha256) && !blobsInUse().containsKey(sha256)) {
+         blob(sha256).delete();
+      }
+   }
+
+   /**
+    * Remove the least recently used downloads until the cache fits, never
+    * removing pinned ones.
+    */
+   private void evict() {
+      long size = getSize();
+      if (size <= maxBytes) {
+         return;
+      }
+
+      List<Entry> lru = new ArrayList<Entry>(entries.values());
+      Collections.sort(lru, new Comparator<Entry>() {
+         @Override
+         public int compare(Entry a, Entry b) {
+            long diff = a.getLong(ACCESSED) - b.getLong(ACCESSED);
+            return (diff < 0) ? -1 : (diff > 0) ? 1 : 0;
+         }
+      });
+
+      for (Entry entry : lru) {
+         if (size <= maxBytes) {
+            break;
+         }
+         String sha256 = entry.get(SHA256);
+         if (pins.containsKey(sha256)) {
+            continue;
+         }
+         log.info("Evicting cached download of {}.", entry.get(URL));
+         entries.remove(entry.key);
+         new File(indexDir, entry.key + ".properties").delete();
+         if (!blobsInUse().containsKey(sha256)) {
+            size -= blob(sha256).length();
+            blob(sha256).delete();
+         }
+      }
+   }
+
+   /**
+    * Read the index, dropping entries whose blob is gone and blobs that
+    * no entry refers to.
+    */
+   private synchronized void load() {
+      File[] files = indexDir.listFiles();
+      if (files != null) {
+         for (File file : files) {
+            String name = file.getName();
+            if (!name.endsWith(".properties")) {
+               file.delete();
+               continue;
+            }
+            try {
+               Entry entry = new Entry(name.substring(0, name.length() - ".properties".length()),
+                       read(file));
+               if (entry.get(SHA256) != null && blob(entry.get(SHA256)).isFile()) {
+                  entries.put(entry.key, entry);
+                  continue;
+               }
+            } catch (IOException e) {
+               log.warn("Unable to read download cache entry " + file, e);
+            }
+            file.delete();
+         }
+      }
+
+      Map<String, Integer> inUse = blobsInUse();
+      File[] blobs = blobDir.listFiles();
+      if (blobs != null) {
+         for (File blob : blobs) {
+            if (!inUse.containsKey(blob.getName())) {
+               blob.delete();
+            }
+         }
+      }
+      log.info("Download cache holds {} downloads.", entries.size());
+   }
+
+   private File blob(String sha256) {
+      return new File(blobDir, sha256);
+   }
+
+   /**
+    * Hard link a cached file into place, or copy it where linking fails,
+    * e.g. across file systems.
+    */
+   private static void link(File blob, File dest) throws IOException {
+      if (dest.exists() && !dest.delete()) {
+         throw new IOException("Unable to replace " + dest);
+      }
+      try {
+         Process ln = new ProcessBuilder("ln", blob.getAbsolutePath(), dest.getAbsolutePath())
+                 .redirectErrorStream(true)
+                 .start();
+         Closeables.closeQuietly(ln.getOutputStream());
+         Closeables.closeQuietly(ln.getInputStream());
+         if (ln.waitFor() == 0) {
+            return;
+         }
+      } catch (IOException e) {
+         log.debug("Unable to run ln.", e);
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+         throw new IOException("Interrupted while linking " + dest);
+      }
+      log.debug("Unable to link {}, copying it.", dest);
+      Files.copy(blob, dest);
+   }
+
+   private static void verifyHeaders(HttpHeaders headers, HttpStatus status, String sha256,
+                                     MessageDigest md5) throws IOException {
+      // RFC 3230 instance digest, which covers the whole download.
+      String digest = headers.getFirst("Digest");
+      if (digest != null) {
+         for (String value : digest.split(",")) {
+            value = value.trim();
+            if (value.regionMatches(true, 0, "SHA-256=", 0, 8)) {
+               String expected = hex(DatatypeConverter.parseBase64Binary(
+                       value.substring(8).trim()));
+               check("SHA-256", expected, sha256);
+            }
+         }
+      }
+      // Content-MD5 covers the body, so it only describes full responses.
+      String contentMd5 = headers.getFirst("Content-MD5");
+      if (contentMd5 != null && status == HttpStatus.OK) {
+         String expected = hex(DatatypeConverter.parseBase64Binary(
+                 contentMd5.trim()));
+         check("MD5", expected, md5Hex(md5));
+      }
+   }
+
+   private static void verifyFragment(String url, String sha256, MessageDigest md5)
+           throws IOException {
+      String fragment = AfUtil.toURI(url).getFragment();
+      if (fragment == null) {
+         return;
+      }
+      Matcher matcher = FRAGMENT_CHECKSUM.matcher(fragment);
+      if (!matcher.matches()) {
+         return;
+      }
+      if (matcher.group(1).equals("sha256")) {
+         check("SHA-256", matcher.group(2), sha256);
+      } else if (md5 != null) {
+         check("MD5", matcher.group(2), md5Hex(md5));
+      }
+   }
+
+   private static String md5Hex(MessageDigest md5) throws IOException {
+      try {
+         // Clone so the digest can be asked more than once.
+         return hex(((MessageDigest) md5.clone()).digest());
+      } catch (CloneNotSupportedException e) {
+         throw new IOException(e);
+      }
+   }
+
+   private static void check(String algorithm, String expected, String actual) throws IOException {
+      if (!expected.equalsIgnoreCase(actual)) {
+         throw new IOException(String.format("%s checksum mismatch: expected %s, got %s.",
+                 algorithm, expected, actual));
+      }
+   }
+
+   /**
+    * Save a response body to a file, within the host's bandwidth limit.
+    */
+   private long receive(InputStream in, File file, boolean append, String host,
+                        DownloadProgress.Item progress, MessageDigest... digests)
+           throws IOException {
+      OutputStream out = new FileOutputStream(file, append);
+      long total = 0;
+      boolean done = false;
+      try {
+         byte[] buffer = new byte[BUFFER_SIZE];
+         int n;
+         while ((n = in.read(buffer)) != -1) {
+            if (Thread.currentThread().isInterrupted()) {
+               throw new InterruptedIOException("Interrupted while downloading " + file);
+            }
+            hostLimiter.throttle(host, n);
+            out.write(buffer, 0, n);
+            for (MessageDigest digest : digests) {
+               digest.update(buffer, 0, n);
+            }
+            progress.addReceived(n);
+            total += n;
+         }
+         done = true;
+      } finally {
+         Closeables.close(out, !done);
+      }
+      return total;
+   }
+
+   private static void copy(File file, OutputStream out, MessageDigest... digests)
+           throws IOException {
+      InputStream in = new FileInputStream(file);
+      try {
+         byte[] buffer = new byte[BUFFER_SIZE];
+         int n;
+         while ((n = in.read(buffer)) != -1) {
+            out.write(buffer, 0, n);
+            for (MessageDigest digest : digests) {
+               digest.update(buffer, 0, n);
+            }
+         }
+      } finally {
+         Closeables.closeQuietly(in);
+      }
+   }
+
+   private static void update(File file, MessageDigest... digests) throws IOException {
+      InputStream in = new FileInputStream(file);
+      try {
+         byte[] buffer = new byte[BUFFER_SIZE];
+         int n;
+         while ((n = in.read(buffer)) != -1) {
+            for (MessageDigest digest : digests) {
+               digest.update(buffer, 0, n);
+            }
+         }
+      } finally {
+         Closeables.closeQuietly(in);
+      }
+   }
+
+   private static MessageDigest newDigest(String algorithm) {
+      try {
+         return MessageDigest.getInstance(algorithm);
+      } catch (NoSuchAlgorithmException e) {
+         throw new IllegalStateException(e);
+      }
+   }
+
+   private static String digest(String algorithm, String text) {
+      return hex(newDigest(algorithm).digest(text.getBytes(Charsets.UTF_8)));
+   }
+
+   private static String hex(byte[] bytes) {
+      StringBuilder sb = new StringBuilder();
+      for (byte b : bytes) {
+         sb.append(String.format("%02x", b & 0xff));
+      }
+      return sb.toString();
+   }
+
+   private static String withoutFragment(String url) {
+      int hash = url.indexOf('#');
+      return (hash < 0) ? url : url.substring(0, hash);
+   }
+
+   private static void setIfPresent(Properties props, String name, String value) {
+      if (StringUtils.hasText(value)) {
+         props.setProperty(name, value);
+      }
+   }
+
+   private static Properties read(File file) throws IOException {
+      Properties props = new Properties();
+      if (file.isFile()) {
+         InputStream in = new FileInputStream(file);
+         try {
+            props.load(in);
+         } finally {
+            Closeables.closeQuietly(in);
+         }
+      }
+      return props;
+   }
+
+   private static void write(Properties props, File file) throws IOException {
+      File temp = new File(file.getPath() + ".new");
+      OutputStream out = new FileOutputStream(temp);
+      boolean done = false;
+      try {
+         props.store(out, null);
+         done = true;
+      } finally {
+         Closeables.close(out, !done);
+      }
+      if (!temp.renameTo(file)) {
+         throw new IOException("Unable to write " + file);
+      }
+   }
+}
@@ -0,0 +1,159 @@
+/* ***********************************************************************
+ * VMware ThinApp Factory
+ * Copyright (c) 2009-2013 VMware, Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ***********************************************************************/
+
+package com.vmware.thinapp.manualmode.util;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Progress of the installer downloads of one request, aggregated over all
+ * of its files.
+ */
+public class DownloadProgress {
+   private final List<Item> items = new CopyOnWriteArrayList<Item>();
+
+   /**
+    * Progress of a single download.
+    */
+   public static class Item {
+      private final String url;
+      private final AtomicLong total = new AtomicLong(-1);
+      private final AtomicLong received = new AtomicLong();
+      private final long startMillis = System.currentTimeMillis();
+      private volatile long endMillis;
+      private volatile boolean done;
+
+      private Item(String url) {
+         this.url = url;
+      }
+
+      public String getUrl() {
+         return url;
+      }
+
+      /**
+       * @param total size of the download, or -1 if unknown
+       */
+      public void setTotal(long total) {
+         this.total.set(total);
+      }
+
+      public long getTotal() {
+         return total.get();
+      }
+
+      /**
+       * Set the bytes received so far, e.g. what was kept from an
+       * interrupted attempt.
+       */
+      public void setReceived(long received) {
+         this.received.set(received);
+      }
+
+      public void addReceived(long bytes) {
+         received.addAndGet(bytes);
+      }
+
+      public long getReceived() {
+         return received.get();
+      }
+
+      /**
+       * Mark the download complete, whether it was transferred or not.
+       */
+      public void setDone(long size) {
+         total.set(size);
+         received.set(size);
+         endMillis = System.currentTimeMillis();
+         done = true;
+      }
+
+      public boolean isDone() {
+         return done;
+      }
+
+      /**
+       * @return when tracking of the download started
+       */
+      public long getStartMillis() {
+         return startMillis;
+      }
+
+      /**
+       * @return when the download was marked done, or 0 if it is not
+       */
+      public long getEndMillis() {
+         return endMillis;
+      }
+   }
+
+   /**
+    * Start tracking a download.
+    */
+   public Item add(String url) {
+      Item item = new Item(url);
+      items.add(item);
+      return item;
+   }
+
+   /**
+    * @return the downloads tracked so far
+    */
+   public List<Item> getItems() {
+      return Collections.unmodifiableList(items);
+   }
+
+   public long getTotal() {
+      long sum = 0;
+      for (Item item : items) {
+         sum += Math.max(item.getTotal(), 0);
+      }
+      return sum;
+   }
+
+   public long getReceived() {
+      long sum = 0;
+      for (Item item : items) {
+         sum += item.getReceived();
+      }
+      return sum;
+   }
+
+   /**
+    * @return percentage of the bytes received, 100 only once every
+    * download is done
+    */
+   public int getPercent() {
+      boolean done = true;
+      long total = 0;
+      long received = 0;
+      for (Item item : items) {
+         done &= item.isDone();
+         if (item.getTotal() >= 0) {
+            total += item.getTotal();
+            received += Math.min(item.getReceived(), item.getTotal());
+         }
+      }
+      if (done) {
+         return 100;
+      }
+      return (total == 0) ? 0 : (int) Math.min(99, received * 100 / total);
+   }
+}
@@ -0,0 +1,138 @@
+/* ***********************************************************************
+ * VMware ThinApp Factory
+ * Copyright (c) 2009-2013 VMware, Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ***********************************************************************/
+
+package com.vmware.thinapp.manualmode.util;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.base.Ticker;
+import com.vmware.thinapp.workpool.Backoff;
+
+/**
+ * Waits for a capture's guest to become ready and records how long each
+ * step took.
+ *
+ * Steps that can block on a change notification, such as the VM's tools
+ * status or IP address, are only timed.  Steps that have to be probed, such
+ * as running a command to see if the user is logged in, are retried with
+ * exponential backoff so a guest that is almost ready isn't left idle for a
+ * long fixed interval.
+ */
+public class GuestReadiness {
+   /**
+    * A readiness check to retry until it passes.
+    */
+   public interface Probe {
+      /**
+       * @return true if the guest is ready
+       */
+      boolean isReady() throws IOException;
+   }
+
+   /**
+    * Sleeps between probes; tests replace it with a fake clock.
+    */
+   public interface Sleeper {
+      void sleep(long millis) throws InterruptedException;
+   }
+
+   public static final Sleeper THREAD_SLEEPER = new Sleeper() {
+      @Override
+      public void sleep(long millis) throws InterruptedException {
+         Thread.sleep(millis);
+      }
+   };
+
+   private final Backoff backoff;
+   private final Ticker ticker;
+   private final Sleeper sleeper;
+   private final LatencyHistogram latencies = new LatencyHistogram();
+
+   public GuestReadiness(Backoff backoff) {
+      this(backoff, Ticker.systemTicker(), THREAD_SLEEPER);
+   }
+
+   public GuestReadiness(Backoff backoff, Ticker ticker, Sleeper sleeper) {
+      this.backoff = backoff;
+      this.ticker = ticker;
+      this.sleeper = sleeper;
+   }
+
+   /**
+    * Run a wait that blocks until the guest is ready, such as
+    * VirtualMachine.waitForTools(), and record how long it took.
+    *
+    * @param name name to record the latency under
+    * @param wait the wait to run
+    */
+   public void await(String name, Runnable wait) {
+      long start = ticker.read();
+      try {
+         wait.run();
+      } finally {
+         record(name, start);
+      }
+   }
+
+   /**
+    * Run the probe until it passes or the timeout has passed, backing off
+    * between attempts, and record how long it took.
+    *
+    * @param name          name to record the latency under
+    * @param probe         the probe to run
+    * @param timeoutMillis how long to keep probing
+    * @return true if the probe passed, false on timeout
+    * @throws IOException if the probe fails with one
+    */
+   public boolean poll(String name, Probe probe, long timeoutMillis) throws IOException {
+      long start = ticker.read();
+      long deadline = start + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+      try {
+         for (int attempt = 0; ; attempt++) {
+            if (probe.isReady()) {
+               return true;
+            }
+
+            long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - ticker.read());
+            if (remaining <= 0) {
+               return false;
+            }
+
+            try {
+               sleeper.sleep(Math.min(backoff.delay(attempt), remaining));
+            } catch (InterruptedException e) {
+               throw new RuntimeException(
+                     String.format("Interrupted while waiting for %s.", name), e);
+            }
+         }
+      } finally {
+         record(name, start);
+      }
+   }
+
+   /**
+    * @return the latencies recorded so far
+    */
+   public LatencyHistogram getLatencies() {
+      return latencies;
+   }
+
+   private void record(String name, long start) {
+      latencies.record(name, TimeUnit.NANOSECONDS.toMillis(ticker.read() - start));
+   }
+}
@@ -0,0 +1,112 @@
+/* ***********************************************************************
+ * VMware ThinApp Factory
+ * Copyright (c) 2009-2013 VMware, Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ***********************************************************************/
+
+package com.vmware.thinapp.manualmode.util;
+
+import java.io.InterruptedIOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Limits the connections to and the bandwidth used with each host, shared
+ * by all downloads from that host.
+ */
+public class HostLimiter {
+   /** How far ahead of the limit a host may get, in a burst */
+   private static final long BURST_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+   private final int maxConnections;
+   private final long maxBytesPerSecond;
+   private final ConcurrentMap<String, Host> hosts = new ConcurrentHashMap<String, Host>();
+
+   private class Host {
+      final Semaphore connections = new Semaphore(
+            (maxConnections > 0) ? maxConnections : Integer.MAX_VALUE, true);
+      /** When the bytes sent so far are paid for, in System.nanoTime() */
+      long paidUntil = System.nanoTime();
+   }
+
+   /**
+    * @param maxConnections connections per host, or 0 for no limit
+    * @param maxBytesPerSecond bandwidth per host, or 0 for no limit
+    */
+   public HostLimiter(int maxConnections, long maxBytesPerSecond) {
+      this.maxConnections = maxConnections;
+      this.maxBytesPerSecond = maxBytesPerSecond;
+   }
+
+   public int getMaxConnections() {
+      return maxConnections;
+   }
+
+   /**
+    * Wait for a free connection to the host.  Every successful call must be
+    * matched by a call to release().
+    */
+   public void acquire(String host) throws InterruptedIOException {
+      try {
+         host(host).connections.acquire();
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+         throw new InterruptedIOException("Interrupted while waiting for a connection to " + host);
+      }
+   }
+
+   public void release(String host) {
+      host(host).connections.release();
+   }
+
+   /**
+    * Account for bytes received from the host, sleeping as long as it takes
+    * to stay within the bandwidth limit.
+    */
+   public void throttle(String host, int bytes) throws InterruptedIOException {
+      if (maxBytesPerSecond <= 0) {
+         return;
+      }
+      Host state = host(host);
+      long wait;
+      synchronized (state) {
+         long now = System.nanoTime();
+         state.paidUntil = Math.max(state.paidUntil, now) +
+               bytes * TimeUnit.SECONDS.toNanos(1) / maxBytesPerSecond;
+         wait = state.paidUntil - now - BURST_NANOS;
+      }
+      if (wait > 0) {
+         try {
+            TimeUnit.NANOSECONDS.sleep(wait);
+         } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while downloading from " + host);
+         }
+      }
+   }
+
+   private Host host(String name) {
+      Host host = hosts.get(name);
+      if (host == null) {
+         Host created = new Host();
+         host = hosts.putIfAbsent(name, created);
+         if (host == null) {
+            host = created;
+         }
+      }
+      return host;
+   }
+}
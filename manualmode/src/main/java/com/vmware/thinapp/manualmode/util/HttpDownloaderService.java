@@ -17,6 +17,7 @@
 
 package com.vmware.thinapp.manualmode.util;
 
+import java.io.File;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Future;
@@ -47,17 +48,24 @@ public class HttpDownloaderService {
    @Autowired
    private ExecutorService executor;
 
+   /** Downloads go through this cache unless it isn't configured */
+   @Autowired(required = false)
+   private DownloadCache downloadCache;
+
    private class DownloadTask implements Callable<DownloadResult> {
       private final String url;
       private final String downloadDir;
       private final String defaultFilename;
       private final String logFile;
+      private final DownloadProgress.Item progress;
 
-      public DownloadTask(String url, String downloadDir, String defaultFilename) {
+      public DownloadTask(String url, String downloadDir, String defaultFilename,
+            DownloadProgress.Item progress) {
          super();
          this.url = url;
          this.downloadDir = downloadDir;
          this.defaultFilename = defaultFilename;
+         this.progress = progress;
          this.logFile = ThreadLocalProperties.getProperty(
                         ThreadLocalProperties.PER_PROJECT_LOGFILE);
       }
@@ -67,9 +75,16 @@ public class HttpDownloaderService {
          try {
             ThreadLocalFileAppender.set(logFile);
             log.debug("Attempting to download from url {}", url);
-            return new DownloadResult(
-                  url, downloadDir,
-                  HttpDownloader.downloadToFile(url, downloadDir, defaultFilename));
+            String filename;
+            if (downloadCache != null) {
+               filename = downloadCache.downloadTo(
+                     url, downloadDir, defaultFilename, progress);
+            } else {
+               filename = HttpDownloader.downloadToFile(
+                     url, downloadDir, defaultFilename);
+               progress.setDone(new File(downloadDir, filename).length());
+            }
+            return new DownloadResult(url, downloadDir, filename);
          } catch (Throwable t) {
             /**
              * Eat the exception because it needs to return the status
@@ -97,8 +112,20 @@ public class HttpDownloaderService {
     */
    public Future<DownloadResult> asyncDownload(String url, String downloadDir,
          String defaultFilename) {
-      return executor
-            .submit(new DownloadTask(url, downloadDir, defaultFilename));
+      return asyncDownload(url, downloadDir, defaultFilename,
+            new DownloadProgress());
+   }
+
+   /**
+    * Async download to a given file, adding its progress to the given
+    * aggregate.
+    *
+    * @see #asyncDownload(String, String, String)
+    */
+   public Future<DownloadResult> asyncDownload(String url, String downloadDir,
+         String defaultFilename, DownloadProgress progress) {
+      return executor.submit(new DownloadTask(
+            url, downloadDir, defaultFilename, progress.add(url)));
    }
 
    /**
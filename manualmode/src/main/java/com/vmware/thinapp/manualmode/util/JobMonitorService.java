@@ -25,8 +25,6 @@ import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.ScheduledFuture;
-import java.util.concurrent.TimeUnit;
 
 import org.apache.commons.lang.builder.CompareToBuilder;
 import org.apache.commons.lang.builder.HashCodeBuilder;
@@ -60,8 +58,9 @@ import scala.Option;
 public class JobMonitorService {
    private static final int MIN_PERF_TASK_THREADS = 1;
    private final Logger log = LoggerFactory.getLogger(JobMonitorService.class);
-   private final Map<JobMonitorTicket, ScheduledFuture<?>> perfTasks;
+   private final Map<JobMonitorTicket, PerformanceCollector.Subscription> perfTasks;
    private final ScheduledExecutorService executor;
+   private final PerformanceCollector collector;
 
    @Autowired
    private VCManager vcManager;
@@ -100,8 +99,9 @@ public class JobMonitorService {
    }
 
    public JobMonitorService() {
-      perfTasks = new ConcurrentHashMap<JobMonitorTicket, ScheduledFuture<?>>();
+      perfTasks = new ConcurrentHashMap<JobMonitorTicket, PerformanceCollector.Subscription>();
       executor = Executors.newScheduledThreadPool(MIN_PERF_TASK_THREADS);
+      collector = new PerformanceCollector(executor);
    }
 
    /**
@@ -136,6 +136,7 @@ public class JobMonitorService {
                refreshRate.get(),
                vm,
                perfMgr,
+               collector,
                counterIdToName,
                log,
                PerformanceData.QUERY_COUNTERS_ALL);
@@ -164,16 +165,19 @@ public class JobMonitorService {
          throw ex;
       }
 
-      // The query worked, so schedule a task to poll for performance data
-      ScheduledFuture<?> res = executor.scheduleWithFixedDelay(
-            task,
-            refreshRate.get(),
+      // The query worked, so poll the VM along with the others of this
+      // vCenter and refresh rate
+      PerformanceCollector.Subscription subscription = collector.subscribe(
+            perfMgr,
+            vmMoid,
             refreshRate.get(),
-            TimeUnit.SECONDS);
+            querySpec.get(),
+            counterIdToName,
+            listener);
 
-      // Remember the task handle so we can cancel it later when the job stops
+      // Remember the subscription so we can cancel it later when the job stops
       JobMonitorTicket ticket = getTicket(vmMoid, refreshRate.get());
-      perfTasks.put(ticket, res);
+      perfTasks.put(ticket, subscription);
 
       return ticket;
    }
@@ -185,10 +189,10 @@ public class JobMonitorService {
     */
    public void stopMonitoring(JobMonitorTicket ticket) {
       if (ticket != null) {
-         ScheduledFuture<?> taskHandle = perfTasks.remove(ticket);
-         if (taskHandle != null) {
+         PerformanceCollector.Subscription subscription = perfTasks.remove(ticket);
+         if (subscription != null) {
             log.debug("Stopping performance monitoring for VM {}.", ticket.getId());
-            taskHandle.cancel(true);
+            collector.unsubscribe(subscription);
          }
       }
    }
@@ -207,6 +211,7 @@ public class JobMonitorService {
     * @param refreshRate
     * @param vm
     * @param perfMgr
+    * @param collector caches the performance counter infos
     * @param counters strings such as "cpu.usage.average", and "disk.usage.average"
     * @return the query if processing was successful, empty otherwise
     */
@@ -214,6 +219,7 @@ public class JobMonitorService {
          Integer refreshRate,
          VirtualMachine vm,
          PerformanceManager perfMgr,
+         PerformanceCollector collector,
          Map<Integer, String> counterIdToName,
          Logger log,
          ImmutableSet<String> counters) {
@@ -245,7 +251,7 @@ public class JobMonitorService {
       // Get all performance counter info objects
       PerfCounterInfo[] perfCounterInfos = null;
       try {
-         perfCounterInfos = perfMgr.queryPerfCounter(perfCounterIds);
+         perfCounterInfos = collector.getCounterInfo(perfMgr, perfCounterIds);
       } catch (RemoteException ex) {
          log.debug("Unable to obtain collection of available performance counter infos:", ex);
          return Option.empty();
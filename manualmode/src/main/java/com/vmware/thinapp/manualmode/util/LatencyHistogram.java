@@ -0,0 +1,128 @@
+/* ***********************************************************************
+ * VMware ThinApp Factory
+ * Copyright (c) 2009-2013 VMware, Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ***********************************************************************/
+
+package com.vmware.thinapp.manualmode.util;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Counts the latencies of named operations in fixed buckets, from 100 ms up
+ * to two minutes.
+ */
+public class LatencyHistogram {
+   /** Upper bounds of the buckets, the last bucket holds everything above */
+   private static final long[] BOUNDS_MS = {
+      100, 250, 500, 1000, 2500, 5000, 10000, 30000, 60000, 120000 };
+
+   private static class Entry {
+      private final long[] counts = new long[BOUNDS_MS.length + 1];
+      private long total;
+      private long totalMillis;
+   }
+
+   private final Map<String, Entry> entries = new LinkedHashMap<String, Entry>();
+
+   /**
+    * Record one latency of the given operation.
+    *
+    * @param name   name of the operation
+    * @param millis how long it took
+    */
+   public synchronized void record(String name, long millis) {
+      Entry entry = entries.get(name);
+      if (entry == null) {
+         entry = new Entry();
+         entries.put(name, entry);
+      }
+      entry.counts[bucket(millis)]++;
+      entry.total++;
+      entry.totalMillis += millis;
+   }
+
+   /**
+    * @return how many latencies were recorded for the operation
+    */
+   public synchronized long getCount(String name) {
+      Entry entry = entries.get(name);
+      return (entry == null) ? 0 : entry.total;
+   }
+
+   /**
+    * @return the sum of all latencies recorded for the operation
+    */
+   public synchronized long getTotalMillis(String name) {
+      Entry entry = entries.get(name);
+      return (entry == null) ? 0 : entry.totalMillis;
+   }
+
+   /**
+    * Get the number of latencies in each bucket.  Bucket i counts latencies
+    * up to getBounds()[i], the extra last bucket counts the rest.
+    *
+    * @param name name of the operation
+    * @return a copy of the bucket counts
+    */
+   public synchronized long[] getCounts(String name) {
+      Entry entry = entries.get(name);
+      return (entry == null) ? new long[BOUNDS_MS.length + 1] : entry.counts.clone();
+   }
+
+   public static long[] getBounds() {
+      return BOUNDS_MS.clone();
+   }
+
+   static int bucket(long millis) {
+      for (int i = 0; i < BOUNDS_MS.length; i++) {
+         if (millis <= BOUNDS_MS[i]) {
+            return i;
+         }
+      }
+      return BOUNDS_MS.length;
+   }
+
+   /**
+    * E.g. "tools: 1 in 4210 ms [<=5000ms: 1]", listing non-empty buckets only.
+    */
+   @Override
+   public synchronized String toString() {
+      StringBuilder sb = new StringBuilder();
+      for (Map.Entry<String, Entry> e : entries.entrySet()) {
+         Entry entry = e.getValue();
+         if (sb.length() > 0) {
+            sb.append(", ");
+         }
+         sb.append(e.getKey()).append(": ").append(entry.total)
+           .append(" in ").append(entry.totalMillis).append(" ms [");
+         String separator = "";
+         for (int i = 0; i < entry.counts.length; i++) {
+            if (entry.counts[i] > 0) {
+               sb.append(separator);
+               if (i < BOUNDS_MS.length) {
+                  sb.append("<=").append(BOUNDS_MS[i]);
+               } else {
+                  sb.append(">").append(BOUNDS_MS[BOUNDS_MS.length - 1]);
+               }
+               sb.append("ms: ").append(entry.counts[i]);
+               separator = ", ";
+            }
+         }
+         sb.append(']');
+      }
+      return sb.toString();
+   }
+}
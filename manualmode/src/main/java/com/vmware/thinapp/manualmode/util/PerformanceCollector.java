@@ -0,0 +1,339 @@
+/* ***********************************************************************
+ * VMware ThinApp Factory
+ * Copyright (c) 2009-2013 VMware, Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ***********************************************************************/
+
+package com.vmware.thinapp.manualmode.util;
+
+import java.net.URL;
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.vmware.thinapp.common.converter.exception.ConverterException;
+import com.vmware.vim25.PerfCounterInfo;
+import com.vmware.vim25.PerfEntityMetricBase;
+import com.vmware.vim25.PerfQuerySpec;
+import com.vmware.vim25.mo.PerformanceManager;
+import com.vmware.vim25.mo.ServerConnection;
+
+/**
+ * Polls the performance of monitored VMs in batches.
+ *
+ * All VMs of a vCenter that share a refresh rate are polled together, with
+ * a single queryPerf call per interval, and the results are handed to the
+ * listener of each VM.  Performance counter metadata is cached per vCenter,
+ * as it doesn't change while connected, until its last VM stops being polled.
+ *
+ * A vCenter is identified by its URL and the moid of its performance
+ * manager, as each lookup of the performance manager returns a new object.
+ */
+public class PerformanceCollector {
+   private static final Logger log = LoggerFactory.getLogger(PerformanceCollector.class);
+
+   private final ScheduledExecutorService executor;
+
+   /** Batches by vCenter and refresh rate; guarded by this */
+   private final Map<VCenter, Map<Integer, Batch>> batches =
+         new HashMap<VCenter, Map<Integer, Batch>>();
+
+   /** Performance counter metadata by vCenter and counter ID; guarded by itself */
+   private final Map<VCenter, Map<Integer, PerfCounterInfo>> counterInfos =
+         new HashMap<VCenter, Map<Integer, PerfCounterInfo>>();
+
+   /**
+    * Identifies the vCenter of a performance manager.
+    */
+   private static class VCenter {
+      private final String url;
+      private final String perfMgrMoid;
+
+      VCenter(PerformanceManager perfMgr) {
+         ServerConnection connection = perfMgr.getServerConnection();
+         URL serverUrl = (connection == null) ? null : connection.getUrl();
+         this.url = (serverUrl == null) ? "" : serverUrl.toString();
+         this.perfMgrMoid = perfMgr.getMOR().get_value();
+      }
+
+      @Override
+      public boolean equals(Object o) {
+         if (this == o) {
+            return true;
+         }
+         if (!(o instanceof VCenter)) {
+            return false;
+         }
+         VCenter other = (VCenter) o;
+         return url.equals(other.url) && perfMgrMoid.equals(other.perfMgrMoid);
+      }
+
+      @Override
+      public int hashCode() {
+         return 31 * url.hashCode() + perfMgrMoid.hashCode();
+      }
+
+      @Override
+      public String toString() {
+         return url;
+      }
+   }
+
+   /**
+    * A VM being monitored.
+    */
+   public static class Subscription {
+      private final String vmMoid;
+      private final PerfQuerySpec querySpec;
+      private final Map<Integer, String> counterIdToName;
+      private final PerformanceDataListener listener;
+      private Batch batch;
+
+      private Subscription(String vmMoid, PerfQuerySpec querySpec,
+            Map<Integer, String> counterIdToName, PerformanceDataListener listener) {
+         this.vmMoid = vmMoid;
+         this.querySpec = querySpec;
+         this.counterIdToName = counterIdToName;
+         this.listener = listener;
+      }
+
+      public String getVmMoid() {
+         return vmMoid;
+      }
+
+      private void deliver(PerfEntityMetricBase metric) {
+         VCPerformancePollTask.processPerformanceValues(metric, counterIdToName, listener);
+      }
+   }
+
+   /**
+    * The VMs of one vCenter polled at the same refresh rate.
+    */
+   private class Batch implements Runnable {
+      private final VCenter vCenter;
+      /** The performance manager of the latest subscription */
+      private volatile PerformanceManager perfMgr;
+      private final int refreshRate;
+      private final List<Subscription> subscriptions = new CopyOnWriteArrayList<Subscription>();
+      private ScheduledFuture<?> future;
+
+      Batch(VCenter vCenter, PerformanceManager perfMgr, int refreshRate) {
+         this.vCenter = vCenter;
+         this.perfMgr = perfMgr;
+         this.refreshRate = refreshRate;
+      }
+
+      @Override
+      public void run() {
+         PerformanceManager perfMgr = this.perfMgr;
+
+         // Query each VM once, however many listeners it has.
+         Map<String, PerfQuerySpec> specs = new LinkedHashMap<String, PerfQuerySpec>();
+         for (Subscription subscription : subscriptions) {
+            if (!specs.containsKey(subscription.vmMoid)) {
+               specs.put(subscription.vmMoid, subscription.querySpec);
+            }
+         }
+         if (specs.isEmpty()) {
+            return;
+         }
+
+         try {
+            deliver(perfMgr.queryPerf(specs.values().toArray(new PerfQuerySpec[specs.size()])));
+         } catch (RemoteException ex) {
+            if (specs.size() == 1) {
+               log.debug("Querying performance data failed:", ex);
+               return;
+            }
+            // One VM that went away fails the whole batch: query the VMs
+            // one by one so the others still get their data.
+            log.debug("Querying performance data of {} VMs failed, querying each VM.",
+                  specs.size(), ex);
+            for (Map.Entry<String, PerfQuerySpec> spec : specs.entrySet()) {
+               try {
+                  deliver(perfMgr.queryPerf(new PerfQuerySpec[] { spec.getValue() }));
+               } catch (RemoteException vmEx) {
+                  log.debug("Querying performance data for VM {} failed.", spec.getKey(), vmEx);
+               }
+            }
+         } catch (RuntimeException ex) {
+            // Keep the batch scheduled: an exception would cancel it.
+            log.warn("Polling performance data failed:", ex);
+         }
+      }
+
+      private void deliver(PerfEntityMetricBase[] metrics) {
+         if (metrics == null) {
+            log.debug("Performance query returned null.");
+            return;
+         }
+         for (PerfEntityMetricBase metric : metrics) {
+            String moid = (metric.getEntity() == null) ? null : metric.getEntity().get_value();
+            for (Subscription subscription : subscriptions) {
+               if (subscription.vmMoid.equals(moid)) {
+                  try {
+                     subscription.deliver(metric);
+                  } catch (ConverterException ex) {
+                     log.debug("Unable to process performance data for VM {}.", moid, ex);
+                  }
+               }
+            }
+         }
+      }
+   }
+
+   /**
+    * @param executor executor to poll on
+    */
+   public PerformanceCollector(ScheduledExecutorService executor) {
+      this.executor = executor;
+   }
+
+   /**
+    * Start polling a VM with the others of its vCenter and refresh rate.
+    *
+    * @param perfMgr the performance manager of the VM's vCenter
+    * @param vmMoid the moid of the VM
+    * @param refreshRate refresh rate of the VM, in seconds
+    * @param querySpec query for the VM's performance data
+    * @param counterIdToName names of the counters queried
+    * @param listener listener to give the VM's performance data to
+    * @return a subscription to pass to unsubscribe()
+    */
+   public synchronized Subscription subscribe(PerformanceManager perfMgr, String vmMoid,
+         int refreshRate, PerfQuerySpec querySpec, Map<Integer, String> counterIdToName,
+         PerformanceDataListener listener) {
+      VCenter vCenter = new VCenter(perfMgr);
+      Map<Integer, Batch> byRate = batches.get(vCenter);
+      if (byRate == null) {
+         byRate = new HashMap<Integer, Batch>();
+         batches.put(vCenter, byRate);
+      }
+      Batch batch = byRate.get(refreshRate);
+      if (batch != null) {
+         batch.perfMgr = perfMgr;
+      } else {
+         batch = new Batch(vCenter, perfMgr, refreshRate);
+         byRate.put(refreshRate, batch);
+         batch.future = executor.scheduleAtFixedRate(
+               batch, refreshRate, refreshRate, TimeUnit.SECONDS);
+         log.debug("Started polling performance data every {} seconds.", refreshRate);
+      }
+
+      Subscription subscription = new Subscription(vmMoid, querySpec, counterIdToName, listener);
+      subscription.batch = batch;
+      batch.subscriptions.add(subscription);
+      return subscription;
+   }
+
+   /**
+    * Stop polling a VM, and its batch once it has no other VMs.  Once no
+    * VM of a vCenter is polled, its cached counter metadata is dropped.
+    */
+   public synchronized void unsubscribe(Subscription subscription) {
+      Batch batch = subscription.batch;
+      if (batch == null || !batch.subscriptions.remove(subscription)) {
+         return;
+      }
+      if (batch.subscriptions.isEmpty()) {
+         batch.future.cancel(false);
+         Map<Integer, Batch> byRate = batches.get(batch.vCenter);
+         byRate.remove(batch.refreshRate);
+         if (byRate.isEmpty()) {
+            batches.remove(batch.vCenter);
+            synchronized (counterInfos) {
+               counterInfos.remove(batch.vCenter);
+            }
+            log.debug("Stopped polling {}.", batch.vCenter);
+         }
+         log.debug("Stopped polling performance data every {} seconds.", batch.refreshRate);
+      }
+   }
+
+   /**
+    * @return the number of VMs polled
+    */
+   public synchronized int getSubscriptionCount() {
+      int count = 0;
+      for (Map<Integer, Batch> byRate : batches.values()) {
+         for (Batch batch : byRate.values()) {
+            count += batch.subscriptions.size();
+         }
+      }
+      return count;
+   }
+
+   /**
+    * Get performance counter metadata, querying vCenter only for counters
+    * not seen before.
+    *
+    * @param perfMgr the performance manager of a vCenter
+    * @param counterIds the counters to describe
+    * @return the metadata of the counters vCenter knows
+    */
+   public PerfCounterInfo[] getCounterInfo(PerformanceManager perfMgr, int[] counterIds)
+         throws RemoteException {
+      VCenter vCenter = new VCenter(perfMgr);
+      Map<Integer, PerfCounterInfo> cache;
+      synchronized (counterInfos) {
+         cache = counterInfos.get(vCenter);
+         if (cache == null) {
+            cache = new HashMap<Integer, PerfCounterInfo>();
+            counterInfos.put(vCenter, cache);
+         }
+      }
+
+      synchronized (cache) {
+         List<Integer> missing = new ArrayList<Integer>();
+         for (int counterId : counterIds) {
+            if (!cache.containsKey(counterId)) {
+               missing.add(counterId);
+            }
+         }
+         if (!missing.isEmpty()) {
+            int[] query = new int[missing.size()];
+            for (int i = 0; i < query.length; i++) {
+               query[i] = missing.get(i);
+            }
+            PerfCounterInfo[] infos = perfMgr.queryPerfCounter(query);
+            if (infos == null) {
+               return null;
+            }
+            for (PerfCounterInfo info : infos) {
+               cache.put(info.getKey(), info);
+            }
+            log.debug("Cached {} performance counter infos.", infos.length);
+         }
+
+         List<PerfCounterInfo> result = new ArrayList<PerfCounterInfo>();
+         for (int counterId : counterIds) {
+            PerfCounterInfo info = cache.get(counterId);
+            if (info != null) {
+               result.add(info);
+            }
+         }
+         return result.toArray(new PerfCounterInfo[result.size()]);
+      }
+   }
+}
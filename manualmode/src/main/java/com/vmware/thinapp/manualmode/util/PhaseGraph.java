@@ -0,0 +1,379 @@
+/* ***********************************************************************
+ * VMware ThinApp Factory
+ * Copyright (c) 2009-2013 VMware, Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ***********************************************************************/
+
+package com.vmware.thinapp.manualmode.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+
+/**
+ * Runs named phases, each as soon as the phases it depends on have
+ * completed, so that phases that don't depend on each other run
+ * concurrently.
+ *
+ * A gate is a phase that waits for something outside the graph, such as
+ * the user, without holding a thread: it completes when its future does.
+ *
+ * When a phase fails, no more phases are started, the running ones are
+ * interrupted and open gates are cancelled.  run() returns only after all
+ * started phases have stopped, and then throws the first failure.
+ */
+public class PhaseGraph {
+   /**
+    * One step of the graph.
+    */
+   public interface Phase {
+      void run() throws Exception;
+   }
+
+   /**
+    * A step that waits without a thread.
+    */
+   public interface Gate {
+      /**
+       * Start waiting.  Called on the thread running the graph, so it
+       * should return quickly.
+       *
+       * @return a future that completes when the gate opens; the graph
+       *         fails if it fails or is cancelled
+       */
+      ListenableFuture<?> open() throws Exception;
+   }
+
+   /**
+    * Told about each phase that ran, on the thread that ran it or, for a
+    * gate, the thread that opened it.
+    */
+   public interface Listener {
+      /**
+       * @param name           name of the phase
+       * @param startMillis    when it started
+       * @param durationMillis how long it took
+       * @param failure        what it failed with, or null
+       */
+      void phaseFinished(String name, long startMillis, long durationMillis, Throwable failure);
+   }
+
+   private static class Node {
+      private final String name;
+      private final Phase phase;
+      private final Gate gate;
+      private final List<String> dependsOn;
+      private final List<Node> dependents = new ArrayList<Node>();
+      private int waitingFor;
+      /** Thread running the phase, guarded by the node */
+      private Thread thread;
+      /** Future of the open gate, guarded by the node */
+      private ListenableFuture<?> future;
+      /** Set when the phase should stop, guarded by the node */
+      private boolean interrupted;
+
+      private Node(String name, Phase phase, Gate gate, List<String> dependsOn) {
+         this.name = name;
+         this.phase = phase;
+         this.gate = gate;
+         this.dependsOn = dependsOn;
+      }
+   }
+
+   private static class Completion {
+      private final Node node;
+      private final Throwable failure;
+
+      private Completion(Node node, Throwable failure) {
+         this.node = node;
+         this.failure = failure;
+      }
+   }
+
+   private final Map<String, Node> nodes = new LinkedHashMap<String, Node>();
+   private final Map<String, Long> timings = new LinkedHashMap<String, Long>();
+   private volatile Listener listener;
+
+   /**
+    * Add a phase to the graph.  The phases it depends on may be added later.
+    *
+    * @param name      unique name of the phase
+    * @param phase     what to run
+    * @param dependsOn names of the phases that must complete first
+    * @return this graph
+    */
+   public PhaseGraph add(String name, Phase phase, String... dependsOn) {
+      return add(new Node(name, phase, null, Arrays.asList(dependsOn)));
+   }
+
+   /**
+    * Add a gate to the graph.  The phases it depends on may be added later.
+    *
+    * @param name      unique name of the gate
+    * @param gate      what to wait for
+    * @param dependsOn names of the phases that must complete first
+    * @return this graph
+    */
+   public PhaseGraph addGate(String name, Gate gate, String... dependsOn) {
+      return add(new Node(name, null, gate, Arrays.asList(dependsOn)));
+   }
+
+   private PhaseGraph add(Node node) {
+      if (nodes.containsKey(node.name)) {
+         throw new IllegalArgumentException(
+               String.format("Phase %s was already added.", node.name));
+      }
+      nodes.put(node.name, node);
+      return this;
+   }
+
+   public void setListener(Listener listener) {
+      this.listener = listener;
+   }
+
+   /**
+    * Run all phases and wait for them to complete.
+    *
+    * @param executor runs the phases; must be able to run as many phases at
+    *                 once as the graph allows
+    * @throws Exception the first failure of a phase, or InterruptedException
+    * if the calling thread was interrupted while phases were running
+    */
+   public void run(Executor executor) throws Exception {
+      List<Node> ready = resolve();
+      BlockingQueue<Completion> completions = new LinkedBlockingQueue<Completion>();
+      List<Node> running = new ArrayList<Node>();
+      Throwable failure = null;
+
+      for (Node node : ready) {
+         start(node, executor, completions);
+         running.add(node);
+      }
+
+      while (!running.isEmpty()) {
+         Completion completion;
+         try {
+            completion = completions.take();
+         } catch (InterruptedException e) {
+            if (failure == null) {
+               failure = e;
+               interrupt(running);
+            }
+            continue;
+         }
+
+         running.remove(completion.node);
+         if (completion.failure != null) {
+            if (failure == null) {
+               failure = completion.failure;
+               interrupt(running);
+            }
+            continue;
+         }
+
+         if (failure == null) {
+            for (Node dependent : completion.node.dependents) {
+               if (--dependent.waitingFor == 0) {
+                  start(dependent, executor, completions);
+                  running.add(dependent);
+               }
+            }
+         }
+      }
+
+      if (failure instanceof Exception) {
+         throw (Exception) failure;
+      } else if (failure instanceof Error) {
+         throw (Error) failure;
+      } else if (failure != null) {
+         throw new RuntimeException(failure);
+      }
+   }
+
+   /**
+    * Get how long each phase that ran took, in the order they completed.
+    *
+    * @return a map of phase name to milliseconds
+    */
+   public Map<String, Long> getTimings() {
+      synchronized (timings) {
+         return Collections.unmodifiableMap(new LinkedHashMap<String, Long>(timings));
+      }
+   }
+
+   /**
+    * Link each phase to its dependencies.
+    *
+    * @return the phases that depend on nothing
+    */
+   private List<Node> resolve() {
+      List<Node> ready = new ArrayList<Node>();
+      for (Node node : nodes.values()) {
+         node.dependents.clear();
+         node.waitingFor = 0;
+      }
+      for (Node node : nodes.values()) {
+         for (String name : node.dependsOn) {
+            Node dependency = nodes.get(name);
+            if (dependency == null) {
+               throw new IllegalArgumentException(String.format(
+                     "Phase %s depends on unknown phase %s.", node.name, name));
+            }
+            dependency.dependents.add(node);
+            node.waitingFor++;
+         }
+         if (node.waitingFor == 0) {
+            ready.add(node);
+         }
+      }
+
+      // Make sure every phase can be reached before starting any
+      Map<Node, Integer> waiting = new LinkedHashMap<Node, Integer>();
+      for (Node node : nodes.values()) {
+         waiting.put(node, Integer.valueOf(node.waitingFor));
+      }
+      LinkedList<Node> queue = new LinkedList<Node>(ready);
+      int reached = 0;
+      while (!queue.isEmpty()) {
+         Node node = queue.removeFirst();
+         reached++;
+         for (Node dependent : node.dependents) {
+            int left = waiting.get(dependent).intValue() - 1;
+            waiting.put(dependent, Integer.valueOf(left));
+            if (left == 0) {
+               queue.add(dependent);
+            }
+         }
+      }
+      if (reached != nodes.size()) {
+         throw new IllegalArgumentException("Phase dependencies contain a cycle.");
+      }
+      return ready;
+   }
+
+   private void start(final Node node, Executor executor,
+         final BlockingQueue<Completion> completions) {
+      if (node.gate != null) {
+         open(node, completions);
+         return;
+      }
+
+      executor.execute(new Runnable() {
+         @Override
+         public void run() {
+            boolean skip;
+            synchronized (node) {
+               node.thread = Thread.currentThread();
+               skip = node.interrupted;
+            }
+            long start = System.currentTimeMillis();
+            Throwable failure = null;
+            try {
+               if (skip) {
+                  throw new InterruptedException(
+                        String.format("Phase %s was stopped before it started.", node.name));
+               }
+               node.phase.run();
+            } catch (Throwable t) {
+               failure = t;
+            } finally {
+               synchronized (node) {
+                  node.thread = null;
+                  // Don't leave an interrupt meant for this phase behind
+                  Thread.interrupted();
+               }
+               if (!skip) {
+                  finished(node, start, failure);
+               }
+               completions.add(new Completion(node, failure));
+            }
+         }
+      });
+   }
+
+   private void open(final Node node, final BlockingQueue<Completion> completions) {
+      final long start = System.currentTimeMillis();
+      final ListenableFuture<?> future;
+      try {
+         future = node.gate.open();
+      } catch (Throwable t) {
+         finished(node, start, t);
+         completions.add(new Completion(node, t));
+         return;
+      }
+
+      synchronized (node) {
+         node.future = future;
+      }
+      future.addListener(new Runnable() {
+         @Override
+         public void run() {
+            Throwable failure = null;
+            try {
+               future.get();
+            } catch (ExecutionException e) {
+               failure = e.getCause();
+            } catch (CancellationException e) {
+               failure = new InterruptedException(
+                     String.format("Gate %s was cancelled.", node.name));
+            } catch (InterruptedException e) {
+               // Can't happen, the future is done.
+               failure = e;
+            }
+            finished(node, start, failure);
+            completions.add(new Completion(node, failure));
+         }
+      }, MoreExecutors.sameThreadExecutor());
+   }
+
+   private void finished(Node node, long start, Throwable failure) {
+      long duration = System.currentTimeMillis() - start;
+      synchronized (timings) {
+         timings.put(node.name, Long.valueOf(duration));
+      }
+      Listener current = listener;
+      if (current != null) {
+         current.phaseFinished(node.name, start, duration, failure);
+      }
+   }
+
+   private static void interrupt(List<Node> running) {
+      for (Node node : running) {
+         ListenableFuture<?> future;
+         synchronized (node) {
+            node.interrupted = true;
+            if (node.thread != null) {
+               node.thread.interrupt();
+            }
+            future = node.future;
+         }
+         // Outside the lock, as the gate's listener runs right away.
+         if (future != null) {
+            future.cancel(false);
+         }
+      }
+   }
+}
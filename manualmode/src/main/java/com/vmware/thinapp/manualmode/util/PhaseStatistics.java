@@ -0,0 +1,138 @@
+/* ***********************************************************************
+ * VMware ThinApp Factory
+ * Copyright (c) 2009-2013 VMware, Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ***********************************************************************/
+
+package com.vmware.thinapp.manualmode.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.lang.StringUtils;
+
+/**
+ * Percentiles of how long each capture phase took, across many jobs.
+ *
+ * Fed from the phase timings stored with each conversion job, so slow
+ * phases can be picked out without digging through individual job logs.
+ */
+public class PhaseStatistics {
+   private final Map<String, List<Long>> samples = new LinkedHashMap<String, List<Long>>();
+
+   /**
+    * Statistics of one phase.  Percentiles use the nearest-rank method.
+    */
+   public static class Summary {
+      private final int count;
+      private final long p50;
+      private final long p90;
+      private final long p99;
+      private final long max;
+
+      private Summary(long[] sorted) {
+         count = sorted.length;
+         p50 = percentile(sorted, 50);
+         p90 = percentile(sorted, 90);
+         p99 = percentile(sorted, 99);
+         max = sorted[sorted.length - 1];
+      }
+
+      private static long percentile(long[] sorted, int percent) {
+         int rank = (int) Math.ceil(percent / 100.0 * sorted.length);
+         return sorted[Math.max(rank, 1) - 1];
+      }
+
+      public int getCount() {
+         return count;
+      }
+
+      public long getP50() {
+         return p50;
+      }
+
+      public long getP90() {
+         return p90;
+      }
+
+      public long getP99() {
+         return p99;
+      }
+
+      public long getMax() {
+         return max;
+      }
+   }
+
+   /**
+    * Parse phase timings as stored by ConversionJobRepository, i.e. comma
+    * separated name=milliseconds pairs.  Malformed pairs are skipped.
+    *
+    * @param timings the stored timings, may be null
+    * @return map of phase name to milliseconds
+    */
+   public static Map<String, Long> parseTimings(String timings) {
+      Map<String, Long> result = new LinkedHashMap<String, Long>();
+      if (StringUtils.isBlank(timings)) {
+         return result;
+      }
+      for (String pair : timings.split(",")) {
+         int eq = pair.lastIndexOf('=');
+         if (eq <= 0) {
+            continue;
+         }
+         try {
+            result.put(pair.substring(0, eq).trim(),
+                       Long.valueOf(pair.substring(eq + 1).trim()));
+         } catch (NumberFormatException e) {
+            // Skip it
+         }
+      }
+      return result;
+   }
+
+   /**
+    * Add the phase timings of one job.
+    */
+   public void add(Map<String, Long> timings) {
+      for (Map.Entry<String, Long> entry : timings.entrySet()) {
+         List<Long> phase = samples.get(entry.getKey());
+         if (phase == null) {
+            phase = new ArrayList<Long>();
+            samples.put(entry.getKey(), phase);
+         }
+         phase.add(entry.getValue());
+      }
+   }
+
+   /**
+    * @return statistics of each phase, in the order phases were first seen
+    */
+   public Map<String, Summary> summarize() {
+      Map<String, Summary> result = new LinkedHashMap<String, Summary>();
+      for (Map.Entry<String, List<Long>> entry : samples.entrySet()) {
+         List<Long> values = entry.getValue();
+         long[] sorted = new long[values.size()];
+         for (int i = 0; i < sorted.length; i++) {
+            sorted[i] = values.get(i).longValue();
+         }
+         Arrays.sort(sorted);
+         result.put(entry.getKey(), new Summary(sorted));
+      }
+      return result;
+   }
+}
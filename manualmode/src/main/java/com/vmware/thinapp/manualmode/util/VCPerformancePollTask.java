@@ -35,7 +35,7 @@ import com.vmware.vim25.PerfSampleInfo;
 import com.vmware.vim25.mo.PerformanceManager;
 
 public class VCPerformancePollTask implements PerformancePollTask {
-   private final Logger log = LoggerFactory.getLogger(VCPerformancePollTask.class);
+   private static final Logger log = LoggerFactory.getLogger(VCPerformancePollTask.class);
    private final String vmMoid;
    private final PerformanceManager perfMgr;
    private final PerfQuerySpec qSpec;
@@ -73,7 +73,7 @@ public class VCPerformancePollTask implements PerformancePollTask {
       }
 
       if (pValues != null && pValues.length == 1) {
-         processPerformanceValues(pValues[0]);
+         processPerformanceValues(pValues[0], counterIdToName, listener);
       } else {
          if (pValues == null) {
             log.debug("Performance query returned null.");
@@ -84,7 +84,17 @@ public class VCPerformancePollTask implements PerformancePollTask {
       }
    }
 
-   private void processPerformanceValues(PerfEntityMetricBase pmeBase) {
+   /**
+    * Give the values of one performance query result to a listener.
+    *
+    * @param pmeBase the result for one VM
+    * @param counterIdToName names of the counters queried
+    * @param listener listener to give the values to
+    */
+   static void processPerformanceValues(
+         PerfEntityMetricBase pmeBase,
+         Map<Integer, String> counterIdToName,
+         PerformanceDataListener listener) {
       if (!(pmeBase instanceof PerfEntityMetric)) {
          throw new ConverterException("Unexpected sub-type of PerfEntityMetricBase.");
       }
@@ -17,57 +17,54 @@
 
 package com.vmware.thinapp.manualmode.server
 
-import java.io.File
+import java.io.{File, InputStream}
 
-import org.springframework.beans.factory.annotation.Autowired
+import org.springframework.beans.factory.annotation.{Autowired, Value}
 import org.springframework.context.ApplicationContext
 import org.springframework.stereotype.Component
 
-import com.google.common.io.{ByteStreams, Files}
+import com.google.common.io.InputSupplier
 import com.vmware.thinapp.common.converter.dto.ThinAppRuntime
 
 /**
  * Class for creating self-extracting ThinApp runtime packages.
+ *
+ * Each runtime is packaged once and the package is shared by captures until
+ * the runtime changes; see RuntimePackageCache.
  */
 @Component
 class ThinAppRuntimePackager @Autowired()(appCtxt: ApplicationContext) {
+   /** Directory to keep packages in, a temporary directory by default. */
+   @Value("#{manualModeProperties['runtimePackageCachePath'] ?: ''}")
+   var cachePath: String = ""
+
+   private lazy val cache = {
+      val dir =
+         if (cachePath.isEmpty) new File(System.getProperty("java.io.tmpdir"), "thinapp-runtime-packages")
+         else new File(cachePath)
+      // The zip self-extract bootstrapper.
+      val sfx = appCtxt.getResource("classpath:unzipsfx.exe")
+      new RuntimePackageCache(dir, new InputSupplier[InputStream] {
+         def getInput = sfx.getInputStream
+      })
+   }
+
    /**
-    * Create a self-extracting package of a ThinApp runtime.
+    * Get the self-extracting package of a ThinApp runtime, building it if
+    * needed.  The package is shared: it must not be modified or deleted,
+    * and must be handed back with releasePackage.
     *
     * @param runtime
     */
-   def createPackage(runtime: ThinAppRuntime): File = {
-      val tempdir = Files.createTempDir()
-      // The zip self-extract bootstrapper.
-      val sfxFile = new File(tempdir, "sfx.exe")
-      // Zip file of the runtime.
-      val zipFile = new File(tempdir, "package.zip")
-      // The final self-extracting runtime package.
-      val packageFile = new File(tempdir, "package.exe")
-
-      // Easier to use external zip utility to recursively create a zip
-      // file than the built-in Zip class.
-      //
-      // Note that vmw.lic is a symlink in the source directory.  By default zip
-      // will dereference symlinks which is what's desired.
-      val proc = Runtime.getRuntime.exec(
-         Array("zip", "-r", zipFile.getAbsolutePath, "."), null, new File(runtime.path))
-      proc.waitFor
+   def acquirePackage(runtime: ThinAppRuntime): File =
+      cache.acquire("%s-%d".format(runtime.version, runtime.build), new File(runtime.path))
 
-      // Copy self-extracting stub into our temp directory.
-      val sfx = appCtxt.getResource("classpath:unzipsfx.exe").getInputStream
-      ByteStreams.copy(sfx, Files.newOutputStreamSupplier(sfxFile))
-
-      // Join the stub with the generated zip file.
-      val joined = ByteStreams.join(Files.newInputStreamSupplier(sfxFile),
-                                    Files.newInputStreamSupplier(zipFile))
-
-      // Write joined contents to final package output.
-      ByteStreams.copy(joined, Files.newOutputStreamSupplier(packageFile))
-
-      sfxFile.delete
-      zipFile.delete
-
-      packageFile
+   /**
+    * Hand back a package returned by acquirePackage.
+    *
+    * @param packageFile
+    */
+   def releasePackage(packageFile: File) {
+      cache.release(packageFile)
    }
-}
\ No newline at end of file
+}
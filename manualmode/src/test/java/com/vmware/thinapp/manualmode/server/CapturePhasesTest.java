@@ -0,0 +1,267 @@
+/* ***********************************************************************
+ * VMware ThinApp Factory
+ * Copyright (c) 2009-2013 VMware, Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ***********************************************************************/
+
+package com.vmware.thinapp.manualmode.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import com.vmware.thinapp.manualmode.util.PhaseGraph;
+
+/**
+ * Runs the capture phase graph that Capturer builds, with phase bodies
+ * that only take time.
+ */
+public class CapturePhasesTest {
+   private ExecutorService executor;
+
+   /**
+    * Capture steps that sleep about as long as the host or guest would
+    * take, and log the order they ran in.  The VM takes a while to boot.
+    */
+   private static class TimedSteps implements Capturer.CaptureSteps {
+      final List<String> log = Collections.synchronizedList(new ArrayList<String>());
+
+      private void step(String name, long millis) throws InterruptedException {
+         Thread.sleep(millis);
+         log.add(name);
+      }
+
+      private ListenableFuture<?> gate(String name) {
+         log.add(name);
+         return Futures.immediateFuture(null);
+      }
+
+      @Override
+      public void packageRuntime() throws Exception {
+         step("packageRuntime", 500);
+      }
+
+      @Override
+      public void prepareVm() throws Exception {
+         // Power on, wait for tools and for the guest IP
+         step("prepareVm", 500);
+      }
+
+      @Override
+      public void monitorVm() throws Exception {
+         step("monitorVm", 50);
+      }
+
+      @Override
+      public ListenableFuture<?> whenLoggedIn() throws Exception {
+         return gate("loggedIn");
+      }
+
+      @Override
+      public void verifyLoggedIn() throws Exception {
+         step("verifyLoggedIn", 100);
+      }
+
+      @Override
+      public void stageThinApp() throws Exception {
+         step("stageThinApp", 100);
+      }
+
+      @Override
+      public void downloadFiles() throws Exception {
+         step("downloadFiles", 0);
+      }
+
+      @Override
+      public void mountInOut() throws Exception {
+         step("mountInOut", 100);
+      }
+
+      @Override
+      public void preCapture() throws Exception {
+         step("preCapture", 50);
+      }
+
+      @Override
+      public ListenableFuture<?> whenPreCaptureDone() throws Exception {
+         return gate("preCaptureDone");
+      }
+
+      @Override
+      public void preCaptureSnapshot() throws Exception {
+         step("preCaptureSnapshot", 0);
+      }
+
+      @Override
+      public void preInstall() throws Exception {
+         step("preInstall", 0);
+      }
+
+      @Override
+      public void installApplication() throws Exception {
+         step("installApplication", 0);
+      }
+
+      @Override
+      public ListenableFuture<?> whenInstalled() throws Exception {
+         return gate("installed");
+      }
+
+      @Override
+      public void postInstall() throws Exception {
+         step("postInstall", 0);
+      }
+
+      @Override
+      public void postCaptureSnapshot() throws Exception {
+         step("postCaptureSnapshot", 0);
+      }
+
+      @Override
+      public void preBuild() throws Exception {
+         step("preBuild", 0);
+      }
+
+      @Override
+      public void buildProject() throws Exception {
+         step("buildProject", 0);
+      }
+   }
+
+   /**
+    * Capture steps where the user logs in and installs the application
+    * some time after being asked to.
+    */
+   private static class UserSteps extends TimedSteps {
+      final SettableFuture<Void> loggedIn = SettableFuture.create();
+      final SettableFuture<Void> installed = SettableFuture.create();
+
+      @Override
+      public ListenableFuture<?> whenLoggedIn() throws Exception {
+         super.whenLoggedIn();
+         userDoes(loggedIn);
+         return loggedIn;
+      }
+
+      @Override
+      public ListenableFuture<?> whenInstalled() throws Exception {
+         super.whenInstalled();
+         userDoes(installed);
+         return installed;
+      }
+
+      private void userDoes(final SettableFuture<Void> step) {
+         new Thread(new Runnable() {
+            @Override
+            public void run() {
+               try {
+                  Thread.sleep(200);
+               } catch (InterruptedException e) {
+                  Thread.currentThread().interrupt();
+               }
+               step.set(null);
+            }
+         }).start();
+      }
+   }
+
+   @Before
+   public void setup() {
+      executor = Executors.newCachedThreadPool();
+   }
+
+   @After
+   public void teardown() {
+      executor.shutdownNow();
+   }
+
+   @Test
+   public void captureWallTimeDrops() throws Exception {
+      // One after the other, the way the capture used to run
+      PhaseGraph sequential = Capturer.createPhases(new TimedSteps());
+      long start = System.currentTimeMillis();
+      sequential.run(new Executor() {
+         @Override
+         public void execute(Runnable command) {
+            command.run();
+         }
+      });
+      long sequentialMillis = System.currentTimeMillis() - start;
+
+      PhaseGraph pipelined = Capturer.createPhases(new TimedSteps());
+      start = System.currentTimeMillis();
+      pipelined.run(executor);
+      long pipelinedMillis = System.currentTimeMillis() - start;
+
+      // 1400 ms in order against 850 ms with packaging next to the boot
+      assertTrue(sequentialMillis >= 1350);
+      assertTrue("Pipelined capture took " + pipelinedMillis + " ms",
+            pipelinedMillis < sequentialMillis - 300);
+      assertEquals(18, pipelined.getTimings().size());
+      assertTrue(pipelined.getTimings().get("prepareVm").longValue() >= 450);
+   }
+
+   @Test
+   public void guestStepsRunInOrder() throws Exception {
+      TimedSteps steps = new TimedSteps();
+      Capturer.createPhases(steps).run(executor);
+
+      // Packaging and monitoring run next to the guest steps
+      List<String> guest = new ArrayList<String>(steps.log);
+      guest.removeAll(Arrays.asList("packageRuntime", "monitorVm"));
+      assertEquals(Arrays.asList(
+            "prepareVm", "loggedIn", "verifyLoggedIn", "stageThinApp",
+            "downloadFiles", "mountInOut", "preCapture", "preCaptureDone",
+            "preCaptureSnapshot", "preInstall", "installApplication",
+            "installed", "postInstall", "postCaptureSnapshot", "preBuild",
+            "buildProject"), guest);
+      assertTrue(steps.log.indexOf("packageRuntime") < steps.log.indexOf("stageThinApp"));
+      assertTrue(steps.log.indexOf("monitorVm") < steps.log.indexOf("preCapture"));
+   }
+
+   @Test
+   public void waitingForTheUserHoldsNoThread() throws Exception {
+      UserSteps steps = new UserSteps();
+      final AtomicInteger executed = new AtomicInteger();
+      PhaseGraph phases = Capturer.createPhases(steps);
+      phases.run(new Executor() {
+         @Override
+         public void execute(Runnable command) {
+            executed.incrementAndGet();
+            executor.execute(command);
+         }
+      });
+
+      // Every phase but the three gates took a thread
+      assertEquals(18, phases.getTimings().size());
+      assertEquals(15, executed.get());
+      assertTrue(phases.getTimings().get("loggedIn").longValue() >= 150);
+      assertTrue(phases.getTimings().get("installed").longValue() >= 150);
+   }
+}
@@ -0,0 +1,231 @@
+/* ***********************************************************************
+ * VMware ThinApp Factory
+ * Copyright (c) 2009-2013 VMware, Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ***********************************************************************/
+
+package com.vmware.thinapp.manualmode.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.Future;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.HashMultimap;
+import com.google.common.io.Files;
+import com.vmware.thinapp.common.converter.dto.CommandList;
+import com.vmware.thinapp.common.converter.dto.ConversionPhase;
+import com.vmware.thinapp.common.converter.dto.ProjectFile;
+import com.vmware.thinapp.common.converter.dto.ThinAppRuntime;
+import com.vmware.thinapp.manualmode.Config;
+import com.vmware.thinapp.manualmode.util.DownloadResult;
+import com.vmware.thinapp.manualmode.util.DriveLetterManager.DriveLetter;
+import com.vmware.thinapp.workpool.FakeGuestOperations;
+import com.vmware.thinapp.workpool.GuestCommands;
+import com.vmware.thinapp.workpool.GuestOperations.Operation;
+import com.vmware.thinapp.workpool.GuestOperations.Result;
+import com.vmware.thinapp.workpool.VmRunCommandBuilder;
+
+import scala.Option;
+
+/**
+ * Runs capture steps against a fake guest: counts the guest round trips
+ * of staging the ThinApp runtime and the guest tools, and checks what is
+ * left in the guest when the snapshots are taken.
+ */
+public class CapturerStagingTest {
+   private File root;
+   private File host;
+   private FakeGuestOperations fake;
+   private File runtimePackage;
+   private File setOption;
+   private File backupEventlogs;
+
+   /**
+    * Writes empty output for the scripts that collect their output.
+    */
+   private static final FakeGuestOperations.Handler OUTPUT = new FakeGuestOperations.Handler() {
+      @Override
+      public Result run(FakeGuestOperations guest, Operation operation) throws IOException {
+         if (operation.getType() == Operation.Type.runScript &&
+             operation.getArg(1).contains(VmRunCommandBuilder.OUTPUT_FILE)) {
+            File file = guest.file(VmRunCommandBuilder.OUTPUT_FILE);
+            file.getParentFile().mkdirs();
+            Files.write(VmRunCommandBuilder.STDERR_MARKER + "\r\n", file, Charsets.US_ASCII);
+         }
+         return new Result(0, "");
+      }
+   };
+
+   @Before
+   public void setUp() throws IOException {
+      root = Files.createTempDir();
+      host = Files.createTempDir();
+      fake = new FakeGuestOperations(root).setHandler(OUTPUT);
+      runtimePackage = write("package.exe", "runtime package");
+      setOption = write("setoption.exe", "setoption");
+      backupEventlogs = write("backupeventlogs.vbs", "backup event logs");
+   }
+
+   @After
+   public void tearDown() throws IOException {
+      Files.deleteRecursively(root);
+      Files.deleteRecursively(host);
+   }
+
+   private File write(String name, String content) throws IOException {
+      File file = new File(host, name);
+      Files.write(content, file, Charsets.US_ASCII);
+      return file;
+   }
+
+   private ManualCapturer capturer() {
+      Option<DriveLetter> noDriveLetter = Option.empty();
+      ManualCapturer capturer = new ManualCapturer(
+            new ArrayList<Future<DownloadResult>>(),
+            new ArrayList<Mounter>(), null, noDriveLetter,
+            HashMultimap.<DriveLetter, ProjectFile>create(),
+            new HashMap<ConversionPhase, CommandList>(),
+            null);
+      capturer.gc = new GuestCommands(fake);
+      capturer.config = new Config() {
+         @Override
+         public String getSetOptionExePath() {
+            return setOption.getPath();
+         }
+
+         @Override
+         public String getBackupEventlogsScriptPath() {
+            return backupEventlogs.getPath();
+         }
+      };
+      capturer.thinAppRuntimePackager = new ThinAppRuntimePackager(null) {
+         @Override
+         public File acquirePackage(ThinAppRuntime runtime) {
+            return runtimePackage;
+         }
+
+         @Override
+         public void releasePackage(File packageFile) {
+         }
+      };
+      return capturer;
+   }
+
+   /**
+    * What staging used to do: create the runtime directory, upload the
+    * runtime package and extract it, upload setoption.exe in preCapture,
+    * and upload backupeventlogs.vbs when the event logs are backed up.
+    */
+   private void stageOneAtATime(GuestCommands gc) throws IOException {
+      gc.createDirectory("c:\\thinapp-00000");
+      gc.uploadFileToGuest(runtimePackage.getPath(), "c:\\thinapp-00000\\package.exe");
+      gc.runBatchScriptInGuestWithOutput("c:\\thinapp-00000", Arrays.asList("package.exe"));
+      gc.uploadFileToGuest(setOption.getPath(), "C:\\setoption.exe");
+      gc.uploadFileToGuest(backupEventlogs.getPath(), "c:\\backupeventlogs.vbs");
+   }
+
+   @Test
+   public void stagingTakesTwoRoundTrips() throws Exception {
+      stageOneAtATime(new GuestCommands(fake));
+      assertEquals(5, fake.getBatches());
+
+      Files.deleteRecursively(root);
+      root.mkdirs();
+      fake = new FakeGuestOperations(root).setHandler(OUTPUT);
+      ManualCapturer capturer = capturer();
+      Capturer.VmSteps steps = capturer.new VmSteps(null);
+      steps.packageRuntime();
+      steps.stageThinApp();
+
+      // The upload batch and the extraction
+      assertEquals(2, fake.getBatches());
+      List<Operation> operations = fake.getOperations();
+      assertEquals(Operation.Type.createDirectory, operations.get(0).getType());
+      // The runtime package is uploaded as is, next to the packed tools
+      assertEquals(Operation.Type.upload, operations.get(1).getType());
+      assertEquals(runtimePackage.getPath(), operations.get(1).getArg(0));
+      assertEquals(Operation.Type.upload, operations.get(2).getType());
+      assertTrue(operations.get(2).getArg(0).endsWith(".cab"));
+      assertEquals(Operation.Type.runScript, operations.get(3).getType());
+
+      String guestdir = capturer.thinappRuntimeDirectory;
+      assertEquals("runtime package",
+            Files.toString(fake.file(guestdir + "\\package.exe"), Charsets.US_ASCII));
+      assertEquals("setoption", Files.toString(fake.file("C:\\setoption.exe"), Charsets.US_ASCII));
+      assertEquals("backup event logs",
+            Files.toString(fake.file("c:\\backupeventlogs.vbs"), Charsets.US_ASCII));
+   }
+
+   @Test
+   public void snapshotsAreTakenWithoutCommandOutputFiles() throws Exception {
+      final String[] outputFiles = {
+            VmRunCommandBuilder.STDOUT_FILE,
+            VmRunCommandBuilder.STDERR_FILE,
+            VmRunCommandBuilder.OUTPUT_FILE };
+      // Each snapshot taken, followed by the output files there at the time
+      final List<String> snapshots = new ArrayList<String>();
+      fake.setHandler(new FakeGuestOperations.Handler() {
+         @Override
+         public Result run(FakeGuestOperations guest, Operation operation) throws IOException {
+            String script = operation.getArg(1);
+            for (String snapshot : Arrays.asList(Capturer.PRECAPTURE_SNAPSHOT,
+                                                 Capturer.POSTCAPTURE_SNAPSHOT)) {
+               if (script.contains(" " + snapshot + " > ")) {
+                  snapshots.add(snapshot);
+                  for (String file : outputFiles) {
+                     if (guest.file(file).exists()) {
+                        snapshots.add(file);
+                     }
+                  }
+               }
+            }
+            return OUTPUT.run(guest, operation);
+         }
+      });
+      ManualCapturer capturer = capturer();
+      Capturer.VmSteps steps = capturer.new VmSteps(null);
+      steps.packageRuntime();
+      steps.stageThinApp();
+      // Where mountInOut() would have mounted the project share
+      capturer.projectOutput = "O:\\project";
+
+      // Left behind by commands that didn't get to clean up after themselves
+      for (String file : outputFiles) {
+         Files.write("left over", fake.file(file), Charsets.US_ASCII);
+      }
+      steps.preCaptureSnapshot();
+      for (String file : outputFiles) {
+         Files.write("left over", fake.file(file), Charsets.US_ASCII);
+      }
+      steps.postCaptureSnapshot();
+
+      assertEquals(Arrays.asList(Capturer.PRECAPTURE_SNAPSHOT, Capturer.POSTCAPTURE_SNAPSHOT),
+            snapshots);
+      // Nor does the output of the snapshot tool stay in the guest
+      assertFalse(fake.file(VmRunCommandBuilder.OUTPUT_FILE).exists());
+   }
+}
@@ -0,0 +1,210 @@
+/* ***********************************************************************
+ * VMware ThinApp Factory
+ * Copyright (c) 2009-2013 VMware, Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ***********************************************************************/
+
+package com.vmware.thinapp.manualmode.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+import com.vmware.thinapp.manualmode.util.AsyncLogWriter;
+
+/**
+ * Test the background per-job log writer.
+ */
+public class AsyncLogWriterTest {
+   private static final Pattern DROPPED = Pattern.compile("\\[(\\d+) log messages dropped\\]");
+
+   private File dir;
+
+   @Before
+   public void setUp() {
+      dir = Files.createTempDir();
+   }
+
+   @After
+   public void tearDown() {
+      for (File file : dir.listFiles()) {
+         file.delete();
+      }
+      dir.delete();
+   }
+
+   private String file(String name) {
+      return new File(dir, name).getAbsolutePath();
+   }
+
+   private List<String> lines(String filename) throws IOException {
+      return Files.readLines(new File(filename), Charsets.UTF_8);
+   }
+
+   @Test
+   public void sharedUntilLastRelease() throws IOException {
+      AsyncLogWriter writer = new AsyncLogWriter();
+      String filename = file("job.log");
+
+      AsyncLogWriter.JobLog first = writer.open(filename);
+      AsyncLogWriter.JobLog second = writer.open(filename);
+      assertSame(first, second);
+
+      for (int i = 0; i < 1000; i++) {
+         assertTrue(first.append("line " + i + "\n", false));
+      }
+      first.release();
+      assertEquals(1, writer.getOpenCount());
+      assertTrue(second.append("last\n", false));
+      second.release();
+      assertEquals(0, writer.getOpenCount());
+
+      // Everything is written once the last reference is released
+      List<String> lines = lines(filename);
+      assertEquals(1001, lines.size());
+      for (int i = 0; i < 1000; i++) {
+         assertEquals("line " + i, lines.get(i));
+      }
+      assertEquals("last", lines.get(1000));
+
+      assertFalse(first.append("after close\n", true));
+   }
+
+   @Test
+   public void reopenAppends() throws IOException {
+      AsyncLogWriter writer = new AsyncLogWriter();
+      String filename = file("job.log");
+
+      AsyncLogWriter.JobLog jobLog = writer.open(filename);
+      jobLog.append("one\n", false);
+      jobLog.release();
+
+      jobLog = writer.open(filename);
+      jobLog.append("two\n", false);
+      jobLog.release();
+
+      assertEquals(2, lines(filename).size());
+   }
+
+   /**
+    * With a tiny queue some messages get dropped, but every message is
+    * either written or counted, and the counts end up in the file.
+    */
+   @Test
+   public void droppedMessagesAreCounted() throws Exception {
+      final AsyncLogWriter writer = new AsyncLogWriter(2, 1, 0);
+      final String filename = file("busy.log");
+      final AsyncLogWriter.JobLog jobLog = writer.open(filename);
+      final int threads = 8;
+      final int messages = 5000;
+
+      final CountDownLatch start = new CountDownLatch(1);
+      Thread[] loggers = new Thread[threads];
+      for (int t = 0; t < threads; t++) {
+         loggers[t] = new Thread(new Runnable() {
+            @Override
+            public void run() {
+               try {
+                  start.await();
+               } catch (InterruptedException e) {
+                  return;
+               }
+               for (int i = 0; i < messages; i++) {
+                  jobLog.append("message\n", false);
+               }
+            }
+         });
+         loggers[t].start();
+      }
+      start.countDown();
+      for (Thread logger : loggers) {
+         logger.join();
+      }
+      long dropped = jobLog.getDropped();
+      jobLog.release();
+
+      int written = 0;
+      long reported = 0;
+      for (String line : lines(filename)) {
+         Matcher m = DROPPED.matcher(line);
+         if (m.matches()) {
+            reported += Long.parseLong(m.group(1));
+         } else {
+            assertEquals("message", line);
+            written++;
+         }
+      }
+      assertEquals(threads * messages, written + dropped);
+      assertEquals(dropped, reported);
+   }
+
+   @Test
+   public void importantMessagesWaitForRoom() throws Exception {
+      final AsyncLogWriter writer = new AsyncLogWriter(2, 1, 10000);
+      String filename = file("errors.log");
+      final AsyncLogWriter.JobLog jobLog = writer.open(filename);
+
+      Thread[] loggers = new Thread[4];
+      for (int t = 0; t < loggers.length; t++) {
+         loggers[t] = new Thread(new Runnable() {
+            @Override
+            public void run() {
+               for (int i = 0; i < 1000; i++) {
+                  jobLog.append("error\n", true);
+               }
+            }
+         });
+         loggers[t].start();
+      }
+      for (Thread logger : loggers) {
+         logger.join();
+      }
+      jobLog.release();
+
+      assertEquals(0, jobLog.getDropped());
+      assertEquals(4000, lines(filename).size());
+   }
+
+   @Test
+   public void jobsWriteTheirOwnFiles() throws IOException {
+      AsyncLogWriter writer = new AsyncLogWriter();
+      AsyncLogWriter.JobLog a = writer.open(file("a.log"));
+      AsyncLogWriter.JobLog b = writer.open(file("b.log"));
+      for (int i = 0; i < 100; i++) {
+         a.append("a\n", false);
+         b.append("b\n", false);
+      }
+      a.release();
+      b.release();
+
+      for (String line : lines(file("a.log"))) {
+         assertEquals("a", line);
+      }
+      assertEquals(100, lines(file("b.log")).size());
+   }
+}
@@ -0,0 +1,130 @@
+/* ***********************************************************************
+ * VMware ThinApp Factory
+ * Copyright (c) 2009-2013 VMware, Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ***********************************************************************/
+
+package com.vmware.thinapp.manualmode.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+import com.vmware.thinapp.common.converter.dto.Status.State;
+import com.vmware.thinapp.common.util.AfJsonCodecs;
+import com.vmware.thinapp.manualmode.server.Status;
+import com.vmware.thinapp.manualmode.util.CaptureTrace;
+
+/**
+ * Test the capture timeline and its trace event export.
+ */
+public class CaptureTraceTest {
+   @Test
+   public void recordsStatesOnce() {
+      Status status = new Status();
+      status.setCurrentState(State.acquiringVm);
+      status.setCurrentState(State.acquiringVm);
+
+      List<CaptureTrace.Event> events = status.getTrace().getEvents();
+      assertEquals(2, events.size());
+      assertEquals(State.created.name(), events.get(0).getName());
+      assertEquals(State.acquiringVm.name(), events.get(1).getName());
+      assertEquals(CaptureTrace.STATE, events.get(1).getCategory());
+      assertEquals(-1, events.get(1).getDurationMillis());
+   }
+
+   @Test
+   public void totalsPerCategory() {
+      CaptureTrace trace = new CaptureTrace();
+      trace.record("prepareVm", CaptureTrace.PHASE, 1000, 300);
+      trace.record("runProgram", CaptureTrace.GUEST, 1100, 50);
+      trace.record("upload+runScript", CaptureTrace.GUEST, 1200, 70);
+      trace.instant("vmAcquired", CaptureTrace.STATE, 1000);
+
+      Map<String, Long> totals = trace.getTotals();
+      assertEquals(Long.valueOf(300), totals.get(CaptureTrace.PHASE));
+      assertEquals(Long.valueOf(120), totals.get(CaptureTrace.GUEST));
+      assertNull(totals.get(CaptureTrace.STATE));
+   }
+
+   @Test
+   @SuppressWarnings("unchecked")
+   public void exportsTraceEvents() throws Exception {
+      CaptureTrace trace = new CaptureTrace();
+      trace.record("download", CaptureTrace.DOWNLOAD, 2000, 1500, "downloads");
+      trace.record("mountOutput", CaptureTrace.MOUNT, 2500, 20);
+      trace.instant("success", CaptureTrace.STATE, 4000);
+
+      Map<String, Object> read = AfJsonCodecs.reader(AfJsonCodecs.COMPACT, Map.class)
+            .readValue(trace.toJson());
+      assertEquals("ms", read.get("displayTimeUnit"));
+      assertFalse(read.containsKey("otherData"));
+
+      // Thread name metadata precedes the first event of each thread
+      List<Map<String, Object>> events = (List<Map<String, Object>>) read.get("traceEvents");
+      assertEquals(5, events.size());
+      assertEquals("M", events.get(0).get("ph"));
+      assertEquals("downloads", ((Map<String, Object>) events.get(0).get("args")).get("name"));
+
+      Map<String, Object> download = events.get(1);
+      assertEquals("X", download.get("ph"));
+      assertEquals(CaptureTrace.DOWNLOAD, download.get("cat"));
+      assertEquals(2000000, ((Number) download.get("ts")).longValue());
+      assertEquals(1500000, ((Number) download.get("dur")).longValue());
+      assertEquals(1, ((Number) download.get("tid")).intValue());
+
+      assertEquals("M", events.get(2).get("ph"));
+      Map<String, Object> mount = events.get(3);
+      assertEquals(2, ((Number) mount.get("tid")).intValue());
+      assertEquals(20000, ((Number) mount.get("dur")).longValue());
+
+      Map<String, Object> state = events.get(4);
+      assertEquals("i", state.get("ph"));
+      assertFalse(state.containsKey("dur"));
+      assertEquals(2, ((Number) state.get("tid")).intValue());
+   }
+
+   @Test
+   public void spanRecordsDuration() throws Exception {
+      CaptureTrace trace = new CaptureTrace();
+      long before = System.currentTimeMillis();
+      CaptureTrace.Span span = trace.start("precaptureSnapshot", CaptureTrace.SNAPSHOT);
+      Thread.sleep(20);
+      span.end();
+
+      CaptureTrace.Event event = trace.getEvents().get(0);
+      assertEquals("precaptureSnapshot", event.getName());
+      assertTrue(event.getStartMillis() >= before);
+      assertTrue(event.getDurationMillis() >= 15);
+      assertEquals(Thread.currentThread().getName(), event.getThread());
+   }
+
+   @Test
+   @SuppressWarnings("unchecked")
+   public void dropsEventsPastLimit() {
+      CaptureTrace trace = new CaptureTrace();
+      for (int i = 0; i < 10005; i++) {
+         trace.record("runProgram", CaptureTrace.GUEST, i, 1);
+      }
+      assertEquals(10000, trace.getEvents().size());
+      Map<String, Object> other = (Map<String, Object>) trace.toTraceEvents().get("otherData");
+      assertEquals(Integer.valueOf(5), other.get("droppedEvents"));
+   }
+}
@@ -0,0 +1,490 @@
+/* ***********************************************************************
+ * VMware ThinApp Factory
+ * Copyright (c) 2009-2013 VMware, Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ***********************************************************************/
+
+package com.vmware.thinapp.manualmode.tests;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import com.vmware.thinapp.manualmode.util.DownloadCache;
+import com.vmware.thinapp.manualmode.util.DownloadProgress;
+import com.vmware.thinapp.manualmode.util.HostLimiter;
+
+public class DownloadCacheTest {
+   private File root;
+   private File cacheDir;
+   private HttpServer server;
+   private Installer installer;
+
+   /**
+    * Serves one installer, honoring conditional and range requests.
+    */
+   private static class Installer implements HttpHandler {
+      private static final String DONE = "done";
+
+      volatile byte[] content;
+      volatile String etag = "\"v1\"";
+      /** Bytes to send before dropping the next response, or -1 */
+      volatile int truncateAt = -1;
+      /** Range of the response to drop, or null for any */
+      volatile String truncateRange;
+      /** Released before the response is sent, if set */
+      volatile CountDownLatch gate;
+      /** Bandwidth of each connection, or 0 for no limit */
+      volatile int bytesPerSecond;
+      final AtomicInteger gets = new AtomicInteger();
+      final AtomicInteger active = new AtomicInteger();
+      final AtomicInteger maxActive = new AtomicInteger();
+      final List<String> ranges = new ArrayList<String>();
+      /** If-Range header of each range request */
+      final List<String> ifRanges = new ArrayList<String>();
+      final List<Integer> statuses = new ArrayList<Integer>();
+
+      Installer(String content) {
+         this.content = content.getBytes(Charsets.US_ASCII);
+      }
+
+      Installer(byte[] content) {
+         this.content = content;
+      }
+
+      @Override
+      public void handle(HttpExchange exchange) throws IOException {
+         gets.incrementAndGet();
+         int now = active.incrementAndGet();
+         synchronized (maxActive) {
+            maxActive.set(Math.max(maxActive.get(), now));
+         }
+         try {
+            serve(exchange);
+         } finally {
+            if (exchange.getAttribute(DONE) == null) {
+               active.decrementAndGet();
+            }
+            exchange.close();
+         }
+      }
+
+      private void respond(HttpExchange exchange, int status, long length) throws IOException {
+         synchronized (statuses) {
+            statuses.add(status);
+         }
+         exchange.sendResponseHeaders(status, length);
+      }
+
+      private void serve(HttpExchange exchange) throws IOException {
+         try {
+            if (gate != null) {
+               gate.await(10, TimeUnit.SECONDS);
+            }
+         } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+         }
+
+         byte[] body = content;
+         exchange.getResponseHeaders().set("ETag", etag);
+         if (etag.equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+            respond(exchange, 304, -1);
+            return;
+         }
+
+         String range = exchange.getRequestHeaders().getFirst("Range");
+         String ifRange = exchange.getRequestHeaders().getFirst("If-Range");
+         synchronized (ranges) {
+            ranges.add(range);
+            ifRanges.add(ifRange);
+         }
+         int start = 0;
+         int end = body.length - 1;
+         if (range != null && (ifRange == null || etag.equals(ifRange))) {
+            String[] bounds = range.substring("bytes=".length()).split("-", -1);
+            start = Integer.parseInt(bounds[0]);
+            if (!bounds[1].isEmpty()) {
+               end = Math.min(end, Integer.parseInt(bounds[1]));
+            }
+            exchange.getResponseHeaders().set("Content-Range",
+                  String.format("bytes %d-%d/%d", start, end, body.length));
+            respond(exchange, 206, end - start + 1);
+         } else {
+            respond(exchange, 200, body.length);
+         }
+
+         OutputStream out = exchange.getResponseBody();
+         int stop = end + 1;
+         if (truncateAt >= 0 && (truncateRange == null || truncateRange.equals(range))) {
+            // Drop the connection mid-body.
+            stop = Math.min(stop, start + truncateAt);
+            truncateAt = -1;
+         }
+         int chunk = 16 * 1024;
+         for (int offset = start; offset < stop; offset += chunk) {
+            int n = Math.min(chunk, stop - offset);
+            if (offset + n == end + 1) {
+               // The client may start its next request once it has the
+               // last byte, so this connection no longer counts.
+               exchange.setAttribute(DONE, true);
+               active.decrementAndGet();
+            }
+            out.write(body, offset, n);
+            if (bytesPerSecond > 0) {
+               out.flush();
+               sleep(n * 1000L / bytesPerSecond);
+            }
+         }
+         if (stop == end + 1) {
+            out.close();
+         }
+      }
+   }
+
+   private static void sleep(long millis) {
+      try {
+         Thread.sleep(millis);
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+      }
+   }
+
+   private static byte[] randomBytes(int size) {
+      byte[] bytes = new byte[size];
+      new Random(size).nextBytes(bytes);
+      return bytes;
+   }
+
+   @Before
+   public void setUp() throws IOException {
+      root = Files.createTempDir();
+      cacheDir = new File(root, "cache");
+      installer = new Installer("installer contents");
+      server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+      server.createContext("/setup.exe", installer);
+      server.setExecutor(Executors.newCachedThreadPool());
+      server.start();
+   }
+
+   @After
+   public void tearDown() throws IOException {
+      server.stop(0);
+      Files.deleteRecursively(root.getCanonicalFile());
+   }
+
+   private String url() {
+      return "http://127.0.0.1:" + server.getAddress().getPort() + "/setup.exe";
+   }
+
+   private File project(String name) {
+      File dir = new File(root, name);
+      dir.mkdirs();
+      return dir;
+   }
+
+   private static String read(File file) throws IOException {
+      return Files.toString(file, Charsets.US_ASCII);
+   }
+
+   @Test
+   public void revalidatesCachedDownload() throws IOException {
+      DownloadCache cache = new DownloadCache(cacheDir, 1 << 20);
+      File first = project("first");
+      File second = project("second");
+
+      assertEquals("setup.exe", cache.downloadTo(url(), first.getPath(), "default.exe"));
+      assertEquals("setup.exe", cache.downloadTo(url(), second.getPath(), "default.exe"));
+
+      assertEquals("installer contents", read(new File(first, "setup.exe")));
+      assertEquals("installer contents", read(new File(second, "setup.exe")));
+      assertEquals(Arrays.asList(206, 304), installer.statuses);
+      assertEquals(installer.content.length, cache.getSize());
+   }
+
+   @Test
+   public void revalidatesWithWeakETag() throws IOException {
+      DownloadCache cache = new DownloadCache(cacheDir, 1 << 20);
+      installer.etag = "W/\"v1\"";
+
+      cache.downloadTo(url(), project("first").getPath(), "default.exe");
+      File second = project("second");
+      cache.downloadTo(url(), second.getPath(), "default.exe");
+
+      assertEquals("installer contents", read(new File(second, "setup.exe")));
+      assertEquals(Arrays.asList(206, 304), installer.statuses);
+   }
+
+   @Test
+   public void changedContentIsDownloadedAgain() throws IOException {
+      DownloadCache cache = new DownloadCache(cacheDir, 1 << 20);
+      cache.downloadTo(url(), project("first").getPath(), "default.exe");
+
+      installer.content = "new installer".getBytes(Charsets.US_ASCII);
+      installer.etag = "\"v2\"";
+      File second = project("second");
+      cache.downloadTo(url(), second.getPath(), "default.exe");
+
+      assertEquals("new installer", read(new File(second, "setup.exe")));
+      assertEquals("installer contents", read(new File(root, "first/setup.exe")));
+      assertEquals(installer.content.length, cache.getSize());
+   }
+
+   @Test
+   public void concurrentRequestsShareOneTransfer() throws Exception {
+      final DownloadCache cache = new DownloadCache(cacheDir, 1 << 20);
+      installer.gate = new CountDownLatch(1);
+      ExecutorService executor = Executors.newFixedThreadPool(4);
+      try {
+         List<Future<String>> results = new ArrayList<Future<String>>();
+         for (int i = 0; i < 4; i++) {
+            final File dir = project("project" + i);
+            results.add(executor.submit(new Callable<String>() {
+               @Override
+               public String call() throws IOException {
+                  return cache.downloadTo(url(), dir.getPath(), "default.exe");
+               }
+            }));
+         }
+         // Let every request reach the cache before the server answers.
+         Thread.sleep(500);
+         installer.gate.countDown();
+
+         for (Future<String> result : results) {
+            assertEquals("setup.exe", result.get(10, TimeUnit.SECONDS));
+         }
+      } finally {
+         executor.shutdownNow();
+      }
+
+      assertEquals(1, installer.gets.get());
+      assertEquals(1, cache.getTransferCount());
+      for (int i = 0; i < 4; i++) {
+         assertEquals("installer contents", read(new File(root, "project" + i + "/setup.exe")));
+      }
+   }
+
+   @Test
+   public void resumesInterruptedDownload() throws IOException {
+      DownloadCache cache = new DownloadCache(cacheDir, 1 << 20);
+      installer.truncateAt = 9;
+      File dir = project("project");
+
+      cache.downloadTo(url(), dir.getPath(), "default.exe");
+
+      assertEquals("installer contents", read(new File(dir, "setup.exe")));
+      assertEquals(2, installer.ranges.size());
+      assertEquals("bytes=0-" + (DownloadCache.DEFAULT_SEGMENT_SIZE - 1), installer.ranges.get(0));
+      assertEquals("bytes=9-", installer.ranges.get(1));
+      // The resume only applies to the same version of the file.
+      assertEquals(null, installer.ifRanges.get(0));
+      assertEquals("\"v1\"", installer.ifRanges.get(1));
+      assertEquals(Arrays.asList(206, 206), installer.statuses);
+   }
+
+   @Test
+   public void rejectsChecksumMismatch() throws IOException {
+      DownloadCache cache = new DownloadCache(cacheDir, 1 << 20);
+      File dir = project("project");
+      try {
+         cache.downloadTo(url() + "#md5=00000000000000000000000000000000",
+               dir.getPath(), "default.exe");
+         fail("Download with a wrong checksum succeeded");
+      } catch (IOException e) {
+         assertTrue(e.getMessage(), e.getMessage().contains("checksum mismatch"));
+      }
+      assertFalse(new File(dir, "setup.exe").exists());
+      assertEquals(0, cache.getSize());
+   }
+
+   @Test
+   public void acceptsMatchingChecksum() throws Exception {
+      DownloadCache cache = new DownloadCache(cacheDir, 1 << 20);
+      File dir = project("project");
+      String sha256 = sha256("installer contents");
+      cache.downloadTo(url() + "#sha256=" + sha256, dir.getPath(), "default.exe");
+      assertEquals("installer contents", read(new File(dir, "setup.exe")));
+      assertTrue(new File(cacheDir, "blobs/" + sha256).isFile());
+   }
+
+   @Test
+   public void evictsLeastRecentlyUsed() throws Exception {
+      DownloadCache cache = new DownloadCache(cacheDir, installer.content.length + 4);
+      server.createContext("/other.exe", new Installer("other"));
+      String other = url().replace("setup.exe", "other.exe");
+
+      cache.downloadTo(url(), project("first").getPath(), "default.exe");
+      Thread.sleep(10);
+      cache.downloadTo(other, project("second").getPath(), "default.exe");
+
+      assertEquals("other".length(), cache.getSize());
+      // The evicted download is still linked into the project that used it.
+      assertEquals("installer contents", read(new File(root, "first/setup.exe")));
+
+      // A new cache over the same directory keeps what was left.
+      DownloadCache reloaded = new DownloadCache(cacheDir, 1 << 20);
+      assertEquals("other".length(), reloaded.getSize());
+   }
+
+   @Test
+   public void keepsIdenticalContentOnce() throws Exception {
+      DownloadCache cache = new DownloadCache(cacheDir, 1 << 20);
+      server.createContext("/mirror.exe", installer);
+      cache.downloadTo(url(), project("first").getPath(), "default.exe");
+      cache.downloadTo(url().replace("setup.exe", "mirror.exe"),
+            project("second").getPath(), "default.exe");
+
+      assertArrayEquals(new String[] { sha256("installer contents") },
+            new File(cacheDir, "blobs").list());
+      assertEquals("installer contents", read(new File(root, "second/mirror.exe")));
+   }
+
+   @Test
+   public void splitsLargeDownloads() throws IOException {
+      byte[] content = randomBytes(1 << 20);
+      installer.content = content;
+      DownloadCache cache = new DownloadCache(cacheDir, 4 << 20);
+      cache.setSegments(128 << 10, 4);
+      DownloadProgress progress = new DownloadProgress();
+      File dir = project("project");
+
+      cache.downloadTo(url(), dir.getPath(), "default.exe", progress.add(url()));
+
+      assertArrayEquals(content, Files.toByteArray(new File(dir, "setup.exe")));
+      assertEquals(4, installer.gets.get());
+      assertEquals("bytes=0-131071", installer.ranges.get(0));
+      assertEquals(100, progress.getPercent());
+      assertEquals(content.length, progress.getReceived());
+      assertEquals(0, new File(cacheDir, "partial").list().length);
+   }
+
+   @Test
+   public void resumesSegmentedDownload() throws IOException {
+      byte[] content = randomBytes(256 << 10);
+      installer.content = content;
+      // Segments 0-32767, 32768-109226, 109227-185685 and 185686-262143
+      installer.truncateRange = "bytes=32768-109226";
+      installer.truncateAt = 1000;
+      DownloadCache cache = new DownloadCache(cacheDir, 4 << 20);
+      cache.setSegments(32 << 10, 4);
+      File dir = project("project");
+
+      cache.downloadTo(url(), dir.getPath(), "default.exe");
+
+      assertArrayEquals(content, Files.toByteArray(new File(dir, "setup.exe")));
+      assertEquals(5, installer.gets.get());
+      assertEquals("bytes=33768-109226", installer.ranges.get(4));
+      assertEquals(Arrays.asList(206, 206, 206, 206, 206), installer.statuses);
+   }
+
+   /**
+    * Measure the throughput of one download from a server that limits the
+    * bandwidth of each connection, on one stream and in segments.
+    */
+   @Test
+   public void segmentsImproveThroughput() throws IOException {
+      byte[] content = randomBytes(512 << 10);
+      installer.content = content;
+      installer.bytesPerSecond = 1 << 20;
+
+      DownloadCache single = new DownloadCache(new File(root, "single"), 4 << 20);
+      single.setSegments(64 << 10, 1);
+      long singleNanos = System.nanoTime();
+      single.downloadTo(url(), project("first").getPath(), "default.exe");
+      singleNanos = System.nanoTime() - singleNanos;
+
+      DownloadCache segmented = new DownloadCache(new File(root, "segmented"), 4 << 20);
+      segmented.setSegments(64 << 10, 8);
+      long segmentedNanos = System.nanoTime();
+      segmented.downloadTo(url(), project("second").getPath(), "default.exe");
+      segmentedNanos = System.nanoTime() - segmentedNanos;
+
+      assertArrayEquals(content, Files.toByteArray(new File(root, "second/setup.exe")));
+      assertTrue(String.format("%d KB/s on one stream, %d KB/s in segments",
+                  content.length * 1000000L / singleNanos,
+                  content.length * 1000000L / segmentedNanos),
+            segmentedNanos < singleNanos / 2);
+   }
+
+   @Test
+   public void limitsConnectionsPerHost() throws IOException {
+      byte[] content = randomBytes(512 << 10);
+      installer.content = content;
+      installer.bytesPerSecond = 4 << 20;
+      DownloadCache cache = new DownloadCache(cacheDir, 4 << 20);
+      cache.setSegments(32 << 10, 8);
+      cache.setHostLimiter(new HostLimiter(2, 0));
+      File dir = project("project");
+
+      cache.downloadTo(url(), dir.getPath(), "default.exe");
+
+      assertArrayEquals(content, Files.toByteArray(new File(dir, "setup.exe")));
+      assertEquals(8, installer.gets.get());
+      assertTrue("" + installer.maxActive.get(), installer.maxActive.get() <= 2);
+   }
+
+   @Test
+   public void limitsBandwidthPerHost() throws IOException {
+      byte[] content = randomBytes(256 << 10);
+      installer.content = content;
+      DownloadCache cache = new DownloadCache(cacheDir, 4 << 20);
+      cache.setSegments(32 << 10, 4);
+      cache.setHostLimiter(new HostLimiter(0, 512 << 10));
+      File dir = project("project");
+
+      long start = System.nanoTime();
+      cache.downloadTo(url(), dir.getPath(), "default.exe");
+      long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+      assertArrayEquals(content, Files.toByteArray(new File(dir, "setup.exe")));
+      // Half a second at the limit, less the burst it allows.
+      assertTrue(millis + " ms", millis >= 350);
+   }
+
+   private static String sha256(String text) throws NoSuchAlgorithmException {
+      StringBuilder sb = new StringBuilder();
+      for (byte b : MessageDigest.getInstance("SHA-256").digest(text.getBytes(Charsets.US_ASCII))) {
+         sb.append(String.format("%02x", b & 0xff));
+      }
+      return sb.toString();
+   }
+}
@@ -0,0 +1,154 @@
+/* ***********************************************************************
+ * VMware ThinApp Factory
+ * Copyright (c) 2009-2013 VMware, Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ***********************************************************************/
+
+package com.vmware.thinapp.manualmode.tests;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import com.vmware.vim25.ManagedObjectReference;
+import com.vmware.vim25.PerfCounterInfo;
+import com.vmware.vim25.PerfEntityMetric;
+import com.vmware.vim25.PerfEntityMetricBase;
+import com.vmware.vim25.PerfMetricId;
+import com.vmware.vim25.PerfMetricIntSeries;
+import com.vmware.vim25.PerfMetricSeries;
+import com.vmware.vim25.PerfQuerySpec;
+import com.vmware.vim25.PerfSampleInfo;
+import com.vmware.vim25.mo.PerformanceManager;
+import com.vmware.vim25.mo.ServerConnection;
+
+/**
+ * A PerformanceManager that answers queries locally.  Every counter of a
+ * VM reports the counter ID times ten.
+ *
+ * Like the objects vijava returns for each lookup, several fakes can stand
+ * for the same vCenter; each records only the calls made through it.
+ */
+public class FakePerformanceManager extends PerformanceManager {
+   private final Map<Integer, PerfCounterInfo> counters = new HashMap<Integer, PerfCounterInfo>();
+   private final Set<String> removedVms = new HashSet<String>();
+   private final List<PerfQuerySpec[]> queries = new CopyOnWriteArrayList<PerfQuerySpec[]>();
+   private final List<int[]> counterQueries = new CopyOnWriteArrayList<int[]>();
+
+   public FakePerformanceManager() {
+      this("https://vc/sdk");
+   }
+
+   /**
+    * @param url the URL of the vCenter this performance manager belongs to
+    */
+   public FakePerformanceManager(String url) {
+      super(connection(url), mor("PerformanceManager", "PerfMgr"));
+   }
+
+   private static ServerConnection connection(String url) {
+      try {
+         return new ServerConnection(new URL(url), null, null);
+      } catch (MalformedURLException e) {
+         throw new IllegalArgumentException(e);
+      }
+   }
+
+   public static ManagedObjectReference mor(String type, String value) {
+      ManagedObjectReference mor = new ManagedObjectReference();
+      mor.setType(type);
+      mor.set_value(value);
+      return mor;
+   }
+
+   public synchronized void addCounter(int key) {
+      PerfCounterInfo info = new PerfCounterInfo();
+      info.setKey(key);
+      counters.put(key, info);
+   }
+
+   /**
+    * Fail every query for the VM, like vCenter does once it is deleted.
+    */
+   public synchronized void removeVm(String moid) {
+      removedVms.add(moid);
+   }
+
+   /**
+    * @return the specs of each queryPerf call
+    */
+   public List<PerfQuerySpec[]> getQueries() {
+      return queries;
+   }
+
+   /**
+    * @return the counter IDs of each queryPerfCounter call
+    */
+   public List<int[]> getCounterQueries() {
+      return counterQueries;
+   }
+
+   @Override
+   public synchronized PerfEntityMetricBase[] queryPerf(PerfQuerySpec[] querySpecs)
+         throws RemoteException {
+      queries.add(querySpecs);
+      List<PerfEntityMetricBase> metrics = new ArrayList<PerfEntityMetricBase>();
+      for (PerfQuerySpec spec : querySpecs) {
+         String moid = spec.getEntity().get_value();
+         if (removedVms.contains(moid)) {
+            throw new RemoteException("ManagedObjectNotFound: " + moid);
+         }
+
+         PerfSampleInfo sample = new PerfSampleInfo();
+         sample.setTimestamp(Calendar.getInstance());
+         sample.setInterval(spec.getIntervalId());
+
+         List<PerfMetricSeries> series = new ArrayList<PerfMetricSeries>();
+         for (PerfMetricId metricId : spec.getMetricId()) {
+            PerfMetricIntSeries values = new PerfMetricIntSeries();
+            values.setId(metricId);
+            values.setValue(new long[] { metricId.getCounterId() * 10L });
+            series.add(values);
+         }
+
+         PerfEntityMetric metric = new PerfEntityMetric();
+         metric.setEntity(spec.getEntity());
+         metric.setSampleInfo(new PerfSampleInfo[] { sample });
+         metric.setValue(series.toArray(new PerfMetricSeries[series.size()]));
+         metrics.add(metric);
+      }
+      return metrics.toArray(new PerfEntityMetricBase[metrics.size()]);
+   }
+
+   @Override
+   public synchronized PerfCounterInfo[] queryPerfCounter(int[] counterIds)
+         throws RemoteException {
+      counterQueries.add(counterIds.clone());
+      List<PerfCounterInfo> infos = new ArrayList<PerfCounterInfo>();
+      for (int counterId : counterIds) {
+         if (counters.containsKey(counterId)) {
+            infos.add(counters.get(counterId));
+         }
+      }
+      return infos.toArray(new PerfCounterInfo[infos.size()]);
+   }
+}
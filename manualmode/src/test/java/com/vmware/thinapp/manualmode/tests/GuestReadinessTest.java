@@ -0,0 +1,244 @@
+/* ***********************************************************************
+ * VMware ThinApp Factory
+ * Copyright (c) 2009-2013 VMware, Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ***********************************************************************/
+
+package com.vmware.thinapp.manualmode.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import com.google.common.base.Ticker;
+import com.vmware.thinapp.common.workpool.dto.InstanceInfo;
+import com.vmware.thinapp.common.workpool.dto.VCConfig;
+import com.vmware.thinapp.manualmode.util.GuestReadiness;
+import com.vmware.thinapp.manualmode.util.LatencyHistogram;
+import com.vmware.thinapp.workpool.Backoff;
+import com.vmware.thinapp.workpool.VirtualMachine;
+import com.vmware.vim25.mo.VirtualMachineSnapshot;
+
+public class GuestReadinessTest {
+   /**
+    * A clock that only moves when something sleeps on it.
+    */
+   private static class FakeClock extends Ticker implements GuestReadiness.Sleeper {
+      private long nanos;
+      private final List<Long> sleeps = new ArrayList<Long>();
+
+      @Override
+      public long read() {
+         return nanos;
+      }
+
+      @Override
+      public void sleep(long millis) {
+         sleeps.add(Long.valueOf(millis));
+         advance(millis);
+      }
+
+      void advance(long millis) {
+         nanos += TimeUnit.MILLISECONDS.toNanos(millis);
+      }
+   }
+
+   /**
+    * A VM whose guest becomes ready after scripted delays, and which accepts
+    * guest commands once a number of them have been refused.
+    */
+   private static class ScriptedVm implements VirtualMachine {
+      private final FakeClock clock;
+      private final long toolsMillis;
+      private final long ipMillis;
+      private int refusedCommands;
+      private int commands;
+
+      ScriptedVm(FakeClock clock, long toolsMillis, long ipMillis, int refusedCommands) {
+         this.clock = clock;
+         this.toolsMillis = toolsMillis;
+         this.ipMillis = ipMillis;
+         this.refusedCommands = refusedCommands;
+      }
+
+      boolean runCommand() {
+         commands++;
+         clock.advance(50);
+         return refusedCommands-- <= 0;
+      }
+
+      @Override
+      public void powerOn() {
+      }
+
+      @Override
+      public void waitForTools() {
+         clock.advance(toolsMillis);
+      }
+
+      @Override
+      public void waitForGuestIp() {
+         clock.advance(ipMillis);
+      }
+
+      @Override
+      public void setScreenResolution(int width, int height) {
+      }
+
+      @Override
+      public PowerState getPowerState() {
+         return PowerState.poweredOn;
+      }
+
+      @Override
+      public void powerOff() {
+      }
+
+      @Override
+      public VCConfig getVcConfig() {
+         return null;
+      }
+
+      @Override
+      public InstanceInfo getVmInfo() {
+         return null;
+      }
+
+      @Override
+      public VirtualMachineSnapshot findSnapshot(String snapshotName) {
+         return null;
+      }
+   }
+
+   private static GuestReadiness.Probe echoTest(final ScriptedVm vm) {
+      return new GuestReadiness.Probe() {
+         @Override
+         public boolean isReady() throws IOException {
+            return vm.runCommand();
+         }
+      };
+   }
+
+   private static void prepare(GuestReadiness readiness, final ScriptedVm vm) {
+      readiness.await("tools", new Runnable() {
+         @Override
+         public void run() {
+            vm.waitForTools();
+         }
+      });
+      readiness.await("guestIp", new Runnable() {
+         @Override
+         public void run() {
+            vm.waitForGuestIp();
+         }
+      });
+   }
+
+   @Test
+   public void backsOffExponentiallyUntilReady() throws Exception {
+      FakeClock clock = new FakeClock();
+      GuestReadiness readiness = new GuestReadiness(
+            new Backoff(500, 10000, 2, 0), clock, clock);
+      ScriptedVm vm = new ScriptedVm(clock, 4000, 700, 4);
+
+      prepare(readiness, vm);
+      assertTrue(readiness.poll("login", echoTest(vm), 140000));
+
+      assertEquals(5, vm.commands);
+      assertEquals(Arrays.asList(500L, 1000L, 2000L, 4000L), clock.sleeps);
+
+      LatencyHistogram latencies = readiness.getLatencies();
+      assertEquals(4000, latencies.getTotalMillis("tools"));
+      assertEquals(700, latencies.getTotalMillis("guestIp"));
+      assertEquals(7500 + 5 * 50, latencies.getTotalMillis("login"));
+      assertEquals(1, latencies.getCounts("tools")[5]);
+      assertEquals(1, latencies.getCounts("guestIp")[3]);
+      assertEquals(1, latencies.getCounts("login")[6]);
+   }
+
+   @Test
+   public void readyGuestIsNotDelayed() throws Exception {
+      FakeClock clock = new FakeClock();
+      GuestReadiness readiness = new GuestReadiness(
+            new Backoff(500, 10000, 2, 0), clock, clock);
+      ScriptedVm vm = new ScriptedVm(clock, 0, 0, 0);
+
+      assertTrue(readiness.poll("login", echoTest(vm), 140000));
+      assertTrue(clock.sleeps.isEmpty());
+      assertEquals(1, readiness.getLatencies().getCounts("login")[0]);
+   }
+
+   @Test
+   public void givesUpAtTimeout() throws Exception {
+      FakeClock clock = new FakeClock();
+      GuestReadiness readiness = new GuestReadiness(
+            new Backoff(500, 10000, 2, 0), clock, clock);
+      ScriptedVm vm = new ScriptedVm(clock, 0, 0, Integer.MAX_VALUE);
+
+      assertFalse(readiness.poll("login", echoTest(vm), 140000));
+
+      // Never waits past the timeout, and sleeps are capped at the maximum
+      long slept = 0;
+      for (Long sleep : clock.sleeps) {
+         assertTrue(sleep.longValue() <= 10000);
+         slept += sleep.longValue();
+      }
+      assertTrue(slept <= 140000);
+      assertTrue(TimeUnit.NANOSECONDS.toMillis(clock.read()) >= 140000);
+      assertEquals(1, readiness.getLatencies().getCount("login"));
+   }
+
+   @Test
+   public void jitterStaysWithinBounds() {
+      Backoff backoff = new Backoff(1000, 8000, 2, 0.5, new Random(42));
+      long[] max = { 1000, 2000, 4000, 8000, 8000 };
+      boolean varied = false;
+      for (int i = 0; i < 1000; i++) {
+         for (int attempt = 0; attempt < max.length; attempt++) {
+            long delay = backoff.delay(attempt);
+            assertTrue(delay <= max[attempt]);
+            assertTrue(delay >= max[attempt] / 2);
+            varied |= delay != max[attempt];
+         }
+      }
+      assertTrue(varied);
+   }
+
+   @Test
+   public void histogramBuckets() {
+      LatencyHistogram histogram = new LatencyHistogram();
+      histogram.record("tools", 100);
+      histogram.record("tools", 101);
+      histogram.record("tools", 500000);
+
+      long[] counts = histogram.getCounts("tools");
+      assertEquals(1, counts[0]);
+      assertEquals(1, counts[1]);
+      assertEquals(1, counts[LatencyHistogram.getBounds().length]);
+      assertEquals(3, histogram.getCount("tools"));
+      assertEquals(0, histogram.getCount("login"));
+      assertEquals("tools: 3 in 500201 ms [<=100ms: 1, <=250ms: 1, >120000ms: 1]",
+            histogram.toString());
+   }
+}
@@ -0,0 +1,286 @@
+/* ***********************************************************************
+ * VMware ThinApp Factory
+ * Copyright (c) 2009-2013 VMware, Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ***********************************************************************/
+
+package com.vmware.thinapp.manualmode.tests;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.vmware.thinapp.manualmode.util.PerformanceCollector;
+import com.vmware.thinapp.manualmode.util.PerformanceDataListener;
+import com.vmware.vim25.PerfMetricId;
+import com.vmware.vim25.PerfQuerySpec;
+
+public class PerformanceCollectorTest {
+   private static final int CPU = 2;
+   private static final int MEM = 24;
+
+   private ManualScheduler scheduler;
+   private PerformanceCollector collector;
+   private FakePerformanceManager perfMgr;
+
+   /**
+    * Records the periodic tasks instead of running them, so the test can
+    * run each interval.
+    */
+   private static class ManualScheduler extends ScheduledThreadPoolExecutor {
+      final List<Runnable> tasks = new CopyOnWriteArrayList<Runnable>();
+      final List<ScheduledFuture<?>> futures = new CopyOnWriteArrayList<ScheduledFuture<?>>();
+
+      ManualScheduler() {
+         super(1);
+      }
+
+      @Override
+      public ScheduledFuture<?> scheduleAtFixedRate(Runnable command, long initialDelay,
+            long period, TimeUnit unit) {
+         // Something to cancel that never runs.
+         ScheduledFuture<?> future = super.schedule(command, 1, TimeUnit.DAYS);
+         tasks.add(command);
+         futures.add(future);
+         return future;
+      }
+
+      int getScheduledCount() {
+         int count = 0;
+         for (ScheduledFuture<?> future : futures) {
+            if (!future.isCancelled()) {
+               count++;
+            }
+         }
+         return count;
+      }
+
+      void runInterval() {
+         for (int i = 0; i < tasks.size(); i++) {
+            if (!futures.get(i).isCancelled()) {
+               tasks.get(i).run();
+            }
+         }
+      }
+   }
+
+   private static class Listener implements PerformanceDataListener {
+      final List<Map<String, Long>> updates = new CopyOnWriteArrayList<Map<String, Long>>();
+
+      @Override
+      public void update(Date date, Map<String, Long> values) {
+         updates.add(values);
+      }
+   }
+
+   @Before
+   public void setUp() {
+      scheduler = new ManualScheduler();
+      collector = new PerformanceCollector(scheduler);
+      perfMgr = new FakePerformanceManager();
+   }
+
+   @After
+   public void tearDown() {
+      scheduler.shutdownNow();
+   }
+
+   private static PerfQuerySpec spec(String moid, int refreshRate) {
+      PerfQuerySpec spec = new PerfQuerySpec();
+      spec.setEntity(FakePerformanceManager.mor("VirtualMachine", moid));
+      spec.setMaxSample(1);
+      spec.setIntervalId(refreshRate);
+      spec.setMetricId(new PerfMetricId[] { metric(CPU), metric(MEM) });
+      return spec;
+   }
+
+   private static PerfMetricId metric(int counterId) {
+      PerfMetricId id = new PerfMetricId();
+      id.setCounterId(counterId);
+      id.setInstance("");
+      return id;
+   }
+
+   private static Map<Integer, String> names() {
+      Map<Integer, String> names = new HashMap<Integer, String>();
+      names.put(CPU, "cpu.usage.average");
+      names.put(MEM, "mem.usage.average");
+      return names;
+   }
+
+   private PerformanceCollector.Subscription subscribe(FakePerformanceManager mgr, String moid,
+         int refreshRate, Listener listener) {
+      return collector.subscribe(mgr, moid, refreshRate, spec(moid, refreshRate), names(), listener);
+   }
+
+   @Test
+   public void batchesVmsWithSameRefreshRate() {
+      Listener vm1 = new Listener();
+      Listener vm2 = new Listener();
+      Listener vm3 = new Listener();
+      subscribe(perfMgr, "vm-1", 20, vm1);
+      subscribe(perfMgr, "vm-2", 20, vm2);
+      subscribe(perfMgr, "vm-3", 300, vm3);
+
+      assertEquals(2, scheduler.getScheduledCount());
+      scheduler.runInterval();
+
+      assertEquals(2, perfMgr.getQueries().size());
+      assertEquals(2, perfMgr.getQueries().get(0).length);
+      assertEquals(1, perfMgr.getQueries().get(1).length);
+      for (Listener listener : new Listener[] { vm1, vm2, vm3 }) {
+         assertEquals(1, listener.updates.size());
+         assertEquals(Long.valueOf(CPU * 10), listener.updates.get(0).get("cpu.usage.average"));
+         assertEquals(Long.valueOf(MEM * 10), listener.updates.get(0).get("mem.usage.average"));
+      }
+   }
+
+   @Test
+   public void batchesPerVCenter() {
+      FakePerformanceManager other = new FakePerformanceManager("https://other-vc/sdk");
+      subscribe(perfMgr, "vm-1", 20, new Listener());
+      subscribe(other, "vm-1", 20, new Listener());
+
+      assertEquals(2, scheduler.getScheduledCount());
+      scheduler.runInterval();
+      assertEquals(1, perfMgr.getQueries().size());
+      assertEquals(1, other.getQueries().size());
+   }
+
+   @Test
+   public void batchesAcrossLookupsOfOneVCenter() {
+      // Each monitored VM looks up the performance manager again.
+      FakePerformanceManager again = new FakePerformanceManager();
+      Listener vm1 = new Listener();
+      Listener vm2 = new Listener();
+      subscribe(perfMgr, "vm-1", 20, vm1);
+      subscribe(again, "vm-2", 20, vm2);
+
+      assertEquals(1, scheduler.getScheduledCount());
+      scheduler.runInterval();
+
+      // One query for both, through the latest lookup.
+      assertEquals(0, perfMgr.getQueries().size());
+      assertEquals(1, again.getQueries().size());
+      assertEquals(2, again.getQueries().get(0).length);
+      assertEquals(1, vm1.updates.size());
+      assertEquals(1, vm2.updates.size());
+   }
+
+   @Test
+   public void queriesVmOnceForAllListeners() {
+      Listener first = new Listener();
+      Listener second = new Listener();
+      subscribe(perfMgr, "vm-1", 20, first);
+      subscribe(perfMgr, "vm-1", 20, second);
+
+      scheduler.runInterval();
+
+      assertEquals(1, perfMgr.getQueries().size());
+      assertEquals(1, perfMgr.getQueries().get(0).length);
+      assertEquals(1, first.updates.size());
+      assertEquals(1, second.updates.size());
+   }
+
+   @Test
+   public void unsubscribeStopsEmptyBatch() {
+      Listener vm1 = new Listener();
+      Listener vm2 = new Listener();
+      PerformanceCollector.Subscription first = subscribe(perfMgr, "vm-1", 20, vm1);
+      PerformanceCollector.Subscription second = subscribe(perfMgr, "vm-2", 20, vm2);
+
+      collector.unsubscribe(first);
+      scheduler.runInterval();
+      assertEquals(1, perfMgr.getQueries().get(0).length);
+      assertEquals(0, vm1.updates.size());
+      assertEquals(1, vm2.updates.size());
+      assertEquals(1, scheduler.getScheduledCount());
+
+      collector.unsubscribe(second);
+      collector.unsubscribe(second);
+      assertEquals(0, scheduler.getScheduledCount());
+      assertEquals(0, collector.getSubscriptionCount());
+
+      subscribe(perfMgr, "vm-3", 20, new Listener());
+      assertEquals(1, scheduler.getScheduledCount());
+   }
+
+   @Test
+   public void failedVmDoesNotStopOthers() {
+      Listener vm1 = new Listener();
+      Listener vm2 = new Listener();
+      subscribe(perfMgr, "vm-1", 20, vm1);
+      subscribe(perfMgr, "vm-2", 20, vm2);
+      perfMgr.removeVm("vm-2");
+
+      scheduler.runInterval();
+      scheduler.runInterval();
+
+      // Each interval: the batch, then each VM on its own.
+      assertEquals(6, perfMgr.getQueries().size());
+      assertEquals(2, vm1.updates.size());
+      assertEquals(0, vm2.updates.size());
+   }
+
+   @Test
+   public void cachesCounterInfo() throws Exception {
+      perfMgr.addCounter(CPU);
+      perfMgr.addCounter(MEM);
+
+      assertEquals(2, collector.getCounterInfo(perfMgr, new int[] { CPU, MEM }).length);
+      assertEquals(2, collector.getCounterInfo(perfMgr, new int[] { MEM, CPU }).length);
+      assertEquals(1, collector.getCounterInfo(perfMgr, new int[] { CPU }).length);
+      assertEquals(2, collector.getCounterInfo(perfMgr, new int[] { CPU, MEM, 99 }).length);
+
+      List<int[]> queries = perfMgr.getCounterQueries();
+      assertEquals(2, queries.size());
+      assertArrayEquals(new int[] { CPU, MEM }, queries.get(0));
+      assertArrayEquals(new int[] { 99 }, queries.get(1));
+
+      // Another lookup of the same vCenter shares the cache.
+      FakePerformanceManager again = new FakePerformanceManager();
+      assertEquals(2, collector.getCounterInfo(again, new int[] { CPU, MEM }).length);
+      assertEquals(0, again.getCounterQueries().size());
+
+      // Another vCenter has its own counters.
+      FakePerformanceManager other = new FakePerformanceManager("https://other-vc/sdk");
+      assertEquals(0, collector.getCounterInfo(other, new int[] { CPU }).length);
+      assertEquals(1, other.getCounterQueries().size());
+   }
+
+   @Test
+   public void dropsCounterInfoWithLastVm() throws Exception {
+      perfMgr.addCounter(CPU);
+      collector.getCounterInfo(perfMgr, new int[] { CPU });
+      PerformanceCollector.Subscription subscription = subscribe(perfMgr, "vm-1", 20, new Listener());
+      collector.getCounterInfo(perfMgr, new int[] { CPU });
+      assertEquals(1, perfMgr.getCounterQueries().size());
+
+      collector.unsubscribe(subscription);
+      collector.getCounterInfo(perfMgr, new int[] { CPU });
+      assertEquals(2, perfMgr.getCounterQueries().size());
+   }
+}
@@ -0,0 +1,286 @@
+/* ***********************************************************************
+ * VMware ThinApp Factory
+ * Copyright (c) 2009-2013 VMware, Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ***********************************************************************/
+
+package com.vmware.thinapp.manualmode.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import com.vmware.thinapp.manualmode.util.PhaseGraph;
+
+public class PhaseGraphTest {
+   private ExecutorService executor;
+
+   private static void sleep(long millis) {
+      try {
+         Thread.sleep(millis);
+      } catch (InterruptedException e) {
+         throw new RuntimeException(e);
+      }
+   }
+
+   private static PhaseGraph.Phase sleeping(final long millis) {
+      return new PhaseGraph.Phase() {
+         @Override
+         public void run() throws Exception {
+            Thread.sleep(millis);
+         }
+      };
+   }
+
+   private static PhaseGraph.Phase recording(final List<String> log, final String name) {
+      return new PhaseGraph.Phase() {
+         @Override
+         public void run() {
+            log.add(name);
+         }
+      };
+   }
+
+   @Before
+   public void setup() {
+      executor = Executors.newCachedThreadPool();
+   }
+
+   @After
+   public void teardown() {
+      executor.shutdownNow();
+   }
+
+   @Test
+   public void runsPhasesAfterDependencies() throws Exception {
+      List<String> log = Collections.synchronizedList(new ArrayList<String>());
+      PhaseGraph phases = new PhaseGraph();
+      // Added before the phases it depends on
+      phases.add("d", recording(log, "d"), "b", "c");
+      phases.add("a", recording(log, "a"));
+      phases.add("b", recording(log, "b"), "a");
+      phases.add("c", recording(log, "c"), "a");
+      phases.run(executor);
+
+      assertEquals(4, log.size());
+      assertEquals("a", log.get(0));
+      assertEquals("d", log.get(3));
+      assertEquals(4, phases.getTimings().size());
+   }
+
+   @Test
+   public void failureStopsGraph() throws Exception {
+      final AtomicBoolean dependentRan = new AtomicBoolean();
+      final CountDownLatch siblingStarted = new CountDownLatch(1);
+      final AtomicBoolean siblingInterrupted = new AtomicBoolean();
+
+      PhaseGraph phases = new PhaseGraph();
+      phases.add("fails", new PhaseGraph.Phase() {
+         @Override
+         public void run() throws Exception {
+            siblingStarted.await();
+            throw new IllegalStateException("boom");
+         }
+      });
+      phases.add("sibling", new PhaseGraph.Phase() {
+         @Override
+         public void run() throws Exception {
+            siblingStarted.countDown();
+            try {
+               Thread.sleep(10000);
+            } catch (InterruptedException e) {
+               siblingInterrupted.set(true);
+               throw e;
+            }
+         }
+      });
+      phases.add("dependent", new PhaseGraph.Phase() {
+         @Override
+         public void run() {
+            dependentRan.set(true);
+         }
+      }, "fails");
+
+      long start = System.currentTimeMillis();
+      try {
+         phases.run(executor);
+         fail("Expected the phase failure");
+      } catch (IllegalStateException e) {
+         assertEquals("boom", e.getMessage());
+      }
+      assertTrue(System.currentTimeMillis() - start < 5000);
+      assertTrue(siblingInterrupted.get());
+      assertFalse(dependentRan.get());
+   }
+
+   @Test
+   public void interruptStopsPhases() throws Exception {
+      final PhaseGraph phases = new PhaseGraph();
+      phases.add("long", sleeping(10000));
+      final CountDownLatch done = new CountDownLatch(1);
+      final List<Exception> failures = Collections.synchronizedList(new ArrayList<Exception>());
+      Thread runner = new Thread(new Runnable() {
+         @Override
+         public void run() {
+            try {
+               phases.run(executor);
+            } catch (Exception e) {
+               failures.add(e);
+            }
+            done.countDown();
+         }
+      });
+      runner.start();
+      Thread.sleep(100);
+      runner.interrupt();
+
+      assertTrue(done.await(5, TimeUnit.SECONDS));
+      assertEquals(1, failures.size());
+      assertTrue(failures.get(0) instanceof InterruptedException);
+   }
+
+   @Test
+   public void gateWaitsWithoutAThread() throws Exception {
+      final List<String> log = Collections.synchronizedList(new ArrayList<String>());
+      final SettableFuture<Void> loggedIn = SettableFuture.create();
+      final AtomicInteger executed = new AtomicInteger();
+      Executor counting = new Executor() {
+         @Override
+         public void execute(Runnable command) {
+            executed.incrementAndGet();
+            executor.execute(command);
+         }
+      };
+
+      PhaseGraph phases = new PhaseGraph();
+      phases.add("prepareVm", recording(log, "prepareVm"));
+      phases.addGate("loggedIn", new PhaseGraph.Gate() {
+         @Override
+         public ListenableFuture<?> open() {
+            log.add("loggedIn");
+            return loggedIn;
+         }
+      }, "prepareVm");
+      phases.add("verifyLoggedIn", recording(log, "verifyLoggedIn"), "loggedIn");
+
+      executor.execute(new Runnable() {
+         @Override
+         public void run() {
+            sleep(200);
+            loggedIn.set(null);
+         }
+      });
+      phases.run(counting);
+
+      assertEquals(Arrays.asList("prepareVm", "loggedIn", "verifyLoggedIn"), log);
+      // Only the two phases took a thread from the executor
+      assertEquals(2, executed.get());
+      assertEquals(3, phases.getTimings().size());
+      assertTrue(phases.getTimings().get("loggedIn").longValue() >= 150);
+   }
+
+   @Test
+   public void failureCancelsOpenGate() throws Exception {
+      final SettableFuture<Void> installed = SettableFuture.create();
+      PhaseGraph phases = new PhaseGraph();
+      phases.addGate("installed", new PhaseGraph.Gate() {
+         @Override
+         public ListenableFuture<?> open() {
+            return installed;
+         }
+      });
+      phases.add("monitorVm", new PhaseGraph.Phase() {
+         @Override
+         public void run() throws Exception {
+            Thread.sleep(100);
+            throw new IllegalStateException("boom");
+         }
+      });
+
+      try {
+         phases.run(executor);
+         fail("Expected the phase failure");
+      } catch (IllegalStateException e) {
+         assertEquals("boom", e.getMessage());
+      }
+      assertTrue(installed.isCancelled());
+   }
+
+   @Test
+   public void failedGateStopsGraph() throws Exception {
+      final AtomicBoolean dependentRan = new AtomicBoolean();
+      PhaseGraph phases = new PhaseGraph();
+      phases.addGate("installed", new PhaseGraph.Gate() {
+         @Override
+         public ListenableFuture<?> open() {
+            SettableFuture<Void> installed = SettableFuture.create();
+            installed.setException(new IllegalStateException("canceled"));
+            return installed;
+         }
+      });
+      phases.add("postInstall", new PhaseGraph.Phase() {
+         @Override
+         public void run() {
+            dependentRan.set(true);
+         }
+      }, "installed");
+
+      try {
+         phases.run(executor);
+         fail("Expected the gate failure");
+      } catch (IllegalStateException e) {
+         assertEquals("canceled", e.getMessage());
+      }
+      assertFalse(dependentRan.get());
+   }
+
+   @Test(expected = IllegalArgumentException.class)
+   public void unknownDependency() throws Exception {
+      new PhaseGraph().add("a", sleeping(0), "missing").run(executor);
+   }
+
+   @Test
+   public void cycleIsRejectedBeforeRunning() throws Exception {
+      List<String> log = Collections.synchronizedList(new ArrayList<String>());
+      PhaseGraph phases = new PhaseGraph()
+            .add("start", recording(log, "start"))
+            .add("a", recording(log, "a"), "start", "b")
+            .add("b", recording(log, "b"), "a");
+      try {
+         phases.run(executor);
+         fail("Expected the cycle to be rejected");
+      } catch (IllegalArgumentException e) {
+         assertEquals(Arrays.asList(), log);
+      }
+   }
+}
@@ -0,0 +1,86 @@
+/* ***********************************************************************
+ * VMware ThinApp Factory
+ * Copyright (c) 2009-2013 VMware, Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ***********************************************************************/
+
+package com.vmware.thinapp.manualmode.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+import com.vmware.thinapp.manualmode.util.PhaseStatistics;
+
+/**
+ * Test phase timing percentiles across jobs.
+ */
+public class PhaseStatisticsTest {
+   @Test
+   public void parsesStoredTimings() {
+      Map<String, Long> timings =
+            PhaseStatistics.parseTimings("prepareVm=3000, stageThinApp=1200,bogus,x=y,=5");
+      assertEquals(Arrays.asList("prepareVm", "stageThinApp"),
+                   Arrays.asList(timings.keySet().toArray()));
+      assertEquals(Long.valueOf(3000), timings.get("prepareVm"));
+      assertEquals(Long.valueOf(1200), timings.get("stageThinApp"));
+
+      assertTrue(PhaseStatistics.parseTimings(null).isEmpty());
+      assertTrue(PhaseStatistics.parseTimings("").isEmpty());
+   }
+
+   @Test
+   public void nearestRankPercentiles() {
+      PhaseStatistics stats = new PhaseStatistics();
+      // 1..100 in a scrambled order
+      for (int i = 0; i < 100; i++) {
+         Map<String, Long> job = new LinkedHashMap<String, Long>();
+         job.put("installApplication", Long.valueOf((i * 37) % 100 + 1));
+         if (i < 3) {
+            job.put("downloadFiles", Long.valueOf(10 * (i + 1)));
+         }
+         stats.add(job);
+      }
+
+      Map<String, PhaseStatistics.Summary> summary = stats.summarize();
+      PhaseStatistics.Summary install = summary.get("installApplication");
+      assertEquals(100, install.getCount());
+      assertEquals(50, install.getP50());
+      assertEquals(90, install.getP90());
+      assertEquals(99, install.getP99());
+      assertEquals(100, install.getMax());
+
+      PhaseStatistics.Summary download = summary.get("downloadFiles");
+      assertEquals(3, download.getCount());
+      assertEquals(20, download.getP50());
+      assertEquals(30, download.getP90());
+      assertEquals(30, download.getP99());
+      assertEquals(30, download.getMax());
+   }
+
+   @Test
+   public void singleSample() {
+      PhaseStatistics stats = new PhaseStatistics();
+      stats.add(PhaseStatistics.parseTimings("buildProject=42"));
+      PhaseStatistics.Summary build = stats.summarize().get("buildProject");
+      assertEquals(1, build.getCount());
+      assertEquals(42, build.getP50());
+      assertEquals(42, build.getP99());
+   }
+}
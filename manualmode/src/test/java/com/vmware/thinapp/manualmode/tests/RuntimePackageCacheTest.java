@@ -0,0 +1,201 @@
+/* ***********************************************************************
+ * VMware ThinApp Factory
+ * Copyright (c) 2009-2013 VMware, Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ***********************************************************************/
+
+package com.vmware.thinapp.manualmode.tests;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Closeables;
+import com.google.common.io.Files;
+import com.vmware.thinapp.manualmode.server.RuntimePackageCache;
+
+public class RuntimePackageCacheTest {
+   private static final byte[] STUB = "SFX-STUB".getBytes(Charsets.US_ASCII);
+   private static final String NAME = "4.7.0-519532";
+
+   private File root;
+   private File runtimeDir;
+   private File cacheDir;
+   private RuntimePackageCache cache;
+
+   @Before
+   public void setUp() throws IOException {
+      root = Files.createTempDir();
+      runtimeDir = new File(root, NAME);
+      cacheDir = new File(root, "cache");
+      write(new File(runtimeDir, "tlink.exe"), "link");
+      write(new File(runtimeDir, "lib/nt0_dll.dll"), "runtime dll");
+      cache = new RuntimePackageCache(cacheDir, ByteStreams.newInputStreamSupplier(STUB));
+   }
+
+   @After
+   public void tearDown() throws IOException {
+      Files.deleteRecursively(root.getCanonicalFile());
+   }
+
+   private static void write(File file, String contents) throws IOException {
+      file.getParentFile().mkdirs();
+      Files.write(contents, file, Charsets.US_ASCII);
+   }
+
+   /**
+    * @return the zip entries of a package, checking that it starts with the stub
+    */
+   private static List<String> entries(File packageFile) throws IOException {
+      InputStream in = new FileInputStream(packageFile);
+      try {
+         byte[] stub = new byte[STUB.length];
+         ByteStreams.readFully(in, stub);
+         assertArrayEquals(STUB, stub);
+
+         List<String> names = new ArrayList<String>();
+         ZipInputStream zip = new ZipInputStream(in);
+         ZipEntry entry;
+         while ((entry = zip.getNextEntry()) != null) {
+            String name = entry.getName();
+            if (!entry.isDirectory()) {
+               name += "=" + new String(ByteStreams.toByteArray(zip), Charsets.US_ASCII);
+            }
+            names.add(name);
+         }
+         return names;
+      } finally {
+         Closeables.closeQuietly(in);
+      }
+   }
+
+   @Test
+   public void packageIsBuiltOnce() throws IOException {
+      File first = cache.acquire(NAME, runtimeDir);
+      File second = cache.acquire(NAME, runtimeDir);
+
+      assertEquals(first, second);
+      assertEquals(1, cache.getBuilds());
+      assertEquals("[lib/, lib/nt0_dll.dll=runtime dll, tlink.exe=link]",
+              entries(first).toString());
+
+      cache.release(first);
+      cache.release(second);
+      assertTrue(first.isFile());
+   }
+
+   @Test
+   public void changedRuntimeIsRebuilt() throws IOException {
+      File first = cache.acquire(NAME, runtimeDir);
+      cache.release(first);
+
+      write(new File(runtimeDir, "lib/nt0_dll.dll"), "patched runtime dll");
+      File second = cache.acquire(NAME, runtimeDir);
+      cache.release(second);
+
+      assertFalse(first.equals(second));
+      assertEquals(2, cache.getBuilds());
+      assertFalse(first.exists());
+      assertEquals("[lib/, lib/nt0_dll.dll=patched runtime dll, tlink.exe=link]",
+              entries(second).toString());
+
+      write(new File(runtimeDir, "vmw.lic"), "license");
+      File third = cache.acquire(NAME, runtimeDir);
+      cache.release(third);
+      assertEquals(3, cache.getBuilds());
+      assertEquals(1, cacheDir.list().length);
+   }
+
+   @Test
+   public void packageInUseIsKeptUntilReleased() throws IOException {
+      File first = cache.acquire(NAME, runtimeDir);
+      write(new File(runtimeDir, "tlink.exe"), "new link");
+      File second = cache.acquire(NAME, runtimeDir);
+
+      assertTrue(first.isFile());
+      cache.release(first);
+      assertFalse(first.exists());
+      assertTrue(second.isFile());
+      cache.release(second);
+   }
+
+   @Test
+   public void otherRuntimesAreKept() throws IOException {
+      File otherDir = new File(root, "4.7.0-5195");
+      write(new File(otherDir, "tlink.exe"), "other");
+      File other = cache.acquire("4.7.0-5195", otherDir);
+      cache.release(other);
+
+      cache.release(cache.acquire(NAME, runtimeDir));
+      write(new File(runtimeDir, "tlink.exe"), "new link");
+      cache.release(cache.acquire(NAME, runtimeDir));
+
+      assertTrue(other.isFile());
+      assertEquals(2, cacheDir.list().length);
+   }
+
+   @Test
+   public void leftoverTempFilesAreRemoved() throws IOException {
+      write(new File(cacheDir, NAME + "-abc.exe123.tmp"), "partial");
+      new RuntimePackageCache(cacheDir, ByteStreams.newInputStreamSupplier(STUB));
+      assertEquals(0, cacheDir.list().length);
+   }
+
+   @Test
+   public void concurrentCapturesShareOneBuild() throws Exception {
+      ExecutorService executor = Executors.newFixedThreadPool(8);
+      try {
+         List<Future<File>> results = new ArrayList<Future<File>>();
+         for (int i = 0; i < 16; i++) {
+            results.add(executor.submit(new Callable<File>() {
+               @Override
+               public File call() throws IOException {
+                  return cache.acquire(NAME, runtimeDir);
+               }
+            }));
+         }
+         Set<File> files = new HashSet<File>();
+         for (Future<File> result : results) {
+            files.add(result.get(10, TimeUnit.SECONDS));
+         }
+         assertEquals(1, files.size());
+         assertEquals(1, cache.getBuilds());
+      } finally {
+         executor.shutdownNow();
+      }
+   }
+}
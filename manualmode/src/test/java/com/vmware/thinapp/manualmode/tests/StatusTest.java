@@ -0,0 +1,117 @@
+/* ***********************************************************************
+ * VMware ThinApp Factory
+ * Copyright (c) 2009-2013 VMware, Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ***********************************************************************/
+
+package com.vmware.thinapp.manualmode.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.vmware.thinapp.common.converter.dto.Status.State;
+import com.vmware.thinapp.manualmode.server.Status;
+
+public class StatusTest {
+   @Test
+   public void currentStateIsFurthestState() {
+      Status status = new Status();
+      assertEquals(State.created, status.getCurrentState());
+
+      status.setCurrentState(State.preCaptureWait);
+      status.setCurrentState(State.vmAcquired);
+      assertEquals(State.preCaptureWait, status.getCurrentState());
+      assertEquals(45, status.getPercent());
+   }
+
+   @Test
+   public void whenReachedCompletesOnState() throws Exception {
+      Status status = new Status();
+      final AtomicInteger calls = new AtomicInteger();
+      ListenableFuture<State> reached = status.whenReached(State.preCaptureDone);
+      reached.addListener(new Runnable() {
+         @Override
+         public void run() {
+            calls.incrementAndGet();
+         }
+      }, MoreExecutors.sameThreadExecutor());
+
+      status.setCurrentState(State.preCaptureWait);
+      assertFalse(reached.isDone());
+
+      status.setCurrentState(State.preCaptureDone);
+      assertTrue(reached.isDone());
+      assertEquals(State.preCaptureDone, reached.get());
+      assertEquals(1, calls.get());
+
+      // Later states don't run the listener again
+      status.setCurrentState(State.takingPreCaptureSnapshot);
+      assertEquals(1, calls.get());
+   }
+
+   @Test
+   public void whenReachedCompletesImmediatelyIfPastState() throws Exception {
+      Status status = new Status();
+      status.setCurrentState(State.installationDone);
+      ListenableFuture<State> reached = status.whenReached(State.preCaptureDone);
+      assertTrue(reached.isDone());
+      assertEquals(State.installationDone, reached.get());
+   }
+
+   @Test
+   public void whenReachedCompletesOnCancel() throws Exception {
+      Status status = new Status();
+      status.setCurrentState(State.installationWait);
+      ListenableFuture<State> reached = status.whenReached(State.installationDone);
+
+      status.setCurrentState(State.cancelling);
+      assertTrue(reached.isDone());
+      assertTrue(status.isRequestCancelling());
+   }
+
+   @Test
+   public void concurrentWaitersAllComplete() throws Exception {
+      final Status status = new Status();
+      final int count = 1000;
+      final CountDownLatch completed = new CountDownLatch(count);
+      Thread registrar = new Thread(new Runnable() {
+         @Override
+         public void run() {
+            for (int i = 0; i < count; i++) {
+               status.whenReached(State.finished).addListener(new Runnable() {
+                  @Override
+                  public void run() {
+                     completed.countDown();
+                  }
+               }, MoreExecutors.sameThreadExecutor());
+            }
+         }
+      });
+      registrar.start();
+      for (State state : State.values()) {
+         status.setCurrentState(state);
+      }
+      registrar.join();
+      assertTrue(completed.await(5, TimeUnit.SECONDS));
+   }
+}
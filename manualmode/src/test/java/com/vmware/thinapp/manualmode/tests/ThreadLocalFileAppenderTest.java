@@ -0,0 +1,209 @@
+/* ***********************************************************************
+ * VMware ThinApp Factory
+ * Copyright (c) 2009-2013 VMware, Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ***********************************************************************/
+
+package com.vmware.thinapp.manualmode.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Appender;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.apache.log4j.PatternLayout;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+import com.vmware.thinapp.manualmode.ThreadLocalFileAppender;
+
+/**
+ * Log through log4j into per-job files.
+ */
+public class ThreadLocalFileAppenderTest {
+   private static final int MESSAGES = 500;
+
+   private final Logger logger = Logger.getLogger("jobs.ThreadLocalFileAppenderTest");
+   private final List<Appender> rootAppenders = new ArrayList<Appender>();
+   private ThreadLocalFileAppender appender;
+   private File dir;
+
+   @Before
+   public void setUp() {
+      dir = Files.createTempDir();
+
+      // Only this test's appender, set up the way log4j.properties does
+      Logger root = Logger.getRootLogger();
+      for (Enumeration<?> e = root.getAllAppenders(); e.hasMoreElements();) {
+         rootAppenders.add((Appender) e.nextElement());
+      }
+      for (Appender a : rootAppenders) {
+         root.removeAppender(a);
+      }
+      appender = new ThreadLocalFileAppender();
+      appender.setLayout(new PatternLayout("%5p %t - %m%n"));
+      root.addAppender(appender);
+      logger.setLevel(Level.DEBUG);
+   }
+
+   @After
+   public void tearDown() {
+      Logger root = Logger.getRootLogger();
+      root.removeAppender(appender);
+      for (Appender a : rootAppenders) {
+         root.addAppender(a);
+      }
+      for (File file : dir.listFiles()) {
+         file.delete();
+      }
+      dir.delete();
+   }
+
+   private String file(String name) {
+      return new File(dir, name).getAbsolutePath();
+   }
+
+   private List<String> lines(String filename) throws IOException {
+      return Files.readLines(new File(filename), Charsets.UTF_8);
+   }
+
+   /**
+    * A job logging a burst of debug messages and then a warning with an
+    * exception, on a thread of its own.
+    */
+   private Thread job(final String name, final String filename,
+                      final CyclicBarrier start, final List<Throwable> failures) {
+      return new Thread(new Runnable() {
+         @Override
+         public void run() {
+            try {
+               ThreadLocalFileAppender.set(filename);
+               try {
+                  start.await();
+                  for (int i = 0; i < MESSAGES; i++) {
+                     logger.debug(name + " message " + i);
+                  }
+                  logger.warn(name + " failed", new IllegalStateException(name + " broke"));
+               } finally {
+                  ThreadLocalFileAppender.remove();
+               }
+            } catch (Throwable t) {
+               failures.add(t);
+            }
+         }
+      }, name);
+   }
+
+   @Test
+   public void eachThreadLogsToItsJobFile() throws Exception {
+      List<Throwable> failures = Collections.synchronizedList(new ArrayList<Throwable>());
+      CyclicBarrier start = new CyclicBarrier(2);
+      String first = file("first.log");
+      String second = file("second.log");
+      Thread one = job("first", first, start, failures);
+      Thread two = job("second", second, start, failures);
+      one.start();
+      two.start();
+      one.join();
+      two.join();
+      assertEquals(Collections.emptyList(), failures);
+
+      for (String name : new String[] { "first", "second" }) {
+         List<String> lines = lines(file(name + ".log"));
+         // Every debug message, in order, formatted with this thread's name
+         for (int i = 0; i < MESSAGES; i++) {
+            assertEquals("DEBUG " + name + " - " + name + " message " + i, lines.get(i));
+         }
+         assertEquals(" WARN " + name + " - " + name + " failed", lines.get(MESSAGES));
+         // The layout ignores the exception, so the appender writes it out
+         assertEquals("java.lang.IllegalStateException: " + name + " broke",
+                      lines.get(MESSAGES + 1));
+         assertTrue(lines.get(MESSAGES + 2).startsWith("\tat "));
+      }
+   }
+
+   @Test
+   public void threadsWithoutAJobFileLogNothing() throws Exception {
+      logger.info("not for any job");
+      String filename = file("job.log");
+      ThreadLocalFileAppender.set(filename);
+      try {
+         logger.info("for the job");
+      } finally {
+         ThreadLocalFileAppender.remove();
+      }
+      logger.info("not for any job either");
+
+      assertEquals(Collections.singletonList(" INFO main - for the job"), lines(filename));
+   }
+
+   @Test
+   public void appendingTakesNoAppenderLock() throws Exception {
+      final String filename = file("job.log");
+      final CountDownLatch logged = new CountDownLatch(1);
+      Thread job = new Thread(new Runnable() {
+         @Override
+         public void run() {
+            try {
+               ThreadLocalFileAppender.set(filename);
+               logger.info("while the appender is locked");
+               ThreadLocalFileAppender.remove();
+               logged.countDown();
+            } catch (Exception e) {
+               throw new RuntimeException(e);
+            }
+         }
+      }, "job");
+
+      // AppenderSkeleton.doAppend() synchronizes on the appender
+      synchronized (appender) {
+         job.start();
+         assertTrue(logged.await(5, TimeUnit.SECONDS));
+      }
+      job.join();
+      assertEquals(Collections.singletonList(" INFO job - while the appender is locked"),
+                   lines(filename));
+   }
+
+   @Test
+   public void layoutChangesAreSeenByEveryThread() throws Exception {
+      String filename = file("job.log");
+      ThreadLocalFileAppender.set(filename);
+      try {
+         logger.info("before");
+         appender.setLayout(new PatternLayout("%p: %m%n"));
+         logger.info("after");
+      } finally {
+         ThreadLocalFileAppender.remove();
+      }
+
+      List<String> lines = lines(filename);
+      assertEquals(" INFO main - before", lines.get(0));
+      assertEquals("INFO: after", lines.get(1));
+   }
+}
@@ -38,6 +38,8 @@ class ThinAppRuntimePackagerTest {
    @Test
    def testCreatePackage = {
       val runtime = ThinAppRuntime("4.0.4", 216012, new File(runtimesPath, "4.0.4-216012").getAbsolutePath)
-      println(thinappRuntimePackager.createPackage(runtime))
+      val packageFile = thinappRuntimePackager.acquirePackage(runtime)
+      println(packageFile)
+      thinappRuntimePackager.releasePackage(packageFile)
    }
 }
\ No newline at end of file
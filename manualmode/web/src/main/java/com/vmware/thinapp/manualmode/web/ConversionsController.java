@@ -17,7 +17,9 @@
 
 package com.vmware.thinapp.manualmode.web;
 
+import java.io.IOException;
 import java.util.List;
+import java.util.Map;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -40,10 +42,12 @@ import com.vmware.thinapp.common.converter.dto.Status.State;
 import com.vmware.thinapp.common.converter.dto.Ticket;
 import com.vmware.thinapp.common.converter.dto.TicketRequest;
 import com.vmware.thinapp.common.converter.exception.ConverterException;
+import com.vmware.thinapp.common.util.AfJsonCodecs;
 import com.vmware.thinapp.manualmode.dao.ConversionJobRepository;
 import com.vmware.thinapp.manualmode.model.ConversionJobModel;
 import com.vmware.thinapp.manualmode.server.ManualMode;
 import com.vmware.thinapp.manualmode.server.Status;
+import com.vmware.thinapp.manualmode.util.PhaseStatistics;
 
 @Controller
 public class ConversionsController {
@@ -121,6 +125,38 @@ public class ConversionsController {
       return getJobStatus(job);
    }
 
+   /**
+    * Get the timeline of a conversion job in trace event JSON, which
+    * chrome://tracing can load.  Running jobs return the timeline so far.
+    */
+   @RequestMapping(
+         value="/conversions/{jobId}/trace",
+         method=RequestMethod.GET)
+   @ResponseBody
+   public Map<String, Object> getConversionTrace(
+         @PathVariable Long jobId) throws IOException {
+      ConversionJobModel job = jobDao.getJobById(jobId);
+      if (job == null) {
+         throw new ConverterException(String.format("Invalid job ID: %s", jobId));
+      }
+
+      if (job.getTrace() != null) {
+         return AfJsonCodecs.reader(AfJsonCodecs.COMPACT, Map.class).readValue(job.getTrace());
+      }
+      return mmode.redeem(job.createTicket()).getTrace().toTraceEvents();
+   }
+
+   /**
+    * Get percentiles of how long each capture phase took across all jobs.
+    */
+   @RequestMapping(
+         value="/conversions/statistics",
+         method=RequestMethod.GET)
+   @ResponseBody
+   public Map<String, PhaseStatistics.Summary> getPhaseStatistics() {
+      return jobDao.getPhaseStatistics();
+   }
+
    private ConversionJobStatus getJobStatus(ConversionJobModel job) {
       Status status = mmode.redeem(job.createTicket());
       ConversionJobStatus jobStatus = new ConversionJobStatus();
@@ -0,0 +1,29 @@
+# VMware ThinApp Factory
+# Copyright (c) 2009-2013 VMware, Inc. All Rights Reserved.
+#
+# Licensed under the Apache License, Version 2.0 (the "License");
+# you may not use this file except in compliance with the License.
+# You may obtain a copy of the License at
+#
+#     http://www.apache.org/licenses/LICENSE-2.0
+#
+# Unless required by applicable law or agreed to in writing, software
+# distributed under the License is distributed on an "AS IS" BASIS,
+# WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+# See the License for the specific language governing permissions and
+# limitations under the License.
+
+from sqlalchemy import *
+from migrate.changeset import *
+
+meta = MetaData()
+conversionjobmodel = Table('conversionjobmodel', meta)
+trace = Column('trace', Text, nullable=True)
+
+def upgrade(migrate_engine):
+   meta.bind = migrate_engine
+   trace.create(conversionjobmodel)
+
+def downgrade(migrate_engine):
+   meta.bind = migrate_engine
+   trace.drop(conversionjobmodel)
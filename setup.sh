@@ -122,6 +122,12 @@ package_root="$install_dir"/packages
 # here.
 mkdir -p "$install_dir/runtimes"
 
+# Create the cache of self-extracting runtime packages built by Tomcat.
+install -o $tomcat_user -d "$install_dir/runtime-packages"
+
+# Create the cache of installers downloaded by Tomcat.
+install -o $tomcat_user -d "$install_dir/download-cache"
+
 # Create exported samba directory.
 install -o $taf_user -g $taf_user -d "$package_root"
 chown $taf_user "$package_root"
@@ -175,11 +181,15 @@ vc.ignoreCertificate=$vc_ignoreCertificate
 thinapp.licenseUser=$thinapp_user
 thinapp.licenseKey=$thinapp_license
 runtimesPath=$install_dir/runtimes
+runtimePackageCachePath=$install_dir/runtime-packages
+downloadCache.path=$install_dir/download-cache
 EOF
 
 cat > "$tomcat_classes"/workpool.properties <<EOF
 iniPath=$install_dir/workpool.ini
 clonevm=$easy_install_dir/clone-vm
+clonevm.worker=$easy_install_dir/afdeploy-worker
+guestops.worker=$easy_install_dir/afdeploy-worker
 EOF
 
 if [ -d "$tomcat_root/webapps/ROOT" ]; then
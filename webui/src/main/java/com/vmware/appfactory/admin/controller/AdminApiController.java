@@ -22,9 +22,12 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
+import javax.annotation.Resource;
 import javax.servlet.http.HttpServletResponse;
 
 import org.hibernate.HibernateException;
+import org.hibernate.SessionFactory;
+import org.hibernate.stat.Statistics;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.security.core.context.SecurityContextHolder;
 import org.springframework.security.provisioning.UserDetailsManager;
@@ -34,6 +37,7 @@ import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.RequestBody;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.ResponseBody;
 
 import com.google.common.collect.Iterables;
@@ -50,6 +54,8 @@ import com.vmware.appfactory.feed.dao.FeedDao;
 import com.vmware.appfactory.file.FileData;
 import com.vmware.appfactory.fileshare.dao.FileShareDao;
 import com.vmware.appfactory.taskqueue.tasks.MetaStatusPredicate;
+import com.vmware.appfactory.taskqueue.tasks.TaskQueue;
+import com.vmware.appfactory.taskqueue.tasks.state.TaskState;
 import com.vmware.thinapp.common.util.AfUtil;
 import com.vmware.thinapp.common.workpool.dto.Workpool;
 import com.vmware.thinapp.common.workpool.exception.WpException;
@@ -66,6 +72,9 @@ public class AdminApiController
    @Autowired
    private UserDetailsManager _userDetailsManager;
 
+   @Resource(name = "sessionFactory")
+   private SessionFactory _sessionFactory;
+
    /**
     * Reboot the appliance.
     * @throws CwsException
@@ -268,6 +277,95 @@ public class AdminApiController
       return stats;
    }
 
+   /**
+    * Return counters used to measure the appliance under load: task queue
+    * sizes and wait times, database activity and heap use.
+    *
+    * Database counters are only collected when my.hibernate.statistics is
+    * set to true.
+    *
+    * @param reset If true, reset the database counters after reading them.
+    * @return A map of name/value pairs.
+    */
+   @ResponseBody
+   @RequestMapping(
+         value = "/admin/loadstats",
+         method = RequestMethod.GET)
+   public Map<String, Object> loadStats(
+         @RequestParam(required=false) boolean reset)
+   {
+      final Map<String, Object> stats = new HashMap<String, Object>();
+
+      /* Task queues */
+      stats.put("conversionsQueue", queueStats(_conversionsQueue));
+      stats.put("scanningQueue", queueStats(_scanningQueue));
+
+      /* Database */
+      final Statistics db = _sessionFactory.getStatistics();
+      stats.put("dbStatisticsEnabled", Boolean.valueOf(db.isStatisticsEnabled()));
+      stats.put("dbQueryCount", Long.valueOf(db.getQueryExecutionCount()));
+      stats.put("dbQueryMaxTimeMs", Long.valueOf(db.getQueryExecutionMaxTime()));
+      stats.put("dbStatementCount", Long.valueOf(db.getPrepareStatementCount()));
+      stats.put("dbEntityLoadCount", Long.valueOf(db.getEntityLoadCount()));
+      stats.put("dbCollectionFetchCount", Long.valueOf(db.getCollectionFetchCount()));
+      stats.put("dbTransactionCount", Long.valueOf(db.getTransactionCount()));
+      if (reset) {
+         db.clear();
+      }
+
+      /* Heap */
+      final Runtime runtime = Runtime.getRuntime();
+      stats.put("heapUsed", Long.valueOf(runtime.totalMemory() - runtime.freeMemory()));
+      stats.put("heapCommitted", Long.valueOf(runtime.totalMemory()));
+      stats.put("heapMax", Long.valueOf(runtime.maxMemory()));
+
+      return stats;
+   }
+
+   /**
+    * Count the tasks of a queue, and measure how long the started ones
+    * waited to start.
+    */
+   private static Map<String, Object> queueStats(TaskQueue queue)
+   {
+      long waiting = 0;
+      long running = 0;
+      long finished = 0;
+      long started = 0;
+      long totalWait = 0;
+      long maxWait = 0;
+
+      for (TaskState task : queue.getAllTasks()) {
+         switch (task.getQueueStatus()) {
+            case WAITING:
+               waiting++;
+               break;
+            case RUNNING:
+               running++;
+               break;
+            case FINISHED:
+               finished++;
+               break;
+            default:
+               break;
+         }
+         if (task.getQueued() > 0 && task.getStarted() > 0) {
+            long wait = task.getStarted() - task.getQueued();
+            started++;
+            totalWait += wait;
+            maxWait = Math.max(maxWait, wait);
+         }
+      }
+
+      final Map<String, Object> stats = new HashMap<String, Object>();
+      stats.put("waiting", Long.valueOf(waiting));
+      stats.put("running", Long.valueOf(running));
+      stats.put("finished", Long.valueOf(finished));
+      stats.put("meanWaitMs", Long.valueOf(started == 0 ? 0 : totalWait / started));
+      stats.put("maxWaitMs", Long.valueOf(maxWait));
+      return stats;
+   }
+
    /**
     * Reset 'admin' password.
     * @throws AfBadRequestException
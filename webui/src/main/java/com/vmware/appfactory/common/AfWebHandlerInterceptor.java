@@ -18,6 +18,7 @@
 package com.vmware.appfactory.common;
 
 import java.io.IOException;
+import java.util.Random;
 
 import javax.annotation.Resource;
 import javax.servlet.ServletException;
@@ -54,6 +55,8 @@ public class AfWebHandlerInterceptor
 
    private final Logger _log = LoggerFactory.getLogger(AfWebHandlerInterceptor.class);
 
+   private final Random _random = new Random();
+
    @Resource
    private ConfigRegistry _config;
 
@@ -139,6 +142,18 @@ public class AfWebHandlerInterceptor
 
       }
 
+      if (_af.isDevModeDeploy() && isSimulatorRequest(request)) {
+         long failureRate = _config.getLong(ConfigRegistryConstants.DEBUG_WEBUI_SIMS_FAILURE_RATE);
+         if (failureRate > 0 && _random.nextInt(100) < failureRate) {
+            try {
+               response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, "Simulated failure");
+               return false;
+            } catch (IOException e) {
+               _log.error("Failed to send simulated failure response!", e);
+            }
+         }
+      }
+
       super.preHandle(request, response, handler);
       return true;
    }
@@ -159,12 +174,18 @@ public class AfWebHandlerInterceptor
          long delay = 0;
          String path = request.getPathInfo();
 
-         /* Match path to a configured delay */
-         if (isApiRequest(handler)) {
-            delay = _config.getLong(ConfigRegistryConstants.DEBUG_WEBUI_API_DELAY);
-         }
-         else if (path.startsWith("/ds") || path.startsWith("/cws") || path.startsWith("/wp")) {
+         /* Match path to a configured delay; the simulators are API controllers too */
+         if (isSimulatorRequest(request)) {
             delay = _config.getLong(ConfigRegistryConstants.DEBUG_WEBUI_SIMS_DELAY);
+
+            /* Exponentially distributed extra delay, for a realistic long tail */
+            long jitter = _config.getLong(ConfigRegistryConstants.DEBUG_WEBUI_SIMS_DELAY_JITTER);
+            if (jitter > 0) {
+               delay += (long) (-jitter * Math.log(1.0 - _random.nextDouble()));
+            }
+         }
+         else if (isApiRequest(handler)) {
+            delay = _config.getLong(ConfigRegistryConstants.DEBUG_WEBUI_API_DELAY);
          }
          else {
             delay = _config.getLong(ConfigRegistryConstants.DEBUG_WEBUI_UI_DELAY);
@@ -215,6 +236,19 @@ public class AfWebHandlerInterceptor
        return handler instanceof AbstractApiController;
    }
 
+   /**
+    * Check whether the request is for one of the CWS, datastore or workpool
+    * simulators.
+    *
+    * @param request a HttpServletRequest instance.
+    * @return
+    */
+   private static boolean isSimulatorRequest(HttpServletRequest request) {
+      String path = request.getPathInfo();
+      return path != null &&
+            (path.startsWith("/ds") || path.startsWith("/cws") || path.startsWith("/wp"));
+   }
+
    /**
     * Check whether the request is for accessing the EULA.
     * @param request a HttpServletRequest instance.
@@ -38,7 +38,7 @@ import com.google.common.base.Equivalence;
 import com.vmware.appfactory.common.AfIcon;
 import com.vmware.appfactory.common.AfText;
 import com.vmware.appfactory.common.MutableApplicationKey;
-import com.vmware.thinapp.common.util.AfUtil;
+import com.vmware.thinapp.common.util.AfSortKey;
 
 /**
  * This superclass is used by both AfApplication and AfPackage, since these
@@ -98,6 +98,9 @@ public abstract class AbstractApp
    @Column(length=1024)
    private String _categoriesEncoded = "";
 
+   /** Sort key used by compareTo(); not persisted, see sortKey() */
+   private transient SortKey _sortKey;
+
 
    /**
     * Create a new AbstractApp instance.
@@ -555,16 +558,19 @@ public abstract class AbstractApp
     */
    public int compareTo(AbstractApp other)
    {
-      int cmp = _name.compareToIgnoreCase(other._name);
+      SortKey key = sortKey();
+      SortKey otherKey = other.sortKey();
+
+      int cmp = key.name.compareTo(otherKey.name);
 
       if (cmp == 0) {
-         cmp = AfUtil.alnumCompare(_version, other._version);
+         cmp = key.version.compareTo(otherKey.version);
       }
       if (cmp == 0) {
-         cmp = _locale.compareToIgnoreCase(other._locale);
+         cmp = key.locale.compareTo(otherKey.locale);
       }
       if (cmp == 0) {
-         cmp = AfUtil.alnumCompare(_installerRev, other._installerRev);
+         cmp = key.installerRev.compareTo(otherKey.installerRev);
       }
       if (cmp == 0) {
          cmp = _architecture.compareTo(other._architecture);
@@ -574,6 +580,57 @@ public abstract class AbstractApp
    }
 
 
+   /**
+    * Get the cached sort key, building a new one if any of the fields it
+    * covers has changed since it was built.
+    *
+    * The fields are not only set through setters (see deepCopyApp() and
+    * Hibernate), so rather than relying on the setters to invalidate it, the
+    * key remembers the exact String instances it was built from.
+    *
+    * @return Sort key for the current name, version, locale and revision.
+    */
+   private SortKey sortKey()
+   {
+      SortKey key = _sortKey;
+      if (key == null || !key.isFor(this)) {
+         key = new SortKey(this);
+         _sortKey = key;
+      }
+      return key;
+   }
+
+
+   /**
+    * Precomputed collation keys for the fields compared by compareTo().
+    * Immutable, so it is safe to share between threads.
+    */
+   private static final class SortKey
+   {
+      private final AfSortKey name;
+      private final AfSortKey version;
+      private final AfSortKey locale;
+      private final AfSortKey installerRev;
+
+      private SortKey(AbstractApp app)
+      {
+         name = AfSortKey.caseInsensitive(app._name);
+         version = AfSortKey.alnum(app._version);
+         locale = AfSortKey.caseInsensitive(app._locale);
+         installerRev = AfSortKey.alnum(app._installerRev);
+      }
+
+      @SuppressWarnings("StringEquality")
+      private boolean isFor(AbstractApp app)
+      {
+         return name.getSource() == app._name &&
+               version.getSource() == app._version &&
+               locale.getSource() == app._locale &&
+               installerRev.getSource() == app._installerRev;
+      }
+   }
+
+
    /**
     * Get a handy display name for this application.
     * TODO: Config option to format this, such as "%n %v (%l) %r"
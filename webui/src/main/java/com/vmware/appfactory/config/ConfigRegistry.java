@@ -224,6 +224,12 @@ public class ConfigRegistry {
             newLongInstance(CONF_GROUP_DEBUG, n++, DEBUG_WEBUI_API_DELAY, false, "ms"));
       builder.put(DEBUG_WEBUI_SIMS_DELAY,
             newLongInstance(CONF_GROUP_DEBUG, n++, DEBUG_WEBUI_SIMS_DELAY, false, "ms"));
+      builder.put(DEBUG_WEBUI_SIMS_DELAY_JITTER,
+            newLongInstance(CONF_GROUP_DEBUG, n++, DEBUG_WEBUI_SIMS_DELAY_JITTER, false, "ms"));
+      builder.put(DEBUG_WEBUI_SIMS_FAILURE_RATE,
+            newLongInstance(CONF_GROUP_DEBUG, n++, DEBUG_WEBUI_SIMS_FAILURE_RATE, false, "%"));
+      builder.put(DEBUG_WEBUI_SIMS_JOB_FAILURE_RATE,
+            newLongInstance(CONF_GROUP_DEBUG, n++, DEBUG_WEBUI_SIMS_JOB_FAILURE_RATE, false, "%"));
 
       return builder.build();
    }
@@ -174,6 +174,12 @@ public final class ConfigRegistryConstants {
    public static final String DEBUG_WEBUI_API_DELAY = "debug.webui_api_delay";
    /** Force a delay in all simulator actions */
    public static final String DEBUG_WEBUI_SIMS_DELAY = "debug.webui_sims_delay";
+   /** Mean of a random extra delay added to simulator actions */
+   public static final String DEBUG_WEBUI_SIMS_DELAY_JITTER = "debug.webui_sims_delay_jitter";
+   /** Percentage of simulator requests which fail with a server error */
+   public static final String DEBUG_WEBUI_SIMS_FAILURE_RATE = "debug.webui_sims_failure_rate";
+   /** Percentage of simulated conversions and rebuilds which fail */
+   public static final String DEBUG_WEBUI_SIMS_JOB_FAILURE_RATE = "debug.webui_sims_job_failure_rate";
    /** Enable Javascript logging */
    public static final String DEBUG_JAVASCRIPT_LOGGING = "debug.javascript_logging";
    /** Details JSON I/O tracing */
@@ -22,12 +22,15 @@ import java.net.URISyntaxException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Random;
+import java.util.Set;
 import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
@@ -100,30 +103,38 @@ public class CwsSimulator
 
    private static long NEXT_ID = 1;
 
+   private static synchronized Long nextId() {
+      return Long.valueOf(NEXT_ID++);
+   }
+
    private static final Random RANDOM = new Random();
 
    /** Running jobs: map job IDs to job status */
    private static final Map<Long, ConversionJobStatus> CONVERSION_ID_TO_STATUS_MAP =
-      new HashMap<Long, ConversionJobStatus>();
+      new ConcurrentHashMap<Long, ConversionJobStatus>();
 
    /** Running jobs: map job IDs to original requests */
    private static final Map<Long, ConversionRequest> CONVERSION_ID_TO_REQUEST_MAP =
-         new HashMap<Long, ConversionRequest>();
+         new ConcurrentHashMap<Long, ConversionRequest>();
 
    /** Running rebuilds: map project ids to projects being rebuilt */
-   private static final Map<Long, Project> REBUILD_QUEUE = new HashMap<Long, Project>();
+   private static final Map<Long, Project> REBUILD_QUEUE = new ConcurrentHashMap<Long, Project>();
 
    /** Rebuild times: map project ids to elapsed rebuild time in 'ticks' */
-   private static final Map<Long, Integer> REBUILD_TICKS = new HashMap<Long, Integer>();
+   private static final Map<Long, Integer> REBUILD_TICKS = new ConcurrentHashMap<Long, Integer>();
 
    /** Completed jobs: map job ids to projects */
-   private static final Map<Long, Project> PROJECT_MAP = new HashMap<Long, Project>();
+   private static final Map<Long, Project> PROJECT_MAP = new ConcurrentHashMap<Long, Project>();
 
    /** Completed jobs: map project ids to settings */
-   private static final Map<Long, CwsSettings> SETTINGS_MAP = new HashMap<Long, CwsSettings>();
+   private static final Map<Long, CwsSettings> SETTINGS_MAP = new ConcurrentHashMap<Long, CwsSettings>();
+
+   /** Conversion job ids and rebuilding project ids which will fail */
+   private static final Set<Long> FAILING_JOBS =
+         Collections.newSetFromMap(new ConcurrentHashMap<Long, Boolean>());
 
    /** A collection of ALL registry nodes we create */
-   private static final Map<Long, CwsSettingsRegKey> REGISTRY_CACHE = new HashMap<Long, CwsSettingsRegKey>();
+   private static final Map<Long, CwsSettingsRegKey> REGISTRY_CACHE = new ConcurrentHashMap<Long, CwsSettingsRegKey>();
 
    /** A boolean to store time synchronization status */
    private boolean _timesync = false;
@@ -154,14 +165,17 @@ public class CwsSimulator
          @RequestBody ConversionRequest cwsRequest)
    {
       /* Assign this "job" a new ID. */
-      cwsRequest.setId(Long.valueOf(NEXT_ID++));
+      cwsRequest.setId(nextId());
 
       /* Create a successful status */
-      // TODO: Randomly fail a CWS request
       ConversionJobStatus status = new ConversionJobStatus();
       status.setJobId(cwsRequest.getId());
       status.setState(ConversionJobStatus.JobState.created);
 
+      if (shouldFailJob()) {
+         FAILING_JOBS.add(cwsRequest.getId());
+      }
+
       /* Add to the queue of things to "work" on */
       CONVERSION_ID_TO_STATUS_MAP.put(cwsRequest.getId(), status);
       CONVERSION_ID_TO_REQUEST_MAP.put(cwsRequest.getId(), cwsRequest);
@@ -284,6 +298,9 @@ public class CwsSimulator
       /* Add the project to the collection of projects currently being rebuilt */
       REBUILD_QUEUE.put(project.getId(), project);
       REBUILD_TICKS.put(project.getId(), Integer.valueOf(0));
+      if (shouldFailJob()) {
+         FAILING_JOBS.add(project.getId());
+      }
 
       return;
    }
@@ -608,7 +625,7 @@ public class CwsSimulator
 
       try {
          /* Remember this node */
-         Long regId = Long.valueOf(NEXT_ID++);
+         Long regId = nextId();
          REGISTRY_CACHE.put(regId, requestData.getKey());
          String regUrl = cwsUrlRoot(request) + "/projects/" + projectId + "/registry/" + regId;
 
@@ -854,8 +871,11 @@ public class CwsSimulator
          // being converted with a command label that contains the string "Stall".
          status.setPerformanceData(PerformanceData.create(
                PERF_DATA_REFRESH_RATE, new Date(), getPerfThresholdsOver()));
-      } else if (status.getState() == JobState.install && commandLabelContains("Fail", request.getSteps().values())) {
-         // Fail the job if a command label contains the string "Fail"
+      } else if (status.getState() == JobState.install &&
+                 (commandLabelContains("Fail", request.getSteps().values()) ||
+                  FAILING_JOBS.remove(request.getId()))) {
+         // Fail the job if a command label contains the string "Fail", or it
+         // was picked to fail when it was created.
          ConversionResult res = new ConversionResult(
                ConversionResult.Disposition.failed,
                Status.State.installerDownloadFailed,
@@ -872,6 +892,15 @@ public class CwsSimulator
       }
    }
 
+   /**
+    * Randomly decide to fail a job, at the configured job failure rate.
+    * Called once per job.
+    */
+   private boolean shouldFailJob() {
+      long failureRate = _config.getLong(ConfigRegistryConstants.DEBUG_WEBUI_SIMS_JOB_FAILURE_RATE);
+      return failureRate > 0 && RANDOM.nextInt(100) < failureRate;
+   }
+
    private boolean commandLabelContains(final String text, Collection<CommandList> commandLists) {
       final Predicate<Command> anyLabelInCommand = new Predicate<Command>() {
          @Override
@@ -929,7 +958,7 @@ public class CwsSimulator
          _log.debug("Updating rebuild for project id = " + projectId);
 
          /* Occasionally fail a rebuild */
-         if (Math.random() < REBUILD_FAILURE_RATE) {
+         if (Math.random() < REBUILD_FAILURE_RATE || FAILING_JOBS.remove(projectId)) {
             failedRebuilds.add(projectId);
             continue;
          }
@@ -970,7 +999,7 @@ public class CwsSimulator
       ConversionJobStatus status = CONVERSION_ID_TO_STATUS_MAP.get(request.getId());
 
       /* Create fake project */
-      Long projectId = new Long(NEXT_ID++);
+      Long projectId = nextId();
       Project project = new Project();
       project.setId(projectId);
       project.setState(Project.State.available);
@@ -1199,7 +1228,7 @@ public class CwsSimulator
          String pathName,
          int depth)
    {
-      Long regId = Long.valueOf(NEXT_ID++);
+      Long regId = nextId();
 
       /* Create a new registry key and cache it */
       CwsSettingsRegKey reg = new CwsSettingsRegKey();
@@ -36,6 +36,7 @@ import com.vmware.appfactory.common.exceptions.AfServerErrorException;
 import com.vmware.appfactory.datasource.model.DataSource;
 import com.vmware.appfactory.feed.model.Feed;
 import com.vmware.appfactory.fileshare.model.FileShare;
+import com.vmware.thinapp.common.util.AfJsonCodecs;
 
 
 /**
@@ -51,20 +52,22 @@ public class DataSourceApiController
     * We could have used JSON Views, but they define what you want to include,
     * not exclude, so that's a lot more work.
     */
-   private static final ObjectMapper DATASOURCE_SUMMARY_MAPPER;
-
-   static {
-      DATASOURCE_SUMMARY_MAPPER = new ObjectMapper();
-      DATASOURCE_SUMMARY_MAPPER.configure(SerializationConfig.Feature.INDENT_OUTPUT, true);
-
-      DATASOURCE_SUMMARY_MAPPER.getSerializationConfig().addMixInAnnotations(
-            Feed.class,
-            DataSourceMixIn.class);
-
-      DATASOURCE_SUMMARY_MAPPER.getSerializationConfig().addMixInAnnotations(
-            FileShare.class,
-            DataSourceMixIn.class);
-   }
+   private static final ObjectMapper DATASOURCE_SUMMARY_MAPPER = AfJsonCodecs.register(
+         "datasource-summary",
+         new AfJsonCodecs.Configurer() {
+      @Override
+      public void configure(ObjectMapper mapper) {
+         mapper.configure(SerializationConfig.Feature.INDENT_OUTPUT, true);
+
+         mapper.getSerializationConfig().addMixInAnnotations(
+               Feed.class,
+               DataSourceMixIn.class);
+
+         mapper.getSerializationConfig().addMixInAnnotations(
+               FileShare.class,
+               DataSourceMixIn.class);
+      }
+   });
 
    /**
     * When serializing all data sources back to the client, skip the arrays
@@ -34,7 +34,7 @@ import org.atmosphere.cpr.AtmosphereResource;
 import org.atmosphere.cpr.Broadcaster;
 import org.atmosphere.cpr.BroadcasterFactory;
 import org.atmosphere.cpr.DefaultBroadcaster;
-import org.codehaus.jackson.map.ObjectMapper;
+import org.codehaus.jackson.map.ObjectWriter;
 import org.springframework.context.ApplicationListener;
 import org.springframework.stereotype.Controller;
 import org.springframework.web.bind.annotation.RequestMapping;
@@ -49,6 +49,7 @@ import com.vmware.appfactory.taskqueue.tasks.state.ImportProjectState;
 import com.vmware.appfactory.taskqueue.tasks.state.ManualModeState;
 import com.vmware.appfactory.taskqueue.tasks.state.RebuildState;
 import com.vmware.appfactory.taskqueue.tasks.state.TaskState;
+import com.vmware.thinapp.common.util.AfJsonCodecs;
 
 /**
  * This controller handles all the job-related API calls to AppFactory.
@@ -59,14 +60,22 @@ public class PushController
       extends AbstractApiController
       implements ApplicationListener<TaskEvent>
 {
-   private final ObjectMapper mapper;
+   static {
+      AfJsonCodecs.prefetch(AfJsonCodecs.COMPACT,
+            TaskEvent.TaskAddedEvent.class,
+            TaskEvent.TaskUpdatedEvent.class,
+            TaskEvent.TaskMoveEvent.class,
+            TaskEvent.TaskRemoveEvent.class);
+   }
+
+   private final ObjectWriter writer;
    private final EventBroadcastingRunnable eventBroadcastingRunnable;
    private final Semaphore broadcastSemaphore;
 
    private Broadcaster taskEventBroadcaster;
 
    public PushController() throws InstantiationException, IllegalAccessException, ServletException {
-      mapper = new ObjectMapper();
+      writer = AfJsonCodecs.writer(AfJsonCodecs.COMPACT);
       eventBroadcastingRunnable = new EventBroadcastingRunnable();
       broadcastSemaphore = new Semaphore(1, true);
    }
@@ -135,7 +144,7 @@ public class PushController
             localBroadcaster.broadcast("{\"type\":\"NO-TASKS\"}\n\n");
          }
          for (TaskState state: tasks) {
-            String message = mapper.writeValueAsString(TaskEvent.newTaskAdded(state));
+            String message = writer.writeValueAsString(TaskEvent.newTaskAdded(state));
             localBroadcaster.broadcast(message + "\n\n");
          }
       } finally {
@@ -175,7 +184,7 @@ public class PushController
               Object shortEvent = null;
 
               try {
-                 String message = mapper.writeValueAsString(event);
+                 String message = writer.writeValueAsString(event);
                  while (true) {
                     boolean acquired = broadcastSemaphore.tryAcquire(20, TimeUnit.SECONDS);
                     if (acquired) {
@@ -70,6 +70,7 @@ import com.vmware.appfactory.recipe.model.RecipeStep;
 import com.vmware.appfactory.recipe.model.RecipeVariable;
 import com.vmware.thinapp.common.util.AfCalendar;
 import com.vmware.thinapp.common.util.AfConstant;
+import com.vmware.thinapp.common.util.AfJsonCodecs;
 import com.vmware.thinapp.common.util.AfUtil;
 
 
@@ -81,36 +82,38 @@ public class RecipeApiController
    extends AbstractApiController
 {
    /** Used for serializing recipes for export */
-   private static final ObjectMapper EXPORT_OBJECT_MAPPER;
-
-   static {
-      EXPORT_OBJECT_MAPPER = new ObjectMapper();
-      EXPORT_OBJECT_MAPPER.configure(SerializationConfig.Feature.INDENT_OUTPUT, true);
-
-      EXPORT_OBJECT_MAPPER.getSerializationConfig().addMixInAnnotations(
-            Recipe.class,
-            ExportMixIns.Recipe.class);
-
-      EXPORT_OBJECT_MAPPER.getSerializationConfig().addMixInAnnotations(
-            RecipeAppKey.class,
-            ExportMixIns.Record.class);
-
-      EXPORT_OBJECT_MAPPER.getSerializationConfig().addMixInAnnotations(
-            RecipeFile.class,
-            ExportMixIns.RecipeFile.class);
-
-      EXPORT_OBJECT_MAPPER.getSerializationConfig().addMixInAnnotations(
-            RecipeVariable.class,
-            ExportMixIns.Record.class);
-
-      EXPORT_OBJECT_MAPPER.getSerializationConfig().addMixInAnnotations(
-            RecipeStep.class,
-            ExportMixIns.Record.class);
-
-      EXPORT_OBJECT_MAPPER.getSerializationConfig().addMixInAnnotations(
-            RecipeCommand.class,
-            ExportMixIns.Record.class);
-   }
+   private static final ObjectMapper EXPORT_OBJECT_MAPPER = AfJsonCodecs.register(
+         "recipe-export",
+         new AfJsonCodecs.Configurer() {
+      @Override
+      public void configure(ObjectMapper mapper) {
+         mapper.configure(SerializationConfig.Feature.INDENT_OUTPUT, true);
+
+         mapper.getSerializationConfig().addMixInAnnotations(
+               Recipe.class,
+               ExportMixIns.Recipe.class);
+
+         mapper.getSerializationConfig().addMixInAnnotations(
+               RecipeAppKey.class,
+               ExportMixIns.Record.class);
+
+         mapper.getSerializationConfig().addMixInAnnotations(
+               RecipeFile.class,
+               ExportMixIns.RecipeFile.class);
+
+         mapper.getSerializationConfig().addMixInAnnotations(
+               RecipeVariable.class,
+               ExportMixIns.Record.class);
+
+         mapper.getSerializationConfig().addMixInAnnotations(
+               RecipeStep.class,
+               ExportMixIns.Record.class);
+
+         mapper.getSerializationConfig().addMixInAnnotations(
+               RecipeCommand.class,
+               ExportMixIns.Record.class);
+      }
+   });
 
    /**
     * Return a list of all recipes.
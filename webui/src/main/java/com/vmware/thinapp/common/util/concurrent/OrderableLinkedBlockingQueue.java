@@ -33,6 +33,25 @@ import com.vmware.thinapp.common.util.Closure;
 public class OrderableLinkedBlockingQueue<T>
    extends CustomLinkedBlockingQueue<T>
       implements OrderableBlockingQueue<T> {
+
+   /**
+    * Creates a queue with a capacity of {@link Integer#MAX_VALUE}.
+    */
+   public OrderableLinkedBlockingQueue() {
+      super();
+   }
+
+   /**
+    * Creates a queue with the given (fixed) capacity.
+    *
+    * @param capacity the capacity of this queue
+    * @throws IllegalArgumentException if {@code capacity} is not greater
+    *         than zero
+    */
+   public OrderableLinkedBlockingQueue(int capacity) {
+      super(capacity);
+   }
+
    @SuppressWarnings("ObjectEquality")
    @Override
    public boolean moveToHead(@Nullable T elToMove) {
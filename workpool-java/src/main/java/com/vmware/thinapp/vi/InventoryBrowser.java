@@ -74,7 +74,11 @@ import com.vmware.vim25.mo.VirtualMachine;
  * The getServiceInstance() takes care of the VC connection using the VCManager.
  * The getComputeResource() provides the right ComputeResource to use.
  *
+ * Trees are served from the InventoryCache once it has loaded the configured
+ * compute resource, and walked live from VC until then.
+ *
  * @see VCManager
+ * @see InventoryCache
  * @author Keerthi Singri
  */
 @Component
@@ -84,6 +88,9 @@ public class InventoryBrowser {
    @Autowired
    private VCManager vcManager;
 
+   @Autowired
+   private InventoryCache inventoryCache;
+
    /**
     * The tafVMs and othersVMs lists are used to reduce the overhead of VM
     * filtering. When a VM should be filtered (either b/c it is a Linux one
@@ -141,11 +148,18 @@ public class InventoryBrowser {
     * If type=Datastore      Level 2 nodes are datastore nodes.
     * If type=VirtualMachine Level 2+ nodes are virtual machine/resource pool nodes.
     *
+    * The tree may be shared with other callers and must not be modified.
+    *
     * @param type
     * @param name
     * @return
     */
    public VINode loadVITreeFromComputeResource(VINode.Type type) {
+      VINode cached = inventoryCache.getTree(type);
+      if (cached != null) {
+         return cached;
+      }
+
       ComputeResource cr = getComputeResource();
       // Create the root node and set its children.
       VINode crVINode = convertManagedEntityToVINode(cr);
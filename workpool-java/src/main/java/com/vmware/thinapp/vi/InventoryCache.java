@@ -0,0 +1,377 @@
+/* ***********************************************************************
+ * VMware ThinApp Factory
+ * Copyright (c) 2009-2013 VMware, Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ***********************************************************************/
+
+package com.vmware.thinapp.vi;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.apache.commons.lang.ObjectUtils;
+import org.apache.commons.lang.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import com.vmware.thinapp.common.vi.dto.VINode;
+import com.vmware.thinapp.common.vi.util.VIConstants;
+import com.vmware.thinapp.workpool.VCManager;
+import com.vmware.thinapp.workpool.VCSessionFactory;
+import com.vmware.thinapp.workpool.model.VCConfigModel;
+import com.vmware.vim25.ArrayOfManagedObjectReference;
+import com.vmware.vim25.ArrayOfOptionValue;
+import com.vmware.vim25.ManagedObjectReference;
+import com.vmware.vim25.ObjectSpec;
+import com.vmware.vim25.ObjectUpdate;
+import com.vmware.vim25.ObjectUpdateKind;
+import com.vmware.vim25.OptionValue;
+import com.vmware.vim25.PropertyChange;
+import com.vmware.vim25.PropertyChangeOp;
+import com.vmware.vim25.PropertyFilterSpec;
+import com.vmware.vim25.PropertyFilterUpdate;
+import com.vmware.vim25.PropertySpec;
+import com.vmware.vim25.SelectionSpec;
+import com.vmware.vim25.TraversalSpec;
+import com.vmware.vim25.UpdateSet;
+import com.vmware.vim25.WaitOptions;
+import com.vmware.vim25.mo.ComputeResource;
+import com.vmware.vim25.mo.InventoryNavigator;
+import com.vmware.vim25.mo.PropertyCollector;
+import com.vmware.vim25.mo.PropertyFilter;
+import com.vmware.vim25.mo.ServiceInstance;
+
+/**
+ * Keeps an InventoryModel of the configured compute resource current, so
+ * InventoryBrowser can answer from memory instead of walking VC.
+ *
+ * A background thread logs in its own session, loads the compute resource,
+ * its datastores and networks, and the resource pools and VMs below it with
+ * a single PropertyCollector filter, then applies the changes VC reports
+ * through WaitForUpdatesEx.  The session is separate from VCSessionPool as
+ * it stays blocked in WaitForUpdatesEx most of the time.
+ *
+ * Any failure throws the model away and starts over after a delay, and a
+ * change to the VC configuration starts over at once.
+ */
+@Component
+public class InventoryCache {
+   private static final Logger log = LoggerFactory.getLogger(InventoryCache.class);
+
+   private static final String TAF_VM_KEY = "com.vmware.thinappfactory";
+   private static final String EXTRA_CONFIG = "config.extraConfig";
+
+   @Autowired
+   private VCManager vcManager;
+
+   @Value("#{workpoolProperties['inventory.cache.enabled'] ?: true}")
+   private boolean enabled;
+   @Value("#{workpoolProperties['inventory.cache.waitSeconds'] ?: 60}")
+   private int waitSeconds;
+   @Value("#{workpoolProperties['inventory.cache.retrySeconds'] ?: 30}")
+   private int retrySeconds;
+
+   private final InventoryModel model = new InventoryModel();
+   private Thread watcher;
+
+   /** Configuration the model was loaded for, or null if none */
+   private volatile VCConfigModel watched;
+
+   @PostConstruct
+   public synchronized void start() {
+      if (!enabled || watcher != null) {
+         return;
+      }
+      watcher = new Thread(new Runnable() {
+         @Override
+         public void run() {
+            watch();
+         }
+      }, "inventory-cache");
+      watcher.setDaemon(true);
+      watcher.start();
+   }
+
+   @PreDestroy
+   public synchronized void stop() {
+      if (watcher != null) {
+         watcher.interrupt();
+         watcher = null;
+      }
+   }
+
+   /**
+    * Get the tree InventoryBrowser.loadVITreeFromComputeResource() would
+    * build, from memory.  The tree is shared and must not be modified.
+    *
+    * @param type kind of children to put under the compute resource
+    * @return the tree, or null if the cache isn't loaded for the configured
+    * compute resource
+    */
+   public VINode getTree(VINode.Type type) {
+      VCConfigModel current = watched;
+      if (current == null || !sameInventory(current, vcManager.getConfig())) {
+         return null;
+      }
+      return model.tree(type);
+   }
+
+   /**
+    * Watch the configured compute resource until stopped, starting over on
+    * failures and configuration changes.
+    */
+   private void watch() {
+      while (!Thread.currentThread().isInterrupted()) {
+         long delay = retrySeconds;
+         try {
+            VCConfigModel config = vcManager.getConfig();
+            if (config != null && config.getVmLocation() != null &&
+                    StringUtils.isNotEmpty(config.getVmLocation().getComputeResource())) {
+               watch(config);
+               delay = 0;
+            }
+         } catch (InterruptedException e) {
+            break;
+         } catch (Exception e) {
+            log.warn("Inventory cache lost track of VC, retrying in " + retrySeconds + " seconds.", e);
+         } finally {
+            watched = null;
+            model.reset(null, "");
+         }
+
+         try {
+            TimeUnit.SECONDS.sleep(delay);
+         } catch (InterruptedException e) {
+            break;
+         }
+      }
+      log.debug("Inventory cache stopped.");
+   }
+
+   /**
+    * Load and follow the inventory for one VC configuration.  Returns when
+    * the configuration changes.
+    */
+   private void watch(VCConfigModel config) throws Exception {
+      VCSessionFactory factory = VCSessionFactory.forConfig(config);
+      String name = config.getVmLocation().getComputeResource();
+      ServiceInstance si = factory.login();
+      try {
+         ComputeResource cr = (ComputeResource) new InventoryNavigator(si.getRootFolder())
+                 .searchManagedEntity(VIConstants.COMPUTE_RESOURCE, name);
+         if (cr == null) {
+            throw new IllegalStateException("Unable to locate configured compute resource: " + name + ".");
+         }
+
+         model.reset(cr.getMOR().getVal(), " [" + si.getServerConnection().getUrl().getHost() + "]");
+         watched = config;
+
+         PropertyCollector pc = si.getPropertyCollector();
+         PropertyFilter filter = pc.createFilter(createFilterSpec(cr.getMOR()), true);
+         try {
+            WaitOptions options = new WaitOptions();
+            options.setMaxWaitSeconds(waitSeconds);
+            String version = "";
+            long start = System.currentTimeMillis();
+
+            while (sameInventory(config, vcManager.getConfig())) {
+               if (Thread.currentThread().isInterrupted()) {
+                  throw new InterruptedException();
+               }
+               UpdateSet updates = pc.waitForUpdatesEx(version, options);
+               if (updates == null) {
+                  // Nothing changed within waitSeconds.
+                  continue;
+               }
+               version = updates.getVersion();
+               apply(updates);
+
+               if (!model.isLoaded() && !Boolean.TRUE.equals(updates.getTruncated())) {
+                  model.setLoaded();
+                  log.info("Loaded {} inventory objects of {} in {} ms.", new Object[] {
+                          model.size(), name, System.currentTimeMillis() - start });
+               }
+            }
+            log.info("VC configuration changed, reloading inventory.");
+         } finally {
+            filter.destroyPropertyFilter();
+         }
+      } finally {
+         factory.logout(si);
+      }
+   }
+
+   private void apply(UpdateSet updates) {
+      if (updates.getFilterSet() == null) {
+         return;
+      }
+      for (PropertyFilterUpdate filterUpdate : updates.getFilterSet()) {
+         if (filterUpdate.getObjectSet() == null) {
+            continue;
+         }
+         for (ObjectUpdate update : filterUpdate.getObjectSet()) {
+            ManagedObjectReference obj = update.getObj();
+            if (update.getKind() == ObjectUpdateKind.leave) {
+               model.remove(obj.getVal());
+            } else {
+               model.put(obj.getType(), obj.getVal(), toProperties(update.getChangeSet()));
+            }
+         }
+      }
+   }
+
+   /**
+    * Convert VC property changes into the values InventoryModel keeps.
+    */
+   private static Map<String, Object> toProperties(PropertyChange[] changes) {
+      Map<String, Object> properties = new HashMap<String, Object>();
+      if (changes == null) {
+         return properties;
+      }
+      for (PropertyChange change : changes) {
+         boolean removed = change.getOp() == PropertyChangeOp.remove ||
+                 change.getOp() == PropertyChangeOp.indirectRemove;
+         Object val = removed ? null : change.getVal();
+
+         if (EXTRA_CONFIG.equals(change.getName())) {
+            properties.put(InventoryModel.TAF_VM, Boolean.valueOf(isTafVm(val)));
+         } else if (InventoryModel.DATASTORE.equals(change.getName()) ||
+                 InventoryModel.NETWORK.equals(change.getName())) {
+            properties.put(change.getName(), toMoids(val));
+         } else if (val instanceof ManagedObjectReference) {
+            properties.put(change.getName(), ((ManagedObjectReference) val).getVal());
+         } else {
+            properties.put(change.getName(), (val == null) ? null : ObjectUtils.toString(val));
+         }
+      }
+      return properties;
+   }
+
+   private static boolean isTafVm(Object extraConfig) {
+      OptionValue[] values = null;
+      if (extraConfig instanceof OptionValue[]) {
+         values = (OptionValue[]) extraConfig;
+      } else if (extraConfig instanceof ArrayOfOptionValue) {
+         values = ((ArrayOfOptionValue) extraConfig).getOptionValue();
+      }
+      if (values != null) {
+         for (OptionValue value : values) {
+            if (TAF_VM_KEY.equals(value.getKey())) {
+               return true;
+            }
+         }
+      }
+      return false;
+   }
+
+   /**
+    * Array properties come back either as a plain array or wrapped.
+    */
+   private static List<String> toMoids(Object val) {
+      ManagedObjectReference[] refs = null;
+      if (val instanceof ManagedObjectReference[]) {
+         refs = (ManagedObjectReference[]) val;
+      } else if (val instanceof ArrayOfManagedObjectReference) {
+         refs = ((ArrayOfManagedObjectReference) val).getManagedObjectReference();
+      }
+      List<String> moids = new ArrayList<String>();
+      if (refs != null) {
+         for (ManagedObjectReference ref : refs) {
+            moids.add(ref.getVal());
+         }
+      }
+      return moids;
+   }
+
+   /**
+    * Whether two configurations point at the same compute resource as the
+    * same user.
+    */
+   private static boolean sameInventory(VCConfigModel a, VCConfigModel b) {
+      return b != null && b.getVmLocation() != null &&
+              StringUtils.equals(a.getHost(), b.getHost()) &&
+              StringUtils.equals(a.getUsername(), b.getUsername()) &&
+              StringUtils.equals(a.getVmLocation().getComputeResource(),
+                      b.getVmLocation().getComputeResource());
+   }
+
+   /**
+    * Select the compute resource, its datastores and networks, and the
+    * resource pools and VMs below it, with the properties InventoryModel
+    * needs of each.
+    */
+   private static PropertyFilterSpec createFilterSpec(ManagedObjectReference cr) {
+      TraversalSpec poolToVm = traversal("poolToVm", "ResourcePool", "vm");
+      TraversalSpec poolToPool = traversal("poolToPool", "ResourcePool", "resourcePool",
+              selection("poolToPool"), selection("poolToVm"));
+      TraversalSpec crToPool = traversal("crToPool", VIConstants.COMPUTE_RESOURCE, "resourcePool",
+              selection("poolToPool"), selection("poolToVm"));
+      TraversalSpec crToDatastore = traversal("crToDatastore", VIConstants.COMPUTE_RESOURCE, "datastore");
+      TraversalSpec crToNetwork = traversal("crToNetwork", VIConstants.COMPUTE_RESOURCE, "network");
+
+      ObjectSpec objSpec = new ObjectSpec();
+      objSpec.setObj(cr);
+      objSpec.setSkip(Boolean.FALSE);
+      objSpec.setSelectSet(new SelectionSpec[] {
+              crToPool, poolToPool, poolToVm, crToDatastore, crToNetwork });
+
+      PropertyFilterSpec filterSpec = new PropertyFilterSpec();
+      filterSpec.setObjectSet(new ObjectSpec[] { objSpec });
+      filterSpec.setPropSet(new PropertySpec[] {
+              properties(VIConstants.COMPUTE_RESOURCE, InventoryModel.NAME, InventoryModel.RESOURCE_POOL,
+                      InventoryModel.DATASTORE, InventoryModel.NETWORK),
+              properties("ResourcePool", InventoryModel.NAME, InventoryModel.PARENT),
+              properties(VIConstants.VIRTUAL_MACHINE, InventoryModel.NAME, InventoryModel.RESOURCE_POOL,
+                      InventoryModel.GUEST_ID, EXTRA_CONFIG),
+              properties(VIConstants.DATASTORE, InventoryModel.NAME),
+              properties(VIConstants.NETWORK, InventoryModel.NAME) });
+      return filterSpec;
+   }
+
+   private static TraversalSpec traversal(String name, String type, String path,
+                                          SelectionSpec... selectSet) {
+      TraversalSpec spec = new TraversalSpec();
+      spec.setName(name);
+      spec.setType(type);
+      spec.setPath(path);
+      spec.setSkip(Boolean.FALSE);
+      if (selectSet.length > 0) {
+         spec.setSelectSet(selectSet);
+      }
+      return spec;
+   }
+
+   private static SelectionSpec selection(String name) {
+      SelectionSpec spec = new SelectionSpec();
+      spec.setName(name);
+      return spec;
+   }
+
+   private static PropertySpec properties(String type, String... paths) {
+      PropertySpec spec = new PropertySpec();
+      spec.setType(type);
+      spec.setAll(Boolean.FALSE);
+      spec.setPathSet(paths);
+      return spec;
+   }
+}
@@ -0,0 +1,291 @@
+/* ***********************************************************************
+ * VMware ThinApp Factory
+ * Copyright (c) 2009-2013 VMware, Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ***********************************************************************/
+
+package com.vmware.thinapp.vi;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.springframework.util.CollectionUtils;
+
+import com.vmware.thinapp.common.vi.dto.VINode;
+import com.vmware.thinapp.common.vi.util.VIConstants;
+
+/**
+ * In-memory copy of the part of the VC inventory that InventoryBrowser
+ * shows: a compute resource, its datastores and networks, and the resource
+ * pools and VMs under it.
+ *
+ * The model is filled and kept current from PropertyCollector updates, one
+ * entity and property at a time, and builds VINode trees from memory.  A
+ * tree is built once per change to the model and then shared, so callers
+ * must not modify it.
+ */
+public class InventoryModel {
+   /** Entity name */
+   public static final String NAME = "name";
+   /** Parent of a resource pool */
+   public static final String PARENT = "parent";
+   /** Pool of a VM, or root pool of a compute resource */
+   public static final String RESOURCE_POOL = "resourcePool";
+   /** Datastores of a compute resource, as a list of moids */
+   public static final String DATASTORE = "datastore";
+   /** Networks of a compute resource, as a list of moids */
+   public static final String NETWORK = "network";
+   /** Guest OS id of a VM */
+   public static final String GUEST_ID = "config.guestId";
+   /** Whether a VM is managed by a TAF, as a Boolean */
+   public static final String TAF_VM = "tafVm";
+
+   /**
+    * A managed entity and the properties the model knows about.
+    */
+   private static class Entity {
+      final String type;
+      final Map<String, Object> properties = new HashMap<String, Object>();
+
+      Entity(String type) {
+         this.type = type;
+      }
+
+      String name() {
+         return (String) properties.get(NAME);
+      }
+   }
+
+   private final Map<String, Entity> entities = new HashMap<String, Entity>();
+   private final Map<VINode.Type, VINode> trees = new EnumMap<VINode.Type, VINode>(VINode.Type.class);
+   private String computeResource;
+   private String hostName = "";
+   private boolean loaded;
+   private long version;
+
+   /**
+    * Forget everything and start over for another compute resource.
+    *
+    * @param computeResourceMoid moid of the compute resource at the root
+    * @param host VC host name shown next to the compute resource name
+    */
+   public synchronized void reset(String computeResourceMoid, String host) {
+      entities.clear();
+      computeResource = computeResourceMoid;
+      hostName = host;
+      loaded = false;
+      changed();
+   }
+
+   /**
+    * Mark the model as holding the whole inventory, after the first batch
+    * of updates.
+    */
+   public synchronized void setLoaded() {
+      loaded = true;
+   }
+
+   public synchronized boolean isLoaded() {
+      return loaded;
+   }
+
+   /**
+    * @return a number that goes up with each change to the model
+    */
+   public synchronized long getVersion() {
+      return version;
+   }
+
+   public synchronized int size() {
+      return entities.size();
+   }
+
+   /**
+    * Add an entity, or update the properties of a known one.
+    *
+    * @param type VC type of the entity, such as VirtualMachine
+    * @param moid entity moid
+    * @param properties changed properties; a null value removes one
+    */
+   public synchronized void put(String type, String moid, Map<String, ?> properties) {
+      Entity entity = entities.get(moid);
+      if (entity == null) {
+         entity = new Entity(type);
+         entities.put(moid, entity);
+      }
+      for (Map.Entry<String, ?> property : properties.entrySet()) {
+         if (property.getValue() == null) {
+            entity.properties.remove(property.getKey());
+         } else {
+            entity.properties.put(property.getKey(), property.getValue());
+         }
+      }
+      changed();
+   }
+
+   /**
+    * Forget an entity that left the inventory.
+    *
+    * @param moid entity moid
+    */
+   public synchronized void remove(String moid) {
+      if (entities.remove(moid) != null) {
+         changed();
+      }
+   }
+
+   /**
+    * Build the tree InventoryBrowser.loadVITreeFromComputeResource() returns.
+    *
+    * @param type kind of children to put under the compute resource
+    * @return the tree, or null if the model isn't loaded
+    */
+   public synchronized VINode tree(VINode.Type type) {
+      if (!loaded) {
+         return null;
+      }
+      Entity root = entities.get(computeResource);
+      if (root == null) {
+         return null;
+      }
+
+      VINode tree = trees.get(type);
+      if (tree == null) {
+         tree = new VINode(root.name() + hostName, computeResource, VINode.Type.ComputeResource, true);
+         if (type == VINode.Type.Datastore) {
+            tree.setChildren(nodes(root, DATASTORE, true));
+         } else if (type == VINode.Type.Network) {
+            tree.setChildren(nodes(root, NETWORK, false));
+         } else if (type == VINode.Type.VirtualMachine) {
+            tree.setChildren(vmTree(root));
+         } else {
+            tree.setChildren(new ArrayList<VINode>());
+            tree.setHasChild(true);
+         }
+         trees.put(type, tree);
+      }
+      return tree;
+   }
+
+   private void changed() {
+      version++;
+      trees.clear();
+   }
+
+   /**
+    * Datastore or network nodes, in the order the compute resource lists
+    * them.
+    */
+   private List<VINode> nodes(Entity root, String property, boolean hasChild) {
+      List<VINode> nodes = new ArrayList<VINode>();
+      for (String moid : moids(root.properties.get(property))) {
+         Entity entity = entities.get(moid);
+         if (entity == null) {
+            continue;
+         }
+         VINode node = (VIConstants.DATASTORE.equals(entity.type)) ?
+                 new VINode(entity.name(), moid, VINode.Type.Datastore, "[" + entity.name() + "]") :
+                 new VINode(entity.name(), moid, VINode.Type.Network);
+         node.setHasChild(hasChild);
+         nodes.add(node);
+      }
+      return nodes;
+   }
+
+   /**
+    * Resource pools and the VMs that aren't managed by a TAF, starting from
+    * the compute resource's root pool.  Pools without any VMs below them are
+    * left out.
+    */
+   private List<VINode> vmTree(Entity root) {
+      Map<String, List<String>> childPools = new HashMap<String, List<String>>();
+      Map<String, List<String>> vms = new HashMap<String, List<String>>();
+
+      for (Map.Entry<String, Entity> e : entities.entrySet()) {
+         Entity entity = e.getValue();
+         if (isPool(entity.type)) {
+            add(childPools, (String) entity.properties.get(PARENT), e.getKey());
+         } else if (VIConstants.VIRTUAL_MACHINE.equals(entity.type) && isListed(entity)) {
+            add(vms, (String) entity.properties.get(RESOURCE_POOL), e.getKey());
+         }
+      }
+
+      String rootPool = (String) root.properties.get(RESOURCE_POOL);
+      return (rootPool == null) ?
+              new ArrayList<VINode>() :
+              poolChildren(rootPool, childPools, vms);
+   }
+
+   private List<VINode> poolChildren(String pool, Map<String, List<String>> childPools,
+                                     Map<String, List<String>> vms) {
+      List<VINode> children = new ArrayList<VINode>();
+      for (String childPool : get(childPools, pool)) {
+         List<VINode> grandChildren = poolChildren(childPool, childPools, vms);
+         if (!CollectionUtils.isEmpty(grandChildren)) {
+            VINode node = new VINode(entities.get(childPool).name(), childPool, VINode.Type.ResourcePool);
+            node.setChildren(grandChildren);
+            children.add(node);
+         }
+      }
+      for (String vm : get(vms, pool)) {
+         Entity entity = entities.get(vm);
+         VINode node = new VINode(entity.name(), vm, VINode.Type.VirtualMachine);
+         node.addProperty(VIConstants.GUEST_ID, (String) entity.properties.get(GUEST_ID));
+         children.add(node);
+      }
+      return children;
+   }
+
+   /**
+    * vApps are listed like resource pools, as ResourcePool.getResourcePools()
+    * returns them too.
+    */
+   private static boolean isPool(String type) {
+      return "ResourcePool".equals(type) || "VirtualApp".equals(type);
+   }
+
+   /**
+    * Only VMs with a supported guest that no TAF manages are shown.
+    */
+   private static boolean isListed(Entity vm) {
+      return VIConstants.GUEST_ID_SUPPOTRED.contains(vm.properties.get(GUEST_ID)) &&
+              !Boolean.TRUE.equals(vm.properties.get(TAF_VM));
+   }
+
+   @SuppressWarnings("unchecked")
+   private static List<String> moids(Object value) {
+      return (value == null) ? Collections.<String>emptyList() : (List<String>) value;
+   }
+
+   private static void add(Map<String, List<String>> index, String key, String value) {
+      if (key == null) {
+         return;
+      }
+      List<String> values = index.get(key);
+      if (values == null) {
+         values = new ArrayList<String>();
+         index.put(key, values);
+      }
+      values.add(value);
+   }
+
+   private static List<String> get(Map<String, List<String>> index, String key) {
+      List<String> values = index.get(key);
+      return (values == null) ? Collections.<String>emptyList() : values;
+   }
+}
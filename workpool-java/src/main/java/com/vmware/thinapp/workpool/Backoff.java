@@ -0,0 +1,69 @@
+/* ***********************************************************************
+ * VMware ThinApp Factory
+ * Copyright (c) 2009-2013 VMware, Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ***********************************************************************/
+
+package com.vmware.thinapp.workpool;
+
+import java.util.Random;
+
+/**
+ * Exponential backoff with jitter, for retrying a check that has no change
+ * notification to wait on.
+ */
+public class Backoff {
+   private final long initialMillis;
+   private final long maxMillis;
+   private final double multiplier;
+   private final double jitter;
+   private final Random random;
+
+   /**
+    * @param initialMillis delay after the first failed attempt
+    * @param maxMillis     longest delay
+    * @param multiplier    factor the delay grows by after each attempt
+    * @param jitter        fraction of each delay, between 0 and 1, that is
+    *                      randomly taken off it
+    */
+   public Backoff(long initialMillis, long maxMillis, double multiplier, double jitter) {
+      this(initialMillis, maxMillis, multiplier, jitter, new Random());
+   }
+
+   public Backoff(long initialMillis, long maxMillis, double multiplier, double jitter,
+           Random random) {
+      if (initialMillis <= 0 || maxMillis < initialMillis || multiplier < 1 ||
+          jitter < 0 || jitter > 1) {
+         throw new IllegalArgumentException("Invalid backoff parameters.");
+      }
+      this.initialMillis = initialMillis;
+      this.maxMillis = maxMillis;
+      this.multiplier = multiplier;
+      this.jitter = jitter;
+      this.random = random;
+   }
+
+   /**
+    * Get how long to wait before the next attempt.
+    *
+    * @param attempt number of attempts that have failed so far, minus one
+    * @return the delay in milliseconds
+    */
+   public long delay(int attempt) {
+      double base = initialMillis * Math.pow(multiplier, Math.max(0, attempt));
+      long capped = (long) Math.min(maxMillis, base);
+      // Spread out the retries of guests that were started together
+      return capped - (long) (capped * jitter * random.nextDouble());
+   }
+}
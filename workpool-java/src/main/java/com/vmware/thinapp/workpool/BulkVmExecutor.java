@@ -0,0 +1,576 @@
+/* ***********************************************************************
+ * VMware ThinApp Factory
+ * Copyright (c) 2009-2013 VMware, Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ***********************************************************************/
+
+package com.vmware.thinapp.workpool;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+/**
+ * Runs operations on many VMs in parallel, such as powering off or deleting
+ * all the instances of a workpool.
+ *
+ * The number of operations running at once is limited overall, per host and
+ * per datastore, so that a large batch doesn't swamp a single host or
+ * datastore.  The limits apply across all batches run by the executor.  A
+ * failed operation is retried after a delay that doubles with each attempt.
+ *
+ * Batches are driven by the executor's own threads: an operation is started
+ * when one finishes, when a retry is due or when a batch is submitted, so a
+ * caller only has to wait if it uses run().
+ */
+@Service
+public class BulkVmExecutor {
+   private static final Logger log = LoggerFactory.getLogger(BulkVmExecutor.class);
+
+   /**
+    * How an operation ended, or that it is going to be retried.
+    */
+   public enum Outcome {
+      succeeded,
+      retrying,
+      failed
+   }
+
+   /**
+    * Receives progress of a batch as each operation completes.
+    */
+   public interface ProgressListener {
+      /**
+       * Called from the thread that ran the operation, so it should be quick.
+       *
+       * @param operation the operation that completed
+       * @param outcome what happened
+       * @param error the failure, or null if it succeeded
+       * @param finished operations of the batch that succeeded or failed so far
+       * @param total operations in the batch
+       */
+      void progress(VmOperation operation, Outcome outcome, Throwable error, int finished, int total);
+   }
+
+   /**
+    * Receives the result of a submitted batch.
+    */
+   public interface CompletionListener {
+      /**
+       * Called once, from a thread of the executor or from the submitting
+       * thread if nothing had to run, so it should be quick.
+       *
+       * @param result the outcome of every operation of the batch
+       */
+      void completed(Result result);
+   }
+
+   /**
+    * Final result of a batch.
+    */
+   public static class Result {
+      private final List<VmOperation> succeeded;
+      private final Map<VmOperation, Throwable> failed;
+
+      Result(List<VmOperation> succeeded, Map<VmOperation, Throwable> failed) {
+         this.succeeded = Collections.unmodifiableList(succeeded);
+         this.failed = Collections.unmodifiableMap(failed);
+      }
+
+      public List<VmOperation> getSucceeded() {
+         return succeeded;
+      }
+
+      /**
+       * @return failed operations with their last error
+       */
+      public Map<VmOperation, Throwable> getFailed() {
+         return failed;
+      }
+
+      public boolean isSuccess() {
+         return failed.isEmpty();
+      }
+   }
+
+   @Value("#{workpoolProperties['bulk.threads'] ?: 16}")
+   private int threads;
+   @Value("#{workpoolProperties['bulk.maxPerHost'] ?: 4}")
+   private int maxPerHost;
+   @Value("#{workpoolProperties['bulk.maxPerDatastore'] ?: 8}")
+   private int maxPerDatastore;
+   @Value("#{workpoolProperties['bulk.maxAttempts'] ?: 3}")
+   private int maxAttempts;
+   @Value("#{workpoolProperties['bulk.retryDelaySeconds'] ?: 5}")
+   private long retryDelaySeconds;
+   private long retryDelayMs;
+
+   private ExecutorService pool;
+   /** Runs dispatch() when a retry is due */
+   private ScheduledExecutorService timer;
+   private final Runnable dispatcher = new Runnable() {
+      @Override
+      public void run() {
+         synchronized (lock) {
+            retryScheduledAt = Long.MAX_VALUE;
+         }
+         dispatch();
+      }
+   };
+
+   /** Guards the usage counts and all batch state */
+   private final Object lock = new Object();
+   private final Set<Batch> active = new LinkedHashSet<Batch>();
+   /** When the timer next runs dispatch(), or Long.MAX_VALUE */
+   private long retryScheduledAt = Long.MAX_VALUE;
+   private final Map<String, Integer> hostUse = new HashMap<String, Integer>();
+   private final Map<String, Integer> datastoreUse = new HashMap<String, Integer>();
+
+   /**
+    * Create an executor configured from workpool.properties.
+    */
+   public BulkVmExecutor() {
+   }
+
+   /**
+    * Create an executor with the given limits.
+    *
+    * @param threads operations running at once overall
+    * @param maxPerHost operations running at once per host, 0 for no limit
+    * @param maxPerDatastore operations running at once per datastore, 0 for no limit
+    * @param maxAttempts times an operation is tried before it fails
+    * @param retryDelayMs delay before the first retry
+    */
+   public BulkVmExecutor(int threads, int maxPerHost, int maxPerDatastore, int maxAttempts,
+                         long retryDelayMs) {
+      this.threads = threads;
+      this.maxPerHost = maxPerHost;
+      this.maxPerDatastore = maxPerDatastore;
+      this.maxAttempts = maxAttempts;
+      this.retryDelayMs = retryDelayMs;
+   }
+
+   @PostConstruct
+   public void start() {
+      if (retryDelayMs == 0) {
+         retryDelayMs = retryDelaySeconds * 1000;
+      }
+      final AtomicInteger count = new AtomicInteger();
+      pool = Executors.newFixedThreadPool(Math.max(1, threads), new ThreadFactory() {
+         @Override
+         public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "bulk-vm-" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+         }
+      });
+      timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+         @Override
+         public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "bulk-vm-retry");
+            t.setDaemon(true);
+            return t;
+         }
+      });
+   }
+
+   /**
+    * Stop running operations.  Operations that haven't started, including
+    * pending retries, fail so that every batch still completes.
+    */
+   @PreDestroy
+   public void stop() {
+      timer.shutdownNow();
+      for (Runnable dropped : pool.shutdownNow()) {
+         if (dropped instanceof AttemptTask) {
+            AttemptTask task = (AttemptTask) dropped;
+            task.batch.completed(task.attempt,
+                    new RejectedExecutionException("Bulk VM executor is stopped."), false);
+         }
+      }
+      dispatch();
+   }
+
+   /**
+    * Run all the operations and wait for them to succeed or fail.
+    *
+    * @param operations operations to run
+    * @param listener receives progress, may be null
+    * @return the outcome of every operation
+    * @throws InterruptedException if interrupted while waiting; the batch
+    *         carries on without the caller
+    */
+   public Result run(Collection<? extends VmOperation> operations, ProgressListener listener)
+           throws InterruptedException {
+      final CountDownLatch done = new CountDownLatch(1);
+      final AtomicReference<Result> result = new AtomicReference<Result>();
+      submit(operations, listener, new CompletionListener() {
+         @Override
+         public void completed(Result batchResult) {
+            result.set(batchResult);
+            done.countDown();
+         }
+      });
+      done.await();
+      return result.get();
+   }
+
+   /**
+    * Start running the operations and return without waiting for them.
+    * Operations are started by the threads of this executor as their limits
+    * allow, so no caller thread is held for the duration of the batch.
+    *
+    * Once the executor is stopped, operations that have not been run fail
+    * with a RejectedExecutionException.
+    *
+    * @param operations operations to run
+    * @param listener receives progress, may be null
+    * @param completion receives the result once every operation has
+    *                   finished, may be null
+    */
+   public void submit(Collection<? extends VmOperation> operations, ProgressListener listener,
+                      CompletionListener completion) {
+      Batch batch = new Batch(operations, listener, completion);
+      synchronized (lock) {
+         active.add(batch);
+      }
+      dispatch();
+   }
+
+   /**
+    * Start every pending operation of every batch as soon as its limits
+    * allow, report operations that could not be started, and complete the
+    * batches that are done.  Called whenever an operation finishes, when a
+    * retry is due and when a batch is submitted.
+    */
+   private void dispatch() {
+      List<Rejected> rejected = new ArrayList<Rejected>();
+      List<Batch> batches;
+      long nextRetry = Long.MAX_VALUE;
+      long now = System.currentTimeMillis();
+
+      synchronized (lock) {
+         batches = new ArrayList<Batch>(active);
+         for (Batch batch : batches) {
+            nextRetry = Math.min(nextRetry, batch.startReady(now, rejected));
+         }
+         if (nextRetry < retryScheduledAt) {
+            retryScheduledAt = nextRetry;
+         } else {
+            nextRetry = Long.MAX_VALUE;
+         }
+      }
+
+      for (Rejected r : rejected) {
+         r.batch.notify(r.attempt.operation, Outcome.failed, r.error, r.finished);
+      }
+      for (Batch batch : batches) {
+         batch.completeIfDone();
+      }
+
+      if (nextRetry != Long.MAX_VALUE) {
+         try {
+            timer.schedule(dispatcher, Math.max(1, nextRetry - now), TimeUnit.MILLISECONDS);
+         } catch (RejectedExecutionException e) {
+            // Stopped; the pending retries were failed by stop().
+         }
+      }
+   }
+
+   /**
+    * An operation waiting to be run.
+    */
+   private static class Attempt {
+      final VmOperation operation;
+      int attempts;
+      long notBefore;
+
+      Attempt(VmOperation operation) {
+         this.operation = operation;
+      }
+   }
+
+   /**
+    * An operation that could not be started because the executor stopped.
+    */
+   private static class Rejected {
+      final Batch batch;
+      final Attempt attempt;
+      final Throwable error;
+      final int finished;
+
+      Rejected(Batch batch, Attempt attempt, Throwable error, int finished) {
+         this.batch = batch;
+         this.attempt = attempt;
+         this.error = error;
+         this.finished = finished;
+      }
+   }
+
+   /**
+    * Runs one attempt of an operation on a pool thread.
+    */
+   private static class AttemptTask implements Runnable {
+      final Batch batch;
+      final Attempt attempt;
+
+      AttemptTask(Batch batch, Attempt attempt) {
+         this.batch = batch;
+         this.attempt = attempt;
+      }
+
+      @Override
+      public void run() {
+         Throwable error = null;
+         try {
+            attempt.operation.run();
+         } catch (Throwable t) {
+            error = t;
+         }
+         batch.completed(attempt, error, true);
+      }
+   }
+
+   /**
+    * The state of one submitted batch.
+    */
+   private class Batch {
+      final ProgressListener listener;
+      final CompletionListener completion;
+      final int total;
+      final LinkedList<Attempt> pending = new LinkedList<Attempt>();
+      final List<VmOperation> succeeded = new ArrayList<VmOperation>();
+      final Map<VmOperation, Throwable> failed = new LinkedHashMap<VmOperation, Throwable>();
+      /** Attempts started whose listener call hasn't returned yet */
+      int running;
+      boolean completionReported;
+
+      Batch(Collection<? extends VmOperation> operations, ProgressListener listener,
+            CompletionListener completion) {
+         this.listener = listener;
+         this.completion = completion;
+         this.total = operations.size();
+         for (VmOperation operation : operations) {
+            pending.add(new Attempt(operation));
+         }
+      }
+
+      int finished() {
+         return succeeded.size() + failed.size();
+      }
+
+      /**
+       * @return true once every operation has finished and been reported.
+       */
+      boolean done() {
+         return finished() == total && running == 0;
+      }
+
+      /**
+       * Start the pending operations whose limits allow it.  Once the
+       * executor is stopped, every pending operation is failed instead.
+       * Must hold the lock.
+       *
+       * @param now current time in milliseconds
+       * @param rejected collects the operations that could not be started
+       * @return when the next retry is due, or Long.MAX_VALUE
+       */
+      long startReady(long now, List<Rejected> rejected) {
+         long nextRetry = Long.MAX_VALUE;
+
+         for (Iterator<Attempt> it = pending.iterator(); it.hasNext();) {
+            Attempt attempt = it.next();
+            if (pool.isShutdown()) {
+               it.remove();
+               reject(attempt, rejected);
+            } else if (attempt.notBefore > now) {
+               nextRetry = Math.min(nextRetry, attempt.notBefore);
+            } else if (reserve(attempt.operation)) {
+               it.remove();
+               attempt.attempts++;
+               running++;
+               try {
+                  pool.execute(new AttemptTask(this, attempt));
+               } catch (RejectedExecutionException e) {
+                  running--;
+                  release(attempt.operation);
+                  reject(attempt, rejected);
+               }
+            }
+         }
+         return nextRetry;
+      }
+
+      private void reject(Attempt attempt, List<Rejected> rejected) {
+         Throwable error = new RejectedExecutionException("Bulk VM executor is stopped.");
+         failed.put(attempt.operation, error);
+         running++;
+         rejected.add(new Rejected(this, attempt, error, finished()));
+      }
+
+      /**
+       * Account for a finished attempt, then report it and start whatever
+       * it made room for.
+       *
+       * @param attempt the attempt
+       * @param error its failure, or null
+       * @param mayRetry false if the attempt must not be retried
+       */
+      void completed(Attempt attempt, Throwable error, boolean mayRetry) {
+         VmOperation operation = attempt.operation;
+         Outcome outcome;
+         int finished;
+
+         synchronized (lock) {
+            release(operation);
+            if (error == null) {
+               outcome = Outcome.succeeded;
+               succeeded.add(operation);
+            } else if (mayRetry && attempt.attempts < maxAttempts) {
+               outcome = Outcome.retrying;
+               attempt.notBefore = System.currentTimeMillis() +
+                       (retryDelayMs << (attempt.attempts - 1));
+               pending.add(attempt);
+            } else {
+               outcome = Outcome.failed;
+               failed.put(operation, error);
+            }
+            finished = finished();
+         }
+
+         if (error != null) {
+            log.warn(String.format("%s: attempt %d %s.", operation, attempt.attempts, outcome), error);
+         }
+         notify(operation, outcome, error, finished);
+         dispatch();
+      }
+
+      /**
+       * Call the progress listener, then count the attempt as no longer
+       * running.
+       */
+      void notify(VmOperation operation, Outcome outcome, Throwable error, int finished) {
+         if (listener != null) {
+            try {
+               listener.progress(operation, outcome, error, finished, total);
+            } catch (RuntimeException e) {
+               log.error("Progress listener failed.", e);
+            }
+         }
+
+         synchronized (lock) {
+            running--;
+         }
+      }
+
+      /**
+       * Hand the result to the completion listener, once, when every
+       * operation has finished and been reported.
+       */
+      void completeIfDone() {
+         Result result;
+         synchronized (lock) {
+            if (completionReported || !done()) {
+               return;
+            }
+            completionReported = true;
+            active.remove(this);
+            result = new Result(new ArrayList<VmOperation>(succeeded),
+                    new LinkedHashMap<VmOperation, Throwable>(failed));
+         }
+
+         if (completion != null) {
+            try {
+               completion.completed(result);
+            } catch (RuntimeException e) {
+               log.error("Completion listener failed.", e);
+            }
+         }
+      }
+   }
+
+   /**
+    * Count the operation against its host and datastores if all of them
+    * are below their limits.  Must hold the lock.
+    */
+   private boolean reserve(VmOperation operation) {
+      if (!below(hostUse, operation.getHost(), maxPerHost)) {
+         return false;
+      }
+      for (String datastore : operation.getDatastores()) {
+         if (!below(datastoreUse, datastore, maxPerDatastore)) {
+            return false;
+         }
+      }
+
+      add(hostUse, operation.getHost(), 1);
+      for (String datastore : operation.getDatastores()) {
+         add(datastoreUse, datastore, 1);
+      }
+      return true;
+   }
+
+   private void release(VmOperation operation) {
+      add(hostUse, operation.getHost(), -1);
+      for (String datastore : operation.getDatastores()) {
+         add(datastoreUse, datastore, -1);
+      }
+   }
+
+   private static boolean below(Map<String, Integer> use, String key, int max) {
+      if (key == null || max <= 0) {
+         return true;
+      }
+      Integer count = use.get(key);
+      return count == null || count < max;
+   }
+
+   private static void add(Map<String, Integer> use, String key, int delta) {
+      if (key == null) {
+         return;
+      }
+      Integer count = use.get(key);
+      int updated = ((count == null) ? 0 : count) + delta;
+      if (updated == 0) {
+         use.remove(key);
+      } else {
+         use.put(key, updated);
+      }
+   }
+}
@@ -23,6 +23,7 @@ import java.io.InputStreamReader;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Scope;
 import org.springframework.stereotype.Component;
@@ -40,6 +41,8 @@ public class CloneRunnerImpl implements CloneRunner {
 
    @Value("#{workpoolProperties['clonevm']}")
    private String CLONE_VM;
+   @Autowired
+   private ScriptWorkers scriptWorkers;
    private CloneRequest cloneRequest;
 
    public CloneRunnerImpl(CloneRequest cloneRequest) {
@@ -48,6 +51,20 @@ public class CloneRunnerImpl implements CloneRunner {
 
    @Override
    public Result run() throws IOException, InterruptedException {
+      ScriptWorkerPool workers = scriptWorkers.getClonePool();
+      if (workers != null) {
+         try {
+            ScriptWorkerPool.Response response = ScriptWorkers.callScript(workers,
+                    ScriptWorkers.CLONE, "clone-vm",
+                    cloneRequest.toIni(CloneRequest.nullScrubber),
+                    cloneRequest.toIni(CloneRequest.redactedScrubber), log);
+            String moid = response.getMoid();
+            return new Result(moid, StringUtils.hasLength(moid), response.getError());
+         } finally {
+            cloneRequest.getLogFile().delete();
+         }
+      }
+
       log.debug("Using clone-vm script from: {}.", CLONE_VM);
       File ini = File.createTempFile("clone-vm", null);
       try {
@@ -0,0 +1,214 @@
+/* ***********************************************************************
+ * VMware ThinApp Factory
+ * Copyright (c) 2009-2013 VMware, Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ***********************************************************************/
+
+package com.vmware.thinapp.workpool;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.util.FileCopyUtils;
+
+/**
+ * Guest operations against a local directory standing in for the guest
+ * file system, for running without a VC.
+ *
+ * Guest paths map below the root directory by drive, so c:\foo\bar.txt is
+ * root/c/foo/bar.txt.  Runs are passed to a handler, which by default
+ * succeeds without doing anything, except for GuestArchive unpack scripts
+ * and single line del scripts, which are carried out.  Every operation is
+ * recorded, and batches, file transfers and uploaded bytes are counted.
+ */
+public class FakeGuestOperations extends GuestOperations {
+   private static final Logger log = LoggerFactory.getLogger(FakeGuestOperations.class);
+
+   /**
+    * Performs the program and script runs of a fake guest.
+    */
+   public interface Handler {
+      /**
+       * @param guest the guest the run is for
+       * @param operation a runProgram or runScript operation
+       * @return the outcome of the run
+       */
+      Result run(FakeGuestOperations guest, Operation operation) throws IOException;
+   }
+
+   private static final Handler SUCCEED = new Handler() {
+      @Override
+      public Result run(FakeGuestOperations guest, Operation operation) {
+         return new Result(0, "");
+      }
+   };
+
+   private final File root;
+   private volatile Handler handler = SUCCEED;
+   private final List<Operation> operations =
+           Collections.synchronizedList(new ArrayList<Operation>());
+   private int batches;
+   private int transfers;
+   private long bytesUploaded;
+
+   /**
+    * @param root directory holding the guest file system
+    */
+   public FakeGuestOperations(File root) {
+      this.root = root;
+   }
+
+   public FakeGuestOperations setHandler(Handler handler) {
+      this.handler = handler;
+      return this;
+   }
+
+   /**
+    * @param guestPath a guest path
+    * @return the local file standing for it
+    */
+   public File file(String guestPath) {
+      String path = guestPath.replace('\\', '/');
+      int colon = path.indexOf(':');
+      if (colon > 0) {
+         path = path.substring(0, colon).toLowerCase() + "/" + path.substring(colon + 1);
+      }
+      return new File(root, path);
+   }
+
+   /**
+    * @return every operation performed so far, in order
+    */
+   public List<Operation> getOperations() {
+      synchronized (operations) {
+         return new ArrayList<Operation>(operations);
+      }
+   }
+
+   /**
+    * @return the number of batches performed so far
+    */
+   public synchronized int getBatches() {
+      return batches;
+   }
+
+   /**
+    * @return the number of uploads and downloads performed so far
+    */
+   public synchronized int getTransfers() {
+      return transfers;
+   }
+
+   /**
+    * @return the number of bytes uploaded so far
+    */
+   public synchronized long getBytesUploaded() {
+      return bytesUploaded;
+   }
+
+   @Override
+   public List<Result> execute(List<Operation> batch) throws IOException {
+      synchronized (this) {
+         batches++;
+      }
+      List<Result> results = new ArrayList<Result>(batch.size());
+      for (Operation operation : batch) {
+         operations.add(operation);
+         results.add(perform(operation));
+      }
+      return results;
+   }
+
+   private Result perform(Operation operation) throws IOException {
+      log.debug("Fake guest operation: {} {}.", operation, operation.getArgs());
+      switch (operation.getType()) {
+         case upload:
+            synchronized (this) {
+               transfers++;
+               bytesUploaded += new File(operation.getArg(0)).length();
+            }
+            return copy(new File(operation.getArg(0)), file(operation.getArg(1)));
+         case download:
+            synchronized (this) {
+               transfers++;
+            }
+            return copy(file(operation.getArg(0)), new File(operation.getArg(1)));
+         case createDirectory:
+            File dir = file(operation.getArg(0));
+            return (dir.isDirectory() || dir.mkdirs()) ?
+                    new Result(0, "") : new Result(-1, "Unable to create " + dir);
+         case runScript:
+            GuestArchive.Unpack unpack = GuestArchive.parseUnpackScript(operation.getArg(1));
+            if (unpack != null) {
+               return unpack(unpack);
+            }
+            String script = operation.getArg(1).trim();
+            if (script.startsWith("del ") && script.indexOf('\n') < 0) {
+               return delete(script.substring(4));
+            }
+            return handler.run(this, operation);
+         case runProgram:
+            return handler.run(this, operation);
+         default:
+            return new Result(0, "");
+      }
+   }
+
+   private Result unpack(GuestArchive.Unpack unpack) throws IOException {
+      File archive = file(unpack.getArchive());
+      if (!archive.isFile()) {
+         return new Result(-1, "No such file: " + archive);
+      }
+      Map<String, byte[]> entries = GuestArchive.read(archive);
+      for (Map.Entry<String, String> entry : unpack.getEntries().entrySet()) {
+         byte[] content = entries.get(entry.getKey());
+         if (content == null) {
+            return new Result(-1, "No such entry: " + entry.getKey());
+         }
+         File dest = file(entry.getValue());
+         dest.getParentFile().mkdirs();
+         FileCopyUtils.copy(content, dest);
+      }
+      archive.delete();
+      return new Result(0, "");
+   }
+
+   /**
+    * Like del, delete the files named, skipping switches and those that
+    * don't exist.
+    */
+   private Result delete(String names) {
+      for (String name : names.trim().split("\\s+")) {
+         if (!name.startsWith("/")) {
+            file(name.replace("\"", "")).delete();
+         }
+      }
+      return new Result(0, "");
+   }
+
+   private static Result copy(File source, File dest) throws IOException {
+      if (!source.isFile()) {
+         return new Result(-1, "No such file: " + source);
+      }
+      dest.getParentFile().mkdirs();
+      FileCopyUtils.copy(source, dest);
+      return new Result(0, "");
+   }
+}
@@ -0,0 +1,543 @@
+/* ***********************************************************************
+ * VMware ThinApp Factory
+ * Copyright (c) 2009-2013 VMware, Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ***********************************************************************/
+
+package com.vmware.thinapp.workpool;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Closeables;
+
+/**
+ * Several host files packed into one cabinet archive, so they can be sent
+ * to the guest with a single upload and unpacked there by expand.exe,
+ * which every Windows version has.
+ *
+ * Entries are stored under generated names and moved to their guest
+ * destinations by the unpack script, so files for different directories
+ * can share an archive.  Larger payloads that compress well are stored
+ * MSZIP compressed; the rest are stored as they are.
+ */
+public class GuestArchive {
+   /** Payloads at least this large are compressed, if they compress well */
+   public static final long COMPRESS_THRESHOLD = 64 * 1024;
+
+   /** Largest payload a cabinet folder can hold */
+   static final long MAX_PAYLOAD = 0x7FFF8000L;
+
+   /** Uncompressed bytes per data block */
+   private static final int BLOCK_SIZE = 32768;
+
+   /** Sample used to decide whether compressing is worthwhile */
+   private static final int SAMPLE_SIZE = 64 * 1024;
+
+   private static final int COMPRESS_NONE = 0;
+   private static final int COMPRESS_MSZIP = 1;
+
+   private static final int HEADER_SIZE = 36;
+   private static final int FOLDER_SIZE = 8;
+   private static final int FILE_ENTRY_SIZE = 16;
+   private static final int DATA_HEADER_SIZE = 8;
+   private static final int ATTRIB_ARCHIVE = 0x20;
+
+   private static final Pattern EXPAND_LINE =
+         Pattern.compile("^expand \"([^\"]+)\" -F:\\* \"([^\"]+)\"");
+   private static final Pattern MOVE_LINE =
+         Pattern.compile("^move /Y \"([^\"]+)\\\\([^\"\\\\]+)\" \"([^\"]+)\"");
+
+   private final Map<String, String> hostToGuest = new LinkedHashMap<String, String>();
+
+   /**
+    * Add a file.
+    *
+    * @param hostSource file on the host
+    * @param guestDest  full path of the file in the guest
+    */
+   public GuestArchive add(String hostSource, String guestDest) {
+      hostToGuest.put(hostSource, guestDest);
+      return this;
+   }
+
+   /**
+    * @return guest destination of each host file, in the order added
+    */
+   public Map<String, String> getFiles() {
+      return Collections.unmodifiableMap(hostToGuest);
+   }
+
+   /**
+    * @return total size of the files
+    */
+   public long getPayloadSize() {
+      long size = 0;
+      for (String hostSource : hostToGuest.keySet()) {
+         size += new File(hostSource).length();
+      }
+      return size;
+   }
+
+   /**
+    * @return whether the files fit in one archive
+    */
+   public boolean fits() {
+      return getPayloadSize() <= MAX_PAYLOAD && hostToGuest.size() <= 0xFFFF;
+   }
+
+   /**
+    * Name of an entry in the archive.
+    */
+   private static String entryName(int index) {
+      return "f" + index;
+   }
+
+   /**
+    * Write the archive.
+    *
+    * @param archive where to write it
+    * @return whether the payload was compressed
+    * @throws IOException
+    */
+   public boolean write(File archive) throws IOException {
+      List<File> files = new ArrayList<File>(hostToGuest.size());
+      for (String hostSource : hostToGuest.keySet()) {
+         File file = new File(hostSource);
+         if (!file.isFile()) {
+            throw new IOException("No such file: " + file);
+         }
+         files.add(file);
+      }
+      if (!fits()) {
+         throw new IOException("Too much to pack into one archive: " + getPayloadSize() + " bytes");
+      }
+      boolean compress = shouldCompress(files);
+
+      // Entries are written first, they need the names and sizes only
+      int entriesSize = 0;
+      for (int i = 0; i < files.size(); i++) {
+         entriesSize += FILE_ENTRY_SIZE + entryName(i).length() + 1;
+      }
+      int dataStart = HEADER_SIZE + FOLDER_SIZE + entriesSize;
+      int dosDate = dosDate();
+      int dosTime = dosTime();
+
+      RandomAccessFile out = new RandomAccessFile(archive, "rw");
+      try {
+         out.setLength(0);
+         out.seek(HEADER_SIZE + FOLDER_SIZE);
+         long offset = 0;
+         for (int i = 0; i < files.size(); i++) {
+            long size = files.get(i).length();
+            writeInt(out, (int) size);
+            writeInt(out, (int) offset);
+            writeShort(out, 0);
+            writeShort(out, dosDate);
+            writeShort(out, dosTime);
+            writeShort(out, ATTRIB_ARCHIVE);
+            out.write(entryName(i).getBytes(Charsets.US_ASCII));
+            out.write(0);
+            offset += size;
+         }
+
+         int blocks = writeData(out, files, compress);
+         long length = out.length();
+
+         out.seek(0);
+         out.write(new byte[] { 'M', 'S', 'C', 'F' });
+         writeInt(out, 0);
+         writeInt(out, (int) length);
+         writeInt(out, 0);
+         writeInt(out, HEADER_SIZE + FOLDER_SIZE);
+         writeInt(out, 0);
+         out.write(3);
+         out.write(1);
+         writeShort(out, 1);
+         writeShort(out, files.size());
+         writeShort(out, 0);
+         writeShort(out, (int) (System.nanoTime() & 0xFFFF));
+         writeShort(out, 0);
+
+         writeInt(out, dataStart);
+         writeShort(out, blocks);
+         writeShort(out, compress ? COMPRESS_MSZIP : COMPRESS_NONE);
+      } finally {
+         out.close();
+      }
+      return compress;
+   }
+
+   /**
+    * Write the concatenated files as data blocks.
+    *
+    * @return the number of blocks
+    */
+   private static int writeData(RandomAccessFile out, List<File> files, boolean compress)
+         throws IOException {
+      byte[] block = new byte[BLOCK_SIZE];
+      // Deflate output for a block of incompressible data grows by a few bytes
+      byte[] compressed = new byte[BLOCK_SIZE + 1024];
+      Deflater deflater = compress ? new Deflater(Deflater.BEST_SPEED, true) : null;
+      int blocks = 0;
+      int filled = 0;
+
+      try {
+         for (File file : files) {
+            InputStream in = new FileInputStream(file);
+            try {
+               int n;
+               while ((n = in.read(block, filled, BLOCK_SIZE - filled)) > 0) {
+                  filled += n;
+                  if (filled == BLOCK_SIZE) {
+                     writeBlock(out, deflater, block, filled, compressed);
+                     blocks++;
+                     filled = 0;
+                  }
+               }
+            } finally {
+               Closeables.closeQuietly(in);
+            }
+         }
+         if (filled > 0) {
+            writeBlock(out, deflater, block, filled, compressed);
+            blocks++;
+         }
+      } finally {
+         if (deflater != null) {
+            deflater.end();
+         }
+      }
+
+      if (blocks > 0xFFFF) {
+         throw new IOException("Too many data blocks: " + blocks);
+      }
+      return blocks;
+   }
+
+   /**
+    * Write one data block.  MSZIP blocks are complete deflate streams
+    * prefixed by "CK"; a checksum of 0 means none.
+    */
+   private static void writeBlock(RandomAccessFile out, Deflater deflater,
+                                  byte[] block, int length, byte[] compressed)
+         throws IOException {
+      writeInt(out, 0);
+      if (deflater == null) {
+         writeShort(out, length);
+         writeShort(out, length);
+         out.write(block, 0, length);
+         return;
+      }
+
+      deflater.reset();
+      deflater.setInput(block, 0, length);
+      deflater.finish();
+      compressed[0] = 'C';
+      compressed[1] = 'K';
+      int size = 2;
+      while (!deflater.finished()) {
+         if (size == compressed.length) {
+            throw new IOException("Compressed block too large");
+         }
+         size += deflater.deflate(compressed, size, compressed.length - size);
+      }
+      writeShort(out, size);
+      writeShort(out, length);
+      out.write(compressed, 0, size);
+   }
+
+   /**
+    * Compress when there is enough data and a sample of the largest file
+    * compresses to less than 90% of its size.  Installers and runtime
+    * packages are often compressed already.
+    */
+   private static boolean shouldCompress(List<File> files) throws IOException {
+      File largest = null;
+      long total = 0;
+      for (File file : files) {
+         total += file.length();
+         if (largest == null || file.length() > largest.length()) {
+            largest = file;
+         }
+      }
+      if (largest == null || total < COMPRESS_THRESHOLD) {
+         return false;
+      }
+
+      byte[] sample = new byte[(int) Math.min(SAMPLE_SIZE, largest.length())];
+      InputStream in = new FileInputStream(largest);
+      try {
+         ByteStreams.readFully(in, sample);
+      } finally {
+         Closeables.closeQuietly(in);
+      }
+
+      Deflater deflater = new Deflater(Deflater.BEST_SPEED, true);
+      try {
+         deflater.setInput(sample);
+         deflater.finish();
+         byte[] buf = new byte[BLOCK_SIZE];
+         long size = 0;
+         while (!deflater.finished()) {
+            size += deflater.deflate(buf);
+         }
+         return size < sample.length * 9L / 10;
+      } finally {
+         deflater.end();
+      }
+   }
+
+   /**
+    * Script that unpacks the archive in the guest: creates the destination
+    * directories, expands the archive into a staging directory and moves
+    * each entry into place.  It removes the archive and staging directory
+    * and exits with the first failure's code.
+    *
+    * @param guestArchive where the archive was uploaded
+    * @param stagingDir   guest directory to expand into, must not exist
+    * @return script text for cmd.exe
+    */
+   public String unpackScript(String guestArchive, String stagingDir) {
+      StringBuilder sb = new StringBuilder();
+      for (String dir : guestDirectories()) {
+         sb.append(String.format("if not exist \"%s\" mkdir \"%s\"\r\n", dir, dir));
+      }
+      sb.append(String.format("mkdir \"%s\"\r\n", stagingDir));
+      sb.append(String.format("expand \"%s\" -F:* \"%s\" > nul\r\n", guestArchive, stagingDir));
+      sb.append("if errorlevel 1 goto done\r\n");
+      int i = 0;
+      for (String guestDest : hostToGuest.values()) {
+         sb.append(String.format("move /Y \"%s\\%s\" \"%s\" > nul\r\n",
+               stagingDir, entryName(i++), guestDest));
+         sb.append("if errorlevel 1 goto done\r\n");
+      }
+      sb.append(":done\r\n");
+      sb.append("set AF_EXIT=%ERRORLEVEL%\r\n");
+      sb.append(String.format("rmdir /S /Q \"%s\"\r\n", stagingDir));
+      sb.append(String.format("del /Q \"%s\"\r\n", guestArchive));
+      sb.append("exit /b %AF_EXIT%\r\n");
+      return sb.toString();
+   }
+
+   /**
+    * @return parent directories of the guest destinations, each once
+    */
+   private List<String> guestDirectories() {
+      List<String> dirs = new ArrayList<String>();
+      for (String guestDest : hostToGuest.values()) {
+         int slash = guestDest.lastIndexOf('\\');
+         if (slash > 0 && guestDest.charAt(slash - 1) != ':') {
+            String dir = guestDest.substring(0, slash);
+            if (!dirs.contains(dir)) {
+               dirs.add(dir);
+            }
+         }
+      }
+      return dirs;
+   }
+
+   /**
+    * What an unpack script does, for guests that can't run it.
+    */
+   public static class Unpack {
+      private final String archive;
+      private final Map<String, String> entryToGuest;
+
+      private Unpack(String archive, Map<String, String> entryToGuest) {
+         this.archive = archive;
+         this.entryToGuest = entryToGuest;
+      }
+
+      /**
+       * @return guest path of the archive
+       */
+      public String getArchive() {
+         return archive;
+      }
+
+      /**
+       * @return guest destination of each archive entry
+       */
+      public Map<String, String> getEntries() {
+         return entryToGuest;
+      }
+   }
+
+   /**
+    * Recognize a script made by unpackScript().
+    *
+    * @param script a script
+    * @return what it unpacks, or null if it isn't an unpack script
+    */
+   public static Unpack parseUnpackScript(String script) {
+      String archive = null;
+      Map<String, String> entries = new LinkedHashMap<String, String>();
+      for (String line : script.split("\r\n")) {
+         Matcher expand = EXPAND_LINE.matcher(line);
+         Matcher move = MOVE_LINE.matcher(line);
+         if (expand.find()) {
+            archive = expand.group(1);
+         } else if (move.find()) {
+            entries.put(move.group(2), move.group(3));
+         }
+      }
+      return (archive == null) ? null : new Unpack(archive, entries);
+   }
+
+   /**
+    * Read back an archive written by write(), e.g. for a fake guest.  The
+    * whole archive is read into memory.
+    *
+    * @param archive the archive
+    * @return the contents of each entry, by name
+    * @throws IOException if it isn't such an archive
+    */
+   public static Map<String, byte[]> read(File archive) throws IOException {
+      RandomAccessFile in = new RandomAccessFile(archive, "r");
+      try {
+         byte[] signature = new byte[4];
+         in.readFully(signature);
+         if (!"MSCF".equals(new String(signature, Charsets.US_ASCII))) {
+            throw new IOException("Not a cabinet: " + archive);
+         }
+         in.seek(16);
+         long filesOffset = readInt(in);
+         in.seek(28);
+         int fileCount = readShort(in);
+         in.seek(HEADER_SIZE);
+         long dataOffset = readInt(in);
+         int blocks = readShort(in);
+         int compression = readShort(in);
+
+         List<String> names = new ArrayList<String>(fileCount);
+         List<long[]> extents = new ArrayList<long[]>(fileCount);
+         in.seek(filesOffset);
+         for (int i = 0; i < fileCount; i++) {
+            long size = readInt(in);
+            long offset = readInt(in);
+            in.skipBytes(8);
+            StringBuilder name = new StringBuilder();
+            int c;
+            while ((c = in.read()) > 0) {
+               name.append((char) c);
+            }
+            names.add(name.toString());
+            extents.add(new long[] { offset, size });
+         }
+
+         // Uncompress the whole folder, then split it into files
+         ByteArrayOutputStream folder = new ByteArrayOutputStream();
+         in.seek(dataOffset);
+         Inflater inflater = new Inflater(true);
+         try {
+            for (int b = 0; b < blocks; b++) {
+               readInt(in);
+               byte[] data = new byte[readShort(in)];
+               int uncompressed = readShort(in);
+               in.readFully(data);
+               if (compression == COMPRESS_NONE) {
+                  folder.write(data);
+               } else if (compression == COMPRESS_MSZIP && data.length > 2 &&
+                          data[0] == 'C' && data[1] == 'K') {
+                  byte[] out = new byte[uncompressed];
+                  inflater.reset();
+                  inflater.setInput(data, 2, data.length - 2);
+                  int n = 0;
+                  while (n < uncompressed && !inflater.finished()) {
+                     n += inflater.inflate(out, n, uncompressed - n);
+                  }
+                  folder.write(out, 0, n);
+               } else {
+                  throw new IOException("Unsupported data block in " + archive);
+               }
+            }
+         } catch (DataFormatException e) {
+            throw new IOException("Corrupt data block in " + archive + ": " + e.getMessage());
+         } finally {
+            inflater.end();
+         }
+
+         byte[] all = folder.toByteArray();
+         Map<String, byte[]> result = new LinkedHashMap<String, byte[]>();
+         for (int i = 0; i < fileCount; i++) {
+            long[] extent = extents.get(i);
+            if (extent[0] + extent[1] > all.length) {
+               throw new IOException("Truncated archive: " + archive);
+            }
+            byte[] content = new byte[(int) extent[1]];
+            System.arraycopy(all, (int) extent[0], content, 0, content.length);
+            result.put(names.get(i), content);
+         }
+         return result;
+      } finally {
+         in.close();
+      }
+   }
+
+   private static int dosDate() {
+      Calendar now = Calendar.getInstance();
+      return ((now.get(Calendar.YEAR) - 1980) << 9) |
+             ((now.get(Calendar.MONTH) + 1) << 5) |
+             now.get(Calendar.DAY_OF_MONTH);
+   }
+
+   private static int dosTime() {
+      Calendar now = Calendar.getInstance();
+      return (now.get(Calendar.HOUR_OF_DAY) << 11) |
+             (now.get(Calendar.MINUTE) << 5) |
+             (now.get(Calendar.SECOND) / 2);
+   }
+
+   private static void writeInt(RandomAccessFile out, int value) throws IOException {
+      out.write(value & 0xFF);
+      out.write((value >>> 8) & 0xFF);
+      out.write((value >>> 16) & 0xFF);
+      out.write((value >>> 24) & 0xFF);
+   }
+
+   private static void writeShort(RandomAccessFile out, int value) throws IOException {
+      out.write(value & 0xFF);
+      out.write((value >>> 8) & 0xFF);
+   }
+
+   private static long readInt(RandomAccessFile in) throws IOException {
+      long value = 0;
+      for (int i = 0; i < 4; i++) {
+         value |= ((long) in.readUnsignedByte()) << (8 * i);
+      }
+      return value;
+   }
+
+   private static int readShort(RandomAccessFile in) throws IOException {
+      return in.readUnsignedByte() | (in.readUnsignedByte() << 8);
+   }
+}
@@ -17,11 +17,14 @@
 
 package com.vmware.thinapp.workpool;
 
-import java.io.BufferedReader;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.Reader;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -34,119 +37,129 @@ import org.springframework.util.FileCopyUtils;
 
 import com.google.common.base.Charsets;
 import com.google.common.io.Closeables;
-import com.google.common.io.Files;
 import com.vmware.thinapp.common.workpool.dto.InstanceInfo;
 import com.vmware.thinapp.common.workpool.dto.VCConfig;
+import com.vmware.thinapp.workpool.GuestOperations.Operation;
 import com.vmware.thinapp.workpool.VmRunCommandBuilder.RunProgramOptions;
 
 /**
  * Wrapper around running different types of commands inside the guest.
+ *
+ * Commands are performed through a {@link GuestOperations} backend; the
+ * steps of a command are sent as one batch where possible.
  */
 public class GuestCommands {
    private static final Logger log = LoggerFactory
            .getLogger(GuestCommands.class);
-   private final VmRunCommandBuilder vmRun;
+
+   private final VCConfig vcConfig;
+   private final InstanceInfo vmInfo;
 
    // Unique identifier for all commands that are run by this instance
    private final Long commandId;
 
-   @Autowired
-   private ProcessMonitorService processMonitor;
+   /** Characters of guest program output kept, for each of stdout and stderr */
+   private static final int MAX_PROGRAM_OUTPUT = 1024 * 1024;
 
-   public GuestCommands(
-         VCConfig vcConfig,
-         InstanceInfo vmInfo,
-         Long commandId) {
-      vmRun = new VmRunCommandBuilder(vcConfig, vmInfo);
-      this.commandId = commandId;
+   @Autowired(required = false)
+   private GuestOperationsFactory guestOperationsFactory;
+
+   private GuestOperations operations;
+
+   private volatile Listener listener;
+
+   /**
+    * Told about each batch of guest operations once it has been performed,
+    * whether it succeeded or not.
+    */
+   public interface Listener {
+      /**
+       * @param operations     the batch
+       * @param startMillis    when it was sent
+       * @param durationMillis how long it took
+       */
+      void executed(List<Operation> operations, long startMillis, long durationMillis);
    }
 
-   private abstract class RunCommand {
-      private final List<String> cmd, displayCmd;
-      private final Logger log =
-         LoggerFactory.getLogger(RunCommand.class);
-      protected String stdout = "";
+   /**
+    * Backend that reports each batch to the listener.
+    */
+   private static class ListenedOperations extends GuestOperations {
+      private final GuestOperations backend;
+      private final Listener listener;
 
-      public RunCommand(List<String> cmd) {
-         this(cmd, new ArrayList<String>());
+      private ListenedOperations(GuestOperations backend, Listener listener) {
+         this.backend = backend;
+         this.listener = listener;
       }
 
-      public RunCommand(List<String> cmd, List<String> masks) {
-         this.cmd = cmd;
-         this.displayCmd = new ArrayList<String>(this.cmd.size());
-         boolean maskNext = false;
-         for (String arg : this.cmd) {
-            if (arg != null && (arg.equals("-p") || arg.equals("-gp"))) {
-               maskNext = true;
-            } else if (maskNext) {
-               arg = "********";
-               maskNext = false;
-            } else {
-               for (String mask : masks) {
-                  if (arg != null) {
-                     arg = arg.replace(mask, "********");
-                  }
-               }
-            }
-            this.displayCmd.add(arg);
+      @Override
+      public List<Result> execute(List<Operation> batch) throws IOException {
+         long start = System.currentTimeMillis();
+         try {
+            return backend.execute(batch);
+         } finally {
+            listener.executed(batch, start, System.currentTimeMillis() - start);
          }
       }
+   }
 
-      private int run() throws IOException {
-         log.info("Running command: {}.", displayCmd);
-         ProcessBuilder processBuilder = new ProcessBuilder(cmd);
-         processBuilder.redirectErrorStream(true);
-         Process process = processBuilder.start();
-         BufferedReader bufferedReader = null;
-
-         try {
-            processMonitor.add(commandId, process);
-            bufferedReader = new BufferedReader(new InputStreamReader(
-                            process.getInputStream()));
-
-            while (true) {
-               String line = bufferedReader.readLine();
-
-               if (line != null) {
-                  stdout = stdout + line + "\n";
-                  log.error(line);
-               } else {
-                  break;
-               }
-            }
+   public GuestCommands(
+         VCConfig vcConfig,
+         InstanceInfo vmInfo,
+         Long commandId) {
+      this.vcConfig = vcConfig;
+      this.vmInfo = vmInfo;
+      this.commandId = commandId;
+   }
 
-            try {
-               int exitCode = process.waitFor();
-               handleExit(exitCode);
-               return exitCode;
-            } catch (InterruptedException e) {
-               throw new RuntimeException(e);
-            } finally {
-               // Clear the thread interrupted flag:
-               // Process.waitFor() doesn't follow the normal convention of
-               // clearing this flag when it throws an InterruptedException, so
-               // we need to do it manually.
-               Thread.interrupted();
-            }
-         } finally {
-            processMonitor.remove(commandId);
+   /**
+    * Run commands through the given backend.
+    *
+    * @param operations guest operations of the VM
+    */
+   public GuestCommands(GuestOperations operations) {
+      this(null, null, null);
+      this.operations = operations;
+   }
 
-            // As suggested in the following blog post, we need to be very explicit
-            // cleaning up the file streams provided by the Process.  We close in, out,
-            // err, and then explicitly destroy it just to be safe: http://kylecartmell.com/?p=9
-            if (bufferedReader != null) {
-               Closeables.closeQuietly(bufferedReader);
-            }
-            if (process != null) {
-               Closeables.closeQuietly(process.getInputStream());
-               Closeables.closeQuietly(process.getOutputStream());
-               Closeables.closeQuietly(process.getErrorStream());
-               process.destroy();
-            }
-         }
+   /**
+    * The backend, created on first use so that autowiring has happened.
+    * Without autowiring vmrun is used.
+    */
+   private synchronized GuestOperations operations() {
+      if (operations == null) {
+         operations = (guestOperationsFactory != null) ?
+                 guestOperationsFactory.create(vcConfig, vmInfo, commandId) :
+                 new VmRunGuestOperations(vcConfig, vmInfo, commandId, null, 0);
       }
+      Listener current = listener;
+      return (current == null) ? operations : new ListenedOperations(operations, current);
+   }
+
+   /**
+    * Report each batch of guest operations to the given listener, e.g. to
+    * time them.
+    *
+    * @param listener the listener, or null for none
+    */
+   public void setListener(Listener listener) {
+      this.listener = listener;
+   }
 
-      protected abstract void handleExit(int exitCode);
+   /**
+    * Log the result of an operation and throw if it failed.
+    *
+    * @param action description of the operation for messages
+    * @param result the result
+    */
+   private static void check(String action, GuestOperations.Result result) {
+      log.info("{} exited with code: {} ({}).",
+              new Object[] { action, result.getExitCode(), result.getOutput() });
+      if (result.getExitCode() != 0) {
+         throw new VirtualMachineException(String.format(
+                 "%s exited with code: %d (%s).", action, result.getExitCode(), result.getOutput()));
+      }
    }
 
    /**
@@ -158,20 +171,7 @@ public class GuestCommands {
     */
    public void downloadFileFromGuest(String guestSource, String hostDest)
            throws IOException {
-      List<String> cmd = vmRun.downloadFile(guestSource, hostDest);
-
-      RunCommand runCommand = new RunCommand(cmd) {
-         @Override
-         protected void handleExit(int exitCode) {
-            log.info("Download file exited with code: {} ({}).", exitCode, stdout);
-            if (exitCode != 0) {
-               throw new VirtualMachineException(String.format(
-                       "Download file exited with code: %d (%s).", exitCode, stdout));
-            }
-         }
-      };
-
-      runCommand.run();
+      check("Download file", operations().execute(Operation.download(guestSource, hostDest)));
    }
 
    /**
@@ -183,40 +183,109 @@ public class GuestCommands {
     */
    public void uploadFileToGuest(String hostSource, String guestDest)
            throws IOException {
-      List<String> cmd = vmRun.uploadFile(hostSource, guestDest);
-
-      RunCommand runCommand = new RunCommand(cmd) {
-         @Override
-         protected void handleExit(int exitCode) {
-            log.info("Upload file exited with code: {} ({}).", exitCode, stdout);
-            if (exitCode != 0) {
-               throw new VirtualMachineException(String.format(
-                       "Upload file exited with code: %d (%s).", exitCode, stdout));
-            }
-         }
-      };
+      check("Upload file", operations().execute(Operation.upload(hostSource, guestDest)));
+   }
 
-      runCommand.run();
+   /**
+    * Upload several files to the guest from the host in one batch.
+    *
+    * @param hostToGuest guest destination of each host file
+    * @throws IOException
+    */
+   public void uploadFilesToGuest(Map<String, String> hostToGuest)
+           throws IOException {
+      List<Operation> batch = new ArrayList<Operation>(hostToGuest.size());
+      for (Map.Entry<String, String> entry : hostToGuest.entrySet()) {
+         batch.add(Operation.upload(entry.getKey(), entry.getValue()));
+      }
+      for (GuestOperations.Result result : operations().execute(batch)) {
+         check("Upload file", result);
+      }
    }
 
    /**
+    * Upload several files to the guest as one archive, which is unpacked
+    * in the guest in the same batch.  However many files there are, that
+    * is one upload and one script run.  A single file, or more than fits
+    * in an archive, is uploaded as is.
     *
+    * @param hostToGuest guest destination of each host file
+    * @throws IOException
     */
-   public void listRunningVMs() throws IOException {
-      List<String> cmd = vmRun.listRunningVMs();
-
-      RunCommand runCommand = new RunCommand(cmd) {
-         @Override
-         protected void handleExit(int exitCode) {
-            log.info("List running VMs exited with code: {} ({}).", exitCode, stdout);
-            if (exitCode != 0) {
-               throw new VirtualMachineException(String.format(
-                       "List running VMs exited with code: %d (%s).", exitCode, stdout));
+   public void uploadPackedToGuest(Map<String, String> hostToGuest)
+           throws IOException {
+      uploadPackedToGuest(hostToGuest, null, Collections.<String, String>emptyMap());
+   }
+
+   /**
+    * Upload files to the guest in one batch: some packed into one archive
+    * as for {@link #uploadPackedToGuest(Map)}, others, such as files that
+    * are already compressed, uploaded as they are.
+    *
+    * @param packed    guest destination of each host file to pack
+    * @param directory guest directory to create before uploading the
+    *                  unpacked files, or null
+    * @param unpacked  guest destination of each host file to upload as is
+    * @throws IOException
+    */
+   public void uploadPackedToGuest(Map<String, String> packed, String directory,
+                                   Map<String, String> unpacked)
+           throws IOException {
+      List<Operation> batch = new ArrayList<Operation>();
+      List<String> actions = new ArrayList<String>();
+      if (directory != null) {
+         batch.add(Operation.createDirectory(directory));
+         actions.add("Create directory in guest");
+      }
+      for (Map.Entry<String, String> entry : unpacked.entrySet()) {
+         batch.add(Operation.upload(entry.getKey(), entry.getValue()));
+         actions.add("Upload file");
+      }
+
+      GuestArchive archive = new GuestArchive();
+      for (Map.Entry<String, String> entry : packed.entrySet()) {
+         archive.add(entry.getKey(), entry.getValue());
+      }
+      File tempFile = null;
+      try {
+         if (packed.size() < 2 || !archive.fits()) {
+            for (Map.Entry<String, String> entry : packed.entrySet()) {
+               batch.add(Operation.upload(entry.getKey(), entry.getValue()));
+               actions.add("Upload file");
             }
+         } else {
+            tempFile = File.createTempFile("guestFiles", ".cab");
+            boolean compressed = archive.write(tempFile);
+            log.debug("Packed {} files, {} bytes, into {} bytes{}.", new Object[] {
+                    packed.size(), archive.getPayloadSize(), tempFile.length(),
+                    compressed ? " (compressed)" : "" });
+
+            String name = tempFile.getName();
+            String guestArchive = String.format("c:\\%s", name);
+            String stagingDir = String.format("c:\\%s", name.substring(0, name.length() - 4));
+            batch.add(Operation.upload(tempFile.toString(), guestArchive));
+            actions.add("Upload archive");
+            batch.add(Operation.runScript(RunProgramOptions.defaultOptions(), "",
+                    archive.unpackScript(guestArchive, stagingDir)));
+            actions.add("Unpack archive");
+         }
+
+         List<GuestOperations.Result> results = operations().execute(batch);
+         for (int i = 0; i < results.size(); i++) {
+            check(actions.get(i), results.get(i));
          }
-      };
+      } finally {
+         if (tempFile != null) {
+            tempFile.delete();
+         }
+      }
+   }
 
-      runCommand.run();
+   /**
+    *
+    */
+   public void listRunningVMs() throws IOException {
+      check("List running VMs", operations().execute(Operation.listRunningVMs()));
    }
 
    /**
@@ -238,20 +307,7 @@ public class GuestCommands {
     */
    public void runProgramInGuest(RunProgramOptions options, String guestPath,
            String... args) throws IOException {
-      List<String> cmd = vmRun.runProgram(options, guestPath, args);
-
-      RunCommand runCommand = new RunCommand(cmd) {
-         @Override
-         protected void handleExit(int exitCode) {
-            log.info("Run program exited with code: {} ({}).", exitCode, stdout);
-            if (exitCode != 0) {
-               throw new VirtualMachineException(String.format(
-                       "Run program exited with code: %d (%s).", exitCode, stdout));
-            }
-         }
-      };
-
-      runCommand.run();
+      check("Run program", operations().execute(Operation.runProgram(options, guestPath, args)));
    }
 
    /**
@@ -271,7 +327,7 @@ public class GuestCommands {
     * Before the command is run the script will cd to the given working directory.
     * <p/>
     * This is implemented by first creating a local temporary batch script,
-    * uploading the script to the guest, then running the script.
+    * then uploading, running and deleting it in the guest in one batch.
     *
     * @param runProgramOptions
     * @param workingDirectory  the working directory the given command should be run
@@ -304,23 +360,15 @@ public class GuestCommands {
          // Copy the generated batch file contents to the temp file
          FileCopyUtils.copy(sb.toString().getBytes(Charsets.US_ASCII), tempFile);
 
-         // Upload the batch file to the guest
          String guestBatchFilename = String.format("c:\\%s", tempFile.getName());
          log.debug("Name of batch file in guest: {}", guestBatchFilename);
-         this.uploadFileToGuest(tempFile.toString(), guestBatchFilename);
 
-         // Run the batch file in the guest
-         log.debug("Running batch file in guest...");
-         VmRunProgramOutput batchOutput =
-            this.runProgramInGuestWithOutput(runProgramOptions, guestBatchFilename);
-
-         // Delete the batch file from the guest
-         log.debug("Deleting batch file from guest...");
-         this.runScriptInGuest(
-               "",
-               String.format("del %s", guestBatchFilename));
-
-         return batchOutput;
+         // Upload, run and delete the batch file in the guest
+         return runWithOutput(runProgramOptions,
+                 Collections.singletonList(Operation.upload(tempFile.toString(), guestBatchFilename)),
+                 Collections.singletonList(Operation.runScript(RunProgramOptions.defaultOptions(),
+                         "", String.format("del %s", guestBatchFilename))),
+                 guestBatchFilename);
       } finally {
          tempFile.delete();
       }
@@ -346,59 +394,108 @@ public class GuestCommands {
    public VmRunProgramOutput runProgramInGuestWithOutput(
            RunProgramOptions runProgramOptions, String guestPath, String... args)
            throws IOException {
-      List<String> cmd =
-              vmRun.runProgramWithOutput(runProgramOptions, guestPath, args);
-
-      // Run command
-      RunCommand runCommand = new RunCommand(cmd, runProgramOptions.getMasks()) {
-         @Override
-         protected void handleExit(int exitCode) {
-            log.info("Run program with output exited with code: {} ({}).",
-                     exitCode, this.stdout);
-            if (exitCode == 255 || exitCode == -1) {
-               /*
-                * A non-0 exitCode could be:
-                *
-                * - the VMRUN was able to login the guest and start the command
-                * in the guest OS, but the command itself returned non-zero
-                * (not necessary an error). In this case, VMRUN returns the
-                * command's exitCode as is but not its stderr error. User
-                * should retrieve the command's from guest stderr. In this case,
-                * We should defer the exception till the error detail is
-                * retrieved from guest's stderr.
-                *
-                * - the VMRUN failed to login into the guest (due to VC access
-                * failure or guest login failure). In this case, VMRUN returns
-                * 255 (or -1) and has the error write to stdout. In this case,
-                * user should retrieve the VMRUN's error message from host
-                * stdout. We can simply raise the exception (with the error
-                * just retrieved from the host's stdout) here in this case.
-                */
-               throw new VirtualMachineException(String.format(
-                  "Run program with output exited with code: %d (%s).",
-                  exitCode, this.stdout));
-            }
-         }
-      };
-
-      int exitCode = runCommand.run();
+      return runWithOutput(runProgramOptions, Collections.<Operation>emptyList(),
+              Collections.<Operation>emptyList(), guestPath, args);
+   }
 
+   /**
+    * Run a program collecting its output in OUTPUT_FILE, download that and
+    * delete it in the guest, in one batch together with the given operations.
+    *
+    * @param before operations to perform before running the program
+    * @param after operations to perform after downloading its output; their
+    * results are only logged
+    */
+   private VmRunProgramOutput runWithOutput(
+           RunProgramOptions runProgramOptions, List<Operation> before, List<Operation> after,
+           String guestPath, String... args) throws IOException {
       File tempFile = File.createTempFile("guestOutput", null);
 
       try {
-         downloadFileFromGuest("c:\\stdout.txt", tempFile.toString());
-         String stdout =
-                 Files.toString(tempFile, Charsets.US_ASCII /* XXX: What do we need to support here? */);
-
-         downloadFileFromGuest("c:\\stderr.txt", tempFile.toString());
-         String stderr =
-                 Files.toString(tempFile, Charsets.US_ASCII /* XXX: What do we need to support here? */);
-         if (exitCode != 0 && StringUtils.isNotEmpty(stderr)) {
-            stderr = stderr.replace("\r", "").replace("\n\n", "\n");
-            throw new IOException(stderr);
+         List<Operation> batch = new ArrayList<Operation>(before);
+         int run = batch.size();
+         batch.add(Operation.runScript(runProgramOptions, "",
+                 VmRunCommandBuilder.outputScript(guestPath, args)));
+         batch.add(Operation.download(VmRunCommandBuilder.OUTPUT_FILE, tempFile.toString()));
+         batch.add(Operation.runScript(RunProgramOptions.defaultOptions(), "",
+                 String.format("del %s", VmRunCommandBuilder.OUTPUT_FILE)));
+         batch.addAll(after);
+
+         List<GuestOperations.Result> results = operations().execute(batch);
+         for (int i = 0; i < run; i++) {
+            check(before.get(i).toString(), results.get(i));
+         }
+         for (int i = run + 2; i < results.size(); i++) {
+            GuestOperations.Result result = results.get(i);
+            log.info("{} exited with code: {} ({}).",
+                    new Object[] { batch.get(i), result.getExitCode(), result.getOutput() });
          }
 
-         return new VmRunProgramOutput(stdout, stderr);
+         GuestOperations.Result runResult = results.get(run);
+         int exitCode = runResult.getExitCode();
+         log.info("Run program with output exited with code: {} ({}).",
+                  exitCode, runResult.getOutput());
+         if (exitCode == 255 || exitCode == -1) {
+            /*
+             * A non-0 exitCode could be:
+             *
+             * - the VMRUN was able to login the guest and start the command
+             * in the guest OS, but the command itself returned non-zero
+             * (not necessary an error). In this case, VMRUN returns the
+             * command's exitCode as is but not its stderr error. User
+             * should retrieve the command's from guest stderr. In this case,
+             * We should defer the exception till the error detail is
+             * retrieved from guest's stderr.
+             *
+             * - the VMRUN failed to login into the guest (due to VC access
+             * failure or guest login failure). In this case, VMRUN returns
+             * 255 (or -1) and has the error write to stdout. In this case,
+             * user should retrieve the VMRUN's error message from host
+             * stdout. We can simply raise the exception (with the error
+             * just retrieved from the host's stdout) here in this case.
+             */
+            throw new VirtualMachineException(String.format(
+               "Run program with output exited with code: %d (%s).",
+               exitCode, runResult.getOutput()));
+         }
+         check("Download file", results.get(run + 1));
+
+         // Split the combined output back into stdout and stderr.
+         final OutputRingBuffer stdout = new OutputRingBuffer(MAX_PROGRAM_OUTPUT);
+         final OutputRingBuffer stderr = new OutputRingBuffer(MAX_PROGRAM_OUTPUT);
+         Reader reader = new InputStreamReader(new FileInputStream(tempFile),
+                 Charsets.US_ASCII /* XXX: What do we need to support here? */);
+         try {
+            StreamingProcess.copyLines(reader, StreamingProcess.DEFAULT_MAX_LINE_LENGTH,
+                    new StreamingProcess.LineSink() {
+                       private StreamingProcess.LineSink target = stdout;
+
+                       @Override
+                       public void line(String line) {
+                          if (target == stdout && line.endsWith(VmRunCommandBuilder.STDERR_MARKER)) {
+                             // Output that didn't end with a newline is followed directly by the marker.
+                             String rest = line.substring(0,
+                                     line.length() - VmRunCommandBuilder.STDERR_MARKER.length()).trim();
+                             if (rest.length() > 0) {
+                                stdout.line(rest);
+                             }
+                             target = stderr;
+                          } else {
+                             target.line(line);
+                          }
+                       }
+                    });
+         } finally {
+            Closeables.closeQuietly(reader);
+         }
+
+         String stderrText = stderr.toString();
+         if (exitCode != 0 && StringUtils.isNotEmpty(stderrText)) {
+            stderrText = stderrText.replace("\n\n", "\n");
+            throw new IOException(stderrText);
+         }
+
+         return new VmRunProgramOutput(stdout.toString(), stderrText);
       } finally {
          tempFile.delete();
       }
@@ -424,21 +521,7 @@ public class GuestCommands {
     */
    public void runScriptInGuest(RunProgramOptions runopts, String shell, String command)
            throws IOException {
-      List<String> cmd = vmRun.runScriptInGuest(runopts, shell, command);
-
-      // Run command
-      RunCommand runCommand = new RunCommand(cmd) {
-         @Override
-         protected void handleExit(int exitCode) {
-            log.info("Run script in guest exited with code: {} ({}).", exitCode, stdout);
-            if (exitCode != 0) {
-               throw new VirtualMachineException(String.format(
-                       "Run script in guest exited with code: %d (%s).", exitCode, stdout));
-            }
-         }
-      };
-
-      runCommand.run();
+      check("Run script in guest", operations().execute(Operation.runScript(runopts, shell, command)));
    }
 
    /**
@@ -447,20 +530,6 @@ public class GuestCommands {
     * @param dest
     */
    public void createDirectory(String dest) throws IOException {
-      List<String> cmd = vmRun.createDirectory(dest);
-
-      // Run command
-      RunCommand runCommand = new RunCommand(cmd) {
-         @Override
-         protected void handleExit(int exitCode) {
-            log.info("Create directory in guest exited with code: {} ({}).", exitCode, stdout);
-            if (exitCode != 0) {
-               throw new VirtualMachineException(String.format(
-                       "Create directory in guest exited with code: %d (%s).", exitCode, stdout));
-            }
-         }
-      };
-
-      runCommand.run();
+      check("Create directory in guest", operations().execute(Operation.createDirectory(dest)));
    }
 }
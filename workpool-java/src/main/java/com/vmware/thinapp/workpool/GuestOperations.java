@@ -0,0 +1,178 @@
+/* ***********************************************************************
+ * VMware ThinApp Factory
+ * Copyright (c) 2009-2013 VMware, Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ***********************************************************************/
+
+package com.vmware.thinapp.workpool;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import com.vmware.thinapp.workpool.VmRunCommandBuilder.RunProgramOptions;
+
+/**
+ * File transfers and process launches inside the guest of one VM.
+ *
+ * Operations are submitted in batches so that a backend which keeps a
+ * session open to the guest can perform a whole batch in one round trip.
+ * Every operation of a batch is performed, in order, whatever the outcome
+ * of the ones before it.
+ */
+public abstract class GuestOperations {
+   /**
+    * One guest operation.
+    */
+   public static class Operation {
+      public enum Type {
+         upload,
+         download,
+         runProgram,
+         runScript,
+         createDirectory,
+         listRunningVMs
+      }
+
+      private final Type type;
+      private final RunProgramOptions options;
+      private final List<String> args;
+
+      private Operation(Type type, RunProgramOptions options, String... args) {
+         this.type = type;
+         this.options = options;
+         this.args = Collections.unmodifiableList(Arrays.asList(args));
+      }
+
+      /**
+       * Copy a file from the host to the guest.
+       */
+      public static Operation upload(String hostSource, String guestDest) {
+         return new Operation(Type.upload, null, hostSource, guestDest);
+      }
+
+      /**
+       * Copy a file from the guest to the host.
+       */
+      public static Operation download(String guestSource, String hostDest) {
+         return new Operation(Type.download, null, guestSource, hostDest);
+      }
+
+      /**
+       * Run a program; the first argument is the program path.
+       */
+      public static Operation runProgram(RunProgramOptions options, String guestPath, String... args) {
+         String[] all = new String[args.length + 1];
+         all[0] = guestPath;
+         System.arraycopy(args, 0, all, 1, args.length);
+         return new Operation(Type.runProgram, options, all);
+      }
+
+      /**
+       * Run a script with the given shell, or cmd.exe if shell is empty.
+       */
+      public static Operation runScript(RunProgramOptions options, String shell, String script) {
+         return new Operation(Type.runScript, options, shell, script);
+      }
+
+      public static Operation createDirectory(String guestPath) {
+         return new Operation(Type.createDirectory, null, guestPath);
+      }
+
+      /**
+       * List the running VMs of the host; not a guest operation, but vmrun
+       * has always been used for it.
+       */
+      public static Operation listRunningVMs() {
+         return new Operation(Type.listRunningVMs, null);
+      }
+
+      public Type getType() {
+         return type;
+      }
+
+      /**
+       * @return run options of runProgram and runScript, null otherwise
+       */
+      public RunProgramOptions getOptions() {
+         return options;
+      }
+
+      public List<String> getArgs() {
+         return args;
+      }
+
+      public String getArg(int index) {
+         return args.get(index);
+      }
+
+      /**
+       * @return whether the operation launches a guest process
+       */
+      public boolean isRun() {
+         return type == Type.runProgram || type == Type.runScript;
+      }
+
+      @Override
+      public String toString() {
+         // Arguments may carry passwords and scripts, so leave them out.
+         return type.name();
+      }
+   }
+
+   /**
+    * Outcome of one operation.
+    */
+   public static class Result {
+      private final int exitCode;
+      private final String output;
+
+      public Result(int exitCode, String output) {
+         this.exitCode = exitCode;
+         this.output = (output == null) ? "" : output;
+      }
+
+      /**
+       * @return exit code of the program for runs, 0 for other operations
+       * that succeeded; -1 or 255 if the operation could not be performed
+       */
+      public int getExitCode() {
+         return exitCode;
+      }
+
+      /**
+       * @return diagnostic output of the operation, not of the guest program
+       */
+      public String getOutput() {
+         return output;
+      }
+   }
+
+   /**
+    * Perform a batch of operations.
+    *
+    * @param operations operations to perform, in order
+    * @return a result for each operation, in the same order
+    * @throws IOException if the batch could not be performed at all
+    */
+   public abstract List<Result> execute(List<Operation> operations) throws IOException;
+
+   /**
+    * Perform a single operation.
+    */
+   public Result execute(Operation operation) throws IOException {
+      return execute(Collections.singletonList(operation)).get(0);
+   }
+}
@@ -0,0 +1,75 @@
+/* ***********************************************************************
+ * VMware ThinApp Factory
+ * Copyright (c) 2009-2013 VMware, Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ***********************************************************************/
+
+package com.vmware.thinapp.workpool;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import org.springframework.util.StringUtils;
+
+import com.vmware.thinapp.common.workpool.dto.InstanceInfo;
+import com.vmware.thinapp.common.workpool.dto.VCConfig;
+
+/**
+ * Picks the guest operations backend for a VM: a fake guest when
+ * guest.fakeRoot is set, the guest-operations workers when they are
+ * configured, and vmrun otherwise.
+ */
+@Service
+public class GuestOperationsFactory {
+   @Autowired
+   private ProcessMonitorService processMonitor;
+
+   @Autowired
+   private ScriptWorkers scriptWorkers;
+
+   @Value("#{workpoolProperties['guest.commandTimeoutSeconds'] ?: 0}")
+   private long commandTimeoutSeconds;
+
+   @Value("#{workpoolProperties['guest.fakeRoot'] ?: ''}")
+   private String fakeRoot;
+
+   /** VC hosts the workers found don't support guest operations */
+   private final Set<String> unsupportedHosts =
+           Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+   /**
+    * @param vcConfig VC the VM is in
+    * @param vmInfo VM and guest credentials
+    * @param commandId ID to register guest processes under, for cancelling
+    * @return guest operations for the VM
+    */
+   public GuestOperations create(VCConfig vcConfig, InstanceInfo vmInfo, Long commandId) {
+      if (StringUtils.hasText(fakeRoot)) {
+         return new FakeGuestOperations(new File(fakeRoot, vmInfo.getMoid()));
+      }
+      GuestOperations vmRun = new VmRunGuestOperations(
+              vcConfig, vmInfo, commandId, processMonitor, commandTimeoutSeconds);
+      ScriptWorkerPool pool = scriptWorkers.getGuestPool();
+      if (pool == null) {
+         return vmRun;
+      }
+      return new WorkerGuestOperations(pool, vcConfig, vmInfo, commandId, processMonitor,
+              commandTimeoutSeconds, vmRun, unsupportedHosts);
+   }
+}
@@ -0,0 +1,125 @@
+/* ***********************************************************************
+ * VMware ThinApp Factory
+ * Copyright (c) 2009-2013 VMware, Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ***********************************************************************/
+
+package com.vmware.thinapp.workpool;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * What vCenter last reported about the VM backing an instance, and where it
+ * lives.
+ */
+public class InstanceHealth {
+   /**
+    * VM power states, as reported by vCenter.
+    */
+   public enum PowerState {
+      poweredOn,
+      poweredOff,
+      suspended,
+      unknown
+   }
+
+   private final String moid;
+   private final boolean exists;
+   private final PowerState powerState;
+   private final boolean toolsRunning;
+   private final String host;
+   private final List<String> datastores;
+
+   public InstanceHealth(String moid, boolean exists, PowerState powerState, boolean toolsRunning) {
+      this(moid, exists, powerState, toolsRunning, null, Collections.<String>emptyList());
+   }
+
+   /**
+    * @param moid VM moid
+    * @param exists whether the VM exists
+    * @param powerState VM power state
+    * @param toolsRunning whether guest tools are running
+    * @param host moid of the VM's host, or null if unknown
+    * @param datastores moids of the VM's datastores
+    */
+   public InstanceHealth(String moid, boolean exists, PowerState powerState, boolean toolsRunning,
+                         String host, List<String> datastores) {
+      this.moid = moid;
+      this.exists = exists;
+      this.powerState = powerState;
+      this.toolsRunning = toolsRunning;
+      this.host = host;
+      this.datastores = Collections.unmodifiableList(datastores);
+   }
+
+   /**
+    * Health of a VM that no longer exists.
+    *
+    * @param moid
+    * @return
+    */
+   public static InstanceHealth missing(String moid) {
+      return new InstanceHealth(moid, false, PowerState.unknown, false);
+   }
+
+   /**
+    * Health of a VM that could not be checked; it is assumed to exist so
+    * that whoever uses it handles any problem.
+    *
+    * @param moid
+    * @return
+    */
+   public static InstanceHealth unknown(String moid) {
+      return new InstanceHealth(moid, true, PowerState.unknown, false);
+   }
+
+   public String getMoid() {
+      return moid;
+   }
+
+   public boolean exists() {
+      return exists;
+   }
+
+   public PowerState getPowerState() {
+      return powerState;
+   }
+
+   public boolean isToolsRunning() {
+      return toolsRunning;
+   }
+
+   public String getHost() {
+      return host;
+   }
+
+   public List<String> getDatastores() {
+      return datastores;
+   }
+
+   /**
+    * @return true if the VM is powered on with guest tools running, so it
+    *         can be used without waiting for it to boot
+    */
+   public boolean isReady() {
+      return exists && powerState == PowerState.poweredOn && toolsRunning;
+   }
+
+   @Override
+   public String toString() {
+      return String.format("%s(exists=%s, power=%s, tools=%s)",
+              moid, exists, powerState, toolsRunning);
+   }
+}
@@ -0,0 +1,132 @@
+/* ***********************************************************************
+ * VMware ThinApp Factory
+ * Copyright (c) 2009-2013 VMware, Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ***********************************************************************/
+
+package com.vmware.thinapp.workpool;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.google.common.base.Function;
+
+/**
+ * Caches the health of a workpool's VMs so that leasing to many waiters
+ * needs a single vCenter call rather than one per waiter and instance.
+ *
+ * A snapshot is fetched for all requested VMs at once, and reused until it
+ * is older than the maximum age or a VM it doesn't know about is requested.
+ *
+ * Not thread safe: each cache belongs to a single workpool actor.
+ */
+public class InstanceHealthCache {
+   private final InstanceHealthSource source;
+   private final long maxAgeMs;
+
+   private Map<String, InstanceHealth> snapshot = new HashMap<String, InstanceHealth>();
+   private long fetched = -1;
+   private long fetchCount;
+
+   /**
+    * @param source where to fetch VM health from
+    * @param maxAgeMs how long a snapshot can be reused
+    */
+   public InstanceHealthCache(InstanceHealthSource source, long maxAgeMs) {
+      this.source = source;
+      this.maxAgeMs = maxAgeMs;
+   }
+
+   /**
+    * Get the health of the given VMs, fetching all of them at once unless
+    * the current snapshot covers them and is recent enough.
+    *
+    * @param moids VM moids
+    * @param now current time in milliseconds
+    * @return health of every requested VM, keyed by moid
+    */
+   public Map<String, InstanceHealth> get(Collection<String> moids, long now) {
+      if (fetched < 0 || now - fetched > maxAgeMs || !snapshot.keySet().containsAll(moids)) {
+         Set<String> request = new LinkedHashSet<String>(moids);
+         snapshot = new HashMap<String, InstanceHealth>(source.fetch(request));
+         fetched = now;
+         fetchCount++;
+      }
+
+      Map<String, InstanceHealth> result = new HashMap<String, InstanceHealth>();
+      for (String moid : moids) {
+         InstanceHealth health = snapshot.get(moid);
+         result.put(moid, (health == null) ? InstanceHealth.unknown(moid) : health);
+      }
+      return result;
+   }
+
+   /**
+    * Sort out which of the given instances can be leased: those whose VM
+    * still exists, with ready (powered on, tools running) ones first.
+    *
+    * @param instances candidate instances, in order of preference
+    * @param moidOf gives the VM moid of an instance
+    * @param now current time in milliseconds
+    * @param missing receives the instances whose VM no longer exists
+    * @return the usable instances
+    */
+   public <T> List<T> usable(Collection<T> instances, Function<? super T, String> moidOf,
+                             long now, Collection<? super T> missing) {
+      List<String> moids = new ArrayList<String>(instances.size());
+      for (T instance : instances) {
+         String moid = moidOf.apply(instance);
+         if (moid != null) {
+            moids.add(moid);
+         }
+      }
+      Map<String, InstanceHealth> health = get(moids, now);
+
+      List<T> ready = new ArrayList<T>();
+      List<T> notReady = new ArrayList<T>();
+      for (T instance : instances) {
+         String moid = moidOf.apply(instance);
+         InstanceHealth h = (moid == null) ? InstanceHealth.unknown(null) : health.get(moid);
+         if (!h.exists()) {
+            missing.add(instance);
+         } else if (h.isReady()) {
+            ready.add(instance);
+         } else {
+            notReady.add(instance);
+         }
+      }
+
+      ready.addAll(notReady);
+      return ready;
+   }
+
+   /**
+    * Forget the current snapshot, so the next request fetches a new one.
+    */
+   public void invalidate() {
+      fetched = -1;
+   }
+
+   /**
+    * @return number of times health was fetched from the source
+    */
+   public long getFetchCount() {
+      return fetchCount;
+   }
+}
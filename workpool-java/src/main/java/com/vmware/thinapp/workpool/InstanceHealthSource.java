@@ -0,0 +1,34 @@
+/* ***********************************************************************
+ * VMware ThinApp Factory
+ * Copyright (c) 2009-2013 VMware, Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ***********************************************************************/
+
+package com.vmware.thinapp.workpool;
+
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * Looks up the health of a set of VMs.
+ */
+public interface InstanceHealthSource {
+   /**
+    * Fetch the health of the given VMs, ideally in a single call.
+    *
+    * @param moids VM moids to look up
+    * @return health of every requested VM, keyed by moid
+    */
+   Map<String, InstanceHealth> fetch(Collection<String> moids);
+}
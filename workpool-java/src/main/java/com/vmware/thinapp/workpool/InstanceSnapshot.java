@@ -0,0 +1,82 @@
+/* ***********************************************************************
+ * VMware ThinApp Factory
+ * Copyright (c) 2009-2013 VMware, Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ***********************************************************************/
+
+package com.vmware.thinapp.workpool;
+
+import com.vmware.thinapp.workpool.model.InstanceModel;
+
+/**
+ * Immutable copy of an {@link InstanceModel} as part of a
+ * {@link WorkpoolSnapshot}.
+ */
+public class InstanceSnapshot {
+   private final long id;
+   private final String moid;
+   private final String guestUsername;
+   private final String guestPassword;
+   private final boolean autologon;
+   private final InstanceModel.State state;
+   private final String lastError;
+
+   /**
+    * Copy an instance.  Must be called while its session is open.
+    *
+    * @param model instance to copy
+    */
+   public InstanceSnapshot(InstanceModel model) {
+      this.id = model.getId();
+      this.moid = model.getMoid();
+      this.guestUsername = model.getGuestUsername();
+      this.guestPassword = model.getGuestPassword();
+      this.autologon = model.getAutologon();
+      this.state = model.getState();
+      this.lastError = model.getLastError();
+   }
+
+   public long getId() {
+      return id;
+   }
+
+   public String getMoid() {
+      return moid;
+   }
+
+   public String getGuestUsername() {
+      return guestUsername;
+   }
+
+   public String getGuestPassword() {
+      return guestPassword;
+   }
+
+   public boolean getAutologon() {
+      return autologon;
+   }
+
+   public InstanceModel.State getState() {
+      return state;
+   }
+
+   public String getLastError() {
+      return lastError;
+   }
+
+   @Override
+   public String toString() {
+      return "InstanceSnapshot[id=" + id + ", moid=" + moid + ", state=" + state + "]";
+   }
+}
@@ -0,0 +1,154 @@
+/* ***********************************************************************
+ * VMware ThinApp Factory
+ * Copyright (c) 2009-2013 VMware, Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ***********************************************************************/
+
+package com.vmware.thinapp.workpool;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Plans one processing pass of a workpool: which waiters are given a free
+ * instance, how many instances to start for the waiters that are left, and
+ * how many spares to start on top of that as asked by the warm pool policy.
+ *
+ * The planner also keeps the policy's hit and miss accounting: a waiter
+ * that couldn't be given a free instance on the first pass that looked at
+ * it is a miss, whenever it is eventually served.
+ *
+ * Not thread safe: each planner belongs to a single workpool actor.
+ *
+ * @param <W> type of the waiters
+ */
+public class LeasePlanner<W> {
+   private final WarmPoolPolicy policy;
+   /** Waiters that couldn't be given a free instance when first seen */
+   private final Set<W> missed = new HashSet<W>();
+
+   public LeasePlanner(WarmPoolPolicy policy) {
+      this.policy = policy;
+   }
+
+   public WarmPoolPolicy getPolicy() {
+      return policy;
+   }
+
+   /**
+    * Plan a pass over the workpool.
+    *
+    * @param now current time in milliseconds
+    * @param waiters waiters in the order they are served
+    * @param free instances available for leasing
+    * @param instancing instances being created
+    * @param total instances in the workpool, in any state
+    * @param maximum maximum number of instances in the workpool
+    * @param growable whether new instances can be created at all
+    * @return what to do in this pass
+    */
+   public Plan<W> plan(long now, Collection<W> waiters, int free, int instancing, int total,
+                       int maximum, boolean growable) {
+      List<W> leased = new ArrayList<W>();
+      int freeLeft = free;
+      int instancingLeft = instancing;
+      int forWaiters = 0;
+
+      for (W waiter : waiters) {
+         if (freeLeft > 0) {
+            freeLeft--;
+            leased.add(waiter);
+            policy.leased(!missed.remove(waiter));
+            continue;
+         }
+
+         missed.add(waiter);
+         // Instances already being created are taken by the oldest waiters.
+         if (instancingLeft > 0) {
+            instancingLeft--;
+         } else if (growable && total + forWaiters < maximum) {
+            forWaiters++;
+         }
+      }
+
+      int spares = 0;
+      if (growable) {
+         spares = policy.sparesToAdd(
+                 now,
+                 freeLeft,
+                 instancing + forWaiters,
+                 waiters.size() - leased.size(),
+                 total + forWaiters,
+                 maximum);
+      } else {
+         policy.observe(now, freeLeft);
+      }
+      return new Plan<W>(leased, forWaiters, spares);
+   }
+
+   /**
+    * Forget the waiters seen so far, after they have all been failed.
+    */
+   public void forgetWaiters() {
+      missed.clear();
+   }
+
+   /**
+    * The outcome of planning a pass.
+    *
+    * @param <W> type of the waiters
+    */
+   public static class Plan<W> {
+      private final List<W> leased;
+      private final int forWaiters;
+      private final int spares;
+
+      Plan(List<W> leased, int forWaiters, int spares) {
+         this.leased = Collections.unmodifiableList(leased);
+         this.forWaiters = forWaiters;
+         this.spares = spares;
+      }
+
+      /**
+       * @return waiters to give a free instance, in order
+       */
+      public List<W> getLeased() {
+         return leased;
+      }
+
+      /**
+       * @return number of instances to create for waiters
+       */
+      public int getForWaiters() {
+         return forWaiters;
+      }
+
+      /**
+       * @return number of instances to create as spares
+       */
+      public int getSpares() {
+         return spares;
+      }
+
+      @Override
+      public String toString() {
+         return String.format("leased=%d forWaiters=%d spares=%d",
+                 leased.size(), forWaiters, spares);
+      }
+   }
+}
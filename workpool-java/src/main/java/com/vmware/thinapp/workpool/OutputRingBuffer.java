@@ -0,0 +1,80 @@
+/* ***********************************************************************
+ * VMware ThinApp Factory
+ * Copyright (c) 2009-2013 VMware, Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ***********************************************************************/
+
+package com.vmware.thinapp.workpool;
+
+import java.util.LinkedList;
+
+/**
+ * Keeps the last lines of a command's output, up to a number of characters.
+ * Older lines are dropped as newer ones arrive, and counted so that
+ * toString() can say how many are missing.
+ */
+public class OutputRingBuffer implements StreamingProcess.LineSink {
+   private final int maxChars;
+   private final LinkedList<String> lines = new LinkedList<String>();
+   private int chars;
+   private long total;
+
+   /**
+    * @param maxChars characters to keep, counting one for each line break
+    */
+   public OutputRingBuffer(int maxChars) {
+      this.maxChars = maxChars;
+   }
+
+   @Override
+   public synchronized void line(String line) {
+      lines.addLast(line);
+      chars += line.length() + 1;
+      total++;
+      while (chars > maxChars && lines.size() > 1) {
+         chars -= lines.removeFirst().length() + 1;
+      }
+   }
+
+   /**
+    * @return number of lines received
+    */
+   public synchronized long getLineCount() {
+      return total;
+   }
+
+   /**
+    * @return number of lines received but no longer kept
+    */
+   public synchronized long getDroppedLineCount() {
+      return total - lines.size();
+   }
+
+   /**
+    * @return the lines kept, each followed by a newline, after a note on
+    * how many lines were dropped if any
+    */
+   @Override
+   public synchronized String toString() {
+      StringBuilder sb = new StringBuilder(chars + 40);
+      long dropped = total - lines.size();
+      if (dropped > 0) {
+         sb.append("[").append(dropped).append(" earlier lines omitted]\n");
+      }
+      for (String line : lines) {
+         sb.append(line).append('\n');
+      }
+      return sb.toString();
+   }
+}
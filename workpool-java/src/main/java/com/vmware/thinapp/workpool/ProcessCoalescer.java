@@ -0,0 +1,196 @@
+/* ***********************************************************************
+ * VMware ThinApp Factory
+ * Copyright (c) 2009-2013 VMware, Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ***********************************************************************/
+
+package com.vmware.thinapp.workpool;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Collapses any number of requests to process a workpool into a single
+ * pass of its state machine.
+ *
+ * A request only marks the workpool dirty.  The first request after a pass
+ * schedules the next one, normally by sending the actor a message, and
+ * requests that arrive before that message is handled ride along with it.
+ * A request made during a pass schedules one more pass.
+ *
+ * Also keeps how long passes take and how many requests and waiters were
+ * queued up for each one.
+ */
+public class ProcessCoalescer {
+   private final Runnable scheduler;
+
+   /** Requests since the last pass started */
+   private int pending;
+   /** Whether a pass has been scheduled but not yet run */
+   private boolean scheduled;
+
+   private long requests;
+   private long passes;
+   private int maxRequestsPerPass;
+   private int maxQueueDepth;
+   private long totalPassNanos;
+   private long maxPassNanos;
+   private long lastPassNanos;
+
+   /**
+    * @param scheduler arranges for {@link #runPending} to be called soon;
+    *                  must not run the pass itself
+    */
+   public ProcessCoalescer(Runnable scheduler) {
+      this.scheduler = scheduler;
+   }
+
+   /**
+    * Ask for a pass, scheduling one unless one is already scheduled.
+    */
+   public void request() {
+      boolean schedule;
+      synchronized (this) {
+         requests++;
+         pending++;
+         schedule = !scheduled;
+         scheduled = true;
+      }
+      if (schedule) {
+         scheduler.run();
+      }
+   }
+
+   /**
+    * Run one pass for all the requests made since the last one, if any.
+    *
+    * @param pass the state machine pass
+    * @param queueDepth items waiting on the workpool when the pass starts
+    * @return true if the pass ran
+    */
+   public boolean runPending(Runnable pass, int queueDepth) {
+      int batch;
+      synchronized (this) {
+         scheduled = false;
+         batch = pending;
+         pending = 0;
+      }
+      if (batch == 0) {
+         return false;
+      }
+
+      long start = System.nanoTime();
+      try {
+         pass.run();
+      } finally {
+         record(batch, queueDepth, System.nanoTime() - start);
+      }
+      return true;
+   }
+
+   private synchronized void record(int batch, int queueDepth, long nanos) {
+      passes++;
+      maxRequestsPerPass = Math.max(maxRequestsPerPass, batch);
+      maxQueueDepth = Math.max(maxQueueDepth, queueDepth);
+      totalPassNanos += nanos;
+      maxPassNanos = Math.max(maxPassNanos, nanos);
+      lastPassNanos = nanos;
+   }
+
+   /**
+    * @return a snapshot of the processing metrics
+    */
+   public synchronized Stats getStats() {
+      return new Stats(requests, passes, maxRequestsPerPass, maxQueueDepth,
+              TimeUnit.NANOSECONDS.toMicros(totalPassNanos),
+              TimeUnit.NANOSECONDS.toMicros(maxPassNanos),
+              TimeUnit.NANOSECONDS.toMicros(lastPassNanos));
+   }
+
+   /**
+    * Processing metrics at a point in time.
+    */
+   public static class Stats {
+      private final long requests;
+      private final long passes;
+      private final int maxRequestsPerPass;
+      private final int maxQueueDepth;
+      private final long totalPassMicros;
+      private final long maxPassMicros;
+      private final long lastPassMicros;
+
+      public Stats(long requests, long passes, int maxRequestsPerPass, int maxQueueDepth,
+                   long totalPassMicros, long maxPassMicros, long lastPassMicros) {
+         this.requests = requests;
+         this.passes = passes;
+         this.maxRequestsPerPass = maxRequestsPerPass;
+         this.maxQueueDepth = maxQueueDepth;
+         this.totalPassMicros = totalPassMicros;
+         this.maxPassMicros = maxPassMicros;
+         this.lastPassMicros = lastPassMicros;
+      }
+
+      public long getRequests() {
+         return requests;
+      }
+
+      public long getPasses() {
+         return passes;
+      }
+
+      /**
+       * @return requests that were served by another request's pass
+       */
+      public long getCoalesced() {
+         return requests - passes;
+      }
+
+      public int getMaxRequestsPerPass() {
+         return maxRequestsPerPass;
+      }
+
+      /**
+       * @return most items seen waiting on the workpool at the start of a pass
+       */
+      public int getMaxQueueDepth() {
+         return maxQueueDepth;
+      }
+
+      public long getTotalPassMicros() {
+         return totalPassMicros;
+      }
+
+      /**
+       * @return mean pass duration, or 0 if there were no passes
+       */
+      public long getAveragePassMicros() {
+         return (passes == 0) ? 0 : totalPassMicros / passes;
+      }
+
+      public long getMaxPassMicros() {
+         return maxPassMicros;
+      }
+
+      public long getLastPassMicros() {
+         return lastPassMicros;
+      }
+
+      @Override
+      public String toString() {
+         return String.format("requests=%d passes=%d maxRequestsPerPass=%d maxQueueDepth=%d " +
+                 "avgPassMicros=%d maxPassMicros=%d",
+                 requests, passes, maxRequestsPerPass, maxQueueDepth,
+                 getAveragePassMicros(), maxPassMicros);
+      }
+   }
+}
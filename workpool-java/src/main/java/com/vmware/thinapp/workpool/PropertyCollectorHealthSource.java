@@ -0,0 +1,224 @@
+/* ***********************************************************************
+ * VMware ThinApp Factory
+ * Copyright (c) 2009-2013 VMware, Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ***********************************************************************/
+
+package com.vmware.thinapp.workpool;
+
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Supplier;
+import com.vmware.vim25.ArrayOfManagedObjectReference;
+import com.vmware.vim25.DynamicProperty;
+import com.vmware.vim25.ManagedObjectNotFound;
+import com.vmware.vim25.ManagedObjectReference;
+import com.vmware.vim25.ObjectContent;
+import com.vmware.vim25.ObjectSpec;
+import com.vmware.vim25.PropertyFilterSpec;
+import com.vmware.vim25.PropertySpec;
+import com.vmware.vim25.VirtualMachineConnectionState;
+import com.vmware.vim25.VirtualMachinePowerState;
+import com.vmware.vim25.mo.PropertyCollector;
+
+/**
+ * Fetches the health and placement of many VMs with a single
+ * PropertyCollector retrieval, instead of one round trip per VM.
+ *
+ * vCenter fails the whole retrieval if one of the VMs no longer exists, so
+ * each VM that is found missing is removed and the rest retried.  VMs whose
+ * host is disconnected still exist but their power state can't be trusted,
+ * so it is reported as unknown.  If VC can't be reached at all, every VM is
+ * reported as unknown.
+ */
+public class PropertyCollectorHealthSource implements InstanceHealthSource {
+   private static final Logger log = LoggerFactory.getLogger(PropertyCollectorHealthSource.class);
+
+   private static final String POWER_STATE = "runtime.powerState";
+   private static final String CONNECTION_STATE = "runtime.connectionState";
+   private static final String TOOLS_STATUS = "guest.toolsRunningStatus";
+   private static final String TOOLS_RUNNING = "guestToolsRunning";
+   private static final String HOST = "runtime.host";
+   private static final String DATASTORES = "datastore";
+
+   private final Supplier<PropertyCollector> collectors;
+
+   public PropertyCollectorHealthSource(final VCManager vcManager) {
+      this(new Supplier<PropertyCollector>() {
+         @Override
+         public PropertyCollector get() {
+            // XXX: Blocking.
+            return vcManager.getConnection().get().get().getPropertyCollector();
+         }
+      });
+   }
+
+   /**
+    * @param collectors supplies the property collector of the current VC
+    *                   connection; may throw if there is none
+    */
+   public PropertyCollectorHealthSource(Supplier<PropertyCollector> collectors) {
+      this.collectors = collectors;
+   }
+
+   @Override
+   public Map<String, InstanceHealth> fetch(Collection<String> moids) {
+      Map<String, InstanceHealth> result = new HashMap<String, InstanceHealth>();
+      if (moids.isEmpty()) {
+         return result;
+      }
+
+      Set<String> remaining = new LinkedHashSet<String>(moids);
+
+      while (!remaining.isEmpty()) {
+         try {
+            ObjectContent[] contents = collectors.get().retrieveProperties(
+                    new PropertyFilterSpec[] { createFilterSpec(remaining) });
+            if (contents != null) {
+               for (ObjectContent content : contents) {
+                  InstanceHealth health = toHealth(content);
+                  result.put(health.getMoid(), health);
+               }
+            }
+            for (String moid : remaining) {
+               if (!result.containsKey(moid)) {
+                  result.put(moid, InstanceHealth.missing(moid));
+               }
+            }
+            return result;
+         } catch (RemoteException e) {
+            String gone = missingMoid(e);
+            if (gone == null || !remaining.remove(gone)) {
+               return unknown(result, remaining, e);
+            }
+            log.debug("VM {} not found in VC.", gone);
+            result.put(gone, InstanceHealth.missing(gone));
+         } catch (RuntimeException e) {
+            String gone = missingMoid(e.getCause());
+            if (gone == null || !remaining.remove(gone)) {
+               return unknown(result, remaining, e);
+            }
+            log.debug("VM {} not found in VC.", gone);
+            result.put(gone, InstanceHealth.missing(gone));
+         }
+      }
+
+      return result;
+   }
+
+   /**
+    * Like VirtualMachineHelper.isExistent(), leave unexpected failures to
+    * whoever uses the VM.
+    */
+   private static Map<String, InstanceHealth> unknown(
+           Map<String, InstanceHealth> result, Set<String> remaining, Exception e) {
+      log.warn("Unable to check VM health in VC.", e);
+      for (String moid : remaining) {
+         result.put(moid, InstanceHealth.unknown(moid));
+      }
+      return result;
+   }
+
+   private static String missingMoid(Throwable t) {
+      if (t instanceof ManagedObjectNotFound) {
+         ManagedObjectReference obj = ((ManagedObjectNotFound) t).getObj();
+         return (obj == null) ? null : obj.getVal();
+      }
+      return null;
+   }
+
+   private static PropertyFilterSpec createFilterSpec(Collection<String> moids) {
+      PropertySpec propSpec = new PropertySpec();
+      propSpec.setType("VirtualMachine");
+      propSpec.setAll(Boolean.FALSE);
+      propSpec.setPathSet(new String[] {
+              POWER_STATE, CONNECTION_STATE, TOOLS_STATUS, HOST, DATASTORES });
+
+      ObjectSpec[] objSpecs = new ObjectSpec[moids.size()];
+      int i = 0;
+      for (String moid : moids) {
+         ManagedObjectReference ref = new ManagedObjectReference();
+         ref.setType("VirtualMachine");
+         ref.setVal(moid);
+
+         ObjectSpec objSpec = new ObjectSpec();
+         objSpec.setObj(ref);
+         objSpec.setSkip(Boolean.FALSE);
+         objSpecs[i++] = objSpec;
+      }
+
+      PropertyFilterSpec filterSpec = new PropertyFilterSpec();
+      filterSpec.setPropSet(new PropertySpec[] { propSpec });
+      filterSpec.setObjectSet(objSpecs);
+      return filterSpec;
+   }
+
+   private static InstanceHealth toHealth(ObjectContent content) {
+      InstanceHealth.PowerState powerState = InstanceHealth.PowerState.unknown;
+      boolean connected = true;
+      boolean toolsRunning = false;
+      String host = null;
+      List<String> datastores = new ArrayList<String>();
+
+      if (content.getPropSet() != null) {
+         for (DynamicProperty prop : content.getPropSet()) {
+            if (POWER_STATE.equals(prop.getName()) && prop.getVal() instanceof VirtualMachinePowerState) {
+               powerState = InstanceHealth.PowerState.valueOf(
+                       ((VirtualMachinePowerState) prop.getVal()).name());
+            } else if (CONNECTION_STATE.equals(prop.getName())) {
+               connected = prop.getVal() == VirtualMachineConnectionState.connected;
+            } else if (TOOLS_STATUS.equals(prop.getName())) {
+               toolsRunning = TOOLS_RUNNING.equals(prop.getVal());
+            } else if (HOST.equals(prop.getName()) && prop.getVal() instanceof ManagedObjectReference) {
+               host = ((ManagedObjectReference) prop.getVal()).getVal();
+            } else if (DATASTORES.equals(prop.getName())) {
+               for (ManagedObjectReference ref : toRefs(prop.getVal())) {
+                  datastores.add(ref.getVal());
+               }
+            }
+         }
+      }
+
+      if (!connected) {
+         // What VC last heard from the host may be long out of date.
+         powerState = InstanceHealth.PowerState.unknown;
+         toolsRunning = false;
+      }
+      return new InstanceHealth(content.getObj().getVal(), true, powerState, toolsRunning,
+              host, datastores);
+   }
+
+   /**
+    * Array properties come back either as a plain array or wrapped.
+    */
+   private static ManagedObjectReference[] toRefs(Object val) {
+      ManagedObjectReference[] refs = null;
+      if (val instanceof ManagedObjectReference[]) {
+         refs = (ManagedObjectReference[]) val;
+      } else if (val instanceof ArrayOfManagedObjectReference) {
+         refs = ((ArrayOfManagedObjectReference) val).getManagedObjectReference();
+      }
+      return (refs == null) ? new ManagedObjectReference[0] : refs;
+   }
+}
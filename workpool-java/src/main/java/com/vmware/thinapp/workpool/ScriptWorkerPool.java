@@ -0,0 +1,440 @@
+/* ***********************************************************************
+ * VMware ThinApp Factory
+ * Copyright (c) 2009-2013 VMware, Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ***********************************************************************/
+
+package com.vmware.thinapp.workpool;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.codehaus.jackson.map.ObjectReader;
+import org.codehaus.jackson.map.ObjectWriter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Closeables;
+import com.vmware.thinapp.common.util.AfJsonCodecs;
+
+/**
+ * Pool of long-lived helper processes that serve one request at a time, so
+ * each request doesn't pay for starting an interpreter and logging in to VC.
+ *
+ * Requests and responses are single-line JSON objects on the worker's stdin
+ * and stdout:
+ * <pre>
+ *   {"id": 1, "op": "clone", "ini": "..."}
+ *   {"id": 1, "type": "progress", "message": "..."}
+ *   {"id": 1, "type": "result", "moid": "vm-42", "error": ""}
+ * </pre>
+ * Requests may carry other fields and results other values, depending on
+ * the operation.  A worker may send any number of progress messages before
+ * the result.
+ * Anything it writes to stderr is logged.  A worker that exits or breaks
+ * the protocol is thrown away and replaced on the next request.
+ */
+public class ScriptWorkerPool {
+   private static final Logger log = LoggerFactory.getLogger(ScriptWorkerPool.class);
+
+   private static final ObjectWriter writer = AfJsonCodecs.writer(AfJsonCodecs.COMPACT);
+   private static final ObjectReader reader = AfJsonCodecs.reader(AfJsonCodecs.COMPACT, Map.class);
+
+   /**
+    * Starts worker processes.
+    */
+   public interface Launcher {
+      Process launch() throws IOException;
+   }
+
+   /**
+    * Receives the progress messages of a request.
+    */
+   public interface Progress {
+      void message(String message);
+   }
+
+   /**
+    * Outcome of a request: the values of the result message.
+    */
+   public static class Response {
+      private final Map<?, ?> values;
+
+      public Response(Map<?, ?> values) {
+         this.values = values;
+      }
+
+      public Response(String moid, String error) {
+         Map<String, String> map = new HashMap<String, String>();
+         map.put("moid", moid);
+         map.put("error", error);
+         this.values = map;
+      }
+
+      public String getMoid() {
+         return getString("moid");
+      }
+
+      public String getError() {
+         return getString("error");
+      }
+
+      /**
+       * @param key name of a value in the result message
+       * @return the value, or null if there is none
+       */
+      public Object get(String key) {
+         return values.get(key);
+      }
+
+      private String getString(String key) {
+         Object value = values.get(key);
+         return (value == null) ? "" : value.toString();
+      }
+   }
+
+   /**
+    * Usage counters of a pool.
+    */
+   public static class Stats {
+      private final long launched;
+      private final long requests;
+      private final long failures;
+      private final int idle;
+
+      Stats(long launched, long requests, long failures, int idle) {
+         this.launched = launched;
+         this.requests = requests;
+         this.failures = failures;
+         this.idle = idle;
+      }
+
+      /** @return number of worker processes started */
+      public long getLaunched() {
+         return launched;
+      }
+
+      /** @return number of requests sent */
+      public long getRequests() {
+         return requests;
+      }
+
+      /** @return number of workers thrown away because they failed */
+      public long getFailures() {
+         return failures;
+      }
+
+      /** @return number of workers waiting for a request */
+      public int getIdle() {
+         return idle;
+      }
+
+      @Override
+      public String toString() {
+         return String.format("launched=%d requests=%d failures=%d idle=%d",
+                 launched, requests, failures, idle);
+      }
+   }
+
+   /**
+    * A running worker process.
+    */
+   private class Worker {
+      final long number;
+      final Process process;
+      final BufferedReader in;
+      final Writer out;
+
+      Worker(long number, Process process) {
+         this.number = number;
+         this.process = process;
+         this.in = new BufferedReader(new InputStreamReader(process.getInputStream(), Charsets.UTF_8));
+         this.out = new OutputStreamWriter(process.getOutputStream(), Charsets.UTF_8);
+      }
+
+      boolean isAlive() {
+         try {
+            process.exitValue();
+            return false;
+         } catch (IllegalThreadStateException e) {
+            return true;
+         }
+      }
+
+      void destroy() {
+         Closeables.closeQuietly(out);
+         process.destroy();
+      }
+
+      @Override
+      public String toString() {
+         return name + " worker " + number;
+      }
+   }
+
+   private final String name;
+   private final Launcher launcher;
+   private final Semaphore slots;
+   private final LinkedList<Worker> idle = new LinkedList<Worker>();
+   private final AtomicLong launched = new AtomicLong();
+   private final AtomicLong requests = new AtomicLong();
+   private final AtomicLong failures = new AtomicLong();
+   private boolean closed;
+
+   /**
+    * @param name name of the workers, used in log messages
+    * @param launcher starts worker processes
+    * @param maxWorkers maximum number of requests served at once
+    */
+   public ScriptWorkerPool(String name, Launcher launcher, int maxWorkers) {
+      this.name = name;
+      this.launcher = launcher;
+      this.slots = new Semaphore(maxWorkers, true);
+   }
+
+   /**
+    * Start workers ahead of the first requests.
+    *
+    * @param count number of idle workers to have
+    */
+   public void prestart(int count) throws IOException {
+      List<Worker> started = new ArrayList<Worker>();
+      synchronized (this) {
+         count -= idle.size();
+      }
+      for (int i = 0; i < count; i++) {
+         started.add(launch());
+      }
+      for (Worker worker : started) {
+         release(worker);
+      }
+   }
+
+   /**
+    * Send a request carrying an INI to an idle worker.
+    *
+    * @see #call(String, Map, Progress, ProcessMonitorService, Long)
+    */
+   public Response call(String op, String ini, Progress progress)
+           throws IOException, InterruptedException {
+      return call(op, Collections.singletonMap("ini", ini), progress, null, null);
+   }
+
+   /**
+    * Send a request to an idle worker, starting one if none is idle, and
+    * wait for its result.
+    *
+    * @param op operation the worker should perform
+    * @param params other fields of the request
+    * @param progress receives progress messages
+    * @param monitor if not null, the worker is registered with it under
+    * commandId while it serves the request, so that cancelling the command
+    * kills the worker
+    * @param commandId command ID to register the worker under
+    * @return the result the worker sent
+    * @throws IOException if the worker failed before sending a result
+    */
+   public Response call(String op, Map<String, ?> params, Progress progress,
+                        ProcessMonitorService monitor, Long commandId)
+           throws IOException, InterruptedException {
+      slots.acquire();
+      try {
+         long id = requests.incrementAndGet();
+         Map<String, Object> request = new HashMap<String, Object>(params);
+         request.put("id", id);
+         request.put("op", op);
+         String line = writer.writeValueAsString(request);
+
+         Worker worker = acquire();
+         try {
+            send(worker, line);
+         } catch (IOException e) {
+            // The request never got there, so it's safe to retry once.
+            log.info("{} stopped while idle, starting another.", worker);
+            discard(worker);
+            worker = launch();
+            send(worker, line);
+         }
+
+         Response response;
+         if (monitor != null) {
+            monitor.add(commandId, worker.process);
+         }
+         try {
+            response = receive(worker, id, progress);
+         } catch (IOException e) {
+            discard(worker);
+            throw e;
+         } catch (RuntimeException e) {
+            discard(worker);
+            throw e;
+         } finally {
+            if (monitor != null) {
+               monitor.remove(commandId);
+            }
+         }
+         release(worker);
+         return response;
+      } finally {
+         slots.release();
+      }
+   }
+
+   /**
+    * Stop all idle workers.  Workers serving a request are stopped once
+    * they are done.
+    */
+   public void close() {
+      List<Worker> workers;
+      synchronized (this) {
+         closed = true;
+         workers = new ArrayList<Worker>(idle);
+         idle.clear();
+      }
+      for (Worker worker : workers) {
+         worker.destroy();
+      }
+   }
+
+   public synchronized Stats getStats() {
+      return new Stats(launched.get(), requests.get(), failures.get(), idle.size());
+   }
+
+   private Worker acquire() throws IOException {
+      while (true) {
+         Worker worker;
+         synchronized (this) {
+            if (closed) {
+               throw new IOException(name + " workers are closed.");
+            }
+            worker = idle.poll();
+         }
+         if (worker == null) {
+            return launch();
+         }
+         if (worker.isAlive()) {
+            return worker;
+         }
+         log.info("{} exited while idle.", worker);
+         discard(worker);
+      }
+   }
+
+   private void release(Worker worker) {
+      synchronized (this) {
+         if (!closed) {
+            idle.addFirst(worker);
+            return;
+         }
+      }
+      worker.destroy();
+   }
+
+   private void discard(Worker worker) {
+      failures.incrementAndGet();
+      worker.destroy();
+   }
+
+   private Worker launch() throws IOException {
+      final Worker worker = new Worker(launched.incrementAndGet(), launcher.launch());
+      log.debug("Started {}.", worker);
+
+      Thread stderr = new Thread(new Runnable() {
+         @Override
+         public void run() {
+            BufferedReader err = new BufferedReader(
+                    new InputStreamReader(worker.process.getErrorStream(), Charsets.UTF_8));
+            try {
+               String line;
+               while ((line = err.readLine()) != null) {
+                  log.info("{}: {}", worker, line);
+               }
+            } catch (IOException e) {
+               // Worker is gone.
+            } finally {
+               Closeables.closeQuietly(err);
+            }
+         }
+      }, worker + " stderr");
+      stderr.setDaemon(true);
+      stderr.start();
+      return worker;
+   }
+
+   private static void send(Worker worker, String line) throws IOException {
+      worker.out.write(line);
+      worker.out.write('\n');
+      worker.out.flush();
+   }
+
+   private Response receive(Worker worker, long id, Progress progress) throws IOException {
+      while (true) {
+         String line = worker.in.readLine();
+         if (line == null) {
+            throw new IOException(worker + " exited without a result.");
+         }
+
+         Map<?, ?> message = reader.readValue(line);
+         Object messageId = message.get("id");
+         if (!(messageId instanceof Number) || ((Number) messageId).longValue() != id) {
+            throw new IOException(worker + " answered another request: " + line);
+         }
+
+         if ("progress".equals(message.get("type"))) {
+            progress.message(String.valueOf(message.get("message")));
+         } else if ("result".equals(message.get("type"))) {
+            return new Response(message);
+         } else {
+            throw new IOException(worker + " sent an unknown message: " + line);
+         }
+      }
+   }
+
+   /**
+    * Starts workers by running a command.
+    */
+   public static class ProcessLauncher implements Launcher {
+      private final List<String> command;
+      private final Map<String, String> environment;
+
+      public ProcessLauncher(List<String> command, Map<String, String> environment) {
+         this.command = command;
+         this.environment = environment;
+      }
+
+      @Override
+      public Process launch() throws IOException {
+         ProcessBuilder pb = new ProcessBuilder(command);
+         pb.environment().putAll(environment);
+         return pb.start();
+      }
+
+      @Override
+      public String toString() {
+         return command.toString();
+      }
+   }
+}
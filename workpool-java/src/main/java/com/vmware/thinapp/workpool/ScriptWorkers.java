@@ -0,0 +1,162 @@
+/* ***********************************************************************
+ * VMware ThinApp Factory
+ * Copyright (c) 2009-2013 VMware, Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ***********************************************************************/
+
+package com.vmware.thinapp.workpool;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Map;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import org.springframework.util.StringUtils;
+
+/**
+ * Long-lived workers for the clone-vm script and for guest operations.
+ *
+ * A pool is only created when the command of its worker is configured;
+ * otherwise the runners fork the script for each request as before.
+ * create-vm has no worker mode, so installs always fork it.
+ */
+@Service
+public class ScriptWorkers {
+   private static final Logger log = LoggerFactory.getLogger(ScriptWorkers.class);
+
+   /** Operation name of clone-vm requests */
+   public static final String CLONE = "clone";
+
+   // Have to set PYTHON_EGG_CACHE because otherwise Python will try to extract temporary files to
+   // /usr/share/tomcat6 which will not work.
+   static final Map<String, String> ENVIRONMENT =
+           Collections.singletonMap("PYTHON_EGG_CACHE", "/tmp/tomcat-egg-cache");
+
+   @Value("#{workpoolProperties['clonevm.worker'] ?: ''}")
+   private String cloneWorker;
+   @Value("#{workpoolProperties['createvm.worker'] ?: ''}")
+   private String installWorker;
+   @Value("#{workpoolProperties['guestops.worker'] ?: ''}")
+   private String guestWorker;
+   @Value("#{workpoolProperties['scriptWorkers.max'] ?: 4}")
+   private int maxWorkers;
+   @Value("#{workpoolProperties['scriptWorkers.warm'] ?: 1}")
+   private int warmWorkers;
+
+   private ScriptWorkerPool clonePool;
+   private ScriptWorkerPool guestPool;
+
+   @PostConstruct
+   public void start() {
+      clonePool = create("clone-vm", cloneWorker);
+      if (StringUtils.hasText(installWorker)) {
+         log.warn("The afdeploy worker doesn't serve create-vm requests, ignoring createvm.worker.");
+      }
+      guestPool = create("guest-operations", guestWorker);
+   }
+
+   @PreDestroy
+   public void close() {
+      if (clonePool != null) {
+         clonePool.close();
+      }
+      if (guestPool != null) {
+         guestPool.close();
+      }
+   }
+
+   /**
+    * @return clone-vm workers, or null if clone-vm is forked per request
+    */
+   public ScriptWorkerPool getClonePool() {
+      return clonePool;
+   }
+
+   /**
+    * @return guest-operations workers, or null if vmrun is forked for each
+    * guest operation
+    */
+   public ScriptWorkerPool getGuestPool() {
+      return guestPool;
+   }
+
+   /**
+    * Progress receiver that logs each message.
+    *
+    * @param logger where to log
+    * @return a new receiver
+    */
+   public static ScriptWorkerPool.Progress logTo(final Logger logger) {
+      return new ScriptWorkerPool.Progress() {
+         @Override
+         public void message(String message) {
+            logger.info(message);
+         }
+      };
+   }
+
+   /**
+    * Send a script request to a worker instead of forking the script, and
+    * log it the way the script's output would be.
+    *
+    * @param workers workers of the script
+    * @param op operation name of the script's requests
+    * @param script name of the script, for the log
+    * @param ini the INI the script would read
+    * @param redactedIni the same INI without secrets, to log
+    * @param logger where to log the request and its progress
+    * @return the result, with the moid and error trimmed
+    * @throws IOException if the worker failed before sending a result
+    * @throws InterruptedException if interrupted while waiting
+    */
+   public static ScriptWorkerPool.Response callScript(ScriptWorkerPool workers, String op,
+                                                      String script, String ini,
+                                                      String redactedIni, Logger logger)
+           throws IOException, InterruptedException {
+      logger.info("\n" + redactedIni);
+      logger.info("Sending {} request to worker.", script);
+      ScriptWorkerPool.Response response = workers.call(op, ini, logTo(logger));
+
+      String error = response.getError().trim();
+      if (StringUtils.hasLength(error)) {
+         logger.error(error);
+         return new ScriptWorkerPool.Response("", error);
+      }
+      String moid = response.getMoid().trim();
+      logger.debug("Received {} result with moid {}.", script, moid);
+      return new ScriptWorkerPool.Response(moid, "");
+   }
+
+   private ScriptWorkerPool create(String name, String command) {
+      if (!StringUtils.hasText(command)) {
+         return null;
+      }
+      log.info("Using up to {} {} workers: {}.", new Object[] { maxWorkers, name, command });
+      ScriptWorkerPool pool = new ScriptWorkerPool(name,
+              new ScriptWorkerPool.ProcessLauncher(Collections.singletonList(command.trim()), ENVIRONMENT),
+              maxWorkers);
+      try {
+         pool.prestart(warmWorkers);
+      } catch (IOException e) {
+         log.warn("Unable to start " + name + " workers ahead of time.", e);
+      }
+      return pool;
+   }
+}
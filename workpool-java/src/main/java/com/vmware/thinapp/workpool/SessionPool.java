@@ -0,0 +1,539 @@
+/* ***********************************************************************
+ * VMware ThinApp Factory
+ * Copyright (c) 2009-2013 VMware, Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ***********************************************************************/
+
+package com.vmware.thinapp.workpool;
+
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A pool of up to N logged in sessions to a server, so that a slow call on
+ * one session doesn't hold up callers that could use another.
+ *
+ * Sessions are logged in when first needed and leased out one caller at a
+ * time.  A session that fails with a session error, or whose call runs past
+ * the operation timeout, is logged out and replaced by a new login the next
+ * time one is needed; a timed out session is only logged out once the call
+ * that held it has returned.  Idle sessions are pinged by
+ * {@link #checkHealth()}.
+ *
+ * @param <S> session type
+ */
+public class SessionPool<S> {
+   private static final Logger log = LoggerFactory.getLogger(SessionPool.class);
+
+   /**
+    * Logs sessions in and out.
+    */
+   public interface Factory<S> {
+      /**
+       * @return a new, logged in session
+       * @throws Exception if the login failed
+       */
+      S login() throws Exception;
+
+      /**
+       * Ping a session.
+       *
+       * @return true if the session is still usable
+       */
+      boolean isAlive(S session);
+
+      /**
+       * @return true if the error means the session can't be used any more,
+       *         rather than that the call itself failed
+       */
+      boolean isSessionError(Throwable error);
+
+      /**
+       * Log out a session, ignoring any errors.
+       */
+      void logout(S session);
+   }
+
+   /**
+    * Work to do with a session.
+    */
+   public interface Callback<S, T> {
+      T doWithSession(S session) throws Exception;
+   }
+
+   /**
+    * A session leased to a single caller, which must either release or
+    * invalidate it.
+    */
+   public class Lease {
+      private final S session;
+      private boolean done;
+
+      private Lease(S session) {
+         this.session = session;
+      }
+
+      public S get() {
+         return session;
+      }
+
+      /**
+       * Return the session to the pool.
+       */
+      public void release() {
+         if (finish()) {
+            returned(session);
+         }
+      }
+
+      /**
+       * Log the session out instead of returning it to the pool.
+       */
+      public void invalidate() {
+         if (finish()) {
+            discarded(session);
+         }
+      }
+
+      private synchronized boolean finish() {
+         boolean first = !done;
+         done = true;
+         return first;
+      }
+   }
+
+   private final Factory<S> factory;
+   private final int maxSessions;
+   private final long leaseTimeoutMs;
+   private final long operationTimeoutMs;
+   private final ExecutorService callers;
+
+   /** Guards everything below */
+   private final Object lock = new Object();
+   private final LinkedList<S> idle = new LinkedList<S>();
+   /** Sessions idle, leased or logging in */
+   private int open;
+   private boolean closed;
+
+   private long leases;
+   private long waits;
+   private long totalWaitMs;
+   private long maxWaitMs;
+   private long leaseTimeouts;
+   private long operationTimeouts;
+   private long logins;
+   private long loginFailures;
+   private long invalidated;
+
+   /**
+    * @param factory logs sessions in and out
+    * @param maxSessions sessions open at once
+    * @param leaseTimeoutMs how long to wait for a free session
+    * @param operationTimeoutMs how long a call made through
+    *                           {@link #execute} may take, 0 for no limit
+    */
+   public SessionPool(Factory<S> factory, int maxSessions, long leaseTimeoutMs,
+                      long operationTimeoutMs) {
+      this.factory = factory;
+      this.maxSessions = Math.max(1, maxSessions);
+      this.leaseTimeoutMs = leaseTimeoutMs;
+      this.operationTimeoutMs = operationTimeoutMs;
+
+      final AtomicInteger count = new AtomicInteger();
+      this.callers = Executors.newCachedThreadPool(new ThreadFactory() {
+         @Override
+         public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "session-pool-" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+         }
+      });
+   }
+
+   /**
+    * Lease a session, logging a new one in if none is idle and the pool
+    * isn't full.
+    *
+    * @return a session lease
+    * @throws WorkpoolException if no session became free within the lease
+    *         timeout, or the login failed
+    * @throws InterruptedException if interrupted while waiting
+    */
+   public Lease lease() throws InterruptedException {
+      long start = System.currentTimeMillis();
+      long deadline = start + leaseTimeoutMs;
+      boolean waited = false;
+
+      synchronized (lock) {
+         while (true) {
+            if (closed) {
+               throw new WorkpoolException("Session pool is closed.");
+            }
+            if (!idle.isEmpty()) {
+               S session = idle.removeFirst();
+               leased(start, waited);
+               return new Lease(session);
+            }
+            if (open < maxSessions) {
+               open++;
+               break;
+            }
+
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) {
+               leaseTimeouts++;
+               throw new WorkpoolException(
+                       "No session became free within " + leaseTimeoutMs + "ms.");
+            }
+            waited = true;
+            lock.wait(remaining);
+         }
+      }
+
+      // Log in outside the lock, the slot is already counted as open.  Only
+      // a successful login counts as a lease.
+      try {
+         S session = factory.login();
+         synchronized (lock) {
+            logins++;
+            leased(start, waited);
+         }
+         return new Lease(session);
+      } catch (Exception e) {
+         synchronized (lock) {
+            loginFailures++;
+            open--;
+            lock.notifyAll();
+         }
+         throw new WorkpoolException(e);
+      }
+   }
+
+   /**
+    * Run a callback with a leased session, within the operation timeout.
+    *
+    * @param callback what to do with the session
+    * @return the callback's result
+    * @throws Exception whatever the callback threw, or a WorkpoolException
+    *         if no session was free or the call timed out
+    */
+   public <T> T execute(final Callback<S, T> callback) throws Exception {
+      Lease lease = lease();
+      Call<T> task = new Call<T>(lease, callback);
+      java.util.concurrent.Future<T> call;
+      try {
+         call = callers.submit(task);
+      } catch (RejectedExecutionException e) {
+         // Closed while we were leasing; the session was never used.
+         lease.release();
+         throw new WorkpoolException("Session pool is closed.");
+      }
+
+      try {
+         T result = (operationTimeoutMs > 0) ?
+                 call.get(operationTimeoutMs, TimeUnit.MILLISECONDS) :
+                 call.get();
+         lease.release();
+         return result;
+      } catch (TimeoutException e) {
+         task.abandon();
+         synchronized (lock) {
+            operationTimeouts++;
+         }
+         throw new WorkpoolException("Operation timed out after " + operationTimeoutMs + "ms.");
+      } catch (ExecutionException e) {
+         Throwable cause = e.getCause();
+         if (factory.isSessionError(cause)) {
+            lease.invalidate();
+         } else {
+            lease.release();
+         }
+         if (cause instanceof Exception) {
+            throw (Exception) cause;
+         }
+         throw new WorkpoolException(cause);
+      } catch (InterruptedException e) {
+         task.abandon();
+         throw e;
+      }
+   }
+
+   /**
+    * A callback running on one of the callers' threads.  Once abandoned, its
+    * session is still in use until the thread lets go of it, so it is only
+    * logged out then.
+    */
+   private class Call<T> implements Callable<T> {
+      private final Lease lease;
+      private final Callback<S, T> callback;
+      /** Guarded by this */
+      private Thread runner;
+      private boolean finished;
+      private boolean abandoned;
+
+      Call(Lease lease, Callback<S, T> callback) {
+         this.lease = lease;
+         this.callback = callback;
+      }
+
+      @Override
+      public T call() throws Exception {
+         synchronized (this) {
+            if (abandoned) {
+               finished = true;
+               lease.invalidate();
+               return null;
+            }
+            runner = Thread.currentThread();
+         }
+
+         try {
+            return callback.doWithSession(lease.get());
+         } finally {
+            boolean invalidate;
+            synchronized (this) {
+               runner = null;
+               finished = true;
+               invalidate = abandoned;
+            }
+            if (invalidate) {
+               lease.invalidate();
+            }
+         }
+      }
+
+      /**
+       * Stop waiting for the call: interrupt it if it is running, and log
+       * its session out as soon as it is no longer running.
+       */
+      void abandon() {
+         boolean invalidate;
+         synchronized (this) {
+            abandoned = true;
+            if (runner != null) {
+               runner.interrupt();
+            }
+            // Not started yet means call() will invalidate when it runs.
+            invalidate = finished;
+         }
+         if (invalidate) {
+            lease.invalidate();
+         }
+      }
+   }
+
+   /**
+    * Ping every idle session and log out the ones that stopped working.
+    * They are replaced by new logins when next needed.
+    */
+   public void checkHealth() {
+      LinkedList<S> toCheck;
+      synchronized (lock) {
+         toCheck = new LinkedList<S>(idle);
+         idle.clear();
+      }
+
+      for (S session : toCheck) {
+         boolean alive;
+         try {
+            alive = factory.isAlive(session);
+         } catch (RuntimeException e) {
+            alive = false;
+         }
+
+         if (alive) {
+            returned(session);
+         } else {
+            log.info("Session {} is no longer usable.", session);
+            discarded(session);
+         }
+      }
+   }
+
+   /**
+    * Log out all idle sessions and refuse new leases.  Leased sessions are
+    * logged out as they are returned.
+    */
+   public void close() {
+      LinkedList<S> toLogout;
+      synchronized (lock) {
+         closed = true;
+         toLogout = new LinkedList<S>(idle);
+         open -= idle.size();
+         idle.clear();
+         lock.notifyAll();
+      }
+      for (S session : toLogout) {
+         factory.logout(session);
+      }
+      callers.shutdown();
+   }
+
+   /**
+    * @return a snapshot of the pool's usage
+    */
+   public Stats getStats() {
+      synchronized (lock) {
+         return new Stats(maxSessions, open, idle.size(), leases, waits, totalWaitMs, maxWaitMs,
+                 leaseTimeouts, operationTimeouts, logins, loginFailures, invalidated);
+      }
+   }
+
+   /** Must hold the lock. */
+   private void leased(long start, boolean waited) {
+      long waitMs = System.currentTimeMillis() - start;
+      leases++;
+      if (waited) {
+         waits++;
+      }
+      totalWaitMs += waitMs;
+      maxWaitMs = Math.max(maxWaitMs, waitMs);
+   }
+
+   private void returned(S session) {
+      synchronized (lock) {
+         if (!closed) {
+            idle.addFirst(session);
+            lock.notifyAll();
+            return;
+         }
+         open--;
+      }
+      factory.logout(session);
+   }
+
+   private void discarded(S session) {
+      synchronized (lock) {
+         open--;
+         invalidated++;
+         lock.notifyAll();
+      }
+      factory.logout(session);
+   }
+
+   /**
+    * Pool usage at a point in time.
+    */
+   public static class Stats {
+      private final int maxSessions;
+      private final int open;
+      private final int idle;
+      private final long leases;
+      private final long waits;
+      private final long totalWaitMs;
+      private final long maxWaitMs;
+      private final long leaseTimeouts;
+      private final long operationTimeouts;
+      private final long logins;
+      private final long loginFailures;
+      private final long invalidated;
+
+      public Stats(int maxSessions, int open, int idle, long leases, long waits, long totalWaitMs,
+                   long maxWaitMs, long leaseTimeouts, long operationTimeouts, long logins,
+                   long loginFailures, long invalidated) {
+         this.maxSessions = maxSessions;
+         this.open = open;
+         this.idle = idle;
+         this.leases = leases;
+         this.waits = waits;
+         this.totalWaitMs = totalWaitMs;
+         this.maxWaitMs = maxWaitMs;
+         this.leaseTimeouts = leaseTimeouts;
+         this.operationTimeouts = operationTimeouts;
+         this.logins = logins;
+         this.loginFailures = loginFailures;
+         this.invalidated = invalidated;
+      }
+
+      public int getMaxSessions() {
+         return maxSessions;
+      }
+
+      public int getOpen() {
+         return open;
+      }
+
+      public int getIdle() {
+         return idle;
+      }
+
+      public int getInUse() {
+         return open - idle;
+      }
+
+      public long getLeases() {
+         return leases;
+      }
+
+      /**
+       * @return leases that had to wait for a session to be returned
+       */
+      public long getWaits() {
+         return waits;
+      }
+
+      /**
+       * @return mean time to get a lease, or 0 if there were none
+       */
+      public long getAverageWaitMs() {
+         return (leases == 0) ? 0 : totalWaitMs / leases;
+      }
+
+      public long getMaxWaitMs() {
+         return maxWaitMs;
+      }
+
+      public long getLeaseTimeouts() {
+         return leaseTimeouts;
+      }
+
+      public long getOperationTimeouts() {
+         return operationTimeouts;
+      }
+
+      public long getLogins() {
+         return logins;
+      }
+
+      public long getLoginFailures() {
+         return loginFailures;
+      }
+
+      /**
+       * @return sessions logged out because they failed or timed out
+       */
+      public long getInvalidated() {
+         return invalidated;
+      }
+
+      @Override
+      public String toString() {
+         return String.format("open=%d/%d idle=%d leases=%d waits=%d avgWaitMs=%d maxWaitMs=%d " +
+                 "leaseTimeouts=%d operationTimeouts=%d logins=%d loginFailures=%d invalidated=%d",
+                 open, maxSessions, idle, leases, waits, getAverageWaitMs(), maxWaitMs,
+                 leaseTimeouts, operationTimeouts, logins, loginFailures, invalidated);
+      }
+   }
+}
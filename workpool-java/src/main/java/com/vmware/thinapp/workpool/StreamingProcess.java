@@ -0,0 +1,256 @@
+/* ***********************************************************************
+ * VMware ThinApp Factory
+ * Copyright (c) 2009-2013 VMware, Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ***********************************************************************/
+
+package com.vmware.thinapp.workpool;
+
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.io.Closeables;
+
+/**
+ * Runs an external command and streams its combined stdout and stderr,
+ * line by line, to any number of sinks as it is produced.
+ *
+ * Nothing is accumulated here: sinks decide what to keep, for example an
+ * OutputRingBuffer for the end of the output.  Lines longer than the maximum
+ * line length are cut short, so a command that never prints a newline can't
+ * exhaust memory either.
+ *
+ * The process can be killed after a timeout, and is registered with
+ * ProcessMonitorService while it runs so that it can be cancelled.
+ */
+public class StreamingProcess {
+   /** Default limit on the length of a single line */
+   public static final int DEFAULT_MAX_LINE_LENGTH = 64 * 1024;
+
+   /**
+    * Receives the output of a command one line at a time, without the line
+    * terminator.
+    */
+   public interface LineSink {
+      void line(String line);
+   }
+
+   private static final ScheduledExecutorService watchdog =
+           Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+              @Override
+              public Thread newThread(Runnable r) {
+                 Thread thread = new Thread(r, "process-watchdog");
+                 thread.setDaemon(true);
+                 return thread;
+              }
+           });
+
+   private final List<String> command;
+   private final List<LineSink> sinks = new ArrayList<LineSink>();
+   private long timeoutMillis;
+   private int maxLineLength = DEFAULT_MAX_LINE_LENGTH;
+   private ProcessMonitorService monitor;
+   private Long commandId;
+   private volatile boolean timedOut;
+
+   public StreamingProcess(List<String> command) {
+      this.command = command;
+   }
+
+   /**
+    * Add a sink to receive each line of output.
+    */
+   public StreamingProcess addSink(LineSink sink) {
+      sinks.add(sink);
+      return this;
+   }
+
+   /**
+    * Kill the command if it runs longer than the given time.
+    *
+    * @param timeout time limit, 0 for none
+    * @param unit unit of timeout
+    */
+   public StreamingProcess setTimeout(long timeout, TimeUnit unit) {
+      this.timeoutMillis = unit.toMillis(timeout);
+      return this;
+   }
+
+   public StreamingProcess setMaxLineLength(int maxLineLength) {
+      this.maxLineLength = maxLineLength;
+      return this;
+   }
+
+   /**
+    * Register the process under a command ID while it runs, so that
+    * ProcessMonitorService.cancel() can kill it.
+    *
+    * @param monitor monitor to register with, may be null
+    * @param commandId command ID, may be null
+    */
+   public StreamingProcess setMonitor(ProcessMonitorService monitor, Long commandId) {
+      this.monitor = monitor;
+      this.commandId = commandId;
+      return this;
+   }
+
+   /**
+    * @return whether the last run was killed by the timeout
+    */
+   public boolean isTimedOut() {
+      return timedOut;
+   }
+
+   /**
+    * Run the command to completion.
+    *
+    * @return exit code of the command
+    * @throws IOException if the command can't be started or times out
+    */
+   public int run() throws IOException {
+      ProcessBuilder processBuilder = new ProcessBuilder(command);
+      processBuilder.redirectErrorStream(true);
+      final Process process = processBuilder.start();
+      timedOut = false;
+      ScheduledFuture<?> timer = null;
+      Reader reader = null;
+
+      try {
+         if (monitor != null) {
+            monitor.add(commandId, process);
+         }
+         if (timeoutMillis > 0) {
+            timer = watchdog.schedule(new Runnable() {
+               @Override
+               public void run() {
+                  timedOut = true;
+                  process.destroy();
+               }
+            }, timeoutMillis, TimeUnit.MILLISECONDS);
+         }
+
+         reader = new InputStreamReader(process.getInputStream());
+         try {
+            copyLines(reader, maxLineLength, new LineSink() {
+               @Override
+               public void line(String line) {
+                  for (LineSink sink : sinks) {
+                     sink.line(line);
+                  }
+               }
+            });
+         } catch (IOException e) {
+            // Killing the process may close its output under us.
+            if (!timedOut) {
+               throw e;
+            }
+         }
+
+         int exitCode;
+         try {
+            exitCode = process.waitFor();
+         } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+         } finally {
+            // Clear the thread interrupted flag:
+            // Process.waitFor() doesn't follow the normal convention of
+            // clearing this flag when it throws an InterruptedException, so
+            // we need to do it manually.
+            Thread.interrupted();
+         }
+
+         if (timedOut) {
+            throw new IOException(String.format("Command timed out after %d ms.", timeoutMillis));
+         }
+         return exitCode;
+      } finally {
+         if (timer != null) {
+            timer.cancel(false);
+         }
+         if (monitor != null) {
+            monitor.remove(commandId);
+         }
+
+         // As suggested in the following blog post, we need to be very explicit
+         // cleaning up the file streams provided by the Process.  We close in, out,
+         // err, and then explicitly destroy it just to be safe: http://kylecartmell.com/?p=9
+         Closeables.closeQuietly(reader);
+         Closeables.closeQuietly(process.getInputStream());
+         Closeables.closeQuietly(process.getOutputStream());
+         Closeables.closeQuietly(process.getErrorStream());
+         process.destroy();
+      }
+   }
+
+   /**
+    * Split text into lines the way BufferedReader.readLine() does, passing
+    * each to a sink as soon as it is complete.  Characters beyond
+    * maxLineLength are dropped and noted at the end of the line.
+    *
+    * @param in text to split
+    * @param maxLineLength longest line to pass on
+    * @param sink receives the lines
+    */
+   public static void copyLines(Reader in, int maxLineLength, LineSink sink) throws IOException {
+      char[] buffer = new char[8192];
+      StringBuilder line = new StringBuilder();
+      long dropped = 0;
+      boolean pending = false;
+      boolean skipLf = false;
+      int n;
+
+      while ((n = in.read(buffer)) != -1) {
+         for (int i = 0; i < n; i++) {
+            char c = buffer[i];
+            if (skipLf) {
+               skipLf = false;
+               if (c == '\n') {
+                  continue;
+               }
+            }
+            if (c == '\r' || c == '\n') {
+               sink.line(finish(line, dropped));
+               line.setLength(0);
+               dropped = 0;
+               pending = false;
+               skipLf = (c == '\r');
+            } else if (line.length() < maxLineLength) {
+               line.append(c);
+               pending = true;
+            } else {
+               dropped++;
+            }
+         }
+      }
+
+      if (pending) {
+         sink.line(finish(line, dropped));
+      }
+   }
+
+   private static String finish(StringBuilder line, long dropped) {
+      if (dropped > 0) {
+         line.append(" [").append(dropped).append(" characters omitted]");
+      }
+      return line.toString();
+   }
+}
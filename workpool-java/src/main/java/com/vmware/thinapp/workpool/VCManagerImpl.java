@@ -57,6 +57,8 @@ public class VCManagerImpl extends TypedActor implements VCManager {
 
    @Autowired
    private VCConfigRepository vcConfigDao;
+   @Autowired
+   private VCSessionPool sessionPool;
    @Resource(name="workpoolTransactionTemplate")
    private TransactionTemplate txn;
 
@@ -131,6 +133,14 @@ public class VCManagerImpl extends TypedActor implements VCManager {
          @Override
          public void run() {
             self.refresh();
+            // Pooled sessions time out just like the main connection.
+            Futures.future(new Callable<Void>() {
+               @Override
+               public Void call() {
+                  sessionPool.checkHealth();
+                  return null;
+               }
+            }, Long.MAX_VALUE);
          }
       }, 0, 15, TimeUnit.MINUTES);
    }
@@ -152,6 +162,7 @@ public class VCManagerImpl extends TypedActor implements VCManager {
       }
 
       log.info("Beginning connection in background...");
+      sessionPool.configure(config);
 
       // Not sure what this timeout should be.
       conn = new DefaultCompletableFuture<ServiceInstance>(Long.MAX_VALUE);
@@ -0,0 +1,111 @@
+/* ***********************************************************************
+ * VMware ThinApp Factory
+ * Copyright (c) 2009-2013 VMware, Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ***********************************************************************/
+
+package com.vmware.thinapp.workpool;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.rmi.RemoteException;
+
+import com.vmware.thinapp.workpool.model.VCConfigModel;
+import com.vmware.vim25.MethodFault;
+import com.vmware.vim25.NotAuthenticated;
+import com.vmware.vim25.mo.ServiceInstance;
+
+/**
+ * Logs vCenter sessions in and out for a {@link SessionPool}.
+ */
+public class VCSessionFactory implements SessionPool.Factory<ServiceInstance> {
+   private final URL url;
+   private final String username;
+   private final String password;
+   private final boolean ignoreCert;
+
+   /**
+    * @param url SDK endpoint, such as https://vc/sdk
+    * @param username user to log in as
+    * @param password the user's password
+    * @param ignoreCert whether to accept any server certificate
+    */
+   public VCSessionFactory(URL url, String username, String password, boolean ignoreCert) {
+      this.url = url;
+      this.username = username;
+      this.password = password;
+      this.ignoreCert = ignoreCert;
+   }
+
+   /**
+    * Create a factory for the configured VC.
+    *
+    * @param config VC configuration
+    * @return a new factory
+    */
+   public static VCSessionFactory forConfig(VCConfigModel config) {
+      try {
+         return new VCSessionFactory(new URL(String.format("https://%s/sdk", config.getHost())),
+                 config.getUsername(), config.getPassword(), true);
+      } catch (MalformedURLException e) {
+         throw new WorkpoolException(e);
+      }
+   }
+
+   @Override
+   public ServiceInstance login() throws Exception {
+      return new ServiceInstance(url, username, password, ignoreCert);
+   }
+
+   @Override
+   public boolean isAlive(ServiceInstance session) {
+      try {
+         return session.currentTime() != null;
+      } catch (RemoteException e) {
+         return false;
+      }
+   }
+
+   /**
+    * Faults raised by the server for a call don't affect the session, but
+    * transport errors and a lost login do.
+    */
+   @Override
+   public boolean isSessionError(Throwable error) {
+      for (Throwable t = error; t != null; t = t.getCause()) {
+         if (t instanceof NotAuthenticated) {
+            return true;
+         } else if (t instanceof MethodFault) {
+            return false;
+         } else if (t instanceof RemoteException) {
+            return true;
+         }
+      }
+      return false;
+   }
+
+   @Override
+   public void logout(ServiceInstance session) {
+      try {
+         session.getServerConnection().logout();
+      } catch (RuntimeException e) {
+         // Already gone.
+      }
+   }
+
+   @Override
+   public String toString() {
+      return username + "@" + url;
+   }
+}
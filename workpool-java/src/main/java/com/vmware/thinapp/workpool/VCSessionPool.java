@@ -0,0 +1,129 @@
+/* ***********************************************************************
+ * VMware ThinApp Factory
+ * Copyright (c) 2009-2013 VMware, Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ***********************************************************************/
+
+package com.vmware.thinapp.workpool;
+
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.PreDestroy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import com.vmware.thinapp.workpool.model.VCConfigModel;
+import com.vmware.vim25.mo.ServiceInstance;
+
+/**
+ * Pool of sessions to the configured VC, for work that would otherwise
+ * queue up behind other callers on the single VCManager connection.
+ *
+ * VCManager configures the pool whenever the VC configuration changes and
+ * checks its idle sessions when it pings its own connection.
+ */
+@Service
+public class VCSessionPool {
+   private static final Logger log = LoggerFactory.getLogger(VCSessionPool.class);
+
+   @Value("#{workpoolProperties['vc.sessions'] ?: 4}")
+   private int sessions;
+   @Value("#{workpoolProperties['vc.leaseTimeoutSeconds'] ?: 300}")
+   private long leaseTimeoutSeconds;
+   @Value("#{workpoolProperties['vc.operationTimeoutSeconds'] ?: 1800}")
+   private long operationTimeoutSeconds;
+
+   private volatile SessionPool<ServiceInstance> pool;
+
+   /**
+    * Point the pool at a VC, logging out all sessions to the previous one.
+    *
+    * @param config VC configuration
+    */
+   public void configure(VCConfigModel config) {
+      configure(VCSessionFactory.forConfig(config));
+   }
+
+   /**
+    * Point the pool at the VC a factory logs in to.
+    *
+    * @param factory session factory
+    */
+   public synchronized void configure(SessionPool.Factory<ServiceInstance> factory) {
+      log.info("Using up to {} sessions to {}.", sessions, factory);
+      SessionPool<ServiceInstance> previous = pool;
+      pool = new SessionPool<ServiceInstance>(factory, sessions,
+              TimeUnit.SECONDS.toMillis(leaseTimeoutSeconds),
+              TimeUnit.SECONDS.toMillis(operationTimeoutSeconds));
+      if (previous != null) {
+         previous.close();
+      }
+   }
+
+   /**
+    * Run a callback with a pooled session.
+    *
+    * @see SessionPool#execute
+    */
+   public <T> T execute(SessionPool.Callback<ServiceInstance, T> callback) throws Exception {
+      return current().execute(callback);
+   }
+
+   /**
+    * Lease a pooled session for work that can't go through
+    * {@link #execute}.  The caller must release or invalidate it.
+    *
+    * @see SessionPool#lease
+    */
+   public SessionPool<ServiceInstance>.Lease lease() throws InterruptedException {
+      return current().lease();
+   }
+
+   /**
+    * Log out idle sessions that stopped working.
+    */
+   public void checkHealth() {
+      SessionPool<ServiceInstance> current = pool;
+      if (current != null) {
+         current.checkHealth();
+         log.debug("VC session pool: {}.", current.getStats());
+      }
+   }
+
+   /**
+    * @return usage of the pool, or null if VC isn't configured yet
+    */
+   public SessionPool.Stats getStats() {
+      SessionPool<ServiceInstance> current = pool;
+      return (current == null) ? null : current.getStats();
+   }
+
+   @PreDestroy
+   public synchronized void close() {
+      if (pool != null) {
+         pool.close();
+      }
+   }
+
+   private SessionPool<ServiceInstance> current() {
+      SessionPool<ServiceInstance> current = pool;
+      if (current == null) {
+         throw new NotConnectedException();
+      }
+      return current;
+   }
+}
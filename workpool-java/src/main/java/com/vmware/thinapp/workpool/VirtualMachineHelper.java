@@ -24,6 +24,7 @@ import org.slf4j.LoggerFactory;
 
 import com.vmware.vim25.ManagedObjectNotFound;
 import com.vmware.vim25.ManagedObjectReference;
+import com.vmware.vim25.TaskInfoState;
 import com.vmware.vim25.VirtualMachinePowerState;
 import com.vmware.vim25.VirtualMachineSnapshotInfo;
 import com.vmware.vim25.VirtualMachineSnapshotTree;
@@ -163,6 +164,24 @@ public class VirtualMachineHelper {
       }
    }
 
+   /**
+    * Revert the VM to its current snapshot.
+    */
+   public void revertToCurrentSnapshot() {
+      try {
+         Task task = vm.revertToCurrentSnapshot_Task(null);
+         task.waitForTask();
+         TaskInfoState state = task.getTaskInfo().getState();
+         if (!state.equals(TaskInfoState.success)) {
+            throw new WorkpoolException("Reverting to the current snapshot failed: " + state + ".");
+         }
+      } catch (RemoteException e) {
+         throw new WorkpoolException(e);
+      } catch (InterruptedException e) {
+         throw new WorkpoolException(e);
+      }
+   }
+
    /**
     * Deletes a VM including its associated virtual disks.
     */
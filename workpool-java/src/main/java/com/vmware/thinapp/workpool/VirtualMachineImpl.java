@@ -27,6 +27,7 @@ import org.slf4j.LoggerFactory;
 import com.vmware.thinapp.common.workpool.dto.InstanceInfo;
 import com.vmware.thinapp.common.workpool.dto.VCConfig;
 import com.vmware.vim25.GuestInfo;
+import com.vmware.vim25.InvalidRequest;
 import com.vmware.vim25.ObjectSpec;
 import com.vmware.vim25.ObjectUpdate;
 import com.vmware.vim25.PropertyChange;
@@ -37,6 +38,7 @@ import com.vmware.vim25.UpdateSet;
 import com.vmware.vim25.VirtualMachinePowerState;
 import com.vmware.vim25.VirtualMachineToolsRunningStatus;
 import com.vmware.vim25.VirtualMachineToolsVersionStatus;
+import com.vmware.vim25.WaitOptions;
 import com.vmware.vim25.mo.PropertyCollector;
 import com.vmware.vim25.mo.PropertyFilter;
 import com.vmware.vim25.mo.ServiceInstance;
@@ -47,6 +49,18 @@ import com.vmware.vim25.mo.util.PropertyCollectorUtil;
 public class VirtualMachineImpl implements VirtualMachine {
    static final Logger log = LoggerFactory.getLogger(VirtualMachineImpl.class);
 
+   private static final long GUEST_IP_TIMEOUT_MS = 120 * 1000;
+
+   /** Longest a single waitForUpdatesEx() blocks, so timeouts are noticed */
+   private static final int MAX_WAIT_SECONDS = 10;
+
+   /** Polling of hosts that don't support waitForUpdatesEx() */
+   private static final Backoff POLL_BACKOFF = new Backoff(250, 5000, 2, 0.5);
+
+   private interface GuestCondition {
+      boolean isMet(GuestInfo guestInfo);
+   }
+
    private final ServiceInstance si;
    private final com.vmware.vim25.mo.VirtualMachine vm;
 
@@ -127,73 +141,19 @@ public class VirtualMachineImpl implements VirtualMachine {
     */
    @Override
    public void waitForTools() {
-      PropertyCollector propertyCollector = si.getPropertyCollector();
-
-      PropertySpec[] propertySpec =
-            PropertyCollectorUtil.buildPropertySpecArray(new String[][] { {
-                  "VirtualMachine", "guest" } });
-      ObjectSpec objectSpec = new ObjectSpec();
-      objectSpec.setObj(vm.getMOR());
-      objectSpec.setSkip(false);
-
-      PropertyFilterSpec filterSpec = new PropertyFilterSpec();
-      filterSpec.setObjectSet(new ObjectSpec[] { objectSpec });
-      filterSpec.setPropSet(propertySpec);
-
-      PropertyFilter propertyFilter;
-
-      try {
-         propertyFilter = propertyCollector.createFilter(filterSpec, false); /*
-                                                                              * partialUpdates = false, not sure what it
-                                                                              * does
-                                                                              */
-      } catch (RuntimeException e) {
-         throw e;
-      } catch (RemoteException e) {
-         throw new RuntimeException(e);
-      }
-
-      String version = "";
-
-      while (true) {
-         UpdateSet update;
-
-         try {
-            // XXX: waitForUpdatesEx doesn't work against Workstation hostd for some
-            // reason but does work on vSphere.  Receives vim25.InvalidRequest.
-            update = propertyCollector.checkForUpdates(version);
-         } catch (RuntimeException e) {
-            throw e;
-         } catch (RemoteException e) {
-            throw new RuntimeException(e);
+      waitForGuest(new GuestCondition() {
+         @Override
+         public boolean isMet(GuestInfo guestInfo) {
+            return validateToolsRunningStatus(
+                  VirtualMachineToolsVersionStatus.valueOf(
+                        VirtualMachineToolsVersionStatus.class,
+                        guestInfo.toolsVersionStatus),
+                  VirtualMachineToolsRunningStatus.valueOf(
+                        VirtualMachineToolsRunningStatus.class,
+                        guestInfo.toolsRunningStatus));
          }
-
-         if (update == null || update.getFilterSet() == null) {
-            try {
-               Thread.sleep(1000);
-            } catch (InterruptedException ignored) {
-               /* Ignore */
-            }
-            continue;
-         }
-
-         if (isToolsRunning(update)) {
-            break;
-         }
-
-         version = update.getVersion();
-      }
-
-      // FIXME: This should probably be in a finally block that runs if
-      // anything else above throws exceptions.
-      try {
-         propertyFilter.destroyPropertyFilter();
-      } catch (RuntimeException e) {
-         throw e;
-      } catch (RemoteException e) {
-         throw new RuntimeException(e);
-      }
-    }
+      }, -1);
+   }
 
     /**
      * Best effort call to set screen resolution through tools.
@@ -214,23 +174,18 @@ public class VirtualMachineImpl implements VirtualMachine {
     */
     @Override
     public void waitForGuestIp() {
-      // wait for 120 seconds
-      log.info("Waiting for guest Ip.", vm.getName());
-      for (int i = 0; i < 120; i++) {
-         String ip = vm.getGuest().getIpAddress();
-         if (validateIpAddress(ip)) {
-            log.info("Validated guest Ip (" + ip + ").", vm.getName());
-            return;
+      log.info("Waiting for guest Ip of {}.", vm.getName());
+      GuestInfo guestInfo = waitForGuest(new GuestCondition() {
+         @Override
+         public boolean isMet(GuestInfo guestInfo) {
+            return validateIpAddress(guestInfo.getIpAddress());
          }
+      }, GUEST_IP_TIMEOUT_MS);
 
-         try {
-            Thread.sleep(1000);
-         } catch (InterruptedException ignored) {
-            throw new RuntimeException(ignored);
-         }
+      if (guestInfo == null) {
+         throw new RuntimeException("Guest Ip address not initialized within 120 seconds.");
       }
-
-      throw new RuntimeException("Guest Ip address not initialized within 120 seconds.");
+      log.info("Validated guest Ip ({}) of {}.", guestInfo.getIpAddress(), vm.getName());
    }
 
    private boolean validateIpAddress(String ip) {
@@ -249,45 +204,160 @@ public class VirtualMachineImpl implements VirtualMachine {
    }
 
    /**
-    * Process the update to determine whether it indicates the guest tools are
-    * running or not.
+    * Wait for the guest info of the VM to meet the given condition.
     *
-    * @param update
-    * @return whether the guest tools are running or not
+    * Blocks in waitForUpdatesEx() until the guest info changes.  Hosts that
+    * don't support it are polled with checkForUpdates() instead, backing off
+    * while nothing changes.
+    *
+    * The session's property collector is shared by every thread using the
+    * session, so the wait runs on a collector of its own when the host can
+    * create one.  Only updates of this VM through this wait's filter count.
+    *
+    * @param condition     condition to wait for
+    * @param timeoutMillis how long to wait, or -1 to wait forever
+    * @return the guest info that met the condition, or null on timeout
     */
-   private boolean isToolsRunning(UpdateSet update) {
-      PropertyFilterUpdate[] filterSet = update.getFilterSet();
+   private GuestInfo waitForGuest(GuestCondition condition, long timeoutMillis) {
+      PropertyCollector sessionCollector = si.getPropertyCollector();
+      PropertyCollector propertyCollector;
+      try {
+         propertyCollector = sessionCollector.createPropertyCollector();
+      } catch (Exception e) {
+         log.debug("Host can't create a property collector, using the session's.", e);
+         propertyCollector = sessionCollector;
+      }
 
-      for (PropertyFilterUpdate u : filterSet) {
-         for (ObjectUpdate o : u.getObjectSet()) {
-            if (o.getObj().getType().equals("VirtualMachine")) {
-               PropertyChange[] changeSet = o.getChangeSet();
-
-               if (changeSet.length != 1) {
-                  log.error(
-                        "Expected changeset of length one but received: {}.",
-                        changeSet);
-                  throw new RuntimeException(
-                        "Expected a changeset of length one.");
-               }
+      try {
+         return waitForGuest(propertyCollector, condition, timeoutMillis);
+      } finally {
+         if (propertyCollector != sessionCollector) {
+            try {
+               propertyCollector.destroyPropertyCollector();
+            } catch (Exception e) {
+               log.debug("Unable to destroy guest property collector.", e);
+            }
+         }
+      }
+   }
 
-               GuestInfo guestInfo = (GuestInfo) changeSet[0].getVal();
+   private GuestInfo waitForGuest(PropertyCollector propertyCollector,
+                                  GuestCondition condition, long timeoutMillis) {
+
+      PropertySpec[] propertySpec =
+            PropertyCollectorUtil.buildPropertySpecArray(new String[][] { {
+                  "VirtualMachine", "guest" } });
+      ObjectSpec objectSpec = new ObjectSpec();
+      objectSpec.setObj(vm.getMOR());
+      objectSpec.setSkip(false);
+
+      PropertyFilterSpec filterSpec = new PropertyFilterSpec();
+      filterSpec.setObjectSet(new ObjectSpec[] { objectSpec });
+      filterSpec.setPropSet(propertySpec);
+
+      long deadline = (timeoutMillis < 0) ?
+            Long.MAX_VALUE : System.currentTimeMillis() + timeoutMillis;
+      PropertyFilter propertyFilter;
+
+      try {
+         propertyFilter = propertyCollector.createFilter(filterSpec, false);
+      } catch (RuntimeException e) {
+         throw e;
+      } catch (RemoteException e) {
+         throw new RuntimeException(e);
+      }
+
+      try {
+         String version = "";
+         boolean waitSupported = true;
+         int polls = 0;
+
+         while (true) {
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) {
+               return null;
+            }
 
-               return validateToolsRunningStatus(
-                     VirtualMachineToolsVersionStatus.valueOf(
-                           VirtualMachineToolsVersionStatus.class,
-                           guestInfo.toolsVersionStatus),
-                     VirtualMachineToolsRunningStatus.valueOf(
-                           VirtualMachineToolsRunningStatus.class,
-                           guestInfo.toolsRunningStatus));
+            UpdateSet update;
+            if (waitSupported) {
+               WaitOptions options = new WaitOptions();
+               options.setMaxWaitSeconds(Integer.valueOf((int) Math.max(1,
+                     Math.min(MAX_WAIT_SECONDS, remaining / 1000))));
+               try {
+                  update = propertyCollector.waitForUpdatesEx(version, options);
+               } catch (InvalidRequest e) {
+                  // XXX: waitForUpdatesEx doesn't work against Workstation
+                  // hostd for some reason but does work on vSphere.
+                  log.debug("Host does not support waitForUpdatesEx, polling for guest changes.");
+                  waitSupported = false;
+                  continue;
+               }
             } else {
-               log.error("Uknown object update type: {}.", o.getObj().getType());
+               update = propertyCollector.checkForUpdates(version);
+            }
+
+            if (update == null || update.getFilterSet() == null) {
+               if (!waitSupported) {
+                  try {
+                     Thread.sleep(Math.min(POLL_BACKOFF.delay(polls++), remaining));
+                  } catch (InterruptedException e) {
+                     throw new RuntimeException(e);
+                  }
+               }
+               continue;
+            }
+
+            version = update.getVersion();
+            GuestInfo guestInfo = getGuestInfo(update, propertyFilter);
+            if (guestInfo != null && condition.isMet(guestInfo)) {
+               return guestInfo;
             }
+            // Something changed, so look again soon
+            polls = 0;
+         }
+      } catch (RuntimeException e) {
+         throw e;
+      } catch (RemoteException e) {
+         throw new RuntimeException(e);
+      } finally {
+         try {
+            propertyFilter.destroyPropertyFilter();
+         } catch (Exception e) {
+            log.debug("Unable to destroy guest property filter.", e);
          }
       }
+   }
 
-      throw new VirtualMachineException(
-            "No VirtualMachine update was received.");
+   /**
+    * Get the guest info of this VM carried by a property update.
+    *
+    * @param update
+    * @param filter the filter the update must come through
+    * @return the new guest info, or null if the update doesn't contain one
+    */
+   private GuestInfo getGuestInfo(UpdateSet update, PropertyFilter filter) {
+      String filterId = filter.getMOR().getVal();
+      String vmId = vm.getMOR().getVal();
+      for (PropertyFilterUpdate u : update.getFilterSet()) {
+         if (u.getObjectSet() == null || !filterId.equals(u.getFilter().getVal())) {
+            continue;
+         }
+         for (ObjectUpdate o : u.getObjectSet()) {
+            if (!o.getObj().getType().equals("VirtualMachine")) {
+               log.error("Uknown object update type: {}.", o.getObj().getType());
+               continue;
+            }
+            if (!vmId.equals(o.getObj().getVal()) || o.getChangeSet() == null) {
+               continue;
+            }
+            for (PropertyChange change : o.getChangeSet()) {
+               if (change.getVal() instanceof GuestInfo) {
+                  return (GuestInfo) change.getVal();
+               }
+            }
+         }
+      }
+      return null;
    }
 
    public com.vmware.vim25.mo.VirtualMachine getVm() {
@@ -63,7 +63,8 @@ public interface VmImageInstance {
    /**
     * Retrieves the instance's data.
     *
-    * @return a full clone
+    * @return a full clone, shared by all callers until the image changes so
+    *         it must not be modified
     */
    VmImageModel getVmImage();
 
@@ -64,6 +64,8 @@ public class VmImageInstanceImpl extends TypedActor implements VmImageInstance {
    private VmImageInstance self;
    private long vmImageId;
    private final EventBus eventBus = new EventBus();
+   /** Copy handed to readers until the image changes, null when out of date */
+   private VmImageModel snapshot;
 
    public VmImageInstanceImpl(VmImageModel vm) {
       this.vmImageId = vm.getId();
@@ -117,6 +119,7 @@ public class VmImageInstanceImpl extends TypedActor implements VmImageInstance {
             return originalState;
          }
       });
+      snapshot = null;
 
       log.info("Transitioned from state {} to {}.", originalState, state);
       VmImageStateChange change = new VmImageStateChange(originalState, state, self);
@@ -145,6 +148,7 @@ public class VmImageInstanceImpl extends TypedActor implements VmImageInstance {
                instanceableDao.saveOrUpdate(vmImage);
             }
          });
+         snapshot = null;
 
          log.info("Installation was successful.");
          setState(VmImageModel.State.installFinished);
@@ -160,16 +164,20 @@ public class VmImageInstanceImpl extends TypedActor implements VmImageInstance {
 
    @Override
    public VmImageModel getVmImage() {
-      return txn.execute(new TransactionCallback<VmImageModel>() {
-         @Override
-         public VmImageModel doInTransaction(TransactionStatus status) {
-            // Return a cloned instance so that the receiver has a snapshot
-            // of the image at this point in time.  Otherwise it may change
-            // behind their back.
-            VmImageModel vmImage = getLocalImage();
-            return (VmImageModel) SerializationHelper.clone(vmImage);
-         }
-      });
+      if (snapshot == null) {
+         snapshot = txn.execute(new TransactionCallback<VmImageModel>() {
+            @Override
+            public VmImageModel doInTransaction(TransactionStatus status) {
+               // Return a cloned instance so that the receiver has a snapshot
+               // of the image at this point in time.  Otherwise it may change
+               // behind their back.  The clone is only taken again once the
+               // image has changed.
+               VmImageModel vmImage = getLocalImage();
+               return (VmImageModel) SerializationHelper.clone(vmImage);
+            }
+         });
+      }
+      return snapshot;
    }
 
    protected InstallRunner getInstallerRunner(InstallRequest request) {
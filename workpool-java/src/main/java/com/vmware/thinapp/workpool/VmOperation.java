@@ -0,0 +1,79 @@
+/* ***********************************************************************
+ * VMware ThinApp Factory
+ * Copyright (c) 2009-2013 VMware, Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ***********************************************************************/
+
+package com.vmware.thinapp.workpool;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * An operation on a single VM, run by {@link BulkVmExecutor}.
+ *
+ * The host and datastores the VM lives on are used to limit how many
+ * operations run against the same host or datastore at once.
+ */
+public abstract class VmOperation {
+   private final String name;
+   private final String moid;
+   private final String host;
+   private final Set<String> datastores;
+
+   /**
+    * @param name what the operation does, for logging
+    * @param moid VM the operation acts on
+    * @param host moid of the VM's host, or null if unknown
+    * @param datastores moids of the VM's datastores, or null if unknown
+    */
+   protected VmOperation(String name, String moid, String host, Collection<String> datastores) {
+      this.name = name;
+      this.moid = moid;
+      this.host = host;
+      this.datastores = (datastores == null) ?
+              Collections.<String>emptySet() :
+              Collections.unmodifiableSet(new LinkedHashSet<String>(datastores));
+   }
+
+   /**
+    * Perform the operation.  May be called again if it throws.
+    *
+    * @throws Exception if the operation failed
+    */
+   public abstract void run() throws Exception;
+
+   public String getName() {
+      return name;
+   }
+
+   public String getMoid() {
+      return moid;
+   }
+
+   public String getHost() {
+      return host;
+   }
+
+   public Set<String> getDatastores() {
+      return datastores;
+   }
+
+   @Override
+   public String toString() {
+      return name + " " + moid;
+   }
+}
@@ -0,0 +1,90 @@
+/* ***********************************************************************
+ * VMware ThinApp Factory
+ * Copyright (c) 2009-2013 VMware, Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ***********************************************************************/
+
+package com.vmware.thinapp.workpool;
+
+import com.vmware.vim25.mo.ServiceInstance;
+
+/**
+ * The VM operations {@link BulkVmExecutor} runs on workpool instances.  Each
+ * one runs on a pooled VC session, so a batch isn't serialized behind a
+ * single connection.
+ */
+public final class VmOperations {
+   private VmOperations() {
+   }
+
+   /**
+    * Power off a VM if it is running.
+    */
+   public static VmOperation powerOff(final VCSessionPool sessions, final String moid,
+                                      InstanceHealth placement) {
+      return new VmOperation("Power off", moid, placement.getHost(), placement.getDatastores()) {
+         @Override
+         public void run() throws Exception {
+            sessions.execute(new SessionPool.Callback<ServiceInstance, Void>() {
+               @Override
+               public Void doWithSession(ServiceInstance si) {
+                  new VirtualMachineHelper(si, moid).powerOff();
+                  return null;
+               }
+            });
+         }
+      };
+   }
+
+   /**
+    * Power off a VM and delete it with its disks.
+    */
+   public static VmOperation delete(final VCSessionPool sessions, final String moid,
+                                    InstanceHealth placement) {
+      return new VmOperation("Delete", moid, placement.getHost(), placement.getDatastores()) {
+         @Override
+         public void run() throws Exception {
+            sessions.execute(new SessionPool.Callback<ServiceInstance, Void>() {
+               @Override
+               public Void doWithSession(ServiceInstance si) {
+                  VirtualMachineHelper vm = new VirtualMachineHelper(si, moid);
+                  // VM must be powered off before deleting.
+                  vm.powerOff();
+                  vm.delete();
+                  return null;
+               }
+            });
+         }
+      };
+   }
+
+   /**
+    * Revert a VM to its current snapshot.
+    */
+   public static VmOperation revertToCurrentSnapshot(final VCSessionPool sessions, final String moid,
+                                                     InstanceHealth placement) {
+      return new VmOperation("Revert", moid, placement.getHost(), placement.getDatastores()) {
+         @Override
+         public void run() throws Exception {
+            sessions.execute(new SessionPool.Callback<ServiceInstance, Void>() {
+               @Override
+               public Void doWithSession(ServiceInstance si) {
+                  new VirtualMachineHelper(si, moid).revertToCurrentSnapshot();
+                  return null;
+               }
+            });
+         }
+      };
+   }
+}
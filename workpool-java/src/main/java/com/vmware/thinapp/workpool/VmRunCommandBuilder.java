@@ -29,6 +29,10 @@ import com.vmware.thinapp.common.workpool.dto.VCConfig;
 public class VmRunCommandBuilder {
    public static final String STDOUT_FILE = "c:\\stdout.txt";
    public static final String STDERR_FILE = "c:\\stderr.txt";
+   /** Guest file holding stdout, then STDERR_MARKER, then stderr */
+   public static final String OUTPUT_FILE = "c:\\output.txt";
+   /** Line separating stdout from stderr in OUTPUT_FILE */
+   public static final String STDERR_MARKER = "---- thinapp-factory stderr ----";
 
    private final InstanceInfo vmInfo;
    private final VCConfig vcConfig;
@@ -173,22 +177,45 @@ public class VmRunCommandBuilder {
       return createCommand("runProgramInGuest", runargs.toArray(new String[runargs.size()]));
    }
 
+   /**
+    * Create command for running a program inside the guest and collecting
+    * its output in OUTPUT_FILE, so that a single download fetches both
+    * stdout and stderr.  The command exits with the program's exit code.
+    */
    public List<String> runProgramWithOutput(RunProgramOptions runOpts, String guestPath,
          String... args) {
       List<String> runargs = runOpts.toList();
-
-      String scriptText = String.format("%s %s > %s 2> %s",
-            guestPath,
-            Joiner.on(" ").join(args),
-            VmRunCommandBuilder.STDOUT_FILE,
-            VmRunCommandBuilder.STDERR_FILE);
-
       runargs.add(""); // Uses cmd.exe.
-      runargs.add(scriptText);
+      runargs.add(outputScript(guestPath, args));
 
       return createCommand("runScriptInGuest", runargs.toArray(new String[runargs.size()]));
    }
 
+   /**
+    * Batch script that runs a program and collects its stdout, followed by
+    * STDERR_MARKER and its stderr, in OUTPUT_FILE.  The script exits with
+    * the program's exit code.
+    *
+    * @param guestPath program to run
+    * @param args program arguments
+    * @return script text for cmd.exe
+    */
+   public static String outputScript(String guestPath, String... args) {
+      return String.format(
+            "%s %s > %s 2> %s\r\n" +
+            "set AF_EXIT=%%ERRORLEVEL%%\r\n" +
+            "(type %s & echo %s & type %s) > %s\r\n" +
+            "exit /b %%AF_EXIT%%\r\n",
+            guestPath,
+            Joiner.on(" ").join(args),
+            STDOUT_FILE,
+            STDERR_FILE,
+            STDOUT_FILE,
+            STDERR_MARKER,
+            STDERR_FILE,
+            OUTPUT_FILE);
+   }
+
    public List<String> runScriptInGuest(RunProgramOptions runOpts, String shell, String command) {
       List<String> runargs = runOpts.toList();
       runargs.add(shell);
@@ -0,0 +1,139 @@
+/* ***********************************************************************
+ * VMware ThinApp Factory
+ * Copyright (c) 2009-2013 VMware, Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ***********************************************************************/
+
+package com.vmware.thinapp.workpool;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.vmware.thinapp.common.workpool.dto.InstanceInfo;
+import com.vmware.thinapp.common.workpool.dto.VCConfig;
+
+/**
+ * Guest operations performed by forking vmrun, one process per operation.
+ */
+public class VmRunGuestOperations extends GuestOperations {
+   private static final Logger log = LoggerFactory.getLogger(VmRunGuestOperations.class);
+
+   /** Characters of vmrun output kept for error messages */
+   private static final int MAX_COMMAND_OUTPUT = 64 * 1024;
+
+   private final VmRunCommandBuilder vmRun;
+   private final Long commandId;
+   private final ProcessMonitorService processMonitor;
+   private final long timeoutSeconds;
+
+   /**
+    * @param vcConfig VC the VM is in
+    * @param vmInfo VM and guest credentials
+    * @param commandId ID to register vmrun processes under, for cancelling
+    * @param processMonitor where to register vmrun processes, may be null
+    * @param timeoutSeconds time after which vmrun is killed, 0 for none
+    */
+   public VmRunGuestOperations(VCConfig vcConfig, InstanceInfo vmInfo, Long commandId,
+                               ProcessMonitorService processMonitor, long timeoutSeconds) {
+      this.vmRun = new VmRunCommandBuilder(vcConfig, vmInfo);
+      this.commandId = commandId;
+      this.processMonitor = processMonitor;
+      this.timeoutSeconds = timeoutSeconds;
+   }
+
+   @Override
+   public List<Result> execute(List<Operation> operations) throws IOException {
+      List<Result> results = new ArrayList<Result>(operations.size());
+      for (Operation operation : operations) {
+         results.add(run(operation));
+      }
+      return results;
+   }
+
+   private Result run(Operation operation) throws IOException {
+      List<String> cmd;
+      List<String> masks = Collections.emptyList();
+      switch (operation.getType()) {
+         case upload:
+            cmd = vmRun.uploadFile(operation.getArg(0), operation.getArg(1));
+            break;
+         case download:
+            cmd = vmRun.downloadFile(operation.getArg(0), operation.getArg(1));
+            break;
+         case runProgram:
+            List<String> args = operation.getArgs();
+            cmd = vmRun.runProgram(operation.getOptions(), args.get(0),
+                    args.subList(1, args.size()).toArray(new String[args.size() - 1]));
+            masks = operation.getOptions().getMasks();
+            break;
+         case runScript:
+            cmd = vmRun.runScriptInGuest(operation.getOptions(), operation.getArg(0), operation.getArg(1));
+            masks = operation.getOptions().getMasks();
+            break;
+         case createDirectory:
+            cmd = vmRun.createDirectory(operation.getArg(0));
+            break;
+         case listRunningVMs:
+            cmd = vmRun.listRunningVMs();
+            break;
+         default:
+            throw new IllegalArgumentException("Unknown guest operation: " + operation);
+      }
+
+      log.info("Running command: {}.", mask(cmd, masks));
+      OutputRingBuffer output = new OutputRingBuffer(MAX_COMMAND_OUTPUT);
+      int exitCode = new StreamingProcess(cmd)
+              .addSink(output)
+              .addSink(new StreamingProcess.LineSink() {
+                 @Override
+                 public void line(String line) {
+                    log.error(line);
+                 }
+              })
+              .setTimeout(timeoutSeconds, TimeUnit.SECONDS)
+              .setMonitor(processMonitor, commandId)
+              .run();
+      return new Result(exitCode, output.toString());
+   }
+
+   /**
+    * Command line for logging, with passwords and the given strings masked.
+    */
+   static List<String> mask(List<String> cmd, List<String> masks) {
+      List<String> displayCmd = new ArrayList<String>(cmd.size());
+      boolean maskNext = false;
+      for (String arg : cmd) {
+         if (arg != null && (arg.equals("-p") || arg.equals("-gp"))) {
+            maskNext = true;
+         } else if (maskNext) {
+            arg = "********";
+            maskNext = false;
+         } else {
+            for (String mask : masks) {
+               if (arg != null) {
+                  arg = arg.replace(mask, "********");
+               }
+            }
+         }
+         displayCmd.add(arg);
+      }
+      return displayCmd;
+   }
+}
@@ -0,0 +1,310 @@
+/* ***********************************************************************
+ * VMware ThinApp Factory
+ * Copyright (c) 2009-2013 VMware, Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ***********************************************************************/
+
+package com.vmware.thinapp.workpool;
+
+import java.util.TimeZone;
+
+/**
+ * Decides how many spare instances a growable workpool keeps ready ahead of
+ * demand, so that a lease request doesn't have to wait for a clone to be
+ * created, powered on and booted.
+ *
+ * The number of spares is the number of lease requests expected to arrive
+ * while a new instance is being created.  The arrival rate is the larger of
+ * the recent rate (exponentially decayed) and the rate seen at this time of
+ * day on previous days, and the time to create an instance is learned from
+ * completed instancing.  The result is kept between the configured minimum
+ * and maximum number of spares, and never takes the workpool over its
+ * maximum number of instances.
+ *
+ * The policy also keeps the metrics needed to tune it: how many leases were
+ * served by an instance that was already free (hits) and how long instances
+ * sat free (idle cost).
+ *
+ * Not thread safe: each policy belongs to a single workpool actor.
+ */
+public class WarmPoolPolicy {
+   private static final long HOUR_MS = 60 * 60 * 1000L;
+   private static final int HOURS_PER_DAY = 24;
+
+   /** Expected arrivals below this don't justify keeping a spare */
+   private static final double MIN_EXPECTED_ARRIVALS = 0.1;
+
+   /** Weight of the latest day in the time-of-day profile */
+   private static final double PROFILE_WEIGHT = 0.3;
+
+   /** Weight of the latest instancing time in the learned lead time */
+   private static final double LEAD_TIME_WEIGHT = 0.2;
+
+   private final int minSpares;
+   private final int maxSpares;
+   private final double rateWindowMs;
+   private final TimeZone timeZone;
+
+   /** Expected time to create a new instance */
+   private double leadTimeMs;
+
+   /** Decayed arrival rate, per millisecond, as of lastArrival */
+   private double rate;
+   private long lastArrival = -1;
+
+   /** Arrivals per hour, for each hour of the day */
+   private final double[] profile = new double[HOURS_PER_DAY];
+   private long currentHourStart = -1;
+   private int currentHourArrivals;
+
+   private long arrivals;
+   private long hits;
+   private long misses;
+   private long sparesProvisioned;
+   private long idleInstanceMs;
+   private long lastObserved = -1;
+   private int lastFree;
+
+   /**
+    * @param minSpares number of spares to keep even without demand
+    * @param maxSpares largest number of spares to keep; 0 disables the policy
+    * @param leadTimeMs initial estimate of the time to create an instance
+    * @param rateWindowMs time constant of the recent arrival rate
+    * @param timeZone time zone of the time-of-day profile
+    */
+   public WarmPoolPolicy(int minSpares, int maxSpares, long leadTimeMs, long rateWindowMs,
+                         TimeZone timeZone) {
+      if (minSpares < 0 || maxSpares < minSpares) {
+         throw new IllegalArgumentException(
+                 "Invalid spare range: " + minSpares + " to " + maxSpares + ".");
+      }
+      if (leadTimeMs <= 0 || rateWindowMs <= 0) {
+         throw new IllegalArgumentException("Lead time and rate window must be positive.");
+      }
+      this.minSpares = minSpares;
+      this.maxSpares = maxSpares;
+      this.leadTimeMs = leadTimeMs;
+      this.rateWindowMs = rateWindowMs;
+      this.timeZone = timeZone;
+   }
+
+   /**
+    * Record a new lease request.
+    *
+    * @param now current time in milliseconds
+    */
+   public void arrival(long now) {
+      rollHours(now);
+      currentHourArrivals++;
+      rate = rateAt(now) + 1.0 / rateWindowMs;
+      lastArrival = now;
+      arrivals++;
+   }
+
+   /**
+    * Record a lease request being completed.
+    *
+    * @param hit true if an instance was free when the request arrived
+    */
+   public void leased(boolean hit) {
+      if (hit) {
+         hits++;
+      } else {
+         misses++;
+      }
+   }
+
+   /**
+    * Record how long it took to create an instance.
+    *
+    * @param millis time from requesting the instance to it being available
+    */
+   public void instancingTime(long millis) {
+      leadTimeMs = (1 - LEAD_TIME_WEIGHT) * leadTimeMs + LEAD_TIME_WEIGHT * millis;
+   }
+
+   /**
+    * Number of spare instances the workpool should have right now.
+    *
+    * @param now current time in milliseconds
+    * @return number of spares, between the minimum and maximum spares
+    */
+   public int targetSpares(long now) {
+      if (maxSpares == 0) {
+         return 0;
+      }
+      rollHours(now);
+
+      double perMs = Math.max(rateAt(now),
+              Math.max(profileRate(now), profileRate(now + (long) leadTimeMs)));
+      double expected = perMs * leadTimeMs;
+      int target = (expected < MIN_EXPECTED_ARRIVALS) ? 0 : (int) Math.ceil(expected);
+      return Math.max(minSpares, Math.min(maxSpares, target));
+   }
+
+   /**
+    * Decide how many new instances to create as spares, and account for the
+    * time the currently free instances have been idle.
+    *
+    * @param now current time in milliseconds
+    * @param free instances available for leasing
+    * @param instancing instances being created
+    * @param waiting lease requests still waiting for an instance
+    * @param total instances in the workpool, in any state
+    * @param maximum maximum number of instances in the workpool
+    * @return number of instances to create
+    */
+   public int sparesToAdd(long now, int free, int instancing, int waiting, int total, int maximum) {
+      observe(now, free);
+
+      // Instances already being created for waiters won't be spares.
+      int comingSpares = Math.max(0, instancing - waiting);
+      int needed = targetSpares(now) - free - comingSpares;
+      int count = Math.max(0, Math.min(needed, maximum - total));
+      sparesProvisioned += count;
+      return count;
+   }
+
+   /**
+    * Account for the time instances have been free since the last call.
+    *
+    * @param now current time in milliseconds
+    * @param free instances available for leasing
+    */
+   public void observe(long now, int free) {
+      if (lastObserved >= 0 && now > lastObserved) {
+         idleInstanceMs += lastFree * (now - lastObserved);
+      }
+      lastObserved = now;
+      lastFree = free;
+   }
+
+   /**
+    * @return a snapshot of the policy metrics
+    */
+   public Stats getStats() {
+      return new Stats(arrivals, hits, misses, sparesProvisioned, idleInstanceMs,
+              (long) leadTimeMs);
+   }
+
+   private double rateAt(long now) {
+      if (lastArrival < 0) {
+         return 0;
+      }
+      return rate * Math.exp(-Math.max(0, now - lastArrival) / rateWindowMs);
+   }
+
+   /**
+    * Arrival rate per millisecond seen in the same hour on previous days.
+    */
+   private double profileRate(long time) {
+      return profile[hourOfDay(time)] / HOUR_MS;
+   }
+
+   /**
+    * Fold the arrivals of every hour that has ended into the profile.  Hours
+    * without any arrivals count as well, so quiet hours fade out.
+    */
+   private void rollHours(long now) {
+      long hourStart = hourStart(now);
+      if (currentHourStart < 0) {
+         currentHourStart = hourStart;
+         return;
+      }
+      if (hourStart - currentHourStart > HOURS_PER_DAY * HOUR_MS) {
+         // Idle for more than a day; every hour of the day has ended once.
+         currentHourStart = hourStart - HOURS_PER_DAY * HOUR_MS;
+      }
+      while (currentHourStart < hourStart) {
+         int hour = hourOfDay(currentHourStart);
+         profile[hour] = (1 - PROFILE_WEIGHT) * profile[hour] + PROFILE_WEIGHT * currentHourArrivals;
+         currentHourArrivals = 0;
+         currentHourStart += HOUR_MS;
+      }
+   }
+
+   private long hourStart(long time) {
+      long local = time + timeZone.getOffset(time);
+      return time - (local % HOUR_MS);
+   }
+
+   private int hourOfDay(long time) {
+      long local = time + timeZone.getOffset(time);
+      return (int) ((local / HOUR_MS) % HOURS_PER_DAY);
+   }
+
+   /**
+    * Metrics of a warm pool policy.
+    */
+   public static class Stats {
+      private final long arrivals;
+      private final long hits;
+      private final long misses;
+      private final long sparesProvisioned;
+      private final long idleInstanceMs;
+      private final long leadTimeMs;
+
+      public Stats(long arrivals, long hits, long misses, long sparesProvisioned,
+                   long idleInstanceMs, long leadTimeMs) {
+         this.arrivals = arrivals;
+         this.hits = hits;
+         this.misses = misses;
+         this.sparesProvisioned = sparesProvisioned;
+         this.idleInstanceMs = idleInstanceMs;
+         this.leadTimeMs = leadTimeMs;
+      }
+
+      public long getArrivals() {
+         return arrivals;
+      }
+
+      public long getHits() {
+         return hits;
+      }
+
+      public long getMisses() {
+         return misses;
+      }
+
+      /**
+       * @return fraction of completed leases that found a free instance, or 0
+       */
+      public double getHitRate() {
+         long leases = hits + misses;
+         return (leases == 0) ? 0 : (double) hits / leases;
+      }
+
+      public long getSparesProvisioned() {
+         return sparesProvisioned;
+      }
+
+      /**
+       * @return total time instances spent free, in instance-milliseconds
+       */
+      public long getIdleInstanceMs() {
+         return idleInstanceMs;
+      }
+
+      public long getLeadTimeMs() {
+         return leadTimeMs;
+      }
+
+      @Override
+      public String toString() {
+         return String.format("arrivals=%d hits=%d misses=%d hitRate=%.2f spares=%d " +
+                 "idleInstanceMs=%d leadTimeMs=%d", arrivals, hits, misses, getHitRate(),
+                 sparesProvisioned, idleInstanceMs, leadTimeMs);
+      }
+   }
+}
@@ -0,0 +1,176 @@
+/* ***********************************************************************
+ * VMware ThinApp Factory
+ * Copyright (c) 2009-2013 VMware, Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ***********************************************************************/
+
+package com.vmware.thinapp.workpool;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.vmware.thinapp.common.workpool.dto.InstanceInfo;
+import com.vmware.thinapp.common.workpool.dto.VCConfig;
+
+/**
+ * Guest operations sent to a guest-operations worker, which performs a
+ * whole batch over the VC session it keeps open instead of forking vmrun
+ * for each operation.
+ *
+ * Operations the worker can't perform, listing running VMs and runs that
+ * need an active window, go to vmrun.  So does everything for a VC the
+ * worker found doesn't support guest operations, and any batch the worker
+ * reports it could not perform.  A worker that dies during a batch, which
+ * is what cancelling the command does, fails the batch.
+ */
+public class WorkerGuestOperations extends GuestOperations {
+   private static final Logger log = LoggerFactory.getLogger(WorkerGuestOperations.class);
+
+   /** Operation name of guest requests */
+   public static final String GUEST = "guest";
+
+   private final ScriptWorkerPool pool;
+   private final GuestOperations fallback;
+   private final Set<String> unsupportedHosts;
+   private final String host;
+   private final Map<String, Object> params;
+   private final Long commandId;
+   private final ProcessMonitorService processMonitor;
+
+   /**
+    * @param pool guest-operations workers
+    * @param vcConfig VC the VM is in
+    * @param vmInfo VM and guest credentials
+    * @param commandId ID to register the busy worker under, for cancelling
+    * @param processMonitor where to register the busy worker, may be null
+    * @param timeoutSeconds time a guest program may run, 0 for no limit
+    * @param fallback backend for what the worker can't do
+    * @param unsupportedHosts VC hosts known not to support guest
+    * operations; shared between instances and added to when the worker
+    * finds another
+    */
+   public WorkerGuestOperations(ScriptWorkerPool pool, VCConfig vcConfig, InstanceInfo vmInfo,
+                                Long commandId, ProcessMonitorService processMonitor,
+                                long timeoutSeconds, GuestOperations fallback,
+                                Set<String> unsupportedHosts) {
+      this.pool = pool;
+      this.fallback = fallback;
+      this.unsupportedHosts = unsupportedHosts;
+      this.host = vcConfig.getHost();
+      this.commandId = commandId;
+      this.processMonitor = processMonitor;
+
+      Map<String, Object> vc = new HashMap<String, Object>();
+      vc.put("vcHost", vcConfig.getHost());
+      vc.put("vcUsername", vcConfig.getUsername());
+      vc.put("vcPassword", vcConfig.getPassword());
+      vc.put("dcName", vcConfig.getDatacenter());
+      Map<String, Object> guest = new HashMap<String, Object>();
+      guest.put("username", vmInfo.getGuestUsername());
+      guest.put("password", vmInfo.getGuestPassword());
+
+      params = new HashMap<String, Object>();
+      params.put("vc", vc);
+      params.put("vm", vmInfo.getMoid());
+      params.put("guest", guest);
+      params.put("timeout", timeoutSeconds);
+   }
+
+   @Override
+   public List<Result> execute(List<Operation> operations) throws IOException {
+      // Split the batch into runs of operations for the same backend so that
+      // the order is kept.
+      List<Result> results = new ArrayList<Result>(operations.size());
+      int start = 0;
+      while (start < operations.size()) {
+         boolean worker = canSend(operations.get(start));
+         int end = start + 1;
+         while (end < operations.size() && canSend(operations.get(end)) == worker) {
+            end++;
+         }
+         List<Operation> segment = operations.subList(start, end);
+         results.addAll(worker ? send(segment) : fallback.execute(segment));
+         start = end;
+      }
+      return results;
+   }
+
+   private boolean canSend(Operation operation) {
+      if (unsupportedHosts.contains(host)) {
+         return false;
+      }
+      switch (operation.getType()) {
+         case listRunningVMs:
+            return false;
+         case runProgram:
+         case runScript:
+            return !operation.getOptions().isActiveWindow();
+         default:
+            return true;
+      }
+   }
+
+   private List<Result> send(List<Operation> operations) throws IOException {
+      List<Map<String, Object>> encoded = new ArrayList<Map<String, Object>>(operations.size());
+      for (Operation operation : operations) {
+         Map<String, Object> map = new HashMap<String, Object>();
+         map.put("type", operation.getType().name());
+         map.put("args", operation.getArgs());
+         if (operation.isRun()) {
+            map.put("interactive", operation.getOptions().isInteractive());
+            map.put("noWait", operation.getOptions().isNoWait());
+         }
+         encoded.add(map);
+      }
+      Map<String, Object> request = new HashMap<String, Object>(params);
+      request.put("operations", encoded);
+
+      log.info("Sending {} to guest-operations worker.", operations);
+      ScriptWorkerPool.Response response;
+      try {
+         response = pool.call(GUEST, request, ScriptWorkers.logTo(log), processMonitor, commandId);
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+         throw new IOException("Interrupted while waiting for guest operations.");
+      }
+
+      if (Boolean.TRUE.equals(response.get("unsupported"))) {
+         log.info("{} does not support guest operations ({}), using vmrun from now on.",
+                 host, response.getError());
+         unsupportedHosts.add(host);
+         return fallback.execute(operations);
+      }
+      Object values = response.get("results");
+      if (!(values instanceof List) || ((List<?>) values).size() != operations.size()) {
+         log.warn("Guest-operations worker failed ({}), using vmrun.", response.getError());
+         return fallback.execute(operations);
+      }
+
+      List<Result> results = new ArrayList<Result>(operations.size());
+      for (Object value : (List<?>) values) {
+         Map<?, ?> map = (Map<?, ?>) value;
+         Object output = map.get("output");
+         results.add(new Result(((Number) map.get("exitCode")).intValue(),
+                 (output == null) ? "" : output.toString()));
+      }
+      return results;
+   }
+}
@@ -91,10 +91,20 @@ public interface WorkpoolInstance {
    /**
     * Get the underlying workpool data model.
     *
+    * This copies the whole model in a transaction, prefer
+    * {@link #getSnapshot()} for reading.
+    *
     * @return a full clone of the model
     */
    WorkpoolModel getWorkpoolModel();
 
+   /**
+    * Get the current state of the workpool.
+    *
+    * @return an immutable snapshot, shared until the workpool changes
+    */
+   WorkpoolSnapshot getSnapshot();
+
    /**
     * Return a VM lease
     *
@@ -153,4 +163,32 @@ public interface WorkpoolInstance {
     * @param instanceId
     */
    Future<Void> removeInstance(long instanceId);
+
+   /**
+    * Private.
+    *
+    * Start or stop keeping spare instances as the expected demand changes.
+    */
+   void refreshSpares();
+
+   /**
+    * Private.
+    *
+    * Run one pass over the workpool for all the events since the last one.
+    */
+   void _process();
+
+   /**
+    * Get how often the workpool was processed and how long it took.
+    *
+    * @return a snapshot of the processing metrics
+    */
+   ProcessCoalescer.Stats getProcessStats();
+
+   /**
+    * Get the hit rate and idle cost of the spare instances.
+    *
+    * @return a snapshot of the warm pool metrics
+    */
+   WarmPoolPolicy.Stats getWarmPoolStats();
 }
@@ -19,12 +19,19 @@ package com.vmware.thinapp.workpool;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.Queue;
 import java.util.Set;
+import java.util.TimeZone;
 import java.util.concurrent.Callable;
 import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 
 import javax.annotation.Resource;
 
@@ -33,12 +40,14 @@ import org.hibernate.util.SerializationHelper;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.transaction.TransactionStatus;
 import org.springframework.transaction.support.TransactionCallback;
 import org.springframework.transaction.support.TransactionCallbackWithoutResult;
 import org.springframework.transaction.support.TransactionTemplate;
 import org.springframework.util.CollectionUtils;
 
+import com.google.common.base.Function;
 import com.google.common.eventbus.EventBus;
 import com.vmware.thinapp.workpool.dao.InstanceRepository;
 import com.vmware.thinapp.workpool.dao.LeaseRepository;
@@ -47,8 +56,8 @@ import com.vmware.thinapp.workpool.dao.WorkpoolRepository;
 import com.vmware.thinapp.workpool.model.InstanceModel;
 import com.vmware.thinapp.workpool.model.LeaseModel;
 import com.vmware.thinapp.workpool.model.WorkpoolModel;
-import com.vmware.vim25.mo.ServiceInstance;
 
+import akka.actor.Scheduler;
 import akka.actor.TypedActor;
 import akka.dispatch.CompletableFuture;
 import akka.dispatch.DefaultCompletableFuture;
@@ -64,9 +73,24 @@ public class WorkpoolInstanceImpl extends TypedActor implements WorkpoolInstance
    @Autowired private WorkpoolRepository workpoolDao;
    @Autowired private VCConfigRepository vcConfigDao;
    @Autowired private LeaseRepository leaseDao;
+   @Autowired private BulkVmExecutor bulkVmExecutor;
+   @Autowired private VCSessionPool vcSessions;
    @Resource(name = "workpoolTransactionTemplate")
    private TransactionTemplate txn;
 
+   // Warm pool settings, see WarmPoolPolicy.
+   @Value("#{workpoolProperties['warmpool.minSpares'] ?: 0}")
+   private int warmPoolMinSpares;
+   @Value("#{workpoolProperties['warmpool.maxSpares'] ?: 2}")
+   private int warmPoolMaxSpares;
+   @Value("#{workpoolProperties['warmpool.leadTimeSeconds'] ?: 300}")
+   private long warmPoolLeadTimeSeconds;
+   @Value("#{workpoolProperties['warmpool.rateWindowMinutes'] ?: 30}")
+   private long warmPoolRateWindowMinutes;
+   // How long VM health fetched from VC is trusted when leasing.
+   @Value("#{workpoolProperties['health.maxAgeSeconds'] ?: 10}")
+   private long healthMaxAgeSeconds;
+
    private final long workpoolId;
    private final Instancer instancer;
    // We have to wait for the instancer to become available before we can request
@@ -77,6 +101,34 @@ public class WorkpoolInstanceImpl extends TypedActor implements WorkpoolInstance
    private final EventBus eventBus = new EventBus();
    private WorkpoolInstance self;
 
+   // Keeps spare instances ready ahead of demand.
+   private WarmPoolPolicy warmPool;
+   // Decides what each pass does with waiters and spares.
+   private LeasePlanner<CompletableFuture<LeaseModel>> leasePlanner;
+   // When each instance in progress was requested, to learn how long instancing takes.
+   private final Map<Long, Long> instancingStarted = new HashMap<Long, Long>();
+   private ScheduledFuture<?> warmPoolRefresh;
+   private InstanceHealthSource healthSource;
+   private InstanceHealthCache healthCache;
+   private ProcessCoalescer processCoalescer;
+   private final Runnable processPass = new Runnable() {
+      @Override
+      public void run() {
+         processNow();
+      }
+   };
+   /** Shared with readers until the model changes */
+   private WorkpoolSnapshot snapshot;
+   private boolean snapshotStale = true;
+   private long snapshotVersion;
+
+   private static final Function<InstanceModel, String> MOID_OF = new Function<InstanceModel, String>() {
+      @Override
+      public String apply(InstanceModel instance) {
+         return instance.getMoid();
+      }
+   };
+
    public WorkpoolInstanceImpl(WorkpoolModel newWorkpool, Instancer instancer) {
       // Need to prepare by creating a snapshot in vmImage for our own use during initial phase.
       this.workpoolId = newWorkpool.getId();
@@ -86,9 +138,9 @@ public class WorkpoolInstanceImpl extends TypedActor implements WorkpoolInstance
    @Override
    public void subscribe(Object observer) {
       eventBus.register(observer);
-      WorkpoolModel workpoolModel = getWorkpoolModel();
+      WorkpoolModel.State state = getSnapshot().getState();
       // Sends current state directly to listener when subscribing to sync up.
-      eventBus.post(new WorkpoolStateChange(workpoolModel.getState(), workpoolModel.getState(), self));
+      eventBus.post(new WorkpoolStateChange(state, state, self));
    }
 
    @Override
@@ -103,7 +155,7 @@ public class WorkpoolInstanceImpl extends TypedActor implements WorkpoolInstance
 
    @Override
    public Future<Void> delete() {
-      WorkpoolModel workpool = getWorkpoolModel();
+      WorkpoolSnapshot workpool = getSnapshot();
       if (!workpool.getState().isDeletable()) {
          throw new WorkpoolException(
                  "Cannot delete in the current state: " + workpool.getState().name() + ".");
@@ -116,7 +168,7 @@ public class WorkpoolInstanceImpl extends TypedActor implements WorkpoolInstance
 
    @Override
    public Future<Void> forget() {
-      WorkpoolModel workpool = getWorkpoolModel();
+      WorkpoolSnapshot workpool = getSnapshot();
       if (!workpool.getState().isDeletable()) {
          throw new WorkpoolException(
                  "Cannot delete in the current state: " + workpool.getState().name() + ".");
@@ -130,6 +182,7 @@ public class WorkpoolInstanceImpl extends TypedActor implements WorkpoolInstance
             workpoolDao.update(workpool);
          }
       });
+      modelChanged();
       setState(WorkpoolModel.State.deleting);
       process();
       return future(null);
@@ -138,10 +191,7 @@ public class WorkpoolInstanceImpl extends TypedActor implements WorkpoolInstance
    @Override
    public Future<Void> reset() {
       // Only allow an available workpool to be reset
-      //XXX: This approach sucks, we're doing one transaction/copy just to check the state,
-      //     then next we run another transaction just to set the state, THEN we do another
-      //     transaction/copy in process().  There is probably a better way.
-      WorkpoolModel workpool = getWorkpoolModel();
+      WorkpoolSnapshot workpool = getSnapshot();
       if (workpool.getState() != WorkpoolModel.State.available) {
          throw new WorkpoolException("Cannot reset a workpool that is not available");
       }
@@ -173,6 +223,7 @@ public class WorkpoolInstanceImpl extends TypedActor implements WorkpoolInstance
             return instance;
          }
       });
+      modelChanged();
 
       return future(model);
    }
@@ -186,39 +237,128 @@ public class WorkpoolInstanceImpl extends TypedActor implements WorkpoolInstance
             instanceDao.delete(model);
          }
       });
+      modelChanged();
 
       return future(null);
    }
 
    @Override
    public void deleteInstance(final InstanceModel instance) {
-      log.info("Deleting instance: {}.", instance);
+      destroyInstances(Collections.singletonList(instance));
+   }
+
+   /**
+    * Delete the backing VMs of several instances as one bulk batch, so they
+    * are destroyed in parallel within the per-host and per-datastore limits.
+    * Each instance is reported through _onInstanceRemoved as its VM goes.
+    *
+    * @param instances instances to delete
+    */
+   private void destroyInstances(Collection<InstanceModel> instances) {
+      if (instances.isEmpty()) {
+         return;
+      }
+      log.info("Deleting instances: {}.", instances);
+
+      final Map<String, InstanceModel> byMoid = new HashMap<String, InstanceModel>();
+      final List<InstanceModel> withoutVm = new ArrayList<InstanceModel>();
+      for (InstanceModel instance : instances) {
+         instance.setState(InstanceModel.State.deleting);
+         instanceDao.update(instance);
+         if (instance.getMoid() != null) {
+            byMoid.put(instance.getMoid(), instance);
+         } else {
+            withoutVm.add(instance);
+         }
+      }
+      modelChanged();
+
+      // Every instance is reported exactly once, whatever happens to the batch.
+      final Set<String> reported = Collections.synchronizedSet(new HashSet<String>());
 
-      // XXX: Blocking.
-      final ServiceInstance si = vcManager.getConnection().get().get();
-      instance.setState(InstanceModel.State.deleting);
-      instanceDao.update(instance);
       Futures.future(new Callable<Void>() {
          @Override
          public Void call() {
-            if (instance.getMoid() != null) {
-               VirtualMachineHelper vm = new VirtualMachineHelper(si, instance.getMoid());
-               log.info("Powering off instance ({}, {})...", instance.getId(), instance.getMoid());
-               vm.powerOff();
-               log.info("Deleting instance...");
-               vm.delete();
-               log.info("Delete finished.");
+            for (InstanceModel instance : withoutVm) {
+               self._onInstanceRemoved(completed(null), instance);
+            }
+            if (byMoid.isEmpty()) {
+               return null;
             }
+
+            Map<String, InstanceHealth> placement = healthSource.fetch(byMoid.keySet());
+            List<VmOperation> ops = new ArrayList<VmOperation>();
+            for (String moid : byMoid.keySet()) {
+               InstanceHealth health = placementOf(placement, moid);
+               if (health.exists()) {
+                  ops.add(VmOperations.delete(vcSessions, moid, health));
+               } else {
+                  // Already gone from VC, nothing to destroy.
+                  reportRemoved(reported, byMoid.get(moid), null);
+               }
+            }
+
+            // The deletes run on the executor's threads, not this one.
+            bulkVmExecutor.submit(ops, new BulkVmExecutor.ProgressListener() {
+               @Override
+               public void progress(VmOperation op, BulkVmExecutor.Outcome outcome,
+                                    Throwable error, int finished, int total) {
+                  log.info("{}: {} ({}/{}).", new Object[] { op, outcome, finished, total });
+                  if (outcome != BulkVmExecutor.Outcome.retrying) {
+                     reportRemoved(reported, byMoid.get(op.getMoid()), error);
+                  }
+               }
+            }, null);
             return null;
          }
       }, Long.MAX_VALUE).onComplete(new Procedure<Future<Void>>() {
          @Override
          public void apply(Future<Void> param) {
-            self._onInstanceRemoved(param, instance);
+            if (param.exception().isDefined()) {
+               // Don't leave the instances deleting forever.
+               Throwable error = param.exception().get();
+               log.error("Unable to delete instances.", error);
+               for (InstanceModel instance : byMoid.values()) {
+                  reportRemoved(reported, instance, error);
+               }
+            }
          }
       });
    }
 
+   /**
+    * Report the outcome of deleting an instance's VM, unless it has already
+    * been reported.
+    *
+    * @param reported moids already reported
+    * @param instance the instance
+    * @param error the failure, or null if the VM is gone
+    */
+   private void reportRemoved(Set<String> reported, InstanceModel instance, Throwable error) {
+      if (reported.add(instance.getMoid())) {
+         self._onInstanceRemoved(completed(error), instance);
+      }
+   }
+
+   private static InstanceHealth placementOf(Map<String, InstanceHealth> placement, String moid) {
+      InstanceHealth health = placement.get(moid);
+      return (health != null) ? health : InstanceHealth.unknown(moid);
+   }
+
+   /**
+    * @return a future already completed with no result, or with the given
+    *         error
+    */
+   private static Future<Void> completed(Throwable error) {
+      DefaultCompletableFuture<Void> future = new DefaultCompletableFuture<Void>(Long.MAX_VALUE);
+      if (error == null) {
+         future.completeWithResult(null);
+      } else {
+         future.completeWithException(error);
+      }
+      return future;
+   }
+
    /**
     * Callback once backing VM is deleted so model can be removed.
     *
@@ -245,6 +385,7 @@ public class WorkpoolInstanceImpl extends TypedActor implements WorkpoolInstance
             workpoolDao.update(workpool);
          }
       });
+      modelChanged();
 
       process();
    }
@@ -258,6 +399,7 @@ public class WorkpoolInstanceImpl extends TypedActor implements WorkpoolInstance
             instanceDao.update(instance);
          }
       });
+      modelChanged();
 
       process();
    }
@@ -283,6 +425,7 @@ public class WorkpoolInstanceImpl extends TypedActor implements WorkpoolInstance
    @Override
    public FutureWrapper<LeaseModel> acquire() {
       CompletableFuture<LeaseModel> f = new DefaultCompletableFuture<LeaseModel>(Long.MAX_VALUE);
+      warmPool.arrival(System.currentTimeMillis());
       log.debug("Adding new waiter: {}.", f);
       waiters.add(f);
       log.debug("Current waiters: {}.", waiters);
@@ -312,6 +455,7 @@ public class WorkpoolInstanceImpl extends TypedActor implements WorkpoolInstance
       // an explicit save here.
       instanceDao.save(instance);
       workpoolDao.update(workpool);
+      instancingStarted.put(instance.getId(), System.currentTimeMillis());
 
       return new Runnable() {
          @Override
@@ -359,6 +503,33 @@ public class WorkpoolInstanceImpl extends TypedActor implements WorkpoolInstance
       };
    }
 
+   @Override
+   public WorkpoolSnapshot getSnapshot() {
+      if (snapshotStale) {
+         txn.execute(new TransactionCallbackWithoutResult() {
+            @Override
+            protected void doInTransactionWithoutResult(TransactionStatus transactionStatus) {
+               WorkpoolModel model = getLocalModel();
+               // Once deleted, keep handing out the last snapshot.
+               if (model != null) {
+                  snapshot = WorkpoolSnapshot.of(model, snapshotVersion);
+                  snapshotStale = false;
+               }
+            }
+         });
+      }
+      return snapshot;
+   }
+
+   /**
+    * Mark the current snapshot out of date after changing the model, so the
+    * next reader gets a new one.
+    */
+   private void modelChanged() {
+      snapshotVersion++;
+      snapshotStale = true;
+   }
+
    @Override
    public WorkpoolModel getWorkpoolModel() {
       return txn.execute(new TransactionCallback<WorkpoolModel>() {
@@ -386,11 +557,15 @@ public class WorkpoolInstanceImpl extends TypedActor implements WorkpoolInstance
             log.info("Instancing completed.");
             instanceDao.refresh(instance);
             WorkpoolModel workpool = workpoolDao.get(workpoolId);
+            Long started = instancingStarted.remove(instance.getId());
 
             try {
                CloneRunner.Result res = result.get();
 
                if (res.isSuccess()) {
+                  if (started != null) {
+                     warmPool.instancingTime(System.currentTimeMillis() - started);
+                  }
                   instance.setMoid(res.getMoid());
                   instance.setState(InstanceModel.State.available);
                   instanceDao.update(instance);
@@ -416,12 +591,16 @@ public class WorkpoolInstanceImpl extends TypedActor implements WorkpoolInstance
             }
          }
       });
+      modelChanged();
 
       process();
    }
 
    @Override
    public void postStop() {
+      if (warmPoolRefresh != null) {
+         warmPoolRefresh.cancel(false);
+      }
       instancer.unsubscribe(self);
       TypedActor.stop(instancer);
    }
@@ -429,7 +608,24 @@ public class WorkpoolInstanceImpl extends TypedActor implements WorkpoolInstance
    @Override
    public void preStart() {
       self = getContext().getSelfAs();
+      processCoalescer = new ProcessCoalescer(new Runnable() {
+         @Override
+         public void run() {
+            self._process();
+         }
+      });
       instancer.subscribe(self);
+      warmPool = new WarmPoolPolicy(
+              warmPoolMinSpares,
+              warmPoolMaxSpares,
+              TimeUnit.SECONDS.toMillis(warmPoolLeadTimeSeconds),
+              TimeUnit.MINUTES.toMillis(warmPoolRateWindowMinutes),
+              TimeZone.getDefault());
+      leasePlanner = new LeasePlanner<CompletableFuture<LeaseModel>>(warmPool);
+      healthSource = new PropertyCollectorHealthSource(vcManager);
+      healthCache = new InstanceHealthCache(
+              healthSource,
+              TimeUnit.SECONDS.toMillis(healthMaxAgeSeconds));
 
       // Move all instances from any running state to a failed state.
       txn.execute(new TransactionCallbackWithoutResult() {
@@ -439,6 +635,7 @@ public class WorkpoolInstanceImpl extends TypedActor implements WorkpoolInstance
             workpool.getLeases().clear();
             WorkpoolModel.State state = workpool.getState().getFailedStateOrSelf();
             setState(state);
+            modelChanged();
 
             Iterator<InstanceModel> instanceIter = workpool.getInstances().iterator();
 
@@ -467,10 +664,50 @@ public class WorkpoolInstanceImpl extends TypedActor implements WorkpoolInstance
 
       // Process in case anything has changed while we weren't running.
       process();
+
+      // The number of spares to keep changes with time as well as with
+      // requests, so revisit it regularly.
+      warmPoolRefresh = Scheduler.schedule(new Runnable() {
+         @Override
+         public void run() {
+            self.refreshSpares();
+         }
+      }, 1, 1, TimeUnit.MINUTES);
    }
 
-   /** Processes waiters to fulfill workpool requests. */
+   @Override
+   public void refreshSpares() {
+      log.debug("Warm pool: {}.", warmPool.getStats());
+      process();
+   }
+
+   @Override
+   public WarmPoolPolicy.Stats getWarmPoolStats() {
+      return warmPool.getStats();
+   }
+
+   @Override
+   public ProcessCoalescer.Stats getProcessStats() {
+      return processCoalescer.getStats();
+   }
+
+   /**
+    * Request a pass over the workpool.  Requests made before the pass runs
+    * are all handled by it, so a burst of events costs one pass.
+    */
    private void process() {
+      processCoalescer.request();
+   }
+
+   @Override
+   public void _process() {
+      if (processCoalescer.runPending(processPass, waiters.size())) {
+         log.debug("Processed workpool: {}.", processCoalescer.getStats());
+      }
+   }
+
+   /** Processes waiters to fulfill workpool requests. */
+   private void processNow() {
       log.debug("Processing workpool.");
 
       // The idea here is that the transaction usually needs to commit before
@@ -529,6 +766,7 @@ public class WorkpoolInstanceImpl extends TypedActor implements WorkpoolInstance
                waiter.completeWithException(new WorkpoolException(msg));
                waiterIter.remove();
             }
+            leasePlanner.forgetWaiters();
          }
 
          /**
@@ -566,117 +804,93 @@ public class WorkpoolInstanceImpl extends TypedActor implements WorkpoolInstance
 
             log.debug("Reaping instances: {}", toReap);
 
-            for (InstanceModel i : toReap) {
-               deleteInstance(i);
-            }
+            destroyInstances(toReap);
          }
 
          /**
           * Attempt to satisfy waiters by either leasing out existing instances
-          * or spinning up new ones as needed.
+          * or spinning up new ones as needed, and start spare instances ahead
+          * of demand as the warm pool policy asks for.
           *
           * @param workpool workpool model
           */
          private void processWaiters(WorkpoolModel workpool) {
             assert workpool.getState() == WorkpoolModel.State.available;
 
-            int countOfInstancing = 0;
+            // Look up the free instances and their VMs once for all waiters.
+            // Without waiters nothing is leased, so VC isn't asked.
+            List<InstanceModel> free = waiters.isEmpty()
+                    ? workpoolDao.getFreeInstances(workpool)
+                    : leasableInstances(workpool);
+
+            int instancing = 0;
             for (InstanceModel instance : workpool.getInstances()) {
                if (instance.getState() == InstanceModel.State.instancing) {
-                  countOfInstancing ++;
+                  instancing++;
                }
             }
 
-            Iterator<CompletableFuture<LeaseModel>> waiterIter = waiters.iterator();
-
-            // Use iterator interface so we can remove elements while iterating.
-            while (waiterIter.hasNext()) {
-               CompletableFuture<LeaseModel> waiter = waiterIter.next();
-
-               // Try to satisfy waiters with existing available instances.
-               if (tryExistingInstances(waiter, workpool)) {
-                  log.info("Completed waiter with a free lease.");
-                  waiterIter.remove();
-                  // Satisfy any additional waiters by spinning up new instances.
-               } else if (countOfInstancing > 0) {
-                  /*
-                   * There seems to have a race condition here. Namely, when
-                   * the code reach here, the actual VM in instancing state
-                   * might have already changed due to some instancing tasks
-                   * have just completed and we might miss this "available"
-                   * VM and wait it forever (until use start another capture).
-                   *
-                   * This race condition should need to be worried. In case
-                   * of a instancing VM becomes available, the
-                   * _onInstancingCompleted() method will always call the
-                   * process() (which will trigger another waiters scan) after
-                   * it change the instance's state to available. Therefore,
-                   * even if we missed this available in this round, it will
-                   * be picked up immediately be the next process() call.
-                   */
-                  countOfInstancing --;
-               } else if (tryForNewInstances(waiter, workpool)) {
-                  log.info("Initiated spinup of new instance to satisfy waiter.");
-               } else {
-                  // Waiter's gonna wait.  We've completed all leases and spun up as many VMs as possible so stop
-                  // processing;
-                  break;
-               }
+            /*
+             * Waiters beyond the free instances are first covered by the
+             * instances being created.  If one of those completes while we
+             * are here, _onInstancingComplete() calls process() once it is
+             * available, so the next pass picks it up.
+             */
+            LeasePlanner.Plan<CompletableFuture<LeaseModel>> plan = leasePlanner.plan(
+                    System.currentTimeMillis(),
+                    new ArrayList<CompletableFuture<LeaseModel>>(waiters),
+                    free.size(),
+                    instancing,
+                    workpool.getInstances().size(),
+                    workpool.getMaximumInstances(),
+                    workpool.isGrowable());
+            log.debug("Workpool pass: {}.", plan);
+
+            Iterator<InstanceModel> freeInstances = free.iterator();
+            for (CompletableFuture<LeaseModel> waiter : plan.getLeased()) {
+               runnables.add(completeLease(freeInstances.next(), waiter));
+               waiters.remove(waiter);
+               log.info("Completed waiter with a free lease.");
             }
-         }
-
-         /**
-          * Try to complete the waiter (in the future) by spinning up a new instance.
-          *
-          * @param waiter
-          * @param workpool
-          * @return true if able to spin up a new instance, otherwise false
-          */
-         private boolean tryForNewInstances(CompletableFuture<LeaseModel> waiter, WorkpoolModel workpool) {
-            if (!getWorkpoolModel().isGrowable()) {
-               return false;
+            if (plan.getForWaiters() > 0) {
+               log.info("Initiated spinup of {} new instances to satisfy waiters.",
+                       plan.getForWaiters());
             }
-
-            if (workpool.getInstances().size() >= workpool.getMaximumInstances()) {
-               log.info("Workpool is already at maximum capacity.");
-               return false;
-            } else {
+            for (int i = 0; i < plan.getForWaiters(); i++) {
+               runnables.add(addInstance(workpool));
+            }
+            if (plan.getSpares() > 0) {
+               log.info("Starting {} spare instances.", plan.getSpares());
+            }
+            for (int i = 0; i < plan.getSpares(); i++) {
                runnables.add(addInstance(workpool));
-               return true;
             }
          }
 
          /**
-          * Try to complete the waiter by supplying it an existing unused instance.
+          * Find the free instances whose VM still exists, with a single call
+          * to VC for all of them, and clean up the ones whose VM is gone.
           *
-          * @param waiter
-          * @param workpool
-          * @return true if waiter was completed, otherwise false
+          * @param workpool workpool model
+          * @return usable instances, ready ones first
           */
-         private boolean tryExistingInstances(CompletableFuture<LeaseModel> waiter, WorkpoolModel workpool) {
-            Collection<InstanceModel> freeInstances = workpoolDao.getFreeInstances(workpool);
-
-            for (InstanceModel instance : freeInstances) {
-               if (isVmExistent(instance)) {
-                  runnables.add(completeLease(instance, waiter));
-                  return true;
-               } else {
-                  log.debug("VM {} not found in VC. Clean it up.", instance.getMoid());
-                  deleteInstance(instance);
-                  // TODO: use removeLocalModel(instance);
-               }
+         private List<InstanceModel> leasableInstances(WorkpoolModel workpool) {
+            List<InstanceModel> missing = new ArrayList<InstanceModel>();
+            List<InstanceModel> usable = healthCache.usable(
+                    workpoolDao.getFreeInstances(workpool),
+                    MOID_OF,
+                    System.currentTimeMillis(),
+                    missing);
+
+            for (InstanceModel instance : missing) {
+               log.debug("VM {} not found in VC. Clean it up.", instance.getMoid());
             }
-
-            return false;
-         }
-
-         private boolean isVmExistent(InstanceModel instance) {
-             final ServiceInstance si = vcManager.getConnection().get().get();
-             VirtualMachineHelper vm = new VirtualMachineHelper(si,
-                                                  instance.getMoid());
-             return vm.isExistent();
+            // TODO: use removeLocalModel(instance);
+            destroyInstances(missing);
+            return usable;
          }
       });
+      modelChanged();
 
       runnable.run();
    }
@@ -698,6 +912,8 @@ public class WorkpoolInstanceImpl extends TypedActor implements WorkpoolInstance
             @Override
             protected void doInTransactionWithoutResult(TransactionStatus transactionStatus) {
                WorkpoolModel model = getLocalModel();
+               // The model is gone after this, so take the final snapshot now.
+               snapshot = WorkpoolSnapshot.of(model, ++snapshotVersion);
                workpoolDao.delete(model);
             }
          });
@@ -706,18 +922,20 @@ public class WorkpoolInstanceImpl extends TypedActor implements WorkpoolInstance
          log.debug("All leases [{}] cleared.", workpool.getLeases());
          workpool.getLeases().clear();
 
+         List<InstanceModel> toDelete = new ArrayList<InstanceModel>();
          for (final InstanceModel i : workpool.getInstances()) {
             switch (i.getState()) {
                case created:
                case available:
                case instancingFailed:
                case deleteFailed:
-                  deleteInstance(i);
+                  toDelete.add(i);
                   break;
                case deleting:
                case instancing:
             }
          }
+         destroyInstances(toDelete);
       }
    }
 
@@ -742,27 +960,53 @@ public class WorkpoolInstanceImpl extends TypedActor implements WorkpoolInstance
    private void powerOffInstances() {
       log.info("Powering off all instances.");
 
-      final Set<InstanceModel> instances = getWorkpoolModel().getInstances();
+      final List<InstanceSnapshot> instances = getSnapshot().getInstances();
 
-      // XXX: Blocking.
-      final ServiceInstance si = vcManager.getConnection().get().get();
-      Futures.future(new Callable<Void>() {
+      Futures.future(new Callable<Boolean>() {
          @Override
-         public Void call() {
-            for (InstanceModel instance : instances) {
+         public Boolean call() {
+            List<String> moids = new ArrayList<String>();
+            for (InstanceSnapshot instance : instances) {
                if (instance.getMoid() != null) {
-                  VirtualMachineHelper vm = new VirtualMachineHelper(si, instance.getMoid());
-                  log.info("Powering off instance ({}, {})...", instance.getId(), instance.getMoid());
-                  vm.powerOff();
-                  log.info("Instance powered off.");
+                  moids.add(instance.getMoid());
                }
             }
-            return null;
+            if (moids.isEmpty()) {
+               return false;
+            }
+
+            // Power off in parallel, so a reset takes about as long as the
+            // slowest VM rather than the sum of all of them.
+            Map<String, InstanceHealth> placement = healthSource.fetch(moids);
+            final List<VmOperation> ops = new ArrayList<VmOperation>();
+            for (String moid : moids) {
+               ops.add(VmOperations.powerOff(vcSessions, moid, placementOf(placement, moid)));
+            }
+
+            bulkVmExecutor.submit(ops, null, new BulkVmExecutor.CompletionListener() {
+               @Override
+               public void completed(BulkVmExecutor.Result result) {
+                  for (Map.Entry<VmOperation, Throwable> failed : result.getFailed().entrySet()) {
+                     log.error("Unable to power off " + failed.getKey().getMoid() + ".",
+                             failed.getValue());
+                  }
+                  log.info("{} of {} instances powered off.",
+                          result.getSucceeded().size(), ops.size());
+                  self._onResetComplete(WorkpoolInstanceImpl.completed(null));
+               }
+            });
+            return true;
          }
-      }, Long.MAX_VALUE).onComplete(new Procedure<Future<Void>>() {
+      }, Long.MAX_VALUE).onComplete(new Procedure<Future<Boolean>>() {
          @Override
-         public void apply(Future<Void> param) {
-            self._onResetComplete(param);
+         public void apply(Future<Boolean> param) {
+            // Once the batch is submitted, its completion ends the reset.
+            if (param.exception().isDefined()) {
+               log.error("Unable to power off instances.", param.exception().get());
+               self._onResetComplete(completed(null));
+            } else if (!param.result().get()) {
+               self._onResetComplete(completed(null));
+            }
          }
       });
    }
@@ -793,6 +1037,7 @@ public class WorkpoolInstanceImpl extends TypedActor implements WorkpoolInstance
             workpoolDao.update(workpool);
          }
       });
+      modelChanged();
 
       process();
       return future(null);
@@ -835,6 +1080,7 @@ public class WorkpoolInstanceImpl extends TypedActor implements WorkpoolInstance
             workpoolDao.update(existing);
          }
       });
+      modelChanged();
       // Process in case maximum instances changed so instances can
       // be adjusted.
       process();
@@ -861,6 +1107,7 @@ public class WorkpoolInstanceImpl extends TypedActor implements WorkpoolInstance
             return originalState;
          }
       });
+      modelChanged();
 
       log.info("Transitioned from state {} to {}.", originalState, state);
       WorkpoolStateChange change = new WorkpoolStateChange(originalState, state, self);
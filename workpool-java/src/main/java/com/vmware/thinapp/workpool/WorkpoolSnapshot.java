@@ -0,0 +1,210 @@
+/* ***********************************************************************
+ * VMware ThinApp Factory
+ * Copyright (c) 2009-2013 VMware, Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ***********************************************************************/
+
+package com.vmware.thinapp.workpool;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import com.vmware.thinapp.workpool.model.CustomWorkpoolModel;
+import com.vmware.thinapp.workpool.model.FullWorkpoolModel;
+import com.vmware.thinapp.workpool.model.InstanceModel;
+import com.vmware.thinapp.workpool.model.LinkedWorkpoolModel;
+import com.vmware.thinapp.workpool.model.OsInfoModel;
+import com.vmware.thinapp.workpool.model.OsRegistrationModel;
+import com.vmware.thinapp.workpool.model.VmPatternModel;
+import com.vmware.thinapp.workpool.model.WorkpoolModel;
+
+/**
+ * Immutable view of a workpool at one point in time.
+ *
+ * A workpool builds a new snapshot only after its model has changed, and
+ * hands the same snapshot to every reader until then, so reading one takes
+ * neither a transaction nor a copy of the model.  The version goes up each
+ * time the workpool changes.
+ */
+public class WorkpoolSnapshot {
+   /**
+    * The kind of workpool the snapshot was taken of.
+    */
+   public enum Type {
+      full,
+      linked,
+      custom
+   }
+
+   private final long version;
+   private final long id;
+   private final Type type;
+   private final String name;
+   private final WorkpoolModel.State state;
+   private final String lastError;
+   private final int maximumInstances;
+   private final boolean growable;
+   private final int leaseCount;
+   private final List<InstanceSnapshot> instances;
+   private final VmPatternModel vmPattern;
+   private final Long vmImageId;
+   private final OsInfoModel osInfo;
+
+   private WorkpoolSnapshot(long version, WorkpoolModel model) {
+      this.version = version;
+      this.id = model.getId();
+      this.name = model.getName();
+      this.state = model.getState();
+      this.lastError = model.getLastError();
+      this.maximumInstances = model.getMaximumInstances();
+      this.growable = model.isGrowable();
+      this.leaseCount = model.getLeases().size();
+
+      List<InstanceSnapshot> copies = new ArrayList<InstanceSnapshot>(model.getInstances().size());
+      for (InstanceModel instance : model.getInstances()) {
+         copies.add(new InstanceSnapshot(instance));
+      }
+      this.instances = Collections.unmodifiableList(copies);
+
+      if (model instanceof FullWorkpoolModel) {
+         this.type = Type.full;
+         this.vmPattern = copy(((FullWorkpoolModel) model).getInstancer());
+         this.vmImageId = null;
+         this.osInfo = null;
+      } else if (model instanceof LinkedWorkpoolModel) {
+         this.type = Type.linked;
+         this.vmPattern = null;
+         this.vmImageId = ((LinkedWorkpoolModel) model).getInstancer().getId();
+         this.osInfo = null;
+      } else if (model instanceof CustomWorkpoolModel) {
+         this.type = Type.custom;
+         this.vmPattern = null;
+         this.vmImageId = null;
+         this.osInfo = copy(((CustomWorkpoolModel) model).getOsInfo());
+      } else {
+         throw new IllegalArgumentException("Unknown workpool type: " + model.getClass());
+      }
+   }
+
+   /**
+    * Take a snapshot of a workpool.  Must be called while its session is
+    * open.
+    *
+    * @param model workpool to copy
+    * @param version version of the workpool the model represents
+    * @return a new snapshot
+    */
+   public static WorkpoolSnapshot of(WorkpoolModel model, long version) {
+      return new WorkpoolSnapshot(version, model);
+   }
+
+   public long getVersion() {
+      return version;
+   }
+
+   public long getId() {
+      return id;
+   }
+
+   public Type getType() {
+      return type;
+   }
+
+   public String getName() {
+      return name;
+   }
+
+   public WorkpoolModel.State getState() {
+      return state;
+   }
+
+   public String getLastError() {
+      return lastError;
+   }
+
+   public int getMaximumInstances() {
+      return maximumInstances;
+   }
+
+   public boolean isGrowable() {
+      return growable;
+   }
+
+   public int getLeaseCount() {
+      return leaseCount;
+   }
+
+   public List<InstanceSnapshot> getInstances() {
+      return instances;
+   }
+
+   /**
+    * @return a private copy of the VM pattern of a full workpool, otherwise null
+    */
+   public VmPatternModel getVmPattern() {
+      return (vmPattern == null) ? null : copy(vmPattern);
+   }
+
+   /**
+    * @return id of the VM image of a linked workpool, otherwise null
+    */
+   public Long getVmImageId() {
+      return vmImageId;
+   }
+
+   /**
+    * @return a private copy of the OS of a custom workpool, otherwise null
+    */
+   public OsInfoModel getOsInfo() {
+      return (osInfo == null) ? null : copy(osInfo);
+   }
+
+   @Override
+   public String toString() {
+      return "WorkpoolSnapshot[id=" + id + ", name=" + name + ", state=" + state +
+              ", version=" + version + ", instances=" + instances.size() + "]";
+   }
+
+   private static VmPatternModel copy(VmPatternModel pattern) {
+      VmPatternModel copy = new VmPatternModel(
+              copy(pattern.getOsInfo()),
+              copy(pattern.getOsRegistration()),
+              pattern.getSourceIso(),
+              pattern.getNetworkName());
+      copy.setId(pattern.getId());
+      return copy;
+   }
+
+   private static OsInfoModel copy(OsInfoModel osInfo) {
+      if (osInfo == null) {
+         return null;
+      }
+      OsInfoModel copy = new OsInfoModel();
+      copy.setOsType(osInfo.getOsType());
+      copy.setVariant(osInfo.getVariant());
+      return copy;
+   }
+
+   private static OsRegistrationModel copy(OsRegistrationModel registration) {
+      if (registration == null) {
+         return null;
+      }
+      return new OsRegistrationModel(
+              registration.getLicenseKey(),
+              registration.getUserName(),
+              registration.getOrganization(),
+              registration.getKmsServer());
+   }
+}
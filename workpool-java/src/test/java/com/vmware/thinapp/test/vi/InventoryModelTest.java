@@ -0,0 +1,191 @@
+/* ***********************************************************************
+ * VMware ThinApp Factory
+ * Copyright (c) 2009-2013 VMware, Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ***********************************************************************/
+
+package com.vmware.thinapp.test.vi;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.vmware.thinapp.common.vi.dto.VINode;
+import com.vmware.thinapp.common.vi.util.VIConstants;
+import com.vmware.thinapp.vi.InventoryModel;
+
+/**
+ * Test building VINode trees from the in-memory inventory.
+ */
+public class InventoryModelTest {
+   private static final String WINDOWS = "windows7Guest";
+
+   private InventoryModel model;
+
+   @Before
+   public void setUp() {
+      model = new InventoryModel();
+      model.reset("domain-c7", " [vc.example.com]");
+      put("ComputeResource", "domain-c7",
+              InventoryModel.NAME, "cluster",
+              InventoryModel.RESOURCE_POOL, "resgroup-8",
+              InventoryModel.DATASTORE, Arrays.asList("datastore-1", "datastore-2"),
+              InventoryModel.NETWORK, Arrays.asList("network-1"));
+      put("ResourcePool", "resgroup-8", InventoryModel.NAME, "Resources", InventoryModel.PARENT, "domain-c7");
+      put("Datastore", "datastore-1", InventoryModel.NAME, "local");
+      put("Datastore", "datastore-2", InventoryModel.NAME, "shared");
+      put("Network", "network-1", InventoryModel.NAME, "VM Network");
+   }
+
+   @Test
+   public void notLoaded() {
+      assertNull(model.tree(VINode.Type.Datastore));
+      model.setLoaded();
+      assertEquals("cluster [vc.example.com]", model.tree(VINode.Type.Datastore).getName());
+   }
+
+   @Test
+   public void datastoresAndNetworks() {
+      model.setLoaded();
+
+      VINode datastores = model.tree(VINode.Type.Datastore);
+      assertTrue(datastores.isRoot());
+      assertEquals("domain-c7", datastores.getMorValue());
+      assertEquals(2, datastores.getChildren().size());
+      VINode local = datastores.getChildren().get(0);
+      assertEquals("local", local.getName());
+      assertEquals("[local]", local.getPath());
+      assertEquals(VINode.Type.Datastore, local.getNodeType());
+      assertTrue(local.isHasChild());
+
+      VINode networks = model.tree(VINode.Type.Network);
+      assertEquals(1, networks.getChildren().size());
+      assertEquals("VM Network", networks.getChildren().get(0).getName());
+      assertEquals(VINode.Type.Network, networks.getChildren().get(0).getNodeType());
+      assertFalse(networks.getChildren().get(0).isHasChild());
+
+      assertTrue(model.tree(VINode.Type.Folder).isHasChild());
+   }
+
+   @Test
+   public void vmsAreFiltered() {
+      put("VirtualMachine", "vm-1", InventoryModel.NAME, "xp", InventoryModel.RESOURCE_POOL, "resgroup-8",
+              InventoryModel.GUEST_ID, "winXPProGuest", InventoryModel.TAF_VM, false);
+      put("VirtualMachine", "vm-2", InventoryModel.NAME, "linux", InventoryModel.RESOURCE_POOL, "resgroup-8",
+              InventoryModel.GUEST_ID, "ubuntuGuest", InventoryModel.TAF_VM, false);
+      put("VirtualMachine", "vm-3", InventoryModel.NAME, "appliance", InventoryModel.RESOURCE_POOL, "resgroup-8",
+              InventoryModel.GUEST_ID, WINDOWS, InventoryModel.TAF_VM, true);
+      model.setLoaded();
+
+      List<VINode> vms = model.tree(VINode.Type.VirtualMachine).getChildren();
+      assertEquals(1, vms.size());
+      assertEquals("xp", vms.get(0).getName());
+      assertEquals("winXPProGuest", vms.get(0).getProperties().get(VIConstants.GUEST_ID));
+   }
+
+   @Test
+   public void emptyPoolsAreLeftOut() {
+      put("ResourcePool", "resgroup-9", InventoryModel.NAME, "empty", InventoryModel.PARENT, "resgroup-8");
+      put("ResourcePool", "resgroup-10", InventoryModel.NAME, "full", InventoryModel.PARENT, "resgroup-8");
+      put("VirtualApp", "resgroup-v11", InventoryModel.NAME, "vapp", InventoryModel.PARENT, "resgroup-10");
+      put("VirtualMachine", "vm-1", InventoryModel.NAME, "win7", InventoryModel.RESOURCE_POOL, "resgroup-v11",
+              InventoryModel.GUEST_ID, WINDOWS);
+      model.setLoaded();
+
+      List<VINode> children = model.tree(VINode.Type.VirtualMachine).getChildren();
+      assertEquals(1, children.size());
+      VINode full = children.get(0);
+      assertEquals("full", full.getName());
+      assertEquals(VINode.Type.ResourcePool, full.getNodeType());
+      VINode vapp = full.getChildren().get(0);
+      assertEquals("vapp", vapp.getName());
+      assertEquals("win7", vapp.getChildren().get(0).getName());
+   }
+
+   @Test
+   public void updatesAreApplied() {
+      put("VirtualMachine", "vm-1", InventoryModel.NAME, "win7", InventoryModel.RESOURCE_POOL, "resgroup-8",
+              InventoryModel.GUEST_ID, WINDOWS);
+      model.setLoaded();
+
+      VINode before = model.tree(VINode.Type.VirtualMachine);
+      assertSame(before, model.tree(VINode.Type.VirtualMachine));
+
+      long version = model.getVersion();
+      put("VirtualMachine", "vm-1", InventoryModel.NAME, "renamed");
+      assertTrue(model.getVersion() > version);
+      VINode after = model.tree(VINode.Type.VirtualMachine);
+      assertNotSame(before, after);
+      assertEquals("renamed", after.getChildren().get(0).getName());
+
+      put("VirtualMachine", "vm-1", InventoryModel.TAF_VM, true);
+      assertTrue(model.tree(VINode.Type.VirtualMachine).getChildren().isEmpty());
+
+      put("VirtualMachine", "vm-1", InventoryModel.TAF_VM, null);
+      assertEquals(1, model.tree(VINode.Type.VirtualMachine).getChildren().size());
+
+      model.remove("vm-1");
+      assertTrue(model.tree(VINode.Type.VirtualMachine).getChildren().isEmpty());
+   }
+
+   @Test
+   public void resetForgetsEverything() {
+      model.setLoaded();
+      model.reset("domain-c9", "");
+      assertFalse(model.isLoaded());
+      assertEquals(0, model.size());
+      assertNull(model.tree(VINode.Type.Datastore));
+   }
+
+   @Test
+   public void largeInventory() {
+      for (int pool = 0; pool < 50; pool++) {
+         put("ResourcePool", "resgroup-p" + pool, InventoryModel.NAME, "pool " + pool,
+                 InventoryModel.PARENT, "resgroup-8");
+      }
+      for (int vm = 0; vm < 5000; vm++) {
+         put("VirtualMachine", "vm-" + vm, InventoryModel.NAME, "vm " + vm,
+                 InventoryModel.RESOURCE_POOL, "resgroup-p" + (vm % 50),
+                 InventoryModel.GUEST_ID, WINDOWS, InventoryModel.TAF_VM, vm % 7 == 0);
+      }
+      model.setLoaded();
+
+      List<VINode> pools = model.tree(VINode.Type.VirtualMachine).getChildren();
+      assertEquals(50, pools.size());
+      int vms = 0;
+      for (VINode pool : pools) {
+         vms += pool.getChildren().size();
+      }
+      assertEquals(5000 - 715, vms);
+   }
+
+   private void put(String type, String moid, Object... properties) {
+      Map<String, Object> map = new HashMap<String, Object>();
+      for (int i = 0; i < properties.length; i += 2) {
+         map.put((String) properties[i], properties[i + 1]);
+      }
+      model.put(type, moid, map);
+   }
+}
@@ -138,7 +138,11 @@ public class VmRunCommandBuilderTest {
             DS_LOC,
             "-interactive",
             "",
-            "dir /s > c:\\stdout.txt 2> c:\\stderr.txt");
+            "dir /s > c:\\stdout.txt 2> c:\\stderr.txt\r\n" +
+            "set AF_EXIT=%ERRORLEVEL%\r\n" +
+            "(type c:\\stdout.txt & echo ---- thinapp-factory stderr ---- & type c:\\stderr.txt)" +
+            " > c:\\output.txt\r\n" +
+            "exit /b %AF_EXIT%\r\n");
 
       RunProgramOptions runOptions = new RunProgramOptions().setInteractive(true);
       List<String> cmd = v.runProgramWithOutput(runOptions, "dir", "/s");
@@ -0,0 +1,295 @@
+/* ***********************************************************************
+ * VMware ThinApp Factory
+ * Copyright (c) 2009-2013 VMware, Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ***********************************************************************/
+
+package com.vmware.thinapp.workpool.tests.unit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Test;
+
+import com.vmware.thinapp.workpool.BulkVmExecutor;
+import com.vmware.thinapp.workpool.VmOperation;
+
+public class BulkVmExecutorTest {
+   private static final long OP_MS = 200;
+
+   private BulkVmExecutor executor;
+
+   /**
+    * Sleeps like a VC task and records how many operations share its host and
+    * datastore at the same time.
+    */
+   private static class SleepingOp extends VmOperation {
+      private static final Map<String, AtomicInteger> running = new HashMap<String, AtomicInteger>();
+      private static final Map<String, Integer> peak = new HashMap<String, Integer>();
+
+      private final int failures;
+      private final AtomicInteger attempts = new AtomicInteger();
+
+      SleepingOp(String moid, String host, String datastore, int failures) {
+         super("Sleep", moid, host, Arrays.asList(datastore));
+         this.failures = failures;
+      }
+
+      static synchronized void reset() {
+         running.clear();
+         peak.clear();
+      }
+
+      static synchronized int peak(String key) {
+         Integer value = peak.get(key);
+         return (value == null) ? 0 : value;
+      }
+
+      private static synchronized void enter(String key) {
+         AtomicInteger count = running.get(key);
+         if (count == null) {
+            count = new AtomicInteger();
+            running.put(key, count);
+         }
+         int now = count.incrementAndGet();
+         if (now > peak(key)) {
+            peak.put(key, now);
+         }
+      }
+
+      private static synchronized void leave(String key) {
+         running.get(key).decrementAndGet();
+      }
+
+      @Override
+      public void run() throws Exception {
+         String datastore = getDatastores().iterator().next();
+         enter(getHost());
+         enter(datastore);
+         try {
+            Thread.sleep(OP_MS);
+         } finally {
+            leave(getHost());
+            leave(datastore);
+         }
+         if (attempts.incrementAndGet() <= failures) {
+            throw new IllegalStateException("Attempt " + attempts.get() + " failed");
+         }
+      }
+   }
+
+   /**
+    * Records the callbacks made for a batch.
+    */
+   private static class Recorder implements BulkVmExecutor.ProgressListener {
+      final List<BulkVmExecutor.Outcome> outcomes = new ArrayList<BulkVmExecutor.Outcome>();
+      int lastFinished;
+      int lastTotal;
+
+      @Override
+      public synchronized void progress(VmOperation operation, BulkVmExecutor.Outcome outcome,
+                                        Throwable error, int finished, int total) {
+         outcomes.add(outcome);
+         lastFinished = Math.max(lastFinished, finished);
+         lastTotal = total;
+      }
+
+      synchronized int count(BulkVmExecutor.Outcome outcome) {
+         int count = 0;
+         for (BulkVmExecutor.Outcome o : outcomes) {
+            if (o == outcome) {
+               count++;
+            }
+         }
+         return count;
+      }
+   }
+
+   private BulkVmExecutor start(int threads, int maxPerHost, int maxPerDatastore) {
+      SleepingOp.reset();
+      executor = new BulkVmExecutor(threads, maxPerHost, maxPerDatastore, 3, 10);
+      executor.start();
+      return executor;
+   }
+
+   @After
+   public void tearDown() {
+      if (executor != null) {
+         executor.stop();
+      }
+   }
+
+   @Test
+   public void runsInParallel() throws Exception {
+      start(40, 0, 0);
+      List<VmOperation> ops = new ArrayList<VmOperation>();
+      for (int i = 0; i < 40; i++) {
+         ops.add(new SleepingOp("vm-" + i, "host-" + (i % 8), "ds-" + (i % 4), 0));
+      }
+      Recorder recorder = new Recorder();
+
+      long start = System.currentTimeMillis();
+      BulkVmExecutor.Result result = executor.run(ops, recorder);
+      long elapsed = System.currentTimeMillis() - start;
+
+      assertTrue(result.isSuccess());
+      assertEquals(40, result.getSucceeded().size());
+      assertEquals(40, recorder.lastFinished);
+      assertEquals(40, recorder.lastTotal);
+      // Serially this would take 8 seconds.
+      assertTrue("Took " + elapsed + "ms", elapsed < 10 * OP_MS);
+   }
+
+   @Test
+   public void limitsPerHostAndDatastore() throws Exception {
+      start(16, 2, 3);
+      List<VmOperation> ops = new ArrayList<VmOperation>();
+      for (int i = 0; i < 24; i++) {
+         ops.add(new SleepingOp("vm-" + i, "host-" + (i % 4), "ds-" + (i % 2), 0));
+      }
+
+      BulkVmExecutor.Result result = executor.run(ops, null);
+
+      assertTrue(result.isSuccess());
+      for (int i = 0; i < 4; i++) {
+         int peak = SleepingOp.peak("host-" + i);
+         assertTrue("host-" + i + " peaked at " + peak, peak > 0 && peak <= 2);
+      }
+      for (int i = 0; i < 2; i++) {
+         int peak = SleepingOp.peak("ds-" + i);
+         assertTrue("ds-" + i + " peaked at " + peak, peak > 0 && peak <= 3);
+      }
+   }
+
+   @Test
+   public void retriesFailedOperation() throws Exception {
+      start(4, 0, 0);
+      VmOperation flaky = new SleepingOp("vm-1", "host-1", "ds-1", 2);
+      Recorder recorder = new Recorder();
+
+      BulkVmExecutor.Result result = executor.run(Arrays.asList(flaky), recorder);
+
+      assertTrue(result.isSuccess());
+      assertEquals(Arrays.asList(flaky), result.getSucceeded());
+      assertEquals(2, recorder.count(BulkVmExecutor.Outcome.retrying));
+      assertEquals(1, recorder.count(BulkVmExecutor.Outcome.succeeded));
+   }
+
+   @Test
+   public void reportsOperationThatKeepsFailing() throws Exception {
+      start(4, 0, 0);
+      VmOperation broken = new SleepingOp("vm-1", "host-1", "ds-1", Integer.MAX_VALUE);
+      VmOperation fine = new SleepingOp("vm-2", "host-1", "ds-1", 0);
+      Recorder recorder = new Recorder();
+
+      BulkVmExecutor.Result result = executor.run(Arrays.asList(broken, fine), recorder);
+
+      assertFalse(result.isSuccess());
+      assertEquals(Arrays.asList(fine), result.getSucceeded());
+      assertTrue(result.getFailed().get(broken) instanceof IllegalStateException);
+      assertEquals(1, recorder.count(BulkVmExecutor.Outcome.failed));
+      assertEquals(2, recorder.count(BulkVmExecutor.Outcome.retrying));
+      assertEquals(2, recorder.lastFinished);
+   }
+
+   /**
+    * Receives the result of a submitted batch.
+    */
+   private static class Completion implements BulkVmExecutor.CompletionListener {
+      final CountDownLatch done = new CountDownLatch(1);
+      volatile BulkVmExecutor.Result result;
+      volatile String thread;
+
+      @Override
+      public void completed(BulkVmExecutor.Result batchResult) {
+         result = batchResult;
+         thread = Thread.currentThread().getName();
+         done.countDown();
+      }
+
+      BulkVmExecutor.Result await() throws InterruptedException {
+         assertTrue("Batch didn't complete", done.await(10, TimeUnit.SECONDS));
+         return result;
+      }
+   }
+
+   @Test
+   public void submitDoesNotWait() throws Exception {
+      start(4, 0, 0);
+      List<VmOperation> ops = new ArrayList<VmOperation>();
+      for (int i = 0; i < 8; i++) {
+         ops.add(new SleepingOp("vm-" + i, "host-1", "ds-1", i % 2));
+      }
+      Completion completion = new Completion();
+
+      long start = System.currentTimeMillis();
+      executor.submit(ops, null, completion);
+      long elapsed = System.currentTimeMillis() - start;
+
+      assertTrue("Took " + elapsed + "ms", elapsed < OP_MS);
+      BulkVmExecutor.Result result = completion.await();
+      assertTrue(result.isSuccess());
+      assertEquals(8, result.getSucceeded().size());
+      // Driven by the executor's threads, including the retries.
+      assertTrue(completion.thread, completion.thread.startsWith("bulk-vm-"));
+   }
+
+   @Test
+   public void emptyBatchCompletesAtOnce() throws Exception {
+      start(1, 0, 0);
+      Completion completion = new Completion();
+
+      executor.submit(new ArrayList<VmOperation>(), null, completion);
+
+      assertEquals(0, completion.done.getCount());
+      assertTrue(completion.result.isSuccess());
+   }
+
+   @Test
+   public void stopFailsOperationsNotStarted() throws Exception {
+      start(1, 0, 0);
+      List<VmOperation> ops = new ArrayList<VmOperation>();
+      for (int i = 0; i < 4; i++) {
+         ops.add(new SleepingOp("vm-" + i, "host-1", "ds-1", 0));
+      }
+      Recorder recorder = new Recorder();
+      Completion completion = new Completion();
+
+      executor.submit(ops, recorder, completion);
+      executor.stop();
+      BulkVmExecutor.Result result = completion.await();
+
+      assertEquals(4, result.getSucceeded().size() + result.getFailed().size());
+      assertFalse(result.isSuccess());
+      assertTrue(result.getFailed().values().iterator().next() instanceof RejectedExecutionException);
+      assertEquals(4, recorder.lastFinished);
+
+      // Batches submitted later fail right away.
+      Completion late = new Completion();
+      executor.submit(Arrays.asList(new SleepingOp("vm-9", "host-1", "ds-1", 0)), null, late);
+      assertEquals(1, late.await().getFailed().size());
+   }
+}
@@ -0,0 +1,150 @@
+/* ***********************************************************************
+ * VMware ThinApp Factory
+ * Copyright (c) 2009-2013 VMware, Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ***********************************************************************/
+
+package com.vmware.thinapp.workpool.tests.unit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.util.FileCopyUtils;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+import com.vmware.thinapp.workpool.GuestArchive;
+
+public class GuestArchiveTest {
+   private File root;
+
+   @Before
+   public void setUp() {
+      root = Files.createTempDir();
+   }
+
+   @After
+   public void tearDown() {
+      for (File file : root.listFiles()) {
+         file.delete();
+      }
+      root.delete();
+   }
+
+   private File file(String name, byte[] content) throws Exception {
+      File file = new File(root, name);
+      FileCopyUtils.copy(content, file);
+      return file;
+   }
+
+   /**
+    * Text, which compresses well, spanning several blocks.
+    */
+   private static byte[] text(int size) {
+      StringBuilder sb = new StringBuilder();
+      for (int i = 0; sb.length() < size; i++) {
+         sb.append("line ").append(i).append(" of a capture log\r\n");
+      }
+      return sb.substring(0, size).getBytes(Charsets.US_ASCII);
+   }
+
+   private static byte[] random(int size) {
+      byte[] bytes = new byte[size];
+      new Random(42).nextBytes(bytes);
+      return bytes;
+   }
+
+   @Test
+   public void smallFilesAreStored() throws Exception {
+      byte[] a = "setoption".getBytes(Charsets.US_ASCII);
+      byte[] b = new byte[0];
+      byte[] c = text(5000);
+      GuestArchive archive = new GuestArchive()
+            .add(file("a", a).toString(), "c:\\a.exe")
+            .add(file("b", b).toString(), "c:\\b.txt")
+            .add(file("c", c).toString(), "c:\\dir\\c.vbs");
+
+      File cab = new File(root, "out.cab");
+      assertFalse(archive.write(cab));
+
+      Map<String, byte[]> read = GuestArchive.read(cab);
+      assertEquals(Arrays.asList("f0", "f1", "f2"), Arrays.asList(read.keySet().toArray()));
+      assertArrayEquals(a, read.get("f0"));
+      assertArrayEquals(b, read.get("f1"));
+      assertArrayEquals(c, read.get("f2"));
+   }
+
+   @Test
+   public void largeCompressiblePayloadIsCompressed() throws Exception {
+      byte[] log = text(300000);
+      byte[] exe = random(70000);
+      GuestArchive archive = new GuestArchive()
+            .add(file("log", log).toString(), "c:\\log.txt")
+            .add(file("exe", exe).toString(), "c:\\tool.exe");
+
+      File cab = new File(root, "out.cab");
+      assertTrue(archive.write(cab));
+      assertTrue(cab.length() < archive.getPayloadSize() / 2);
+
+      Map<String, byte[]> read = GuestArchive.read(cab);
+      assertArrayEquals(log, read.get("f0"));
+      assertArrayEquals(exe, read.get("f1"));
+   }
+
+   @Test
+   public void incompressiblePayloadIsStored() throws Exception {
+      byte[] package1 = random(200000);
+      GuestArchive archive = new GuestArchive()
+            .add(file("package", package1).toString(), "c:\\thinapp\\package.exe")
+            .add(file("tool", text(100)).toString(), "c:\\tool.exe");
+
+      File cab = new File(root, "out.cab");
+      assertFalse(archive.write(cab));
+      assertArrayEquals(package1, GuestArchive.read(cab).get("f0"));
+   }
+
+   @Test
+   public void unpackScriptRoundTrips() throws Exception {
+      GuestArchive archive = new GuestArchive()
+            .add(file("a", text(10)).toString(), "c:\\a.exe")
+            .add(file("b", text(10)).toString(), "c:\\jobdir\\b.exe")
+            .add(file("c", text(10)).toString(), "c:\\jobdir\\c.vbs");
+
+      String script = archive.unpackScript("c:\\pack.cab", "c:\\pack");
+      assertTrue(script.startsWith(
+            "if not exist \"c:\\jobdir\" mkdir \"c:\\jobdir\"\r\n" +
+            "mkdir \"c:\\pack\"\r\n" +
+            "expand \"c:\\pack.cab\" -F:* \"c:\\pack\" > nul\r\n"));
+      assertTrue(script.endsWith("exit /b %AF_EXIT%\r\n"));
+
+      GuestArchive.Unpack unpack = GuestArchive.parseUnpackScript(script);
+      assertEquals("c:\\pack.cab", unpack.getArchive());
+      assertEquals("c:\\a.exe", unpack.getEntries().get("f0"));
+      assertEquals("c:\\jobdir\\b.exe", unpack.getEntries().get("f1"));
+      assertEquals("c:\\jobdir\\c.vbs", unpack.getEntries().get("f2"));
+
+      assertNull(GuestArchive.parseUnpackScript("del c:\\tmpBatch.bat"));
+   }
+}
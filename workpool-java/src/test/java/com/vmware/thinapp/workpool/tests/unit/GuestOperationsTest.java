@@ -0,0 +1,392 @@
+/* ***********************************************************************
+ * VMware ThinApp Factory
+ * Copyright (c) 2009-2013 VMware, Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ***********************************************************************/
+
+package com.vmware.thinapp.workpool.tests.unit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.codehaus.jackson.map.ObjectMapper;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.util.FileCopyUtils;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+import com.vmware.thinapp.common.workpool.dto.InstanceInfo;
+import com.vmware.thinapp.common.workpool.dto.VCConfig;
+import com.vmware.thinapp.workpool.FakeGuestOperations;
+import com.vmware.thinapp.workpool.GuestCommands;
+import com.vmware.thinapp.workpool.GuestOperations;
+import com.vmware.thinapp.workpool.GuestOperations.Operation;
+import com.vmware.thinapp.workpool.GuestOperations.Result;
+import com.vmware.thinapp.workpool.ScriptWorkerPool;
+import com.vmware.thinapp.workpool.VirtualMachineException;
+import com.vmware.thinapp.workpool.VmRunCommandBuilder;
+import com.vmware.thinapp.workpool.VmRunCommandBuilder.RunProgramOptions;
+import com.vmware.thinapp.workpool.VmRunProgramOutput;
+import com.vmware.thinapp.workpool.WorkerGuestOperations;
+
+public class GuestOperationsTest {
+   private static final ObjectMapper mapper = new ObjectMapper();
+
+   /**
+    * Answers guest requests the way the guest-operations worker does: each
+    * operation succeeds with the output "worker <type>", unless the VM is
+    * "vm-unsupported", which gets the unsupported answer.
+    */
+   private static class StubWorker extends Process {
+      final PipedOutputStream requests = new PipedOutputStream();
+      final PipedInputStream responses = new PipedInputStream();
+      final List<Integer> batchSizes = Collections.synchronizedList(new ArrayList<Integer>());
+
+      StubWorker() throws IOException {
+         final PipedInputStream in = new PipedInputStream(requests);
+         final PipedOutputStream out = new PipedOutputStream(responses);
+         Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+               try {
+                  BufferedReader reader = new BufferedReader(new InputStreamReader(in, "UTF-8"));
+                  String line;
+                  while ((line = reader.readLine()) != null) {
+                     out.write((mapper.writeValueAsString(answer(line)) + "\n").getBytes("UTF-8"));
+                     out.flush();
+                  }
+               } catch (Exception e) {
+                  // Pool went away.
+               }
+            }
+         });
+         thread.setDaemon(true);
+         thread.start();
+      }
+
+      Map<String, Object> answer(String line) throws IOException {
+         Map<?, ?> request = mapper.readValue(line, Map.class);
+         Map<String, Object> result = new HashMap<String, Object>();
+         result.put("id", request.get("id"));
+         result.put("type", "result");
+         if ("vm-unsupported".equals(request.get("vm"))) {
+            result.put("unsupported", true);
+            result.put("error", "No guest operations manager.");
+            return result;
+         }
+         List<Map<String, Object>> results = new ArrayList<Map<String, Object>>();
+         for (Object operation : (List<?>) request.get("operations")) {
+            Map<String, Object> map = new HashMap<String, Object>();
+            map.put("exitCode", 0);
+            map.put("output", "worker " + ((Map<?, ?>) operation).get("type"));
+            results.add(map);
+         }
+         batchSizes.add(results.size());
+         result.put("results", results);
+         result.put("error", "");
+         return result;
+      }
+
+      @Override
+      public OutputStream getOutputStream() {
+         return requests;
+      }
+
+      @Override
+      public InputStream getInputStream() {
+         return responses;
+      }
+
+      @Override
+      public InputStream getErrorStream() {
+         return new ByteArrayInputStream(new byte[0]);
+      }
+
+      @Override
+      public int waitFor() {
+         throw new UnsupportedOperationException();
+      }
+
+      @Override
+      public int exitValue() {
+         throw new IllegalThreadStateException();
+      }
+
+      @Override
+      public void destroy() {
+         try {
+            requests.close();
+         } catch (IOException e) {
+            // Ignore.
+         }
+      }
+   }
+
+   /**
+    * Fake guest handler that runs output scripts by writing the given
+    * stdout and stderr to the output file.
+    */
+   private static FakeGuestOperations.Handler output(
+           final int exitCode, final String stdout, final String stderr) {
+      return new FakeGuestOperations.Handler() {
+         @Override
+         public Result run(FakeGuestOperations guest, Operation operation) throws IOException {
+            if (operation.getType() == Operation.Type.runScript &&
+                operation.getArg(1).contains(VmRunCommandBuilder.OUTPUT_FILE)) {
+               File file = guest.file(VmRunCommandBuilder.OUTPUT_FILE);
+               file.getParentFile().mkdirs();
+               FileCopyUtils.copy((stdout + VmRunCommandBuilder.STDERR_MARKER + "\r\n" + stderr)
+                       .getBytes(Charsets.US_ASCII), file);
+               return new Result(exitCode, "");
+            }
+            return new Result(0, "");
+         }
+      };
+   }
+
+   private File root;
+   private FakeGuestOperations fake;
+   private ScriptWorkerPool pool;
+
+   @Before
+   public void setUp() {
+      root = Files.createTempDir();
+      fake = new FakeGuestOperations(root);
+   }
+
+   @After
+   public void tearDown() throws IOException {
+      if (pool != null) {
+         pool.close();
+      }
+      Files.deleteRecursively(root.getCanonicalFile());
+   }
+
+   @Test
+   public void outputIsFetchedInOneBatch() throws Exception {
+      fake.setHandler(output(0, "hello\r\nworld\r\n", ""));
+      VmRunProgramOutput output = new GuestCommands(fake).runProgramInGuestWithOutput("c:\\prog.exe", "/x");
+
+      assertEquals("hello\nworld\n", output.getStdout());
+      assertEquals("", output.getStderr());
+      assertEquals(1, fake.getBatches());
+      List<Operation> operations = fake.getOperations();
+      assertEquals(Operation.Type.runScript, operations.get(0).getType());
+      assertTrue(operations.get(0).getArg(1).startsWith("c:\\prog.exe /x > "));
+      assertEquals(Operation.Type.download, operations.get(1).getType());
+      // The output file doesn't stay in the guest
+      assertEquals(Operation.Type.runScript, operations.get(2).getType());
+      assertFalse(fake.file(VmRunCommandBuilder.OUTPUT_FILE).exists());
+   }
+
+   @Test
+   public void failingProgramThrowsStderr() throws Exception {
+      fake.setHandler(output(3, "", "bad things\r\n"));
+      try {
+         new GuestCommands(fake).runProgramInGuestWithOutput("c:\\prog.exe");
+         fail("Expected the program's stderr to be thrown.");
+      } catch (IOException e) {
+         assertEquals("bad things\n", e.getMessage());
+      }
+   }
+
+   @Test
+   public void batchScriptIsUploadedRunAndDeletedInOneBatch() throws Exception {
+      final FakeGuestOperations.Handler done = output(0, "done\r\n", "");
+      final List<String> scripts = new ArrayList<String>();
+      fake.setHandler(new FakeGuestOperations.Handler() {
+         @Override
+         public Result run(FakeGuestOperations guest, Operation operation) throws IOException {
+            // The batch script, while it's in the guest
+            String guestBatch = guest.getOperations().get(0).getArg(1);
+            scripts.add(Files.toString(guest.file(guestBatch), Charsets.US_ASCII));
+            return done.run(guest, operation);
+         }
+      });
+      VmRunProgramOutput output = new GuestCommands(fake).runBatchScriptInGuestWithOutput(
+              "c:\\work", Arrays.asList("first", "second"));
+
+      assertEquals("done\n", output.getStdout());
+      assertEquals(1, fake.getBatches());
+      List<Operation.Type> types = new ArrayList<Operation.Type>();
+      for (Operation operation : fake.getOperations()) {
+         types.add(operation.getType());
+      }
+      assertEquals(Arrays.asList(Operation.Type.upload, Operation.Type.runScript,
+              Operation.Type.download, Operation.Type.runScript, Operation.Type.runScript), types);
+
+      assertEquals(Arrays.asList("cd /d c:\\work\r\nfirst\r\nsecond\r\n"), scripts);
+      // Neither the script nor its output stays in the guest
+      assertFalse(fake.file(fake.getOperations().get(0).getArg(1)).exists());
+      assertFalse(fake.file(VmRunCommandBuilder.OUTPUT_FILE).exists());
+   }
+
+   @Test
+   public void failedOperationThrows() throws Exception {
+      GuestCommands commands = new GuestCommands(fake);
+      commands.createDirectory("c:\\dir");
+      assertTrue(fake.file("c:\\dir").isDirectory());
+      try {
+         commands.downloadFileFromGuest("c:\\missing.txt", new File(root, "x").toString());
+         fail("Expected the missing file to be reported.");
+      } catch (VirtualMachineException e) {
+         assertTrue(e.getMessage().startsWith("Download file exited with code: -1"));
+      }
+   }
+
+   @Test
+   public void packedUploadIsOneTransfer() throws Exception {
+      Map<String, String> files = new LinkedHashMap<String, String>();
+      for (int i = 0; i < 3; i++) {
+         File host = new File(root, "tool" + i + ".exe");
+         FileCopyUtils.copy(("tool " + i).getBytes(Charsets.US_ASCII), host);
+         files.put(host.toString(), (i == 0) ? "c:\\tool0.exe" : "c:\\jobdir\\tool" + i + ".exe");
+      }
+
+      new GuestCommands(fake).uploadPackedToGuest(files);
+
+      assertEquals(1, fake.getBatches());
+      assertEquals(1, fake.getTransfers());
+      List<Operation> operations = fake.getOperations();
+      assertEquals(2, operations.size());
+      assertEquals(Operation.Type.upload, operations.get(0).getType());
+      assertEquals(Operation.Type.runScript, operations.get(1).getType());
+      for (int i = 0; i < 3; i++) {
+         String guest = (i == 0) ? "c:\\tool0.exe" : "c:\\jobdir\\tool" + i + ".exe";
+         assertEquals("tool " + i, Files.toString(fake.file(guest), Charsets.US_ASCII));
+      }
+      // The archive is removed once unpacked
+      assertFalse(fake.file(operations.get(0).getArg(1)).exists());
+   }
+
+   @Test
+   public void singleFileIsUploadedAsIs() throws Exception {
+      File host = new File(root, "tool.exe");
+      FileCopyUtils.copy("tool".getBytes(Charsets.US_ASCII), host);
+
+      new GuestCommands(fake).uploadPackedToGuest(
+            Collections.singletonMap(host.toString(), "c:\\tool.exe"));
+
+      assertEquals(1, fake.getTransfers());
+      assertEquals(1, fake.getOperations().size());
+      assertEquals("tool", Files.toString(fake.file("c:\\tool.exe"), Charsets.US_ASCII));
+   }
+
+   @Test
+   public void compressedFileIsUploadedNextToTheArchive() throws Exception {
+      Map<String, String> packed = new LinkedHashMap<String, String>();
+      for (int i = 0; i < 2; i++) {
+         File host = new File(root, "tool" + i + ".exe");
+         FileCopyUtils.copy(("tool " + i).getBytes(Charsets.US_ASCII), host);
+         packed.put(host.toString(), "c:\\tool" + i + ".exe");
+      }
+      File installer = new File(root, "package.exe");
+      FileCopyUtils.copy("package".getBytes(Charsets.US_ASCII), installer);
+
+      new GuestCommands(fake).uploadPackedToGuest(packed, "c:\\jobdir",
+            Collections.singletonMap(installer.toString(), "c:\\jobdir\\package.exe"));
+
+      // Create the directory, upload the package and the archive, unpack
+      assertEquals(1, fake.getBatches());
+      assertEquals(2, fake.getTransfers());
+      List<Operation> operations = fake.getOperations();
+      assertEquals(4, operations.size());
+      assertEquals(Operation.Type.createDirectory, operations.get(0).getType());
+      assertEquals(installer.toString(), operations.get(1).getArg(0));
+      assertEquals(Operation.Type.upload, operations.get(2).getType());
+      assertEquals(Operation.Type.runScript, operations.get(3).getType());
+      assertEquals("package",
+            Files.toString(fake.file("c:\\jobdir\\package.exe"), Charsets.US_ASCII));
+      for (int i = 0; i < 2; i++) {
+         assertEquals("tool " + i,
+               Files.toString(fake.file("c:\\tool" + i + ".exe"), Charsets.US_ASCII));
+      }
+   }
+
+   private WorkerGuestOperations worker(final StubWorker stub, String moid, Set<String> unsupported) {
+      pool = new ScriptWorkerPool("stub", new ScriptWorkerPool.Launcher() {
+         @Override
+         public Process launch() {
+            return stub;
+         }
+      }, 1);
+      VCConfig vc = new VCConfig();
+      vc.setHost("vc.example.com");
+      InstanceInfo vm = new InstanceInfo();
+      vm.setMoid(moid);
+      return new WorkerGuestOperations(pool, vc, vm, null, null, 0, fake, unsupported);
+   }
+
+   @Test
+   public void workerKeepsOrderAroundFallbackOperations() throws Exception {
+      StubWorker stub = new StubWorker();
+      GuestOperations operations = worker(stub, "vm-1", new HashSet<String>());
+
+      List<Result> results = operations.execute(Arrays.asList(
+              Operation.createDirectory("c:\\a"),
+              Operation.runProgram(RunProgramOptions.defaultOptions(), "c:\\prog.exe"),
+              Operation.listRunningVMs(),
+              Operation.runProgram(new RunProgramOptions().setActiveWindow(true), "c:\\ui.exe"),
+              Operation.createDirectory("c:\\b")));
+
+      assertEquals(5, results.size());
+      assertEquals("worker createDirectory", results.get(0).getOutput());
+      assertEquals("worker runProgram", results.get(1).getOutput());
+      assertEquals("", results.get(2).getOutput());
+      assertEquals("", results.get(3).getOutput());
+      assertEquals("worker createDirectory", results.get(4).getOutput());
+      assertEquals(Arrays.asList(2, 1), stub.batchSizes);
+      assertEquals(2, fake.getOperations().size());
+      assertEquals(1, fake.getBatches());
+   }
+
+   @Test
+   public void unsupportedHostFallsBack() throws Exception {
+      StubWorker stub = new StubWorker();
+      Set<String> unsupported = new HashSet<String>();
+      GuestOperations operations = worker(stub, "vm-unsupported", unsupported);
+
+      operations.execute(Operation.createDirectory("c:\\a"));
+      assertEquals(Collections.singleton("vc.example.com"), unsupported);
+      assertTrue(fake.file("c:\\a").isDirectory());
+
+      // The host is now known, so the worker isn't asked again.
+      operations.execute(Operation.createDirectory("c:\\b"));
+      assertEquals(1, pool.getStats().getRequests());
+      assertEquals(2, fake.getBatches());
+   }
+}
@@ -0,0 +1,170 @@
+/* ***********************************************************************
+ * VMware ThinApp Factory
+ * Copyright (c) 2009-2013 VMware, Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ***********************************************************************/
+
+package com.vmware.thinapp.workpool.tests.unit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.Test;
+
+import com.google.common.base.Functions;
+import com.vmware.thinapp.workpool.InstanceHealth;
+import com.vmware.thinapp.workpool.InstanceHealthCache;
+import com.vmware.thinapp.workpool.InstanceHealthSource;
+
+public class InstanceHealthCacheTest {
+   private static final long MAX_AGE = 10000;
+
+   /**
+    * Stands in for vCenter: knows a set of VMs and counts the calls made.
+    */
+   private static class FakeHealthSource implements InstanceHealthSource {
+      final Map<String, InstanceHealth> vms = new HashMap<String, InstanceHealth>();
+      int calls;
+
+      void add(String moid, InstanceHealth.PowerState power, boolean tools) {
+         vms.put(moid, new InstanceHealth(moid, true, power, tools));
+      }
+
+      @Override
+      public Map<String, InstanceHealth> fetch(Collection<String> moids) {
+         calls++;
+         Map<String, InstanceHealth> result = new HashMap<String, InstanceHealth>();
+         for (String moid : moids) {
+            InstanceHealth health = vms.get(moid);
+            result.put(moid, (health == null) ? InstanceHealth.missing(moid) : health);
+         }
+         return result;
+      }
+   }
+
+   private static List<String> moids(int count) {
+      List<String> moids = new ArrayList<String>();
+      for (int i = 0; i < count; i++) {
+         moids.add("vm-" + i);
+      }
+      return moids;
+   }
+
+   @Test
+   public void oneCallForManyWaiters() {
+      FakeHealthSource vc = new FakeHealthSource();
+      List<String> free = moids(50);
+      for (String moid : free) {
+         vc.add(moid, InstanceHealth.PowerState.poweredOff, false);
+      }
+      InstanceHealthCache cache = new InstanceHealthCache(vc, MAX_AGE);
+
+      // Fifty waiters, each taking the next free instance.
+      List<String> missing = new ArrayList<String>();
+      List<String> usable = cache.usable(free, Functions.<String>identity(), 0, missing);
+      for (int waiter = 0; waiter < 50; waiter++) {
+         assertEquals(free.get(waiter), usable.get(waiter));
+      }
+
+      assertEquals(1, vc.calls);
+      assertEquals(1, cache.getFetchCount());
+      assertTrue(missing.isEmpty());
+   }
+
+   @Test
+   public void snapshotIsReusedUntilStale() {
+      FakeHealthSource vc = new FakeHealthSource();
+      List<String> free = moids(5);
+      for (String moid : free) {
+         vc.add(moid, InstanceHealth.PowerState.poweredOn, true);
+      }
+      InstanceHealthCache cache = new InstanceHealthCache(vc, MAX_AGE);
+
+      cache.get(free, 0);
+      cache.get(free.subList(0, 2), MAX_AGE / 2);
+      assertEquals(1, vc.calls);
+
+      // Too old.
+      cache.get(free, MAX_AGE + 1);
+      assertEquals(2, vc.calls);
+
+      // A VM the snapshot doesn't know about.
+      vc.add("vm-new", InstanceHealth.PowerState.poweredOn, true);
+      List<String> more = new ArrayList<String>(free);
+      more.add("vm-new");
+      assertTrue(cache.get(more, MAX_AGE + 2).get("vm-new").exists());
+      assertEquals(3, vc.calls);
+
+      cache.invalidate();
+      cache.get(free, MAX_AGE + 3);
+      assertEquals(4, vc.calls);
+   }
+
+   @Test
+   public void missingVmsAreReported() {
+      FakeHealthSource vc = new FakeHealthSource();
+      vc.add("vm-1", InstanceHealth.PowerState.poweredOn, true);
+      vc.add("vm-3", InstanceHealth.PowerState.poweredOff, false);
+      InstanceHealthCache cache = new InstanceHealthCache(vc, MAX_AGE);
+
+      List<String> missing = new ArrayList<String>();
+      List<String> usable = cache.usable(
+              Arrays.asList("vm-1", "vm-2", "vm-3"), Functions.<String>identity(), 0, missing);
+
+      assertEquals(Arrays.asList("vm-1", "vm-3"), usable);
+      assertEquals(Arrays.asList("vm-2"), missing);
+      assertFalse(cache.get(Arrays.asList("vm-2"), 1).get("vm-2").exists());
+      assertEquals(1, vc.calls);
+   }
+
+   @Test
+   public void readyInstancesComeFirst() {
+      FakeHealthSource vc = new FakeHealthSource();
+      vc.add("vm-1", InstanceHealth.PowerState.poweredOff, false);
+      vc.add("vm-2", InstanceHealth.PowerState.poweredOn, false);
+      vc.add("vm-3", InstanceHealth.PowerState.poweredOn, true);
+      vc.add("vm-4", InstanceHealth.PowerState.suspended, false);
+      vc.add("vm-5", InstanceHealth.PowerState.poweredOn, true);
+      InstanceHealthCache cache = new InstanceHealthCache(vc, MAX_AGE);
+
+      List<String> usable = cache.usable(
+              Arrays.asList("vm-1", "vm-2", "vm-3", "vm-4", "vm-5"),
+              Functions.<String>identity(), 0, new ArrayList<String>());
+
+      assertEquals(Arrays.asList("vm-3", "vm-5", "vm-1", "vm-2", "vm-4"), usable);
+   }
+
+   @Test
+   public void instancesWithoutVmAreKept() {
+      FakeHealthSource vc = new FakeHealthSource();
+      InstanceHealthCache cache = new InstanceHealthCache(vc, MAX_AGE);
+
+      Set<String> missing = new HashSet<String>();
+      List<String> usable = cache.usable(
+              Arrays.asList((String) null), Functions.<String>identity(), 0, missing);
+
+      assertEquals(1, usable.size());
+      assertTrue(missing.isEmpty());
+   }
+}
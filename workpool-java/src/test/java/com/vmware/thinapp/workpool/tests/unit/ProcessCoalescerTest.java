@@ -0,0 +1,198 @@
+/* ***********************************************************************
+ * VMware ThinApp Factory
+ * Copyright (c) 2009-2013 VMware, Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ***********************************************************************/
+
+package com.vmware.thinapp.workpool.tests.unit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.LinkedList;
+import java.util.Queue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import com.vmware.thinapp.workpool.ProcessCoalescer;
+
+public class ProcessCoalescerTest {
+   /**
+    * A coalescer whose passes are scheduled on a mailbox that the test
+    * drains by hand, one message at a time.  See WorkpoolInstanceProcessTest
+    * for the coalescer running inside a real workpool actor.
+    */
+   private static class Mailbox {
+      final Queue<Runnable> messages = new LinkedList<Runnable>();
+      int passes;
+      Runnable extraWork;
+
+      final ProcessCoalescer coalescer = new ProcessCoalescer(new Runnable() {
+         @Override
+         public void run() {
+            messages.add(new Runnable() {
+               @Override
+               public void run() {
+                  coalescer.runPending(pass, messages.size());
+               }
+            });
+         }
+      });
+
+      final Runnable pass = new Runnable() {
+         @Override
+         public void run() {
+            passes++;
+            if (extraWork != null) {
+               Runnable work = extraWork;
+               extraWork = null;
+               work.run();
+            }
+         }
+      };
+
+      void drain() {
+         Runnable message;
+         while ((message = messages.poll()) != null) {
+            message.run();
+         }
+      }
+   }
+
+   @Test
+   public void burstOfRequestsIsOnePass() {
+      Mailbox mailbox = new Mailbox();
+      for (int i = 0; i < 100; i++) {
+         mailbox.coalescer.request();
+      }
+      assertEquals(1, mailbox.messages.size());
+      mailbox.drain();
+
+      assertEquals(1, mailbox.passes);
+      ProcessCoalescer.Stats stats = mailbox.coalescer.getStats();
+      assertEquals(100, stats.getRequests());
+      assertEquals(1, stats.getPasses());
+      assertEquals(99, stats.getCoalesced());
+      assertEquals(100, stats.getMaxRequestsPerPass());
+   }
+
+   @Test
+   public void requestDuringPassSchedulesAnother() {
+      final Mailbox mailbox = new Mailbox();
+      mailbox.extraWork = new Runnable() {
+         @Override
+         public void run() {
+            // Like removeLocalModel() calling process() again.
+            mailbox.coalescer.request();
+         }
+      };
+      mailbox.coalescer.request();
+      mailbox.drain();
+
+      assertEquals(2, mailbox.passes);
+      assertTrue(mailbox.messages.isEmpty());
+   }
+
+   @Test
+   public void nothingPendingRunsNothing() {
+      Mailbox mailbox = new Mailbox();
+      assertFalse(mailbox.coalescer.runPending(mailbox.pass, 0));
+      assertEquals(0, mailbox.passes);
+      assertEquals(0, mailbox.coalescer.getStats().getPasses());
+   }
+
+   @Test
+   public void recordsQueueDepth() {
+      Mailbox mailbox = new Mailbox();
+      mailbox.coalescer.request();
+      mailbox.coalescer.runPending(mailbox.pass, 7);
+      mailbox.coalescer.request();
+      mailbox.coalescer.runPending(mailbox.pass, 3);
+
+      ProcessCoalescer.Stats stats = mailbox.coalescer.getStats();
+      assertEquals(2, stats.getPasses());
+      assertEquals(7, stats.getMaxQueueDepth());
+      assertTrue(stats.getMaxPassMicros() >= stats.getLastPassMicros());
+   }
+
+   /**
+    * Requests from many threads against a real single threaded mailbox and
+    * a pass that takes a while: far fewer passes than requests, and none of
+    * the requests lost.
+    */
+   @Test
+   public void concurrentRequestsAreCoalescedAndNeverLost() throws Exception {
+      final ExecutorService mailbox = Executors.newSingleThreadExecutor();
+      final AtomicInteger passes = new AtomicInteger();
+      final AtomicInteger seen = new AtomicInteger();
+      final AtomicInteger requested = new AtomicInteger();
+      final int threads = 8;
+      final int perThread = 500;
+
+      final Runnable pass = new Runnable() {
+         @Override
+         public void run() {
+            passes.incrementAndGet();
+            seen.set(requested.get());
+            try {
+               Thread.sleep(2);
+            } catch (InterruptedException e) {
+               Thread.currentThread().interrupt();
+            }
+         }
+      };
+      final ProcessCoalescer[] holder = new ProcessCoalescer[1];
+      holder[0] = new ProcessCoalescer(new Runnable() {
+         @Override
+         public void run() {
+            mailbox.execute(new Runnable() {
+               @Override
+               public void run() {
+                  holder[0].runPending(pass, 0);
+               }
+            });
+         }
+      });
+
+      final CountDownLatch done = new CountDownLatch(threads);
+      for (int t = 0; t < threads; t++) {
+         new Thread(new Runnable() {
+            @Override
+            public void run() {
+               for (int i = 0; i < perThread; i++) {
+                  requested.incrementAndGet();
+                  holder[0].request();
+               }
+               done.countDown();
+            }
+         }).start();
+      }
+      assertTrue(done.await(10, TimeUnit.SECONDS));
+      mailbox.shutdown();
+      assertTrue(mailbox.awaitTermination(10, TimeUnit.SECONDS));
+
+      // The last pass saw every request.
+      assertEquals(threads * perThread, seen.get());
+      ProcessCoalescer.Stats stats = holder[0].getStats();
+      assertEquals(threads * perThread, stats.getRequests());
+      assertEquals(passes.get(), stats.getPasses());
+      assertTrue("passes " + passes.get(), passes.get() < threads * perThread / 10);
+   }
+}
@@ -0,0 +1,183 @@
+/* ***********************************************************************
+ * VMware ThinApp Factory
+ * Copyright (c) 2009-2013 VMware, Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ***********************************************************************/
+
+package com.vmware.thinapp.workpool.tests.unit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+import com.google.common.base.Supplier;
+import com.vmware.thinapp.workpool.InstanceHealth;
+import com.vmware.thinapp.workpool.NotConnectedException;
+import com.vmware.thinapp.workpool.PropertyCollectorHealthSource;
+import com.vmware.vim25.DynamicProperty;
+import com.vmware.vim25.ManagedObjectNotFound;
+import com.vmware.vim25.ManagedObjectReference;
+import com.vmware.vim25.ObjectContent;
+import com.vmware.vim25.ObjectSpec;
+import com.vmware.vim25.PropertyFilterSpec;
+import com.vmware.vim25.VirtualMachineConnectionState;
+import com.vmware.vim25.VirtualMachinePowerState;
+import com.vmware.vim25.mo.PropertyCollector;
+
+public class PropertyCollectorHealthSourceTest {
+   /**
+    * Stands in for the VC property collector: knows a set of VMs, fails the
+    * whole retrieval for an unknown one like VC does, and counts the calls.
+    */
+   private static class FakePropertyCollector extends PropertyCollector {
+      final Map<String, DynamicProperty[]> vms = new HashMap<String, DynamicProperty[]>();
+      int calls;
+
+      FakePropertyCollector() {
+         super(null, ref("PropertyCollector", "propertyCollector"));
+      }
+
+      void add(String moid, VirtualMachinePowerState power,
+               VirtualMachineConnectionState connection, String tools, String host) {
+         vms.put(moid, new DynamicProperty[] {
+                 prop("runtime.powerState", power),
+                 prop("runtime.connectionState", connection),
+                 prop("guest.toolsRunningStatus", tools),
+                 prop("runtime.host", ref("HostSystem", host)),
+                 prop("datastore", new ManagedObjectReference[] { ref("Datastore", "ds-1") })
+         });
+      }
+
+      @Override
+      public ObjectContent[] retrieveProperties(PropertyFilterSpec[] specs) throws RemoteException {
+         calls++;
+         List<ObjectContent> contents = new ArrayList<ObjectContent>();
+         for (ObjectSpec spec : specs[0].getObjectSet()) {
+            DynamicProperty[] props = vms.get(spec.getObj().getVal());
+            if (props == null) {
+               ManagedObjectNotFound fault = new ManagedObjectNotFound();
+               fault.setObj(spec.getObj());
+               throw fault;
+            }
+            ObjectContent content = new ObjectContent();
+            content.setObj(spec.getObj());
+            content.setPropSet(props);
+            contents.add(content);
+         }
+         return contents.toArray(new ObjectContent[contents.size()]);
+      }
+   }
+
+   private static ManagedObjectReference ref(String type, String val) {
+      ManagedObjectReference ref = new ManagedObjectReference();
+      ref.setType(type);
+      ref.setVal(val);
+      return ref;
+   }
+
+   private static DynamicProperty prop(String name, Object val) {
+      DynamicProperty prop = new DynamicProperty();
+      prop.setName(name);
+      prop.setVal(val);
+      return prop;
+   }
+
+   private static PropertyCollectorHealthSource source(final PropertyCollector collector) {
+      return new PropertyCollectorHealthSource(new Supplier<PropertyCollector>() {
+         @Override
+         public PropertyCollector get() {
+            return collector;
+         }
+      });
+   }
+
+   @Test
+   public void healthAndPlacementInOneCall() {
+      FakePropertyCollector collector = new FakePropertyCollector();
+      collector.add("vm-1", VirtualMachinePowerState.poweredOn,
+              VirtualMachineConnectionState.connected, "guestToolsRunning", "host-1");
+      collector.add("vm-2", VirtualMachinePowerState.poweredOff,
+              VirtualMachineConnectionState.connected, "guestToolsNotRunning", "host-2");
+
+      Map<String, InstanceHealth> health = source(collector).fetch(Arrays.asList("vm-1", "vm-2"));
+
+      assertEquals(1, collector.calls);
+      assertTrue(health.get("vm-1").isReady());
+      assertEquals("host-1", health.get("vm-1").getHost());
+      assertEquals(Arrays.asList("ds-1"), health.get("vm-1").getDatastores());
+
+      InstanceHealth off = health.get("vm-2");
+      assertTrue(off.exists());
+      assertFalse(off.isReady());
+      assertEquals(InstanceHealth.PowerState.poweredOff, off.getPowerState());
+      assertEquals("host-2", off.getHost());
+   }
+
+   @Test
+   public void missingVmsAreDroppedAndTheRestRetried() {
+      FakePropertyCollector collector = new FakePropertyCollector();
+      collector.add("vm-1", VirtualMachinePowerState.poweredOn,
+              VirtualMachineConnectionState.connected, "guestToolsRunning", "host-1");
+
+      Map<String, InstanceHealth> health =
+              source(collector).fetch(Arrays.asList("vm-gone", "vm-1", "vm-also-gone"));
+
+      assertEquals(3, collector.calls);
+      assertFalse(health.get("vm-gone").exists());
+      assertFalse(health.get("vm-also-gone").exists());
+      assertTrue(health.get("vm-1").isReady());
+   }
+
+   @Test
+   public void disconnectedVmsHaveUnknownPower() {
+      FakePropertyCollector collector = new FakePropertyCollector();
+      collector.add("vm-1", VirtualMachinePowerState.poweredOn,
+              VirtualMachineConnectionState.disconnected, "guestToolsRunning", "host-1");
+
+      InstanceHealth health = source(collector).fetch(Arrays.asList("vm-1")).get("vm-1");
+
+      assertTrue(health.exists());
+      assertFalse(health.isReady());
+      assertEquals(InstanceHealth.PowerState.unknown, health.getPowerState());
+      assertEquals("host-1", health.getHost());
+   }
+
+   @Test
+   public void noConnectionMeansUnknownHealth() {
+      PropertyCollectorHealthSource source = new PropertyCollectorHealthSource(
+              new Supplier<PropertyCollector>() {
+                 @Override
+                 public PropertyCollector get() {
+                    throw new NotConnectedException();
+                 }
+              });
+
+      Map<String, InstanceHealth> health = source.fetch(Arrays.asList("vm-1", "vm-2"));
+
+      assertEquals(2, health.size());
+      for (InstanceHealth h : health.values()) {
+         assertTrue(h.exists());
+         assertEquals(InstanceHealth.PowerState.unknown, h.getPowerState());
+      }
+   }
+}
@@ -0,0 +1,319 @@
+/* ***********************************************************************
+ * VMware ThinApp Factory
+ * Copyright (c) 2009-2013 VMware, Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ***********************************************************************/
+
+package com.vmware.thinapp.workpool.tests.unit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.codehaus.jackson.map.ObjectMapper;
+import org.junit.After;
+import org.junit.Test;
+
+import com.vmware.thinapp.workpool.ScriptWorkerPool;
+
+public class ScriptWorkerPoolTest {
+   private static final ObjectMapper mapper = new ObjectMapper();
+
+   /**
+    * Stands in for a worker process, answering requests from a thread:
+    * "clone" succeeds with a moid naming the worker, "fail" returns an error,
+    * "crash" exits without answering and "wait" waits for the latch first.
+    */
+   private static class StubWorker extends Process {
+      final int number;
+      final PipedOutputStream requests = new PipedOutputStream();
+      final PipedInputStream responses = new PipedInputStream();
+      final CountDownLatch latch;
+      volatile Integer exitValue;
+
+      StubWorker(int number, CountDownLatch latch) throws IOException {
+         this.number = number;
+         this.latch = latch;
+         final PipedInputStream in = new PipedInputStream(requests);
+         final PipedOutputStream out = new PipedOutputStream(responses);
+
+         Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+               try {
+                  serve(new BufferedReader(new InputStreamReader(in, "UTF-8")), out);
+               } catch (Exception e) {
+                  // Pool went away.
+               } finally {
+                  exit(0);
+                  try {
+                     out.close();
+                     in.close();
+                  } catch (IOException e) {
+                     // Ignore.
+                  }
+               }
+            }
+         });
+         thread.setDaemon(true);
+         thread.start();
+      }
+
+      void serve(BufferedReader in, OutputStream out) throws Exception {
+         String line;
+         while ((line = in.readLine()) != null) {
+            Map<?, ?> request = mapper.readValue(line, Map.class);
+            Object id = request.get("id");
+            String op = (String) request.get("op");
+
+            if ("crash".equals(op)) {
+               return;
+            }
+            if ("wait".equals(op)) {
+               latch.countDown();
+               latch.await();
+            }
+            send(out, id, "progress", "message", "working on " + request.get("ini"));
+            if ("fail".equals(op)) {
+               send(out, id, "result", "error", "failed");
+            } else {
+               send(out, id, "result", "moid", "vm-" + number);
+            }
+         }
+      }
+
+      static void send(OutputStream out, Object id, String type, String key, String value)
+              throws IOException {
+         Map<String, Object> message = new HashMap<String, Object>();
+         message.put("id", id);
+         message.put("type", type);
+         message.put(key, value);
+         out.write((mapper.writeValueAsString(message) + "\n").getBytes("UTF-8"));
+         out.flush();
+      }
+
+      synchronized void exit(int value) {
+         if (exitValue == null) {
+            exitValue = value;
+         }
+      }
+
+      @Override
+      public OutputStream getOutputStream() {
+         return requests;
+      }
+
+      @Override
+      public InputStream getInputStream() {
+         return responses;
+      }
+
+      @Override
+      public InputStream getErrorStream() {
+         return new ByteArrayInputStream(new byte[0]);
+      }
+
+      @Override
+      public int waitFor() {
+         throw new UnsupportedOperationException();
+      }
+
+      @Override
+      public int exitValue() {
+         Integer value = exitValue;
+         if (value == null) {
+            throw new IllegalThreadStateException();
+         }
+         return value;
+      }
+
+      @Override
+      public void destroy() {
+         exit(143);
+         try {
+            requests.close();
+         } catch (IOException e) {
+            // Ignore.
+         }
+      }
+   }
+
+   private static class StubLauncher implements ScriptWorkerPool.Launcher {
+      final List<StubWorker> workers = Collections.synchronizedList(new ArrayList<StubWorker>());
+      final CountDownLatch latch;
+
+      StubLauncher(CountDownLatch latch) {
+         this.latch = latch;
+      }
+
+      @Override
+      public synchronized Process launch() throws IOException {
+         StubWorker worker = new StubWorker(workers.size() + 1, latch);
+         workers.add(worker);
+         return worker;
+      }
+   }
+
+   private static class Messages implements ScriptWorkerPool.Progress {
+      final List<String> messages = new ArrayList<String>();
+
+      @Override
+      public void message(String message) {
+         messages.add(message);
+      }
+   }
+
+   private ScriptWorkerPool pool;
+
+   @After
+   public void tearDown() {
+      if (pool != null) {
+         pool.close();
+      }
+   }
+
+   @Test
+   public void workerIsReused() throws Exception {
+      StubLauncher launcher = new StubLauncher(null);
+      pool = new ScriptWorkerPool("stub", launcher, 2);
+
+      Messages progress = new Messages();
+      ScriptWorkerPool.Response first = pool.call("clone", "a", progress);
+      ScriptWorkerPool.Response second = pool.call("clone", "b", progress);
+
+      assertEquals("vm-1", first.getMoid());
+      assertEquals("", first.getError());
+      assertEquals("vm-1", second.getMoid());
+      assertEquals(2, progress.messages.size());
+      assertEquals("working on b", progress.messages.get(1));
+      assertEquals(1, pool.getStats().getLaunched());
+      assertEquals(1, pool.getStats().getIdle());
+   }
+
+   @Test
+   public void errorKeepsWorker() throws Exception {
+      StubLauncher launcher = new StubLauncher(null);
+      pool = new ScriptWorkerPool("stub", launcher, 1);
+
+      ScriptWorkerPool.Response response = pool.call("fail", "a", new Messages());
+      assertEquals("", response.getMoid());
+      assertEquals("failed", response.getError());
+
+      assertEquals("vm-1", pool.call("clone", "b", new Messages()).getMoid());
+      assertEquals(1, pool.getStats().getLaunched());
+      assertEquals(0, pool.getStats().getFailures());
+   }
+
+   @Test
+   public void crashedWorkerIsReplaced() throws Exception {
+      StubLauncher launcher = new StubLauncher(null);
+      pool = new ScriptWorkerPool("stub", launcher, 1);
+
+      try {
+         pool.call("crash", "a", new Messages());
+         fail("Expected the crash to be reported.");
+      } catch (IOException e) {
+         // Expected.
+      }
+      assertEquals(0, pool.getStats().getIdle());
+
+      assertEquals("vm-2", pool.call("clone", "b", new Messages()).getMoid());
+      assertEquals(2, pool.getStats().getLaunched());
+      assertEquals(1, pool.getStats().getFailures());
+   }
+
+   @Test
+   public void exitedIdleWorkerIsReplaced() throws Exception {
+      StubLauncher launcher = new StubLauncher(null);
+      pool = new ScriptWorkerPool("stub", launcher, 1);
+      pool.prestart(1);
+
+      launcher.workers.get(0).destroy();
+      assertEquals("vm-2", pool.call("clone", "a", new Messages()).getMoid());
+      assertEquals(2, pool.getStats().getLaunched());
+   }
+
+   @Test
+   public void concurrentRequestsUseSeparateWorkers() throws Exception {
+      final StubLauncher launcher = new StubLauncher(new CountDownLatch(3));
+      pool = new ScriptWorkerPool("stub", launcher, 3);
+
+      ExecutorService executor = Executors.newFixedThreadPool(3);
+      try {
+         List<Future<String>> results = new ArrayList<Future<String>>();
+         for (int i = 0; i < 3; i++) {
+            results.add(executor.submit(new Callable<String>() {
+               @Override
+               public String call() throws Exception {
+                  return pool.call("wait", "x", new Messages()).getMoid();
+               }
+            }));
+         }
+
+         List<String> moids = new ArrayList<String>();
+         for (Future<String> result : results) {
+            moids.add(result.get(10, TimeUnit.SECONDS));
+         }
+         Collections.sort(moids);
+         assertEquals("[vm-1, vm-2, vm-3]", moids.toString());
+         assertEquals(3, pool.getStats().getIdle());
+      } finally {
+         executor.shutdownNow();
+      }
+   }
+
+   @Test
+   public void prestartAndClose() throws Exception {
+      StubLauncher launcher = new StubLauncher(null);
+      pool = new ScriptWorkerPool("stub", launcher, 4);
+      pool.prestart(2);
+      pool.prestart(2);
+
+      assertEquals(2, pool.getStats().getLaunched());
+      assertEquals(2, pool.getStats().getIdle());
+
+      pool.close();
+      assertEquals(0, pool.getStats().getIdle());
+      for (StubWorker worker : launcher.workers) {
+         assertTrue(worker.exitValue != null);
+      }
+
+      try {
+         pool.call("clone", "a", new Messages());
+         fail("Expected a closed pool to refuse requests.");
+      } catch (IOException e) {
+         // Expected.
+      }
+   }
+}
@@ -0,0 +1,345 @@
+/* ***********************************************************************
+ * VMware ThinApp Factory
+ * Copyright (c) 2009-2013 VMware, Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ***********************************************************************/
+
+package com.vmware.thinapp.workpool.tests.unit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import com.vmware.thinapp.workpool.SessionPool;
+import com.vmware.thinapp.workpool.WorkpoolException;
+
+public class SessionPoolTest {
+   /**
+    * Stands in for a server: hands out numbered sessions and remembers which
+    * ones were logged out.  IOExceptions count as session errors.
+    */
+   private static class FakeServer implements SessionPool.Factory<FakeSession> {
+      final AtomicInteger logins = new AtomicInteger();
+      final List<FakeSession> loggedOut = new ArrayList<FakeSession>();
+
+      @Override
+      public FakeSession login() {
+         return new FakeSession(logins.incrementAndGet());
+      }
+
+      @Override
+      public boolean isAlive(FakeSession session) {
+         return session.alive;
+      }
+
+      @Override
+      public boolean isSessionError(Throwable error) {
+         return error instanceof IOException;
+      }
+
+      @Override
+      public synchronized void logout(FakeSession session) {
+         loggedOut.add(session);
+      }
+   }
+
+   private static class FakeSession {
+      final int id;
+      volatile boolean alive = true;
+
+      FakeSession(int id) {
+         this.id = id;
+      }
+   }
+
+   private static SessionPool.Callback<FakeSession, Integer> idOf() {
+      return new SessionPool.Callback<FakeSession, Integer>() {
+         @Override
+         public Integer doWithSession(FakeSession session) {
+            return session.id;
+         }
+      };
+   }
+
+   @Test
+   public void slowCallDoesNotBlockOthers() throws Exception {
+      FakeServer server = new FakeServer();
+      final SessionPool<FakeSession> pool = new SessionPool<FakeSession>(server, 2, 5000, 0);
+      final CountDownLatch slowStarted = new CountDownLatch(1);
+      final CountDownLatch slowRelease = new CountDownLatch(1);
+
+      Thread slow = new Thread(new Runnable() {
+         @Override
+         public void run() {
+            try {
+               pool.execute(new SessionPool.Callback<FakeSession, Void>() {
+                  @Override
+                  public Void doWithSession(FakeSession session) throws Exception {
+                     slowStarted.countDown();
+                     slowRelease.await();
+                     return null;
+                  }
+               });
+            } catch (Exception e) {
+               throw new RuntimeException(e);
+            }
+         }
+      });
+      slow.start();
+      assertTrue(slowStarted.await(5, TimeUnit.SECONDS));
+
+      // Runs on the second session while the first is busy.
+      assertEquals(Integer.valueOf(2), pool.execute(idOf()));
+      assertEquals(1, pool.getStats().getInUse());
+
+      slowRelease.countDown();
+      slow.join();
+      assertEquals(2, pool.getStats().getOpen());
+      assertEquals(2, pool.getStats().getIdle());
+      assertEquals(2, server.logins.get());
+      pool.close();
+   }
+
+   @Test
+   public void idleSessionIsReused() throws Exception {
+      FakeServer server = new FakeServer();
+      SessionPool<FakeSession> pool = new SessionPool<FakeSession>(server, 4, 5000, 0);
+
+      for (int i = 0; i < 10; i++) {
+         assertEquals(Integer.valueOf(1), pool.execute(idOf()));
+      }
+      assertEquals(1, server.logins.get());
+      assertEquals(10, pool.getStats().getLeases());
+      pool.close();
+      assertEquals(1, server.loggedOut.size());
+   }
+
+   @Test
+   public void leaseTimesOutWhenFull() throws Exception {
+      SessionPool<FakeSession> pool = new SessionPool<FakeSession>(new FakeServer(), 1, 100, 0);
+      SessionPool<FakeSession>.Lease held = pool.lease();
+
+      try {
+         pool.lease();
+         fail("Lease should have timed out.");
+      } catch (WorkpoolException e) {
+         // Expected.
+      }
+      assertEquals(1, pool.getStats().getLeaseTimeouts());
+
+      held.release();
+      assertSame(held.get(), pool.lease().get());
+   }
+
+   @Test
+   public void waiterGetsReturnedSession() throws Exception {
+      final SessionPool<FakeSession> pool = new SessionPool<FakeSession>(new FakeServer(), 1, 5000, 0);
+      final SessionPool<FakeSession>.Lease held = pool.lease();
+
+      new Thread(new Runnable() {
+         @Override
+         public void run() {
+            try {
+               Thread.sleep(100);
+            } catch (InterruptedException e) {
+               // Release now.
+            }
+            held.release();
+         }
+      }).start();
+
+      SessionPool<FakeSession>.Lease next = pool.lease();
+      assertSame(held.get(), next.get());
+      SessionPool.Stats stats = pool.getStats();
+      assertEquals(1, stats.getWaits());
+      assertTrue(stats.getMaxWaitMs() >= 50);
+   }
+
+   @Test
+   public void sessionErrorLogsInAgain() throws Exception {
+      FakeServer server = new FakeServer();
+      SessionPool<FakeSession> pool = new SessionPool<FakeSession>(server, 1, 5000, 0);
+
+      try {
+         pool.execute(new SessionPool.Callback<FakeSession, Void>() {
+            @Override
+            public Void doWithSession(FakeSession session) throws IOException {
+               throw new IOException("Connection reset");
+            }
+         });
+         fail("Expected the session error.");
+      } catch (IOException e) {
+         // Expected.
+      }
+
+      assertEquals(Integer.valueOf(2), pool.execute(idOf()));
+      assertEquals(1, server.loggedOut.size());
+      assertEquals(1, pool.getStats().getInvalidated());
+   }
+
+   @Test
+   public void callErrorKeepsSession() throws Exception {
+      FakeServer server = new FakeServer();
+      SessionPool<FakeSession> pool = new SessionPool<FakeSession>(server, 1, 5000, 0);
+
+      try {
+         pool.execute(new SessionPool.Callback<FakeSession, Void>() {
+            @Override
+            public Void doWithSession(FakeSession session) {
+               throw new IllegalStateException("No such VM");
+            }
+         });
+         fail("Expected the call error.");
+      } catch (IllegalStateException e) {
+         // Expected.
+      }
+
+      assertEquals(Integer.valueOf(1), pool.execute(idOf()));
+      assertEquals(0, pool.getStats().getInvalidated());
+   }
+
+   @Test
+   public void operationTimeoutReplacesSession() throws Exception {
+      FakeServer server = new FakeServer();
+      SessionPool<FakeSession> pool = new SessionPool<FakeSession>(server, 1, 5000, 100);
+
+      try {
+         pool.execute(new SessionPool.Callback<FakeSession, Void>() {
+            @Override
+            public Void doWithSession(FakeSession session) throws InterruptedException {
+               Thread.sleep(10000);
+               return null;
+            }
+         });
+         fail("Expected a timeout.");
+      } catch (WorkpoolException e) {
+         // Expected.
+      }
+
+      assertEquals(1, pool.getStats().getOperationTimeouts());
+      assertEquals(Integer.valueOf(2), pool.execute(idOf()));
+   }
+
+   @Test
+   public void healthCheckDropsDeadSessions() throws Exception {
+      FakeServer server = new FakeServer();
+      SessionPool<FakeSession> pool = new SessionPool<FakeSession>(server, 2, 5000, 0);
+      SessionPool<FakeSession>.Lease first = pool.lease();
+      SessionPool<FakeSession>.Lease second = pool.lease();
+      assertNotSame(first.get(), second.get());
+      first.get().alive = false;
+      first.release();
+      second.release();
+
+      pool.checkHealth();
+
+      assertEquals(1, pool.getStats().getOpen());
+      assertEquals(1, server.loggedOut.size());
+      assertSame(second.get(), pool.lease().get());
+   }
+
+   @Test
+   public void timedOutSessionIsKeptUntilTheCallReturns() throws Exception {
+      FakeServer server = new FakeServer();
+      SessionPool<FakeSession> pool = new SessionPool<FakeSession>(server, 1, 5000, 100);
+      final CountDownLatch stuck = new CountDownLatch(1);
+
+      try {
+         pool.execute(new SessionPool.Callback<FakeSession, Void>() {
+            @Override
+            public Void doWithSession(FakeSession session) {
+               // A call that doesn't notice interrupts.
+               while (true) {
+                  try {
+                     stuck.await();
+                     return null;
+                  } catch (InterruptedException e) {
+                     // Keep going.
+                  }
+               }
+            }
+         });
+         fail("Expected a timeout.");
+      } catch (WorkpoolException e) {
+         // Expected.
+      }
+
+      // Still in use by the abandoned call, so not logged out yet.
+      assertEquals(1, pool.getStats().getOpen());
+      assertEquals(0, server.loggedOut.size());
+
+      stuck.countDown();
+      assertEquals(Integer.valueOf(2), pool.execute(idOf()));
+      assertEquals(1, server.loggedOut.size());
+      assertEquals(1, pool.getStats().getInvalidated());
+   }
+
+   @Test
+   public void failedLoginIsNotALease() throws Exception {
+      SessionPool<FakeSession> pool = new SessionPool<FakeSession>(new FakeServer() {
+         @Override
+         public FakeSession login() {
+            throw new IllegalStateException("Cannot complete login due to an incorrect user name or password.");
+         }
+      }, 1, 5000, 0);
+
+      try {
+         pool.execute(idOf());
+         fail("Expected the login to fail.");
+      } catch (WorkpoolException e) {
+         // Expected.
+      }
+
+      SessionPool.Stats stats = pool.getStats();
+      assertEquals(0, stats.getLeases());
+      assertEquals(1, stats.getLoginFailures());
+      assertEquals(0, stats.getOpen());
+   }
+
+   @Test
+   public void closingBeforeTheCallReleasesTheSession() throws Exception {
+      final List<SessionPool<FakeSession>> pools = new ArrayList<SessionPool<FakeSession>>();
+      FakeServer server = new FakeServer() {
+         @Override
+         public FakeSession login() {
+            // The pool closes between the lease and the call.
+            pools.get(0).close();
+            return super.login();
+         }
+      };
+      SessionPool<FakeSession> pool = new SessionPool<FakeSession>(server, 1, 5000, 0);
+      pools.add(pool);
+
+      try {
+         pool.execute(idOf());
+         fail("Expected the pool to be closed.");
+      } catch (WorkpoolException e) {
+         // Expected.
+      }
+
+      assertEquals(0, pool.getStats().getOpen());
+      assertEquals(1, server.loggedOut.size());
+   }
+}
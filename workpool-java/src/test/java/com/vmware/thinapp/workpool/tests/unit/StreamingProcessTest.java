@@ -0,0 +1,135 @@
+/* ***********************************************************************
+ * VMware ThinApp Factory
+ * Copyright (c) 2009-2013 VMware, Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ***********************************************************************/
+
+package com.vmware.thinapp.workpool.tests.unit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import com.vmware.thinapp.workpool.OutputRingBuffer;
+import com.vmware.thinapp.workpool.ProcessMonitorService;
+import com.vmware.thinapp.workpool.StreamingProcess;
+
+public class StreamingProcessTest {
+   private static class Lines implements StreamingProcess.LineSink {
+      final List<String> lines = new ArrayList<String>();
+
+      @Override
+      public void line(String line) {
+         lines.add(line);
+      }
+   }
+
+   private static List<String> split(String text, int maxLineLength) throws IOException {
+      Lines lines = new Lines();
+      StreamingProcess.copyLines(new StringReader(text), maxLineLength, lines);
+      return lines.lines;
+   }
+
+   @Test
+   public void splitsLikeReadLine() throws IOException {
+      assertEquals(Arrays.asList("a", "b", "", "c", "d"), split("a\r\nb\n\nc\rd", 100));
+      assertEquals(Arrays.asList("a"), split("a\n", 100));
+      assertEquals(Arrays.<String>asList(), split("", 100));
+   }
+
+   @Test
+   public void longLinesAreCut() throws IOException {
+      assertEquals(Arrays.asList("abc [3 characters omitted]", "de"), split("abcdef\nde", 3));
+   }
+
+   @Test
+   public void ringBufferKeepsLastLines() {
+      OutputRingBuffer buffer = new OutputRingBuffer(10);
+      buffer.line("one");
+      buffer.line("two");
+      assertEquals("one\ntwo\n", buffer.toString());
+
+      buffer.line("three");
+      assertEquals(3, buffer.getLineCount());
+      assertEquals(1, buffer.getDroppedLineCount());
+      assertEquals("[1 earlier lines omitted]\ntwo\nthree\n", buffer.toString());
+
+      // A single line longer than the buffer is still kept.
+      buffer.line("a very long line");
+      assertEquals("[3 earlier lines omitted]\na very long line\n", buffer.toString());
+   }
+
+   @Test
+   public void largeOutputStaysBounded() throws IOException {
+      OutputRingBuffer buffer = new OutputRingBuffer(1000);
+      int exitCode = new StreamingProcess(Arrays.asList("sh", "-c", "seq 1 200000; echo oops >&2; exit 3"))
+              .addSink(buffer)
+              .run();
+
+      assertEquals(3, exitCode);
+      assertEquals(200001, buffer.getLineCount());
+      assertTrue(buffer.toString().length() < 1100);
+      assertTrue(buffer.toString().endsWith("200000\noops\n"));
+   }
+
+   @Test
+   public void timeoutKillsProcess() {
+      StreamingProcess process = new StreamingProcess(Arrays.asList("sh", "-c", "echo started; exec sleep 30"))
+              .setTimeout(200, TimeUnit.MILLISECONDS);
+      long start = System.currentTimeMillis();
+      try {
+         process.run();
+         fail("Expected the command to time out.");
+      } catch (IOException e) {
+         assertTrue(process.isTimedOut());
+         assertEquals("Command timed out after 200 ms.", e.getMessage());
+      }
+      assertTrue(System.currentTimeMillis() - start < 10000);
+   }
+
+   @Test
+   public void cancelKillsProcess() throws Exception {
+      final ProcessMonitorService monitor = new ProcessMonitorService();
+      final Long commandId = 42L;
+      StreamingProcess process = new StreamingProcess(Arrays.asList("sh", "-c", "echo started; exec sleep 30"))
+              .setMonitor(monitor, commandId)
+              .addSink(new StreamingProcess.LineSink() {
+                 @Override
+                 public void line(String line) {
+                    monitor.cancel(commandId);
+                 }
+              });
+
+      long start = System.currentTimeMillis();
+      try {
+         assertTrue(process.run() != 0);
+      } catch (IOException e) {
+         // Killing the process may close its output before it is read.
+      }
+      assertTrue(System.currentTimeMillis() - start < 10000);
+      assertTrue(!process.isTimedOut());
+
+      // Cancelling after the process is done does nothing.
+      monitor.cancel(commandId);
+   }
+}
@@ -0,0 +1,257 @@
+/* ***********************************************************************
+ * VMware ThinApp Factory
+ * Copyright (c) 2009-2013 VMware, Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ***********************************************************************/
+
+package com.vmware.thinapp.workpool.tests.unit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.ByteStreams;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import com.vmware.thinapp.workpool.SessionPool;
+import com.vmware.thinapp.workpool.VCSessionFactory;
+import com.vmware.thinapp.workpool.WorkpoolException;
+import com.vmware.vim25.mo.ServiceInstance;
+
+public class VCSessionFactoryTest {
+   private static final String USER = "tafuser";
+   private static final String PASSWORD = "secret";
+
+   private HttpServer server;
+   private FakeVC vc;
+   private VCSessionFactory factory;
+
+   /**
+    * Answers just enough of the vSphere SOAP API to log in, ping and log
+    * out, tracking sessions by their cookie like VC does.
+    */
+   private static class FakeVC implements HttpHandler {
+      private static final String ENVELOPE =
+              "<?xml version=\"1.0\" encoding=\"UTF-8\"?>" +
+              "<soapenv:Envelope xmlns:soapenc=\"http://schemas.xmlsoap.org/soap/encoding/\"" +
+              " xmlns:soapenv=\"http://schemas.xmlsoap.org/soap/envelope/\"" +
+              " xmlns:xsd=\"http://www.w3.org/2001/XMLSchema\"" +
+              " xmlns:xsi=\"http://www.w3.org/2001/XMLSchema-instance\">" +
+              "<soapenv:Body>%s</soapenv:Body></soapenv:Envelope>";
+
+      private static final String SERVICE_CONTENT =
+              "<RetrieveServiceContentResponse xmlns=\"urn:vim25\"><returnval>" +
+              "<rootFolder type=\"Folder\">group-d1</rootFolder>" +
+              "<propertyCollector type=\"PropertyCollector\">propertyCollector</propertyCollector>" +
+              "<about><name>VMware vCenter Server</name>" +
+              "<fullName>VMware vCenter Server 4.1.0 build-1</fullName>" +
+              "<vendor>VMware, Inc.</vendor><version>4.1.0</version><build>1</build>" +
+              "<localeVersion>INTL</localeVersion><localeBuild>000</localeBuild>" +
+              "<osType>win32-x86</osType><productLineId>vpx</productLineId>" +
+              "<apiType>VirtualCenter</apiType><apiVersion>4.1</apiVersion></about>" +
+              "<sessionManager type=\"SessionManager\">SessionManager</sessionManager>" +
+              "</returnval></RetrieveServiceContentResponse>";
+
+      private static final String USER_SESSION =
+              "<LoginResponse xmlns=\"urn:vim25\"><returnval>" +
+              "<key>%s</key><userName>" + USER + "</userName><fullName>" + USER + "</fullName>" +
+              "<loginTime>2013-01-01T00:00:00Z</loginTime>" +
+              "<lastActiveTime>2013-01-01T00:00:00Z</lastActiveTime>" +
+              "<locale>en</locale><messageLocale>en</messageLocale>" +
+              "</returnval></LoginResponse>";
+
+      private static final String CURRENT_TIME =
+              "<CurrentTimeResponse xmlns=\"urn:vim25\">" +
+              "<returnval>2013-01-01T00:00:00Z</returnval></CurrentTimeResponse>";
+
+      private static final String LOGOUT = "<LogoutResponse xmlns=\"urn:vim25\"></LogoutResponse>";
+
+      private static final String FAULT =
+              "<soapenv:Fault><faultcode>ServerFaultCode</faultcode>" +
+              "<faultstring>%s</faultstring><detail>%s</detail></soapenv:Fault>";
+
+      private static final String NOT_AUTHENTICATED = String.format(FAULT,
+              "The session is not authenticated.",
+              "<NotAuthenticatedFault xmlns=\"urn:vim25\" xsi:type=\"NotAuthenticated\">" +
+              "<object type=\"Folder\">group-d1</object><privilegeId>System.View</privilegeId>" +
+              "</NotAuthenticatedFault>");
+
+      private static final String INVALID_LOGIN = String.format(FAULT,
+              "Cannot complete login due to an incorrect user name or password.",
+              "<InvalidLoginFault xmlns=\"urn:vim25\" xsi:type=\"InvalidLogin\"></InvalidLoginFault>");
+
+      private final AtomicInteger cookies = new AtomicInteger();
+      /** Cookies of the sessions logged in, guarded by this */
+      private final Set<String> sessions = new HashSet<String>();
+      final AtomicInteger logins = new AtomicInteger();
+      final AtomicInteger logouts = new AtomicInteger();
+
+      @Override
+      public void handle(HttpExchange exchange) throws IOException {
+         try {
+            InputStream in = exchange.getRequestBody();
+            String request = new String(ByteStreams.toByteArray(in), Charsets.UTF_8);
+            String cookie = exchange.getRequestHeaders().getFirst("Cookie");
+            if (cookie == null) {
+               // Every connection gets a cookie, the login makes it a session.
+               cookie = "vmware_soap_session=\"" + cookies.incrementAndGet() + "\"";
+               exchange.getResponseHeaders().set("Set-Cookie", cookie + "; Path=/;");
+            }
+
+            synchronized (this) {
+               if (request.contains("<RetrieveServiceContent")) {
+                  respond(exchange, 200, SERVICE_CONTENT);
+               } else if (request.contains("<Login")) {
+                  if (request.contains("<userName>" + USER + "</userName>") &&
+                          request.contains("<password>" + PASSWORD + "</password>")) {
+                     logins.incrementAndGet();
+                     sessions.add(cookie);
+                     respond(exchange, 200, String.format(USER_SESSION, cookie.hashCode()));
+                  } else {
+                     respond(exchange, 500, INVALID_LOGIN);
+                  }
+               } else if (request.contains("<CurrentTime")) {
+                  if (sessions.contains(cookie)) {
+                     respond(exchange, 200, CURRENT_TIME);
+                  } else {
+                     respond(exchange, 500, NOT_AUTHENTICATED);
+                  }
+               } else if (request.contains("<Logout")) {
+                  logouts.incrementAndGet();
+                  sessions.remove(cookie);
+                  respond(exchange, 200, LOGOUT);
+               } else {
+                  respond(exchange, 500, NOT_AUTHENTICATED);
+               }
+            }
+         } finally {
+            exchange.close();
+         }
+      }
+
+      synchronized int sessionCount() {
+         return sessions.size();
+      }
+
+      /**
+       * Forget every session, as if VC restarted.
+       */
+      synchronized void restart() {
+         sessions.clear();
+      }
+
+      private static void respond(HttpExchange exchange, int status, String body)
+              throws IOException {
+         byte[] bytes = String.format(ENVELOPE, body).getBytes(Charsets.UTF_8);
+         exchange.getResponseHeaders().set("Content-Type", "text/xml; charset=utf-8");
+         exchange.sendResponseHeaders(status, bytes.length);
+         OutputStream out = exchange.getResponseBody();
+         out.write(bytes);
+         out.close();
+      }
+   }
+
+   @Before
+   public void setUp() throws IOException {
+      vc = new FakeVC();
+      server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+      server.createContext("/sdk", vc);
+      server.start();
+      URL url = new URL("http", "127.0.0.1", server.getAddress().getPort(), "/sdk");
+      factory = new VCSessionFactory(url, USER, PASSWORD, false);
+   }
+
+   @After
+   public void tearDown() {
+      server.stop(0);
+   }
+
+   @Test
+   public void loginPingAndLogout() throws Exception {
+      ServiceInstance session = factory.login();
+      assertEquals(1, vc.logins.get());
+      assertEquals(1, vc.sessionCount());
+
+      assertTrue(factory.isAlive(session));
+
+      factory.logout(session);
+      assertEquals(1, vc.logouts.get());
+      assertEquals(0, vc.sessionCount());
+      assertFalse(factory.isAlive(session));
+   }
+
+   @Test
+   public void wrongPasswordFailsTheLease() throws Exception {
+      URL url = new URL("http", "127.0.0.1", server.getAddress().getPort(), "/sdk");
+      SessionPool<ServiceInstance> pool = new SessionPool<ServiceInstance>(
+              new VCSessionFactory(url, USER, "wrong", false), 2, 5000, 0);
+
+      try {
+         pool.lease();
+         fail("Expected the login to fail.");
+      } catch (WorkpoolException e) {
+         // Expected.
+      }
+
+      SessionPool.Stats stats = pool.getStats();
+      assertEquals(1, stats.getLoginFailures());
+      assertEquals(0, stats.getLeases());
+      assertEquals(0, stats.getOpen());
+      pool.close();
+   }
+
+   @Test
+   public void poolReusesAndReplacesSessions() throws Exception {
+      SessionPool<ServiceInstance> pool = new SessionPool<ServiceInstance>(factory, 2, 5000, 0);
+      SessionPool.Callback<ServiceInstance, Boolean> ping =
+              new SessionPool.Callback<ServiceInstance, Boolean>() {
+                 @Override
+                 public Boolean doWithSession(ServiceInstance session) throws Exception {
+                    return session.currentTime() != null;
+                 }
+              };
+
+      assertTrue(pool.execute(ping));
+      assertTrue(pool.execute(ping));
+      assertEquals(1, vc.logins.get());
+
+      // VC forgot the session: the health check logs it out and the next
+      // call logs in again.
+      vc.restart();
+      pool.checkHealth();
+      assertEquals(0, pool.getStats().getOpen());
+      assertEquals(1, vc.logouts.get());
+      assertTrue(pool.execute(ping));
+      assertEquals(2, vc.logins.get());
+
+      pool.close();
+      assertEquals(2, vc.logouts.get());
+   }
+}
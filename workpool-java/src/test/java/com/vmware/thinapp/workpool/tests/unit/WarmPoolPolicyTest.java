@@ -0,0 +1,262 @@
+/* ***********************************************************************
+ * VMware ThinApp Factory
+ * Copyright (c) 2009-2013 VMware, Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ***********************************************************************/
+
+package com.vmware.thinapp.workpool.tests.unit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.TimeZone;
+
+import org.junit.Test;
+
+import com.vmware.thinapp.workpool.CloneRunner;
+import com.vmware.thinapp.workpool.LeasePlanner;
+import com.vmware.thinapp.workpool.WarmPoolPolicy;
+
+public class WarmPoolPolicyTest {
+   private static final TimeZone UTC = TimeZone.getTimeZone("UTC");
+   private static final long SECOND = 1000L;
+   private static final long MINUTE = 60 * SECOND;
+   private static final long HOUR = 60 * MINUTE;
+   private static final long DAY = 24 * HOUR;
+
+   /** Midnight UTC, some day */
+   private static final long START = 1350000000000L - (1350000000000L % DAY);
+
+   @Test
+   public void noSparesWithoutDemand() {
+      WarmPoolPolicy policy = new WarmPoolPolicy(0, 4, 5 * MINUTE, 30 * MINUTE, UTC);
+      assertEquals(0, policy.targetSpares(START));
+      assertEquals(0, policy.sparesToAdd(START, 0, 0, 0, 0, 10));
+   }
+
+   @Test
+   public void minimumSparesAreKept() {
+      WarmPoolPolicy policy = new WarmPoolPolicy(2, 4, 5 * MINUTE, 30 * MINUTE, UTC);
+      assertEquals(2, policy.targetSpares(START));
+      assertEquals(1, policy.sparesToAdd(START, 1, 0, 0, 3, 10));
+   }
+
+   @Test
+   public void disabledPolicy() {
+      WarmPoolPolicy policy = new WarmPoolPolicy(0, 0, 5 * MINUTE, 30 * MINUTE, UTC);
+      for (int i = 0; i < 100; i++) {
+         policy.arrival(START + i * SECOND);
+      }
+      assertEquals(0, policy.sparesToAdd(START + 100 * SECOND, 0, 0, 0, 0, 10));
+   }
+
+   @Test
+   public void sparesFollowArrivalRate() {
+      WarmPoolPolicy policy = new WarmPoolPolicy(0, 10, 5 * MINUTE, 30 * MINUTE, UTC);
+      // One request a minute for an hour: about five arrive while an
+      // instance is created.
+      long now = START;
+      for (int i = 0; i < 60; i++) {
+         now = START + i * MINUTE;
+         policy.arrival(now);
+      }
+      int target = policy.targetSpares(now);
+      assertTrue("target " + target, target >= 4 && target <= 6);
+
+      // The demand fades once requests stop.
+      assertEquals(0, policy.targetSpares(now + 6 * HOUR));
+   }
+
+   @Test
+   public void sparesStayWithinLimits() {
+      WarmPoolPolicy policy = new WarmPoolPolicy(0, 3, 5 * MINUTE, 30 * MINUTE, UTC);
+      for (int i = 0; i < 600; i++) {
+         policy.arrival(START + i * SECOND);
+      }
+      long now = START + 600 * SECOND;
+      assertEquals(3, policy.targetSpares(now));
+
+      // Free instances and instances being created count against the target.
+      assertEquals(1, policy.sparesToAdd(now, 1, 1, 0, 2, 10));
+      // Instances being created for waiters don't.
+      assertEquals(2, policy.sparesToAdd(now, 1, 1, 1, 2, 10));
+      // Never more than the workpool maximum.
+      assertEquals(1, policy.sparesToAdd(now, 0, 0, 0, 9, 10));
+      assertEquals(0, policy.sparesToAdd(now, 0, 0, 0, 10, 10));
+   }
+
+   @Test
+   public void profileAnticipatesTimeOfDay() {
+      WarmPoolPolicy policy = new WarmPoolPolicy(0, 10, 5 * MINUTE, 30 * MINUTE, UTC);
+      // Busy from 9:00 to 10:00 for several days.
+      for (int day = 0; day < 5; day++) {
+         for (int i = 0; i < 60; i++) {
+            policy.arrival(START + day * DAY + 9 * HOUR + i * MINUTE);
+         }
+      }
+
+      // Recent demand is long gone by the next morning, but the profile
+      // still asks for spares just before 9:00 and none at night.
+      long nextDay = START + 5 * DAY;
+      assertTrue(policy.targetSpares(nextDay + 8 * HOUR + 57 * MINUTE) > 0);
+      assertEquals(0, policy.targetSpares(nextDay + 3 * HOUR));
+   }
+
+   @Test
+   public void leadTimeIsLearned() {
+      WarmPoolPolicy policy = new WarmPoolPolicy(0, 10, 5 * MINUTE, 30 * MINUTE, UTC);
+      for (int i = 0; i < 50; i++) {
+         policy.instancingTime(MINUTE);
+      }
+      assertEquals(MINUTE, policy.getStats().getLeadTimeMs(), SECOND);
+   }
+
+   @Test
+   public void idleCostIsMeasured() {
+      WarmPoolPolicy policy = new WarmPoolPolicy(0, 10, 5 * MINUTE, 30 * MINUTE, UTC);
+      policy.observe(START, 2);
+      policy.observe(START + MINUTE, 1);
+      policy.observe(START + 2 * MINUTE, 0);
+      assertEquals(3 * MINUTE, policy.getStats().getIdleInstanceMs());
+   }
+
+   @Test
+   public void waitersTakeFreeInstancesFirst() {
+      LeasePlanner<String> planner = new LeasePlanner<String>(
+              new WarmPoolPolicy(0, 0, 5 * MINUTE, 30 * MINUTE, UTC));
+      LeasePlanner.Plan<String> plan = planner.plan(
+              START, Arrays.asList("a", "b", "c", "d"), 1, 1, 3, 4, true);
+
+      // One free instance, one already being created, one more allowed.
+      assertEquals(Arrays.asList("a"), plan.getLeased());
+      assertEquals(1, plan.getForWaiters());
+      assertEquals(0, plan.getSpares());
+
+      // Nothing grows a fixed workpool.
+      plan = planner.plan(START, Arrays.asList("b", "c", "d"), 0, 0, 3, 4, false);
+      assertEquals(0, plan.getLeased().size());
+      assertEquals(0, plan.getForWaiters());
+   }
+
+   @Test
+   public void waitersMissedOnceAreMisses() {
+      WarmPoolPolicy policy = new WarmPoolPolicy(0, 0, 5 * MINUTE, 30 * MINUTE, UTC);
+      LeasePlanner<String> planner = new LeasePlanner<String>(policy);
+      planner.plan(START, Arrays.asList("a", "b"), 0, 0, 0, 1, true);
+      planner.plan(START + MINUTE, Arrays.asList("a", "b", "c"), 3, 0, 3, 3, true);
+
+      assertEquals(1, policy.getStats().getHits());
+      assertEquals(2, policy.getStats().getMisses());
+   }
+
+   /**
+    * Run a simulated morning ramp-up against a stub clone runner, with and
+    * without spares, and check that spares turn misses into hits at an idle
+    * cost that is reported.
+    */
+   @Test
+   public void sparesImproveHitRate() throws Exception {
+      WarmPoolPolicy.Stats cold = simulate(new WarmPoolPolicy(0, 0, 5 * MINUTE, 30 * MINUTE, UTC));
+      WarmPoolPolicy.Stats warm = simulate(new WarmPoolPolicy(0, 4, 5 * MINUTE, 30 * MINUTE, UTC));
+
+      assertEquals(cold.getArrivals(), warm.getArrivals());
+      assertEquals(cold.getArrivals(), cold.getHits() + cold.getMisses());
+      assertEquals(cold.getArrivals(), warm.getHits() + warm.getMisses());
+      assertEquals(0, cold.getSparesProvisioned());
+      assertTrue(warm.getSparesProvisioned() > 0);
+      assertTrue("cold " + cold + ", warm " + warm, warm.getHitRate() > cold.getHitRate() + 0.15);
+      assertTrue(warm.getIdleInstanceMs() > cold.getIdleInstanceMs());
+   }
+
+   /**
+    * A clone runner that succeeds after a fixed time, and counts its runs.
+    */
+   private static class CloneRunnerStub implements CloneRunner {
+      static final long CLONE_TIME = 4 * MINUTE;
+      int runs;
+
+      @Override
+      public Result run() {
+         runs++;
+         return new Result("vm-" + runs, true, "");
+      }
+   }
+
+   /**
+    * A growable workpool with a maximum of 20 instances, handling requests
+    * that keep their instance for 10 minutes, over a three hour ramp-up:
+    * requests arrive every 6 minutes in the first hour, every 3 minutes in
+    * the second and every 90 seconds in the third.
+    *
+    * Each simulated second is one workpool pass: the LeasePlanner that
+    * WorkpoolInstanceImpl uses decides which waiters are leased and how
+    * many instances are started, and the clone runner stub creates them.
+    * The simulation runs on until every waiter has been served.
+    */
+   private static WarmPoolPolicy.Stats simulate(WarmPoolPolicy policy) throws Exception {
+      final int maximum = 20;
+      final long leaseTime = 10 * MINUTE;
+      final long end = START + 3 * HOUR;
+
+      LeasePlanner<Object> planner = new LeasePlanner<Object>(policy);
+      CloneRunnerStub runner = new CloneRunnerStub();
+      List<Long> clonesDone = new ArrayList<Long>();
+      List<Long> leasesDone = new ArrayList<Long>();
+      List<Object> waiters = new ArrayList<Object>();
+      int free = 0;
+      int total = 0;
+
+      for (long now = START; now <= end || !waiters.isEmpty(); now += SECOND) {
+         // Completed clones become free instances.
+         for (int i = clonesDone.size() - 1; i >= 0; i--) {
+            if (clonesDone.get(i) <= now) {
+               clonesDone.remove(i);
+               assertTrue(runner.run().isSuccess());
+               policy.instancingTime(CloneRunnerStub.CLONE_TIME);
+               free++;
+            }
+         }
+         for (int i = leasesDone.size() - 1; i >= 0; i--) {
+            if (leasesDone.get(i) <= now) {
+               leasesDone.remove(i);
+               free++;
+            }
+         }
+
+         long arrivalInterval = (6 * MINUTE) >> ((now - START) / HOUR);
+         if (now < end && (now - START) % arrivalInterval == 0) {
+            policy.arrival(now);
+            waiters.add(new Object());
+         }
+
+         LeasePlanner.Plan<Object> plan =
+                 planner.plan(now, waiters, free, clonesDone.size(), total, maximum, true);
+         for (Object waiter : plan.getLeased()) {
+            waiters.remove(waiter);
+            free--;
+            leasesDone.add(now + leaseTime);
+         }
+         for (int i = 0; i < plan.getForWaiters() + plan.getSpares(); i++) {
+            clonesDone.add(now + CloneRunnerStub.CLONE_TIME);
+            total++;
+         }
+      }
+
+      assertEquals(total, runner.runs + clonesDone.size());
+      return policy.getStats();
+   }
+}
@@ -0,0 +1,218 @@
+/* ***********************************************************************
+ * VMware ThinApp Factory
+ * Copyright (c) 2009-2013 VMware, Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ***********************************************************************/
+
+package com.vmware.thinapp.workpool.tests.unit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.SimpleTransactionStatus;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import com.vmware.thinapp.workpool.Instancer;
+import com.vmware.thinapp.workpool.NullInstancer;
+import com.vmware.thinapp.workpool.ProcessCoalescer;
+import com.vmware.thinapp.workpool.WorkpoolInstance;
+import com.vmware.thinapp.workpool.WorkpoolInstanceImpl;
+import com.vmware.thinapp.workpool.dao.LeaseRepository;
+import com.vmware.thinapp.workpool.dao.WorkpoolRepository;
+import com.vmware.thinapp.workpool.model.CustomWorkpoolModel;
+import com.vmware.thinapp.workpool.model.InstanceModel;
+import com.vmware.thinapp.workpool.model.LeaseModel;
+import com.vmware.thinapp.workpool.model.OsInfoModel;
+import com.vmware.thinapp.workpool.model.WorkpoolModel;
+
+import akka.actor.TypedActor;
+import akka.actor.TypedActorFactory;
+import akka.dispatch.Future;
+
+/**
+ * Runs a real WorkpoolInstanceImpl actor, with its database replaced by
+ * in-memory repositories, and checks that a burst of lease releases is
+ * handled by a few passes over the workpool instead of one per release.
+ */
+public class WorkpoolInstanceProcessTest {
+   private static final int LEASES = 200;
+   private static final int CLIENTS = 8;
+   /** Time each pass spends looking up free instances */
+   private static final long PASS_MS = 5;
+
+   private CustomWorkpoolModel model;
+   private final AtomicInteger freeInstanceQueries = new AtomicInteger();
+   private WorkpoolInstance workpool;
+
+   /**
+    * Keeps the workpool model in memory.  Every pass looks up the free
+    * instances once, so the lookups count the passes.
+    */
+   private class MemoryWorkpoolRepository extends WorkpoolRepository {
+      @Override
+      public WorkpoolModel get(Serializable id) {
+         return model;
+      }
+
+      @Override
+      public void update(WorkpoolModel workpool) {
+      }
+
+      @Override
+      public List<InstanceModel> getFreeInstances(WorkpoolModel workpool) {
+         freeInstanceQueries.incrementAndGet();
+         try {
+            Thread.sleep(PASS_MS);
+         } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+         }
+         return new ArrayList<InstanceModel>();
+      }
+   }
+
+   private class MemoryLeaseRepository extends LeaseRepository {
+      @Override
+      public LeaseModel get(Serializable id) {
+         for (LeaseModel lease : model.getLeases()) {
+            if (id.equals(lease.getId())) {
+               return lease;
+            }
+         }
+         return null;
+      }
+   }
+
+   /**
+    * Transactions that commit nothing.
+    */
+   private static class NoTransactionManager implements PlatformTransactionManager {
+      @Override
+      public TransactionStatus getTransaction(TransactionDefinition definition) {
+         return new SimpleTransactionStatus();
+      }
+
+      @Override
+      public void commit(TransactionStatus status) {
+      }
+
+      @Override
+      public void rollback(TransactionStatus status) {
+      }
+   }
+
+   @Before
+   public void setUp() {
+      model = new CustomWorkpoolModel();
+      model.setId(1);
+      model.setName("process-test");
+      model.setState(WorkpoolModel.State.available);
+      model.setOsInfo(new OsInfoModel());
+
+      final Instancer instancer = newNullInstancer();
+      workpool = TypedActor.newInstance(WorkpoolInstance.class, new TypedActorFactory() {
+         @Override
+         public TypedActor create() {
+            WorkpoolInstanceImpl i = new WorkpoolInstanceImpl(model, instancer);
+            // What Spring would inject.
+            ReflectionTestUtils.setField(i, "workpoolDao", new MemoryWorkpoolRepository());
+            ReflectionTestUtils.setField(i, "leaseDao", new MemoryLeaseRepository());
+            ReflectionTestUtils.setField(i, "txn", new TransactionTemplate(new NoTransactionManager()));
+            ReflectionTestUtils.setField(i, "warmPoolLeadTimeSeconds", 300L);
+            ReflectionTestUtils.setField(i, "warmPoolRateWindowMinutes", 30L);
+            ReflectionTestUtils.setField(i, "healthMaxAgeSeconds", 10L);
+            return i;
+         }
+      }, Long.MAX_VALUE);
+
+      // Waits for the pass requested by preStart(), which also clears the
+      // leases, before handing any out.
+      workpool.getProcessStats();
+      for (int i = 1; i <= LEASES; i++) {
+         LeaseModel lease = new LeaseModel();
+         lease.setId(i);
+         model.getLeases().add(lease);
+      }
+   }
+
+   /**
+    * Custom workpools never create instances.
+    */
+   private static Instancer newNullInstancer() {
+      return TypedActor.newInstance(Instancer.class, new TypedActorFactory() {
+         @Override
+         public TypedActor create() {
+            return new NullInstancer();
+         }
+      }, Long.MAX_VALUE);
+   }
+
+   @After
+   public void tearDown() {
+      TypedActor.stop(workpool);
+   }
+
+   @Test
+   public void burstOfReleasesIsCoalesced() throws Exception {
+      ProcessCoalescer.Stats before = workpool.getProcessStats();
+      int queriesBefore = freeInstanceQueries.get();
+
+      final List<Future<Void>> released = Collections.synchronizedList(new ArrayList<Future<Void>>());
+      final CountDownLatch done = new CountDownLatch(CLIENTS);
+      for (int c = 0; c < CLIENTS; c++) {
+         final int client = c;
+         new Thread(new Runnable() {
+            @Override
+            public void run() {
+               for (long id = client + 1; id <= LEASES; id += CLIENTS) {
+                  LeaseModel lease = new LeaseModel();
+                  lease.setId(id);
+                  released.add(workpool.release(lease));
+               }
+               done.countDown();
+            }
+         }).start();
+      }
+      assertTrue(done.await(10, TimeUnit.SECONDS));
+      for (Future<Void> future : released) {
+         future.get();
+      }
+
+      // Queued behind every pass the releases asked for.
+      ProcessCoalescer.Stats after = workpool.getProcessStats();
+      long requests = after.getRequests() - before.getRequests();
+      long passes = after.getPasses() - before.getPasses();
+
+      assertTrue(model.getLeases().isEmpty());
+      // The instancer reporting itself available may ask for one more.
+      assertTrue("requests " + requests, requests >= LEASES);
+      assertTrue("passes " + passes, passes >= 1 && passes < LEASES / 10);
+      // Each of those passes was a real processing pass.
+      assertEquals(passes, freeInstanceQueries.get() - queriesBefore);
+   }
+}
@@ -75,7 +75,7 @@ public class WorkpoolController extends BaseController {
       log.debug("Received workpool create request: {}.", body);
       WorkpoolModel model = WorkpoolConverter.toModel(body);
       WorkpoolInstance instance = workpoolManager.create(model);
-      return redirect("/workpools/" + instance.getWorkpoolModel().getId());
+      return redirect("/workpools/" + instance.getId());
    }
 
    /**
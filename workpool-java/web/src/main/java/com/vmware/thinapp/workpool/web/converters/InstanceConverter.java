@@ -18,6 +18,7 @@
 package com.vmware.thinapp.workpool.web.converters;
 
 import com.vmware.thinapp.common.workpool.dto.InstanceInfo;
+import com.vmware.thinapp.workpool.InstanceSnapshot;
 import com.vmware.thinapp.workpool.model.InstanceModel;
 
 public class InstanceConverter {
@@ -33,6 +34,18 @@ public class InstanceConverter {
       return dto;
    }
 
+   public static InstanceInfo toDto(InstanceSnapshot snapshot) {
+      InstanceInfo dto = new InstanceInfo();
+      dto.setId(snapshot.getId());
+      dto.setAutologon(snapshot.getAutologon());
+      dto.setGuestUsername(snapshot.getGuestUsername());
+      dto.setGuestPassword(snapshot.getGuestPassword());
+      dto.setMoid(snapshot.getMoid());
+      dto.setState(InstanceInfo.State.valueOf(snapshot.getState().name()));
+      dto.setVmxPath("");
+      return dto;
+   }
+
    public static InstanceModel toModel(InstanceInfo instance) {
       InstanceModel model = new InstanceModel();
       model.setAutologon(instance.getAutologon());
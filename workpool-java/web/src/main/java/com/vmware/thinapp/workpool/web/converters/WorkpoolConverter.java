@@ -26,11 +26,12 @@ import com.vmware.thinapp.common.workpool.dto.FullWorkpool;
 import com.vmware.thinapp.common.workpool.dto.InstanceInfo;
 import com.vmware.thinapp.common.workpool.dto.LinkedWorkpool;
 import com.vmware.thinapp.common.workpool.dto.Workpool;
+import com.vmware.thinapp.workpool.InstanceSnapshot;
 import com.vmware.thinapp.workpool.VmImageManager;
 import com.vmware.thinapp.workpool.WorkpoolInstance;
+import com.vmware.thinapp.workpool.WorkpoolSnapshot;
 import com.vmware.thinapp.workpool.model.CustomWorkpoolModel;
 import com.vmware.thinapp.workpool.model.FullWorkpoolModel;
-import com.vmware.thinapp.workpool.model.InstanceModel;
 import com.vmware.thinapp.workpool.model.LinkedWorkpoolModel;
 import com.vmware.thinapp.workpool.model.VmImageModel;
 import com.vmware.thinapp.workpool.model.VmPatternModel;
@@ -40,36 +41,37 @@ import com.vmware.thinapp.workpool.model.WorkpoolModel;
 public class WorkpoolConverter {
    public static Workpool toDto(WorkpoolInstance instance, VmImageManager vmImageManager) {
       Workpool dto;
-      WorkpoolModel model = instance.getWorkpoolModel();
+      WorkpoolSnapshot snapshot = instance.getSnapshot();
 
-      if (model instanceof FullWorkpoolModel) {
-         FullWorkpool fullDto = new FullWorkpool();
-         FullWorkpoolModel fullWorkpool = (FullWorkpoolModel) model;
-         fullDto.setVmPattern(VmPatternConverter.toDto(fullWorkpool.getInstancer()));
-         dto = fullDto;
-      } else if (model instanceof LinkedWorkpoolModel) {
-         LinkedWorkpool linkedDto = new LinkedWorkpool();
-         LinkedWorkpoolModel linkedModel = (LinkedWorkpoolModel) model;
-         linkedDto.setVmImage(VmImageConverter.toDto(vmImageManager.get(linkedModel.getInstancer().getId())));
-         dto = linkedDto;
-      } else if (model instanceof CustomWorkpoolModel) {
-         CustomWorkpool customDto = new CustomWorkpool();
-         CustomWorkpoolModel customModel = (CustomWorkpoolModel) model;
-         customDto.setOsType(OsInfoConverter.toDto(customModel.getOsInfo()));
-         dto = customDto;
-      } else {
-         throw new RuntimeException("Unknown workpool type: " + model.getClass());
+      switch (snapshot.getType()) {
+         case full:
+            FullWorkpool fullDto = new FullWorkpool();
+            fullDto.setVmPattern(VmPatternConverter.toDto(snapshot.getVmPattern()));
+            dto = fullDto;
+            break;
+         case linked:
+            LinkedWorkpool linkedDto = new LinkedWorkpool();
+            linkedDto.setVmImage(VmImageConverter.toDto(vmImageManager.get(snapshot.getVmImageId())));
+            dto = linkedDto;
+            break;
+         case custom:
+            CustomWorkpool customDto = new CustomWorkpool();
+            customDto.setOsType(OsInfoConverter.toDto(snapshot.getOsInfo()));
+            dto = customDto;
+            break;
+         default:
+            throw new RuntimeException("Unknown workpool type: " + snapshot.getType());
       }
 
-      dto.setMaximum(model.getMaximumInstances());
-      dto.setName(model.getName());
-      dto.setId(model.getId());
-      dto.setState(Workpool.State.valueOf(model.getState().name()));
-      dto.setLastError(model.getLastError());
-      dto.getInstances().addAll(Collections2.transform(model.getInstances(),
-              new Function<InstanceModel, InstanceInfo>() {
+      dto.setMaximum(snapshot.getMaximumInstances());
+      dto.setName(snapshot.getName());
+      dto.setId(snapshot.getId());
+      dto.setState(Workpool.State.valueOf(snapshot.getState().name()));
+      dto.setLastError(snapshot.getLastError());
+      dto.getInstances().addAll(Collections2.transform(snapshot.getInstances(),
+              new Function<InstanceSnapshot, InstanceInfo>() {
                  @Override
-                 public InstanceInfo apply(InstanceModel input) {
+                 public InstanceInfo apply(InstanceSnapshot input) {
                     return InstanceConverter.toDto(input);
                  }
               }));
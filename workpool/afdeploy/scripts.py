@@ -14,14 +14,21 @@
 # limitations under the License.
 
 import collections
+import httplib
+import json
 import logging
+import os
 import pyVmomi
 import sys
+import time
+import urlparse
 
 from ConfigParser import ConfigParser
+from StringIO import StringIO
+from contextlib import closing
 
 from afdeploy import conf
-from afdeploy.connection import VCInfo, VIConnection
+from afdeploy.connection import VCInfo, VIConnection, VIHTTPSConnection
 from afdeploy.worker.linked import LinkedCloneWorker
 
 log = logging.getLogger(__name__)
@@ -42,20 +49,27 @@ def _getVcInfo(config):
    vc = _itemsToDict(vc)
    return VCInfo(**vc)
 
-def _handleException(fault, vcInfo, vmInfo):
-      print >> sys.stderr, type(fault).__name__, ':'
+def _getCloneInfo(config):
+   cloneInfo = _itemsToDict(config.items('vm'))
+   guestInfo = _itemsToDict(config.items('guest'))
+   cloneInfo['guestPass'] = guestInfo['password']
+   return CloneInfo(**cloneInfo)
+
+def _handleException(fault, vcInfo, vmInfo, out=None):
+      out = out or sys.stderr
+      print >> out, type(fault).__name__, ':'
       # skip meaningless and unassigned fault attributes
       attrnames = dir(fault)
       for name in attrnames:
          if name not in ('message', 'Array') and not name.startswith('_'):
             val = getattr(fault, name)
             if val:
-               print >> sys.stderr, name, '=', val
+               print >> out, name, '=', val
       # vc and vm info/spec.
       vcInfo = vcInfo._replace(vcPassword = '*****')
       vmInfo = vmInfo._replace(guestPass = '*****', prodKey = '*****')
-      print >> sys.stderr, '\n', vcInfo
-      print >> sys.stderr, '\n', vmInfo
+      print >> out, '\n', vcInfo
+      print >> out, '\n', vmInfo
 
 def CloneVm():
    if len(sys.argv) != 2:
@@ -72,11 +86,7 @@ def CloneVm():
    logging.basicConfig(level=logging.DEBUG, filename=logFile)
 
    vcInfo = _getVcInfo(config)
-   cloneInfo = _itemsToDict(config.items('vm'))
-   guestInfo = _itemsToDict(config.items('guest'))
-   cloneInfo['guestPass'] = guestInfo['password']
-
-   info = CloneInfo(**cloneInfo)
+   info = _getCloneInfo(config)
 
    _cloneVmImpl(vcInfo, info)
 
@@ -101,13 +111,24 @@ def _waitForFinish(conn, vm):
    # is weird.
    LinkedCloneWorker.FixDevices(conn, vm)
 
-def _cloneVmImpl(vcInfo, cloneInfo):
-   conn = None
-   vm = None
-   try:
+def _connect(vcInfo, namespace=None):
+   if namespace:
+      conn = VIConnection(vcInfo, _namespace=namespace)
+   else:
       conn = VIConnection(vcInfo)
-      conn.useAnnotations = False
+   conn.useAnnotations = False
+   return conn
 
+def _logout(conn):
+   conn.instance.content.sessionManager.Logout()
+
+def _cloneVm(conn, cloneInfo):
+   """
+   Clone the VM described by cloneInfo and return the moid of the clone.
+   The clone is destroyed if anything fails.
+   """
+   vm = None
+   try:
       class FixedLinkedCloneWorker(LinkedCloneWorker):
          def _FindTemplateVM(self, lookIdent=None, installed=False):
             vm = pyVmomi.vim.VirtualMachine(cloneInfo.moid, conn.instance._stub)
@@ -129,11 +150,276 @@ def _cloneVmImpl(vcInfo, cloneInfo):
                                False) # quiesce doesn't matter, VM is off
       conn.WaitTask(task, 'snapshot')
 
-      print vm._moId
-   except Exception as fault:
+      return vm._moId
+   except:
       if vm:
          vm.Destroy()
+      raise
+
+def _cloneVmImpl(vcInfo, cloneInfo):
+   conn = None
+   try:
+      conn = _connect(vcInfo)
+      print _cloneVm(conn, cloneInfo)
+   except Exception as fault:
       _handleException(fault, vcInfo, cloneInfo)
    finally:
       if conn:
-         conn.instance.content.sessionManager.Logout()
+         _logout(conn)
+
+class _ProgressHandler(logging.Handler):
+   """
+   Sends log records to the requester as progress messages.
+   """
+   def __init__(self, out, requestId):
+      logging.Handler.__init__(self)
+      self.out = out
+      self.requestId = requestId
+      self.setFormatter(logging.Formatter(logging.BASIC_FORMAT))
+
+   def emit(self, record):
+      _send(self.out, id=self.requestId, type='progress', message=self.format(record))
+
+def _send(out, **message):
+   out.write(json.dumps(message) + '\n')
+   out.flush()
+
+def _getSession(sessions, vcInfo, namespace=None):
+   """
+   Return a logged in connection for vcInfo, reusing the one from an
+   earlier request if it still works.
+   """
+   key = (vcInfo, namespace)
+   conn = sessions.get(key)
+   if conn:
+      try:
+         conn.instance.CurrentTime()
+         return conn
+      except Exception:
+         log.info('Session to %s expired, logging in again.', vcInfo.vcHost)
+         del sessions[key]
+
+   conn = _connect(vcInfo, namespace)
+   sessions[key] = conn
+   return conn
+
+def _dropSession(sessions, vcInfo, namespace=None):
+   conn = sessions.pop((vcInfo, namespace), None)
+   if conn:
+      try:
+         _logout(conn)
+      except Exception:
+         pass
+
+def _serveClone(request, sessions):
+   try:
+      config = ConfigParser()
+      config.optionxform = str
+      config.readfp(StringIO(request['ini']))
+      vcInfo = _getVcInfo(config)
+      info = _getCloneInfo(config)
+   except Exception as e:
+      return dict(moid='', error='Invalid clone request: %s' % e)
+
+   try:
+      conn = _getSession(sessions, vcInfo)
+      return dict(moid=_cloneVm(conn, info), error='')
+   except Exception as fault:
+      # The session may be what failed, so don't reuse it.
+      _dropSession(sessions, vcInfo)
+      err = StringIO()
+      _handleException(fault, vcInfo, info, err)
+      return dict(moid='', error=err.getvalue().strip())
+
+# Guest operations need the vSphere 5.0 API.
+_GUEST_NAMESPACE = 'vim25/5.0'
+_GUEST_CMD = 'C:\\Windows\\System32\\cmd.exe'
+_GUEST_CHUNK = 1024 * 1024
+# Polling for guest processes to finish starts quick, for short commands,
+# and slows down for long ones.
+_GUEST_POLL_MIN = 0.2
+_GUEST_POLL_MAX = 2.0
+
+def _describe(fault):
+   msg = getattr(fault, 'msg', None) or str(fault)
+   return '%s: %s' % (type(fault).__name__, msg)
+
+def _guestUrl(conn, url):
+   # A host of '*' stands for the host the session is connected to.
+   return urlparse.urlsplit(url.replace('://*', '://%s' % conn.vcInfo.vcHost, 1))
+
+def _guestPut(conn, guest, vm, auth, guestPath, source, size):
+   url = guest.fileManager.InitiateFileTransferToGuest(
+      vm, auth, guestPath, pyVmomi.vim.vm.guest.FileManager.FileAttributes(), size, True)
+   parts = _guestUrl(conn, url)
+   with closing(VIHTTPSConnection(parts.netloc)) as c:
+      c.putrequest('PUT', '%s?%s' % (parts.path, parts.query))
+      c.putheader('User-Agent', VIConnection.USER_AGENT)
+      c.putheader('Content-Type', 'application/octet-stream')
+      c.putheader('Content-Length', size)
+      c.endheaders()
+      c.sendFile(source)
+      resp = c.getresponse()
+   if resp.status != httplib.OK:
+      return dict(exitCode=-1, output='Upload to %s failed with HTTP status %d.' % (guestPath, resp.status))
+   return dict(exitCode=0, output='')
+
+def _guestUpload(conn, guest, vm, auth, op, deadline):
+   hostSource, guestDest = op['args']
+   with open(hostSource, 'rb') as source:
+      return _guestPut(conn, guest, vm, auth, guestDest, source, os.path.getsize(hostSource))
+
+def _guestDownload(conn, guest, vm, auth, op, deadline):
+   guestSource, hostDest = op['args']
+   info = guest.fileManager.InitiateFileTransferFromGuest(vm, auth, guestSource)
+   parts = _guestUrl(conn, info.url)
+   with closing(VIHTTPSConnection(parts.netloc)) as c:
+      c.putrequest('GET', '%s?%s' % (parts.path, parts.query))
+      c.putheader('User-Agent', VIConnection.USER_AGENT)
+      c.endheaders()
+      resp = c.getresponse()
+      if resp.status != httplib.OK:
+         return dict(exitCode=-1, output='Download of %s failed with HTTP status %d.' % (guestSource, resp.status))
+      with open(hostDest, 'wb') as fp:
+         for chunk in iter(lambda: resp.read(_GUEST_CHUNK), ''):
+            fp.write(chunk)
+   return dict(exitCode=0, output='')
+
+def _guestStart(guest, vm, auth, op, program, arguments, deadline):
+   spec = pyVmomi.vim.vm.guest.ProcessManager.ProgramSpec(programPath=program, arguments=arguments)
+   pid = guest.processManager.StartProgramInGuest(vm, auth, spec)
+   if op.get('noWait'):
+      return dict(exitCode=0, output='')
+
+   interval = _GUEST_POLL_MIN
+   while True:
+      infos = guest.processManager.ListProcessesInGuest(vm, auth, [pid])
+      if infos and infos[0].endTime:
+         return dict(exitCode=infos[0].exitCode, output='')
+      if deadline and time.time() > deadline:
+         return dict(exitCode=-1, output='%s did not finish in time.' % program)
+      time.sleep(interval)
+      interval = min(interval * 2, _GUEST_POLL_MAX)
+
+def _guestRunProgram(conn, guest, vm, auth, op, deadline):
+   args = op['args']
+   return _guestStart(guest, vm, auth, op, args[0], ' '.join(args[1:]), deadline)
+
+def _guestRunScript(conn, guest, vm, auth, op, deadline):
+   shell, script = op['args']
+   path = guest.fileManager.CreateTemporaryFileInGuest(vm, auth, 'af', shell and '.txt' or '.bat')
+   try:
+      result = _guestPut(conn, guest, vm, auth, path, StringIO(script), len(script))
+      if result['exitCode'] != 0:
+         return result
+      if shell:
+         return _guestStart(guest, vm, auth, op, shell, '"%s"' % path, deadline)
+      return _guestStart(guest, vm, auth, op, _GUEST_CMD, '/c "%s"' % path, deadline)
+   finally:
+      if not op.get('noWait'):
+         guest.fileManager.DeleteFileInGuest(vm, auth, path)
+
+def _guestCreateDirectory(conn, guest, vm, auth, op, deadline):
+   guest.fileManager.MakeDirectoryInGuest(vm, auth, op['args'][0], True)
+   return dict(exitCode=0, output='')
+
+_GUEST_OPERATIONS = {
+   'upload': _guestUpload,
+   'download': _guestDownload,
+   'runProgram': _guestRunProgram,
+   'runScript': _guestRunScript,
+   'createDirectory': _guestCreateDirectory,
+}
+
+def _serveGuest(request, sessions):
+   """
+   Perform a batch of guest operations on one VM.  Every operation is
+   performed and gets a result; only a batch that could not be started at
+   all gets an error instead.
+   """
+   try:
+      pyVmomi.vim.vm.guest.NamePasswordAuthentication
+   except AttributeError:
+      return dict(unsupported=True, error='pyVmomi has no guest operations.')
+
+   vcInfo = VCInfo(**request['vc'])
+   try:
+      conn = _getSession(sessions, vcInfo, _GUEST_NAMESPACE)
+      guest = conn.instance.RetrieveContent().guestOperationsManager
+   except Exception as fault:
+      _dropSession(sessions, vcInfo, _GUEST_NAMESPACE)
+      return dict(error=_describe(fault))
+   if guest is None:
+      return dict(unsupported=True, error='No guest operations manager.')
+
+   vm = pyVmomi.vim.VirtualMachine(request['vm'], conn.instance._stub)
+   credentials = request['guest']
+   timeout = request.get('timeout') or 0
+
+   results = []
+   for op in request['operations']:
+      auth = pyVmomi.vim.vm.guest.NamePasswordAuthentication(
+         username=credentials['username'], password=credentials['password'],
+         interactiveSession=bool(op.get('interactive')))
+      deadline = timeout and time.time() + timeout
+      try:
+         results.append(_GUEST_OPERATIONS[op['type']](conn, guest, vm, auth, op, deadline))
+      except Exception as fault:
+         log.debug('Guest operation %s failed.', op['type'], exc_info=True)
+         results.append(dict(exitCode=-1, output=_describe(fault)))
+   return dict(results=results, error='')
+
+def _serve(request, sessions):
+   op = request.get('op')
+   if op == 'clone':
+      return _serveClone(request, sessions)
+   if op == 'guest':
+      return _serveGuest(request, sessions)
+   return dict(moid='', error='Unsupported operation: %s' % op)
+
+def Worker():
+   """
+   Serve requests read from stdin until it is closed, keeping the VC
+   sessions open between requests.
+
+   Each request and response is a JSON object on one line: requests have
+   an id, an op and its arguments; responses are progress messages,
+   carrying the log records of the request, followed by a result.
+
+   A clone request carries the ini the clone-vm script would read, and its
+   result the moid of the clone or an error.  A guest request carries the
+   VC, the VM moid, guest credentials and a list of operations, and its
+   result a list with the exit code and output of each operation.
+   """
+   out = sys.stdout
+   # Keep stray prints off the response stream.
+   sys.stdout = sys.stderr
+   logging.getLogger().setLevel(logging.DEBUG)
+
+   sessions = {}
+   try:
+      for line in iter(sys.stdin.readline, ''):
+         if not line.strip():
+            continue
+         try:
+            request = json.loads(line)
+         except ValueError as e:
+            _send(out, id=None, type='result', moid='', error='Invalid request: %s' % e)
+            continue
+         handler = _ProgressHandler(out, request.get('id'))
+         logging.getLogger().addHandler(handler)
+         try:
+            result = _serve(request, sessions)
+         except Exception as e:
+            # A bad request must not take the worker down with it.
+            log.exception('Failed to serve request %s.', request.get('id'))
+            result = dict(moid='', error='Failed to serve request: %s' % e)
+         finally:
+            logging.getLogger().removeHandler(handler)
+         _send(out, id=request.get('id'), type='result', **result)
+   finally:
+      for conn in sessions.values():
+         try:
+            _logout(conn)
+         except Exception:
+            pass
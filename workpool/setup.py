@@ -29,5 +29,6 @@ setup(name='afdeploy',
       entry_points={
          'console_scripts': [
             'clone-vm = afdeploy.scripts:CloneVm',
+            'afdeploy-worker = afdeploy.scripts:Worker',
          ],
       })